@@ -0,0 +1,34 @@
+if /i "%*" EQU "--help" (
+  echo ENGINE21          Compiles the virtual thread engine into database\engine21.jar.
+  echo                   Requires JDK 21. Set JDK21Bin to its bin folder if the default JDK is older.
+  exit /b 0
+) else if "%*" NEQ "" (
+  echo Unexpected parameter.
+  exit /b 1
+)
+setlocal
+  set err=0
+  set "jdk=%JDKBin%"
+  if defined JDK21Bin set "jdk=%JDK21Bin%"
+  set "engineClasses=%workspace%\engine21_classes"
+  if not exist "%workspace%\database\database.jar" (
+    echo Please use the PACK command first.
+    set err=1
+  ) else (
+    echo Compiling virtual thread engine...
+    rmdir /Q /S "%engineClasses%" >nul 2>nul
+    mkdir "%engineClasses%"
+    dir /B /S "%workspace%\src21\*.java" > "%engineClasses%\sources.txt"
+    "!jdk!\javac.exe" --release 21 -cp "%workspace%\database\database.jar" -d "%engineClasses%" @"%engineClasses%\sources.txt"
+    if !ERRORLEVEL! EQU 0 (
+      del /F "%engineClasses%\sources.txt" >nul 2>nul
+      "!jdk!\jar.exe" -c -M -f "%workspace%\database\engine21.jar" -C "%engineClasses%" .
+    )
+    if !ERRORLEVEL! EQU 0 (
+      echo Operation successful.
+    ) else (
+      echo Operation unsuccessful.
+      set err=1
+    )
+  )
+endlocal & exit /b %err%
\ No newline at end of file
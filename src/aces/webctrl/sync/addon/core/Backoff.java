@@ -0,0 +1,65 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.addon.core;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which computes reconnection delays using capped exponential backoff with full jitter.
+ * Each consecutive failure doubles the upper bound of the delay, and the actual delay is chosen uniformly at random below that bound.
+ * This prevents a fleet of addons from reconnecting in synchronized waves after the database restarts.
+ */
+public class Backoff {
+  /** Number of consecutive failed attempts. Guarded by {@code Backoff.class}. */
+  private static int attempts = 0;
+  /**
+   * Classifies connection failures.
+   * Base delays and caps are expressed as multiples of {@link ClientConfig#reconnectTimeout}.
+   */
+  public static enum Reason {
+    /** The database could not be reached. Likely transient (e.g, the database is restarting), so retry quickly at first. */
+    REFUSED(1.0/30.0, 6.0),
+    /** The connection was lost after being established. */
+    DROPPED(0.1, 6.0),
+    /** The database rejected our credentials, or its public key does not match. Requires intervention, so retry slowly. */
+    REJECTED(1.0, 72.0),
+    /** The database and addon versions are incompatible. Requires an upgrade, so retry very slowly. */
+    INCOMPATIBLE(1.0, 288.0);
+    private final double base;
+    private final double cap;
+    private Reason(double base, double cap){
+      this.base = base;
+      this.cap = cap;
+    }
+  }
+  /**
+   * Records a failed attempt.
+   * @param r is the reason for the failure.
+   * @return the number of milliseconds to wait before the next attempt.
+   */
+  public static long next(Reason r){
+    final double unit = Math.max(ClientConfig.reconnectTimeout, 1000L);
+    int n;
+    synchronized (Backoff.class){
+      n = attempts;
+      if (attempts<30){
+        ++attempts;
+      }
+    }
+    final double bound = Math.min(r.cap*unit, r.base*unit*(1L<<n));
+    return Math.max((long)(Database.entropy.nextDouble()*bound), 1000L);
+  }
+  /**
+   * Should be invoked whenever a connection attempt succeeds, or when the configuration changes.
+   */
+  public synchronized static void reset(){
+    attempts = 0;
+  }
+  /**
+   * @return the number of consecutive failed attempts.
+   */
+  public synchronized static int getAttempts(){
+    return attempts;
+  }
+}
\ No newline at end of file
@@ -19,10 +19,13 @@ public class ClientConfig {
   private volatile static Path configFile;
   /**
    * The IP address of the database.
+   * Several endpoints may be listed, separated by commas, each optionally followed by {@code :port}.
+   * @see Endpoints
    */
   public volatile static String host = null;
   /**
    * Specifies where the database binds to listen for connections.
+   * Used for each endpoint listed in {@link #host} which does not specify a port.
    * Default value is 1978, the year Automatic Controls Equipment Systems, Inc. was founded.
    */
   public volatile static int port = 1978;
@@ -61,9 +64,49 @@ public class ClientConfig {
    */
   private volatile static long nextRunTime = -1L;
   /**
-   * If this addon is disconnected from the central database, then it will try to reconnect after this timeout (specified in milliseconds).
+   * If this addon is disconnected from the central database, then it will try to reconnect after a randomized delay which scales with this timeout (specified in milliseconds).
+   * @see Backoff
    */
   public volatile static long reconnectTimeout = 300000L;
+  /**
+   * The maximum random delay (in milliseconds) added to each scheduled sync when the database has not recommended a time.
+   * The default value is 0.
+   */
+  public volatile static long splay = 0L;
+  /**
+   * The time recommended by the database for the next sync, or {@code -1} if no recommendation has been made.
+   * Only used when no cron expression is configured.
+   */
+  private volatile static long syncHint = -1L;
+  /**
+   * The catalog version of the database as of the last fully successful sync, or {@code 0} if unknown.
+   * When this matches the database's current version, there is nothing to synchronize.
+   */
+  public volatile static long catalogVersion = 0L;
+  /**
+   * Port on which to relay the catalog to sibling add-ons, or {@code 0} to disable relaying.
+   * @see Relay
+   */
+  public volatile static int relayPort = 0;
+  /**
+   * Whether to keep an idle connection open to the database, so catalog changes are applied without waiting for the next scheduled sync.
+   * @see Watcher
+   */
+  public volatile static boolean watch = false;
+  /**
+   * Identifies this WebCTRL server to the database, which may use it to select a sync group.
+   * If {@code null} or blank, the host name of this machine is used.
+   */
+  public volatile static String identity = null;
+  /**
+   * Identifies the serialization format of the primary configuration file.
+   * Files written by older versions do not begin with {@link #FORMAT_MARKER}.
+   */
+  private final static int FORMAT = 6;
+  /**
+   * Written before {@link #FORMAT} to distinguish versioned files from older ones, which always begin with a non-negative string length.
+   */
+  private final static int FORMAT_MARKER = -1;
   /**
    * Sets the path to the primary configuration file.
    */
@@ -121,12 +164,17 @@ public class ClientConfig {
     ipLock.readLock().unlock();
     byte[] hostBytes = (host==null||isBlank(host)?"NULL":host).getBytes(java.nio.charset.StandardCharsets.UTF_8);
     byte[] cronBytes = (expr==null||isBlank(expr)?"NULL":expr).getBytes(java.nio.charset.StandardCharsets.UTF_8);
-    int len = hostBytes.length+cronBytes.length+44;
+    byte[] endpointBytes = Endpoints.serialize();
+    final String identity = ClientConfig.identity;
+    byte[] identityBytes = (identity==null||isBlank(identity)?"NULL":identity).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    int len = hostBytes.length+cronBytes.length+endpointBytes.length+identityBytes.length+90;
     Key k = databaseKey;
     if (k!=null){
       len+=k.length(false);
     }
     SerializationStream s = new SerializationStream(len);
+    s.write(FORMAT_MARKER);
+    s.write(FORMAT);
     s.write(hostBytes);
     s.write(port);
     s.write(cronBytes);
@@ -134,6 +182,14 @@ public class ClientConfig {
     s.write(timeout);
     s.write(connectionKey);
     s.write(reconnectTimeout);
+    s.write(splay);
+    s.write(syncHint);
+    s.write(catalogVersion);
+    s.write(relayPort);
+    s.write(watch);
+    s.write(endpointBytes);
+    s.write(identityBytes);
+    s.write(k!=null);
     if (k!=null){
       k.serialize(s,false);
     }
@@ -141,6 +197,13 @@ public class ClientConfig {
   }
   private static void deserialize(byte[] arr){
     SerializationStream s = new SerializationStream(arr);
+    int format = 0;
+    s.mark();
+    if (s.readInt()==FORMAT_MARKER){
+      format = s.readInt();
+    }else{
+      s.reset();
+    }
     String host = s.readString();
     if (host.equals("NULL")){
       host = null;
@@ -154,24 +217,62 @@ public class ClientConfig {
     if (expr.equals("NULL")){
       expr = null;
     }
-    setCronExpression(expr);
     deleteLogAfter = s.readLong();
     timeout = s.readLong();
     connectionKey = s.readLong();
     reconnectTimeout = s.readLong();
-    if (s.end()){
+    final boolean hasKey;
+    if (format>=1){
+      splay = s.readLong();
+      syncHint = s.readLong();
+      if (format>=2){
+        catalogVersion = s.readLong();
+        if (format>=3){
+          relayPort = s.readInt();
+          if (format>=4){
+            watch = s.readBoolean();
+            if (format>=5){
+              Endpoints.deserialize(s.readBytes());
+              if (format>=6){
+                final String identity = s.readString();
+                ClientConfig.identity = identity.equals("NULL")?null:identity;
+              }
+            }
+          }
+        }
+      }
+      hasKey = s.readBoolean();
+    }else{
+      hasKey = !s.end();
+    }
+    setCronExpression(expr);
+    if (!hasKey){
       databaseKey = null;
     }else{
       try{
         databaseKey = Key.deserialize(s,false);
-        if (!s.end()){
-          Logger.log("The primary configuration file \""+configFile.toString()+"\" may have been corrupted.");
-        }
       }catch(Throwable e){
         databaseKey = null;
         Logger.log("Error occurred while deserializing the central database's public key.", e);
       }
     }
+    if (!s.end()){
+      Logger.log("The primary configuration file \""+configFile.toString()+"\" may have been corrupted.");
+    }
+  }
+  /**
+   * @return the identity sent to the database, which is {@link #identity} or the host name of this machine.
+   */
+  public static String getIdentity(){
+    final String identity = ClientConfig.identity;
+    if (identity!=null && !isBlank(identity)){
+      return identity.trim();
+    }
+    try{
+      return java.net.InetAddress.getLocalHost().getHostName();
+    }catch(Throwable t){
+      return "";
+    }
   }
   /**
    * @return the next run time of the addon synchronization task. If {@code -1}, then this task should not ever execute.
@@ -188,19 +289,37 @@ public class ClientConfig {
   }
   /**
    * Resets the next run time of the addon synchronization task.
+   * When no cron expression is configured, the time recommended by the database is used (if there is one).
+   * Otherwise, a random delay of up to {@link #splay} milliseconds is added to the time given by the cron expression.
    */
   public static void resetCron(){
     CronSequenceGenerator cron = ClientConfig.cron;
     if (cron==null){
-      nextRunTime = -1;
+      final long hint = syncHint;
+      nextRunTime = hint>System.currentTimeMillis()?hint:-1;
     }else{
       try{
-        nextRunTime = cron.next(new Date()).getTime();
+        nextRunTime = cron.next(new Date()).getTime()+randomSplay();
       }catch(Throwable t){
         nextRunTime = -1;
       }
     }
   }
+  /**
+   * Records the time recommended by the database for the next sync.
+   * Changes take effect the next time {@link #resetCron()} is invoked.
+   * @param hint is the recommended value of {@code System.currentTimeMillis()}, or {@code -1} if no recommendation has been made.
+   */
+  public static void setSyncHint(long hint){
+    syncHint = hint;
+  }
+  /**
+   * @return a random delay between {@code 0} and {@link #splay} milliseconds.
+   */
+  public static long randomSplay(){
+    final long splay = ClientConfig.splay;
+    return splay>0?(long)(Database.entropy.nextDouble()*splay):0L;
+  }
   /**
    * @return the cron expression which controls scheduling for the addon synchronization task.
    */
@@ -212,10 +331,15 @@ public class ClientConfig {
    * @return {@code true} on success; {@code false} if the given expression cannot be parsed.
    */
   public static boolean setCronExpression(String expr){
-    if (expr.equals(ClientConfig.expr)){
+    if (expr==null?ClientConfig.expr==null:expr.equals(ClientConfig.expr)){
       return true;
     }else{
       ClientConfig.expr = expr;
+      if (expr==null){
+        cron = null;
+        resetCron();
+        return true;
+      }
       try{
         cron = new CronSequenceGenerator(expr);
         return true;
@@ -0,0 +1,300 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.addon.core;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which tracks the health of each database endpoint, and decides which endpoint to connect to.
+ * <p>
+ * {@link ClientConfig#host} may list several endpoints separated by commas (e.g. {@code db1.example.com, 10.0.0.5:1979}).
+ * Endpoints which do not specify a port use {@link ClientConfig#port}.
+ * Healthy endpoints are preferred in order of measured connect latency, followed by endpoints which have recently failed in order of when they may be retried.
+ * Ties are broken by the order in which endpoints are listed.
+ * <p>
+ * Every endpoint must present the same public key, since only one key is pinned in {@link ClientConfig#databaseKey}.
+ * Health is saved with the primary configuration file, so it survives restarts.
+ */
+public class Endpoints {
+  /** Latencies (in milliseconds) are compared at this resolution, so small fluctuations do not reorder endpoints. */
+  private final static long LATENCY_RESOLUTION = 10L;
+  /** How often (in milliseconds) to probe the connect latency of every endpoint when several are listed. */
+  private final static long PROBE_INTERVAL = 3600000L;
+  /** Health records keyed by {@link Endpoint#toString()}. Guarded by {@code Endpoints.class}. */
+  private final static HashMap<String,Endpoint> endpoints = new HashMap<String,Endpoint>();
+  /** The value of {@code System.currentTimeMillis()} when every endpoint was last probed. */
+  private volatile static long lastProbe = 0;
+  /**
+   * A database address and its health.
+   * Health fields are guarded by {@code Endpoints.class}.
+   */
+  public static class Endpoint {
+    private final String host;
+    private final int port;
+    /** Smoothed connect latency in milliseconds, or {@code -1} if unknown. */
+    private long latency = -1;
+    /** Number of consecutive failed connection attempts. */
+    private int failures = 0;
+    /** The value of {@code System.currentTimeMillis()} when the last connection attempt failed. */
+    private long lastFailure = 0;
+    private Endpoint(String host, int port){
+      this.host = host;
+      this.port = port;
+    }
+    public String getHost(){
+      return host;
+    }
+    public int getPort(){
+      return port;
+    }
+    public InetSocketAddress getAddress(){
+      return new InetSocketAddress(host,port);
+    }
+    /**
+     * Failed endpoints are avoided for a period which doubles with each consecutive failure.
+     * Base delays and caps are the same as {@link Backoff.Reason#REFUSED}.
+     * @return the value of {@code System.currentTimeMillis()} after which this endpoint may be tried again.
+     */
+    private long retryAt(){
+      if (failures==0){
+        return 0;
+      }
+      final long unit = Math.max(ClientConfig.reconnectTimeout, 1000L);
+      return lastFailure+Math.min(unit*6, (unit/30)<<Math.min(failures-1,16));
+    }
+    /**
+     * @return whether or not this endpoint is healthy.
+     */
+    public boolean isAvailable(){
+      synchronized (Endpoints.class){
+        return retryAt()<=System.currentTimeMillis();
+      }
+    }
+    @Override public String toString(){
+      return (host.indexOf(':')==-1?host:'['+host+']')+':'+port;
+    }
+  }
+  /**
+   * Parses {@link ClientConfig#host}, reusing the health records of endpoints which were previously listed.
+   * Records of endpoints which are no longer listed are discarded.
+   * @return every configured endpoint in the order listed.
+   */
+  private static ArrayList<Endpoint> parse(){
+    ClientConfig.ipLock.readLock().lock();
+    final String hosts = ClientConfig.host;
+    final int defaultPort = ClientConfig.port;
+    ClientConfig.ipLock.readLock().unlock();
+    final ArrayList<Endpoint> list = new ArrayList<Endpoint>();
+    if (hosts==null){
+      return list;
+    }
+    synchronized (Endpoints.class){
+      final HashMap<String,Endpoint> prev = new HashMap<String,Endpoint>(endpoints);
+      endpoints.clear();
+      for (String s:hosts.split(",")){
+        s = s.trim();
+        if (s.isEmpty()){
+          continue;
+        }
+        String host = s;
+        int port = defaultPort;
+        final int i = s.lastIndexOf(':');
+        if (i!=-1 && s.indexOf(']',i)==-1 && (s.startsWith("[") || s.indexOf(':')==i)){
+          host = s.substring(0,i).trim();
+          try{
+            port = Integer.parseInt(s.substring(i+1).trim());
+          }catch(NumberFormatException e){
+            continue;
+          }
+        }
+        if (host.startsWith("[") && host.endsWith("]")){
+          host = host.substring(1,host.length()-1);
+        }
+        Endpoint e = new Endpoint(host,port);
+        final String key = e.toString();
+        if (endpoints.containsKey(key)){
+          continue;
+        }
+        final Endpoint p = prev.get(key);
+        if (p!=null){
+          e = p;
+        }
+        endpoints.put(key,e);
+        list.add(e);
+      }
+    }
+    return list;
+  }
+  /**
+   * @return every configured endpoint in order of preference.
+   */
+  public static List<Endpoint> order(){
+    final ArrayList<Endpoint> list = parse();
+    final long now = System.currentTimeMillis();
+    synchronized (Endpoints.class){
+      //Stable sort, so ties keep the order in which they are listed
+      Collections.sort(list, new Comparator<Endpoint>(){
+        public int compare(Endpoint a, Endpoint b){
+          final long x = a.retryAt();
+          final long y = b.retryAt();
+          final boolean ax = x<=now;
+          final boolean by = y<=now;
+          if (ax!=by){
+            return ax?-1:1;
+          }else if (!ax){
+            return Long.compare(x,y);
+          }
+          return Long.compare(rank(a), rank(b));
+        }
+      });
+    }
+    return list;
+  }
+  private static long rank(Endpoint e){
+    return e.latency<0?Long.MAX_VALUE:e.latency/LATENCY_RESOLUTION;
+  }
+  /**
+   * Records a successful TCP connection.
+   * @param latency is the time taken to connect in milliseconds.
+   */
+  public synchronized static void connected(Endpoint e, long latency){
+    latency = Math.max(latency,0L);
+    e.latency = e.latency<0?latency:(e.latency*3+latency)/4;
+  }
+  /**
+   * Records a successful handshake, which means the endpoint is healthy.
+   */
+  public synchronized static void succeeded(Endpoint e){
+    e.failures = 0;
+  }
+  /**
+   * Records a failed connection attempt.
+   */
+  public synchronized static void failed(Endpoint e){
+    if (e.failures<30){
+      ++e.failures;
+    }
+    e.lastFailure = System.currentTimeMillis();
+  }
+  /**
+   * @return whether several endpoints are listed and their latencies have not been probed recently.
+   */
+  public static boolean shouldProbe(){
+    return System.currentTimeMillis()-lastProbe>=PROBE_INTERVAL && parse().size()>1;
+  }
+  /**
+   * Measures the connect latency of every endpoint concurrently.
+   * Connections are closed as soon as they are established.
+   * Blocks for at most {@link ClientConfig#timeout} milliseconds.
+   */
+  public static void probe(){
+    lastProbe = System.currentTimeMillis();
+    final List<Endpoint> list = parse();
+    final int len = list.size();
+    final AsynchronousSocketChannel[] channels = new AsynchronousSocketChannel[len];
+    //Latency of each endpoint in nanoseconds, or -1 if the connection failed
+    final long[] latencies = new long[len];
+    final CountDownLatch latch = new CountDownLatch(len);
+    for (int i=0;i<len;++i){
+      latencies[i] = -1;
+      try{
+        channels[i] = AsynchronousSocketChannel.open();
+        final long start = System.nanoTime();
+        channels[i].connect(list.get(i).getAddress(), i, new CompletionHandler<Void,Integer>(){
+          public void completed(Void v, Integer j){
+            latencies[j] = System.nanoTime()-start;
+            latch.countDown();
+          }
+          public void failed(Throwable e, Integer j){
+            latch.countDown();
+          }
+        });
+      }catch(Throwable t){
+        latch.countDown();
+      }
+    }
+    try{
+      latch.await(ClientConfig.timeout, TimeUnit.MILLISECONDS);
+    }catch(InterruptedException e){}
+    for (int i=0;i<len;++i){
+      if (channels[i]!=null){
+        try{
+          channels[i].close();
+        }catch(Throwable t){}
+      }
+    }
+    synchronized (Endpoints.class){
+      for (int i=0;i<len;++i){
+        final long latency = latencies[i];
+        if (latency<0){
+          failed(list.get(i));
+        }else{
+          connected(list.get(i), latency/1000000L);
+        }
+      }
+    }
+    final StringBuilder sb = new StringBuilder("Probed endpoints:");
+    synchronized (Endpoints.class){
+      for (Endpoint e:list){
+        sb.append(' ').append(e.toString());
+        sb.append(e.retryAt()>System.currentTimeMillis()?" (down)":e.latency<0?" (unknown)":" ("+e.latency+" ms)");
+      }
+    }
+    Logger.logAsync(sb.toString());
+  }
+  /**
+   * Serializes the health of every configured endpoint.
+   */
+  public static byte[] serialize(){
+    final ArrayList<Endpoint> list = parse();
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>(list.size());
+    int len = 12;
+    for (Endpoint e:list){
+      final byte[] b = e.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      keys.add(b);
+      len+=b.length+24;
+    }
+    final SerializationStream s = new SerializationStream(len);
+    s.write(lastProbe);
+    s.write(list.size());
+    synchronized (Endpoints.class){
+      for (int i=0;i<list.size();++i){
+        final Endpoint e = list.get(i);
+        s.write(keys.get(i));
+        s.write(e.latency);
+        s.write(e.failures);
+        s.write(e.lastFailure);
+      }
+    }
+    return s.data;
+  }
+  /**
+   * Restores health records saved by {@link #serialize()}.
+   */
+  public static void deserialize(byte[] arr){
+    final SerializationStream s = new SerializationStream(arr);
+    final long probe = s.readLong();
+    final int len = s.readInt();
+    //Endpoints which are no longer listed are ignored
+    parse();
+    synchronized (Endpoints.class){
+      for (int i=0;i<len;++i){
+        final Endpoint e = endpoints.get(s.readString());
+        final long latency = s.readLong();
+        final int failures = s.readInt();
+        final long lastFailure = s.readLong();
+        if (e!=null){
+          e.latency = latency;
+          e.failures = failures;
+          e.lastFailure = lastFailure;
+        }
+      }
+    }
+    lastProbe = probe;
+  }
+}
\ No newline at end of file
@@ -8,6 +8,6 @@ import java.nio.channels.*;
 public abstract class Handler<T> implements CompletionHandler<T,Void> {
   @Override public void failed(Throwable e, Void v){
     Initializer.status = e.getClass().getSimpleName()+": "+e.getMessage();
-    Initializer.disconnect(e,true,true);
+    Initializer.disconnect(e,true,Backoff.Reason.DROPPED);
   }
 }
\ No newline at end of file
@@ -7,9 +7,10 @@ package aces.webctrl.sync.addon.core;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.channels.*;
+import java.util.*;
 import java.util.function.*;
 import java.util.concurrent.*;
-import java.net.*;
+import java.util.concurrent.atomic.*;
 import javax.servlet.*;
 import com.controlj.green.addonsupport.*;
 import aces.webctrl.sync.common.*;
@@ -49,6 +50,14 @@ public class Initializer implements ServletContextListener {
   public volatile static AddOnInfo info = null;
   /** Details when the next sync attempt will be made. */
   public volatile static String nextCronString = "Now";
+  /** Incremented whenever a sync is scheduled, so only the most recently scheduled sync runs. */
+  private final static AtomicLong connectGeneration = new AtomicLong();
+  /** When the next sync is scheduled. */
+  private volatile static long nextConnect = Long.MAX_VALUE;
+  /** Catalog version most recently announced on the watch connection, or {@code 0} if none. */
+  private volatile static long announcedVersion = 0;
+  /** Window over which to randomly delay the sync which applies {@link #announcedVersion}. */
+  private volatile static long announcedWindow = 0;
   /**
    * @return whether or not there is an active connection to the database.
    */
@@ -74,11 +83,7 @@ public class Initializer implements ServletContextListener {
     prefix = '/'+name+'/';
     final Path root = info.getPrivateDir().toPath();
     try{
-      Logger.init(root.resolve("log.txt"), new Consumer<DelayedRunnable>(){
-        public void accept(DelayedRunnable r){
-          enqueue(r);
-        }
-      });
+      Logger.init(root.resolve("log.txt"));
     }catch(Throwable e){
       e.printStackTrace();
     }
@@ -105,9 +110,13 @@ public class Initializer implements ServletContextListener {
     Database.init(root, false);
     ClientConfig.init(root.resolve("config"));
     ClientConfig.load();
+    Relay.init(root.resolve("relay"), root.resolve("keys"));
     Logger.trim(ClientConfig.deleteLogAfter);
     mainThread = new Thread(){
       public void run(){
+        //Generating the relay's key-pair may take a few seconds, so it is done here instead of blocking the servlet context
+        Relay.start();
+        Watcher.restart();
         enqueueConnect(0);
         DelayedRunnable r = null;
         while (!stop){
@@ -142,7 +151,9 @@ public class Initializer implements ServletContextListener {
   /** Disconnects from the central database and saves a copy of the local database. */
   @Override public void contextDestroyed(ServletContextEvent sce){
     stop = true;
-    disconnect(null,true,false);
+    Relay.stop();
+    Watcher.stop();
+    disconnect(null,true,null);
     if (mainThread!=null){
       mainThread.interrupt();
       //Wait for the primary processing thread to terminate.
@@ -166,10 +177,13 @@ public class Initializer implements ServletContextListener {
   }
   /**
    * Disconnects from the database.
+   * @param retry specifies why the connection failed, which determines how long to wait before reconnecting. If {@code null}, no reconnection attempt is scheduled.
    */
-  public synchronized static void disconnect(Throwable e, boolean log, boolean reconnect){
+  public synchronized static void disconnect(Throwable e, boolean log, Backoff.Reason retry){
     connected = false;
     ch = null;
+    //Publishes whatever was written to the relay cache if the sync was interrupted, and lets siblings connect again
+    Relay.release();
     if (wrap!=null){
       if (!wrap.isClosed()){
         wrap.close();
@@ -193,178 +207,399 @@ public class Initializer implements ServletContextListener {
         }
       }
     }
-    if (reconnect){
-      Initializer.enqueueConnect(System.currentTimeMillis()+ClientConfig.reconnectTimeout);
+    if (retry!=null && !stop){
+      final long next = System.currentTimeMillis()+Backoff.next(retry);
+      nextCronString = Logger.format.format(java.time.Instant.ofEpochMilli(next));
+      Initializer.enqueueConnect(next);
     }
   }
   /** Enqueues a task on the primary processing queue */
   public static void enqueue(DelayedRunnable r){
     queue.offer(r);
   }
-  /** Enqueues a task which attempts to connect to the database */
+  /**
+   * Invoked when the watch connection announces a catalog change.
+   * Schedules a sync after a random delay, unless the announced version has already been applied or a sync is already due sooner.
+   * @param version is the announced catalog version.
+   * @param window is the maximum random delay in milliseconds.
+   */
+  public static void catalogChanged(long version, long window){
+    announcedVersion = version;
+    announcedWindow = window;
+    enqueue(new DelayedRunnable(System.currentTimeMillis()){
+      public void run(){
+        scheduleAnnounced();
+      }
+    });
+  }
+  /**
+   * Schedules a sync to apply {@link #announcedVersion}, if necessary.
+   * When a sync is in progress, this is invoked again once it finishes.
+   * Only invoked by the primary processing thread.
+   */
+  private static void scheduleAnnounced(){
+    final long version = announcedVersion;
+    if (stop || connected || version==0 || version==ClientConfig.catalogVersion){
+      return;
+    }
+    final long expiry = System.currentTimeMillis()+(long)(Database.entropy.nextDouble()*Math.max(announcedWindow,0L));
+    if (expiry<nextConnect){
+      nextCronString = Logger.format.format(java.time.Instant.ofEpochMilli(expiry));
+      enqueueConnect(expiry);
+    }
+  }
+  /**
+   * Enqueues a task which attempts to connect to the database.
+   * Any previously enqueued attempt is discarded.
+   */
   private static void enqueueConnect(long expiry){
+    enqueueConnect(expiry, null, 0);
+  }
+  /**
+   * Enqueues a task which attempts to connect to the database.
+   * Any previously enqueued attempt is discarded.
+   * @param endpoints lists endpoints in order of preference, or {@code null} to order them when the task runs.
+   * @param index specifies which endpoint to try.
+   */
+  private static void enqueueConnect(long expiry, final List<Endpoints.Endpoint> endpoints, final int index){
     if (!stop){
+      final long gen = connectGeneration.incrementAndGet();
+      nextConnect = expiry;
       enqueue(new DelayedRunnable(expiry){
         public void run(){
-          if (!stop){
+          if (!stop && gen==connectGeneration.get()){
+            nextConnect = Long.MAX_VALUE;
             nextCronString = "Now";
-            ClientConfig.ipLock.readLock().lock();
-            String host = ClientConfig.host;
-            int port = ClientConfig.port;
-            ClientConfig.ipLock.readLock().unlock();
-            if (host==null){
+            if (endpoints==null && Endpoints.shouldProbe()){
+              Endpoints.probe();
+            }
+            final List<Endpoints.Endpoint> list = endpoints==null?Endpoints.order():endpoints;
+            if (index>=list.size()){
               enqueueConnect(System.currentTimeMillis()+ClientConfig.reconnectTimeout);
             }else{
-              try{
-                status = "Connecting...";
-                grp = AsynchronousChannelGroup.withFixedThreadPool(1, java.util.concurrent.Executors.defaultThreadFactory());
-                ch = AsynchronousSocketChannel.open(grp);
-                Future<Void> f = ch.connect(new InetSocketAddress(host,port));
-                try{
-                  f.get(ClientConfig.timeout, TimeUnit.MILLISECONDS);
-                }catch(TimeoutException e){
-                  f.cancel(true);
-                  throw e;
-                }
-                final SocketWrapper wrapper = new SocketWrapper(ch);
-                wrap = wrapper;
-                connected = true;
-                logConnectionErrors = true;
-                //Read the application version and public key
-                wrapper.readBytes(16384, null, new Handler<byte[]>(){
-                  public void completed(byte[] arr, Void v){
-                    try{
-                      final SerializationStream s = new SerializationStream(arr);
-                      final String version = s.readString();
-                      //Ensure the database and addon versions are compatible
-                      if (!Config.isCompatibleVersion(version)){
-                        Logger.logAsync(status = "Incompatible versions: "+Config.VERSION+" and "+version);
-                        disconnect(null,true,true);
-                      }else{
-                        final Key k = ClientConfig.databaseKey;
-                        final Key kk = Key.deserialize(s,false);
-                        //Ensure the key meets expectations
-                        if (k==null){
-                          ClientConfig.databaseKey = kk;
-                        }else if (!k.equals(kk)){
-                          Logger.logAsync(status = "Public keys do not match.");
-                          disconnect(null,true,true);
-                          return;
+              connect(list, index);
+            }
+          }
+        }
+      });
+    }
+  }
+  /**
+   * Attempts to connect to the given endpoint and synchronize add-ons.
+   * If the connection cannot be established, the next endpoint is tried immediately.
+   * Only invoked by the primary processing thread.
+   */
+  private static void connect(final List<Endpoints.Endpoint> list, final int index){
+    if (Relay.isEnabled() && !Relay.isHeld()){
+      //Siblings read straight from the relay cache, so wait for them to finish before the cache can change
+      status = "Waiting for siblings...";
+      Relay.hold(new Runnable(){
+        public void run(){
+          enqueueConnect(System.currentTimeMillis(), list, index);
+        }
+      });
+      return;
+    }
+    final Endpoints.Endpoint endpoint = list.get(index);
+    try{
+      status = "Connecting...";
+      grp = AsynchronousChannelGroup.withFixedThreadPool(1, java.util.concurrent.Executors.defaultThreadFactory());
+      ch = AsynchronousSocketChannel.open(grp);
+      final long start = System.nanoTime();
+      Future<Void> f = ch.connect(endpoint.getAddress());
+      try{
+        f.get(ClientConfig.timeout, TimeUnit.MILLISECONDS);
+      }catch(TimeoutException e){
+        f.cancel(true);
+        throw e;
+      }
+      Endpoints.connected(endpoint, (System.nanoTime()-start)/1000000L);
+      final SocketWrapper wrapper = new SocketWrapper(ch);
+      wrap = wrapper;
+      connected = true;
+      logConnectionErrors = true;
+      new ClientHandshake(){
+        /**
+         * Tries the next endpoint immediately, or waits according to the given reason if every endpoint has been tried.
+         */
+        private void failover(Throwable t, Backoff.Reason r){
+          Endpoints.failed(endpoint);
+          if (index+1<list.size()){
+            disconnect(t,true,null);
+            Logger.logAsync("Failing over from "+endpoint+" to "+list.get(index+1)+'.');
+            enqueueConnect(System.currentTimeMillis(), list, index+1);
+          }else{
+            disconnect(t,true,r);
+          }
+        }
+        protected void incompatible(String version){
+          Logger.logAsync(status = "Incompatible versions: "+Config.VERSION+" and "+version);
+          failover(null,Backoff.Reason.INCOMPATIBLE);
+        }
+        protected boolean trust(Key kk){
+          final Key k = ClientConfig.databaseKey;
+          //Ensure the key meets expectations
+          if (k==null){
+            ClientConfig.databaseKey = kk;
+          }else if (!k.equals(kk)){
+            Logger.logAsync(status = "Public keys do not match.");
+            failover(null,Backoff.Reason.REJECTED);
+            return false;
+          }
+          return true;
+        }
+        protected void rejected(){
+          Logger.logAsync(status = "Database rejected connection key.");
+          failover(null,Backoff.Reason.REJECTED);
+        }
+        protected void failed(Throwable t){
+          status = t.getClass().getSimpleName()+": "+t.getMessage();
+          failover(t,Backoff.Reason.DROPPED);
+        }
+        protected void established(final String version){
+          Endpoints.succeeded(endpoint);
+          //Tell the database to synchronize addons
+          final Handler<Void> initiated = new Handler<Void>(){
+            public void completed(Void v, Void vv){
+              Logger.logAsync("Synchronization initiated.");
+              wrapper.read(null, new Handler<Byte>(){
+                public void completed(Byte b, Void v){
+                  if (b==Protocol.RETRY_LATER){
+                    //The database is busy, so wait for the suggested amount of time
+                    wrapper.readBytes(16, null, new Handler<byte[]>(){
+                      public void completed(byte[] arr, Void v){
+                        long seconds = -1;
+                        try{
+                          seconds = new SerializationStream(arr).readLong();
+                        }catch(Throwable t){}
+                        if (seconds<=0){
+                          disconnect(null,true,Backoff.Reason.DROPPED);
+                        }else{
+                          Logger.logAsync(status = "Database busy. Retrying in "+seconds+" seconds.");
+                          //The database is reachable and has chosen the delay itself
+                          Backoff.reset();
+                          disconnect(null,true,null);
+                          enqueueConnect(System.currentTimeMillis()+seconds*1000L);
+                        }
+                      }
+                    });
+                    return;
+                  }else if (b==Protocol.UP_TO_DATE){
+                    Logger.logAsync("Add-ons are already up to date.");
+                    status = "Success";
+                    readSummary(wrapper, false);
+                    return;
+                  }
+                  if (Relay.isEnabled()){
+                    //Mirror the database into the relay cache, and then install changed add-ons from the cache
+                    final Path cache = Relay.getCache();
+                    Relay.beginSync();
+                    wrapper.readPath(b, cache, null, new Handler<Boolean>(){
+                      public void completed(Boolean b, Void v){
+                        Relay.endSync(b);
+                        if (b){
+                          Logger.logAsync("Synchronization successful.");
+                          status = "Success";
+                          readSummary(wrapper, true);
+                        }else{
+                          disconnect(null,true,Backoff.Reason.DROPPED);
                         }
-                        //Generate a temporary KeyPair for the handshake
-                        java.security.KeyPair pair;
-                        synchronized (Keys.keyPairGen){
-                          pair = Keys.keyPairGen.generateKeyPair();
+                      }
+                    }, null, new BiConsumer<Path,Boolean>(){
+                      public void accept(Path p, Boolean b){
+                        if (b){
+                          install(p, addonsFolder.resolve(cache.relativize(p)));
                         }
-                        final java.security.PrivateKey pk = pair.getPrivate();
-                        //Encrypt and write the temporary public key
-                        wrapper.writeBytes(kk.encrypt(pair.getPublic().getEncoded()), null, new Handler<Void>(){
-                          public void completed(Void v, Void vv){
-                            //Read the encrypted symmetric key to use for this session
-                            wrapper.readBytes(16384, null, new Handler<byte[]>(){
-                              public void completed(byte[] arr, Void v){
-                                try{
-                                  javax.crypto.Cipher c = javax.crypto.Cipher.getInstance(Database.CIPHER);
-                                  c.init(javax.crypto.Cipher.DECRYPT_MODE, pk);
-                                  //Decrypt the symmetric key and use it to initialize a StreamCipher
-                                  wrapper.setCipher(new StreamCipher(c.doFinal(arr)));
-                                  //Write the secret connection key
-                                  final SerializationStream s = new SerializationStream(8);
-                                  s.write(ClientConfig.connectionKey);
-                                  wrapper.writeBytes(s.data, null, new Handler<Void>(){
-                                    public void completed(Void v, Void vv){
-                                      //Determine whether the database accepted the connection key
-                                      wrapper.read(null, new Handler<Byte>(){
-                                        public void completed(Byte b, Void v){
-                                          if (b==Protocol.SUCCESS){
-                                            //Tell the database to synchronize addons
-                                            wrapper.write(Protocol.CONTINUE, null, new Handler<Void>(){
-                                              public void completed(Void v, Void vv){
-                                                Logger.logAsync("Synchronization initiated.");
-                                                //Synchronize addons
-                                                wrapper.readPath(addonsFolder, null, new Handler<Boolean>(){
-                                                  public void completed(Boolean b, Void v){
-                                                    if (b){
-                                                      Logger.logAsync("Synchronization successful.");
-                                                      status = "Success";
-                                                      ClientConfig.resetCron();
-                                                      disconnect(null,true,false);
-                                                      final long next = ClientConfig.getNextCron();
-                                                      nextCronString = ClientConfig.getNextCronString();
-                                                      enqueueConnect(next==-1?System.currentTimeMillis()+86400000:next);
-                                                    }else{
-                                                      disconnect(null,true,true);
-                                                    }
-                                                  }
-                                                }, new Consumer<Path>(){
-                                                  public void accept(Path p){
-                                                    try{
-                                                      //Disable addon before updating
-                                                      if (Files.exists(p)){
-                                                        String name = p.getFileName().toString();
-                                                        final int len = name.length();
-                                                        if (len>6){
-                                                          name = name.substring(0,len-6);
-                                                          HelperAPI.disableAddon(name);
-                                                        }
-                                                      }
-                                                    }catch(Throwable t){
-                                                      Logger.logAsync("PreConsumer Error", t);
-                                                    }
-                                                  }
-                                                }, new BiConsumer<Path,Boolean>() {
-                                                  public void accept(Path p, Boolean b){
-                                                    try{
-                                                      //Enable addon after updating
-                                                      if (Files.exists(p)){
-                                                        String name = p.getFileName().toString();
-                                                        final int len = name.length();
-                                                        if (len>6){
-                                                          name = name.substring(0,len-6);
-                                                          if (HelperAPI.enableAddon(name) || HelperAPI.deployAddon(p.toFile())){
-                                                            Logger.logAsync("Updated: "+name);
-                                                          }
-                                                        }
-                                                      }
-                                                    }catch(Throwable t){
-                                                      Logger.logAsync("PostConsumer Error", t);
-                                                    }
-                                                  }
-                                                }, false);
-                                              }
-                                            });
-                                          }else{
-                                            Logger.logAsync(status = "Database rejected connection key.");
-                                            disconnect(null,true,true);
-                                          }
-                                        }
-                                      });
-                                    }
-                                  });
-                                }catch(Throwable t){
-                                  status = t.getClass().getSimpleName()+": "+t.getMessage();
-                                  disconnect(t,true,true);
-                                }
-                              }
-                            });
+                      }
+                    }, true);
+                    return;
+                  }
+                  //Synchronize addons
+                  wrapper.readPath(b, addonsFolder, null, new Handler<Boolean>(){
+                    public void completed(Boolean b, Void v){
+                      if (b){
+                        Logger.logAsync("Synchronization successful.");
+                        status = "Success";
+                        readSummary(wrapper, true);
+                      }else{
+                        disconnect(null,true,Backoff.Reason.DROPPED);
+                      }
+                    }
+                  }, new Consumer<Path>(){
+                    public void accept(Path p){
+                      try{
+                        //Disable addon before updating
+                        if (Files.exists(p)){
+                          String name = p.getFileName().toString();
+                          final int len = name.length();
+                          if (len>6){
+                            name = name.substring(0,len-6);
+                            HelperAPI.disableAddon(name);
+                          }
+                        }
+                      }catch(Throwable t){
+                        Logger.logAsync("PreConsumer Error", t);
+                      }
+                    }
+                  }, new BiConsumer<Path,Boolean>() {
+                    public void accept(Path p, Boolean b){
+                      try{
+                        //Enable addon after updating
+                        if (Files.exists(p)){
+                          String name = p.getFileName().toString();
+                          final int len = name.length();
+                          if (len>6){
+                            name = name.substring(0,len-6);
+                            if (HelperAPI.enableAddon(name) || HelperAPI.deployAddon(p.toFile())){
+                              Logger.logAsync("Updated: "+name);
+                            }
                           }
-                        });
+                        }
+                      }catch(Throwable t){
+                        Logger.logAsync("PostConsumer Error", t);
                       }
-                    }catch(Throwable t){
-                      status = t.getClass().getSimpleName()+": "+t.getMessage();
-                      disconnect(t,true,true);
                     }
+                  }, false);
+                }
+              });
+            }
+          };
+          final Handler<Void> request = new Handler<Void>(){
+            public void completed(Void v, Void vv){
+              if (Config.compareVersions(version, Config.CATALOG_VERSION)>=0){
+                //Tell the database which catalog version was last applied, so it can skip the sync when nothing has changed
+                wrapper.write(Protocol.CATALOG, null, new Handler<Void>(){
+                  public void completed(Void v, Void vv){
+                    final SerializationStream s = new SerializationStream(8);
+                    //A relay reports the version of its cache, so an emptied or partially updated cache is resynchronized
+                    s.write(Relay.isEnabled()?Relay.getVersion():ClientConfig.catalogVersion);
+                    wrapper.writeBytes(s.data, null, initiated);
                   }
                 });
-              }catch(Throwable e){
-                status = e.getClass().getSimpleName()+": "+e.getMessage();
-                disconnect(e,logConnectionErrors,true);
-                logConnectionErrors = false;
+              }else{
+                wrapper.write(Protocol.CONTINUE, null, initiated);
+              }
+            }
+          };
+          if (Config.compareVersions(version, Config.GROUPS_VERSION)>=0){
+            final Handler<Void> identified;
+            if (Relay.isEnabled() && Config.compareVersions(version, Config.RELAY_GROUPS_VERSION)>=0){
+              //Learn the group assignments, so the relay only serves siblings in its own group
+              identified = new Handler<Void>(){
+                public void completed(Void v, Void vv){
+                  wrapper.write(Protocol.GROUPS, null, new Handler<Void>(){
+                    public void completed(Void v, Void vv){
+                      wrapper.readBytes(Relay.MAX_GROUPS_LENGTH, null, new Handler<byte[]>(){
+                        public void completed(byte[] arr, Void v){
+                          Relay.setGroups(arr);
+                          request.completed(null, null);
+                        }
+                      });
+                    }
+                  });
+                }
+              };
+            }else{
+              if (Relay.isEnabled()){
+                Relay.setGroups(null);
+              }
+              identified = request;
+            }
+            //Identify this server, so the database can select its sync group
+            wrapper.write(Protocol.IDENTIFY, null, new Handler<Void>(){
+              public void completed(Void v, Void vv){
+                wrapper.writeBytes(ClientConfig.getIdentity().getBytes(java.nio.charset.StandardCharsets.UTF_8), null, identified);
               }
+            });
+          }else{
+            if (Relay.isEnabled()){
+              //Older databases do not support groups, so every sibling receives every add-on
+              Relay.setGroups(new byte[0]);
             }
+            request.completed(null, null);
           }
         }
-      });
+      }.start(wrapper, ClientConfig.connectionKey);
+    }catch(Throwable e){
+      Endpoints.failed(endpoint);
+      status = e.getClass().getSimpleName()+": "+e.getMessage();
+      if (index+1<list.size()){
+        //Fail over immediately, without backing off
+        disconnect(e,logConnectionErrors,null);
+        if (logConnectionErrors){
+          Logger.logAsync("Failing over from "+endpoint+" to "+list.get(index+1)+'.');
+        }
+        connect(list, index+1);
+      }else{
+        disconnect(e,logConnectionErrors,Backoff.Reason.REFUSED);
+        logConnectionErrors = false;
+      }
+    }
+  }
+  /**
+   * Reads the summary which the database sends after a successful sync, and then schedules the next sync.
+   * Older databases do not send a summary, in which case defaults are used.
+   * @param applied specifies whether all files were successfully synchronized, in which case the reported catalog version is recorded.
+   */
+  private static void readSummary(final SocketWrapper wrapper, final boolean applied){
+    wrapper.readBytes(64, null, new Handler<byte[]>(){
+      public void completed(byte[] arr, Void v){
+        long hint = -1;
+        long catalog = 0;
+        try{
+          final SerializationStream s = new SerializationStream(arr);
+          hint = s.readLong();
+          if (!s.end()){
+            catalog = s.readLong();
+          }
+        }catch(Throwable t){}
+        finish(hint, catalog);
+      }
+      @Override public void failed(Throwable e, Void v){
+        finish(-1, 0);
+      }
+      private void finish(long hint, long catalog){
+        if (applied){
+          ClientConfig.catalogVersion = catalog;
+        }
+        ClientConfig.setSyncHint(hint);
+        ClientConfig.resetCron();
+        Backoff.reset();
+        disconnect(null,true,null);
+        final long next = ClientConfig.getNextCron();
+        nextCronString = ClientConfig.getNextCronString();
+        enqueueConnect(next==-1?System.currentTimeMillis()+86400000+ClientConfig.randomSplay():next);
+        //The catalog may have changed again while syncing
+        enqueue(new DelayedRunnable(System.currentTimeMillis()){
+          public void run(){
+            scheduleAnnounced();
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Copies an add-on from the relay cache into the WebCTRL addons folder, unless an identical copy is already installed.
+   * The add-on is disabled while it is replaced, and then enabled or deployed.
+   */
+  private static void install(Path src, Path dst){
+    try{
+      if (Files.exists(dst) && Files.size(dst)==Files.size(src) && Files.getLastModifiedTime(dst).equals(Files.getLastModifiedTime(src))){
+        return;
+      }
+      String name = dst.getFileName().toString();
+      final int len = name.length();
+      name = len>6?name.substring(0,len-6):null;
+      if (name!=null && Files.exists(dst)){
+        HelperAPI.disableAddon(name);
+      }
+      Files.createDirectories(dst.getParent());
+      Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      if (name!=null && (HelperAPI.enableAddon(name) || HelperAPI.deployAddon(dst.toFile()))){
+        Logger.logAsync("Updated: "+name);
+      }
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while installing "+dst.toString(), t);
     }
   }
   /** Saves all data */
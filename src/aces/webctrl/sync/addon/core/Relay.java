@@ -0,0 +1,457 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.addon.core;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Lets this add-on serve its copy of the database's catalog to sibling add-ons on the same network.
+ * <p>
+ * While relaying, this add-on synchronizes into a private cache folder which mirrors the database exactly,
+ * and then copies changed add-ons into the WebCTRL addons folder.
+ * Siblings point {@link ClientConfig#host} at this WebCTRL server and connect with the usual {@link Protocol}, so they download over the LAN instead of the uplink.
+ * File timestamps are preserved, so the cache has the same catalog version as the database, and siblings may switch between the relay and the database without resynchronizing.
+ * <p>
+ * Siblings read files straight from the cache, so the cache is never modified while a sibling is being served.
+ * Before this add-on connects to the database, {@link #hold(Runnable)} asks new siblings to retry later and waits for every active sibling session to finish.
+ * <p>
+ * The relay authenticates itself with its own key-pair, so siblings which have already pinned the database's public key must clear it once.
+ * Siblings must use the same connection key as the database.
+ * <p>
+ * The cache only holds the add-ons of the relay's own sync group, so the relay learns the database's group assignments with {@link Protocol#GROUPS}
+ * and asks siblings which belong to any other group to retry much later.
+ */
+public class Relay {
+  /** How long siblings are asked to wait when the cache is being updated. */
+  private final static long RETRY_SECONDS = 60L;
+  /** How long siblings are asked to wait when they do not belong to the relay's sync group. */
+  private final static long REFUSED_SECONDS = 3600L;
+  /** The maximum length of the group assignments read from the database. */
+  final static int MAX_GROUPS_LENGTH = 1<<22;
+  /** How the database assigns clients to sync groups, or {@code null} if the assignments are unknown. */
+  private volatile static Assignments assignments = null;
+  /** Folder which mirrors the database's catalog. */
+  private volatile static Path cache = null;
+  /** Where to store the key-pairs which authenticate this relay. */
+  private volatile static Path keyFile = null;
+  /** Whether {@link #keyFile} has been loaded. */
+  private volatile static boolean keysLoaded = false;
+  /** Processes socket operations for siblings. */
+  private volatile static AsynchronousChannelGroup group = null;
+  /** Listens for siblings on {@link ClientConfig#relayPort}. */
+  private volatile static AsynchronousServerSocketChannel server = null;
+  /** Snapshot of {@link #cache} served to siblings, or {@code null} if the cache has not been scanned. */
+  private volatile static Manifest current = null;
+  /** Whether {@link #current} mirrors a fully successful sync with the database. */
+  private volatile static boolean complete = false;
+  /** Whether new sibling sessions are held off, because this add-on is connected to the database or about to connect. Only written while synchronized on {@code Relay.class}. */
+  private volatile static boolean held = false;
+  /** Whether the cache is being updated by a sync with the database. */
+  private volatile static boolean syncing = false;
+  /** Sibling sessions which are reading files from the cache. Guarded by {@code Relay.class}. */
+  private final static HashSet<SocketWrapper> active = new HashSet<SocketWrapper>();
+  /** Invoked once {@link #active} becomes empty, or {@code null}. Guarded by {@code Relay.class}. */
+  private static Runnable drained = null;
+  /**
+   * Sets the paths used by the relay.
+   */
+  public static void init(Path cache, Path keyFile){
+    Relay.cache = cache;
+    Relay.keyFile = keyFile;
+  }
+  /**
+   * @return whether or not this add-on should relay the catalog to siblings.
+   */
+  public static boolean isEnabled(){
+    return ClientConfig.relayPort>0;
+  }
+  /**
+   * @return the folder which mirrors the database's catalog.
+   */
+  public static Path getCache(){
+    return cache;
+  }
+  /**
+   * @return the catalog version of the cache, or {@code 0} if the cache does not mirror a fully successful sync.
+   */
+  public static long getVersion(){
+    final Manifest m = current;
+    return m==null || !complete?0:m.getVersion();
+  }
+  /**
+   * Starts listening for siblings if relaying is enabled.
+   */
+  public synchronized static void start(){
+    final int port = ClientConfig.relayPort;
+    if (port<=0 || server!=null){
+      return;
+    }
+    try{
+      if (!keysLoaded){
+        keysLoaded = Database.initKeys(keyFile);
+      }
+      if (current==null){
+        Files.createDirectories(cache);
+        current = Manifest.scan(cache);
+        //The cache is only trusted once a sync with the database completes
+        complete = false;
+      }
+      group = AsynchronousChannelGroup.withFixedThreadPool(2, Executors.defaultThreadFactory());
+      server = AsynchronousServerSocketChannel.open(group);
+      server.bind(new InetSocketAddress(port));
+      server.accept(null, new CompletionHandler<AsynchronousSocketChannel,Void>(){
+        public void completed(AsynchronousSocketChannel ch, Void v){
+          final AsynchronousServerSocketChannel s = server;
+          if (s!=null){
+            s.accept(null, this);
+          }
+          serve(new SocketWrapper(ch));
+        }
+        public void failed(Throwable e, Void v){
+          if (!(e instanceof AsynchronousCloseException) && !(e instanceof ShutdownChannelGroupException)){
+            Logger.logAsync("Relay failed to accept connection.", e);
+          }
+        }
+      });
+      Logger.logAsync("Relay listening on port "+port+" with public key hash "+Keys.getPreferredKey().getHashString()+'.');
+    }catch(Throwable t){
+      Logger.logAsync("Unable to start relay on port "+port+'.', t);
+      stop();
+    }
+  }
+  /**
+   * Stops listening for siblings and closes any open connections.
+   */
+  public static void stop(){
+    final Runnable r;
+    synchronized (Relay.class){
+      if (group!=null){
+        try{
+          group.shutdownNow();
+        }catch(Throwable t){}
+        group = null;
+      }
+      server = null;
+      //Handlers of a group which has been shut down may never run
+      active.clear();
+      r = drained;
+      drained = null;
+    }
+    if (r!=null){
+      r.run();
+    }
+  }
+  /**
+   * Applies a change to {@link ClientConfig#relayPort}.
+   */
+  public synchronized static void restart(){
+    stop();
+    start();
+  }
+  /**
+   * Asks new siblings to retry later until {@link #release()} is invoked, and then waits for every active sibling session to finish.
+   * @param ready is invoked once no sibling is reading from the cache, which may be immediately on the current thread.
+   */
+  public static void hold(Runnable ready){
+    synchronized (Relay.class){
+      held = true;
+      if (!active.isEmpty()){
+        drained = ready;
+        return;
+      }
+      drained = null;
+    }
+    ready.run();
+  }
+  /**
+   * @return whether new sibling sessions are held off by {@link #hold(Runnable)}, and every active sibling session has finished.
+   */
+  public synchronized static boolean isHeld(){
+    return held && active.isEmpty();
+  }
+  /**
+   * Lets siblings connect again, publishing whatever was written to the cache if a sync was interrupted.
+   */
+  public static void release(){
+    endSync(false);
+    synchronized (Relay.class){
+      held = false;
+      drained = null;
+    }
+  }
+  /**
+   * Invoked before a sync with the database updates the cache.
+   * Must only be invoked while siblings are held off by {@link #hold(Runnable)}.
+   */
+  public static void beginSync(){
+    syncing = true;
+  }
+  /**
+   * Invoked after a sync with the database has finished updating the cache.
+   * Nothing happens if {@link #beginSync()} was not invoked.
+   * @param success specifies whether every file was successfully synchronized.
+   */
+  public static void endSync(boolean success){
+    if (syncing){
+      current = Manifest.scan(cache);
+      complete = success;
+      syncing = false;
+    }
+  }
+  /**
+   * Records the group assignments reported by the database.
+   * @param arr is the reply to {@link Protocol#GROUPS}, an empty array if the database does not support groups, or {@code null} if the assignments are unknown.
+   */
+  static void setGroups(byte[] arr){
+    if (arr==null){
+      assignments = null;
+    }else if (arr.length==0){
+      assignments = new Assignments(null, Collections.<String,String>emptyMap());
+    }else{
+      try{
+        final SerializationStream s = new SerializationStream(arr);
+        final String own = s.readString();
+        final int n = s.readInt();
+        final HashMap<String,String> clients = new HashMap<String,String>(Math.max(n<<1, 16));
+        String key, group;
+        for (int i=0;i<n;++i){
+          key = s.readString();
+          group = s.readString();
+          clients.put(key, group.isEmpty()?null:group);
+        }
+        assignments = new Assignments(own.isEmpty()?null:own, clients);
+      }catch(Throwable t){
+        Logger.logAsync("Relay received invalid group assignments.", t);
+        assignments = null;
+      }
+    }
+  }
+  /**
+   * Checks that a sibling belongs to the relay's sync group, and otherwise asks it to retry later.
+   * @param identity is the identity sent by the sibling, or {@code null} if none was sent.
+   * @return {@code true} if the sibling may be served; {@code false} if it has been refused.
+   */
+  private static boolean admit(final SocketWrapper wrap, String identity){
+    final Assignments a = assignments;
+    final String reason;
+    if (a==null){
+      reason = ": Relay refused sibling, because the database has not reported its sync groups. Relays require database version "+Config.RELAY_GROUPS_VERSION+" or later.";
+    }else{
+      final String group = a.resolve(identity, wrap.getHost());
+      if (group==null?a.own==null:group.equals(a.own)){
+        return true;
+      }
+      reason = ": Relay refused sibling in sync group "+(group==null?"(all add-ons)":group)+", since the relay serves "+(a.own==null?"(all add-ons)":a.own)+'.';
+    }
+    Logger.logAsync(wrap.getIP()+reason);
+    retryLater(wrap, REFUSED_SECONDS);
+    return false;
+  }
+  /**
+   * Registers a sibling session which is about to read from the cache.
+   * @return {@code true} on success; {@code false} if siblings are held off.
+   */
+  private synchronized static boolean enter(SocketWrapper wrap){
+    if (held){
+      return false;
+    }
+    active.add(wrap);
+    return true;
+  }
+  /**
+   * Unregisters a sibling session, and resumes a pending {@link #hold(Runnable)} if it was the last one.
+   */
+  private static void exit(SocketWrapper wrap){
+    final Runnable r;
+    synchronized (Relay.class){
+      if (!active.remove(wrap) || !active.isEmpty()){
+        return;
+      }
+      r = drained;
+      drained = null;
+    }
+    if (r!=null){
+      r.run();
+    }
+  }
+  /**
+   * Authenticates a sibling and serves the cache.
+   */
+  private static void serve(final SocketWrapper wrap){
+    new ServerHandshake(){
+      protected void accepted(){
+        dispatch(wrap, null);
+      }
+      protected void rejected(){
+        Logger.logAsync(wrap.getIP()+": Relay rejected connection key.");
+        wrap.close();
+      }
+      protected void failed(Throwable t){
+        wrap.close();
+      }
+    }.start(wrap, Keys.getPreferredKey(), ClientConfig.connectionKey);
+  }
+  /**
+   * Reads the sibling's request.
+   * The relay only serves the catalog of its own sync group, so siblings in other groups are refused.
+   * @param identity is the identity sent by the sibling, or {@code null} if none has been sent.
+   */
+  private static void dispatch(final SocketWrapper wrap, final String identity){
+    wrap.read(null, new Handler<Byte>(wrap){
+      public void func(Byte b){
+        if (b==Protocol.IDENTIFY && identity==null){
+          wrap.readBytes(1024, null, new Handler<byte[]>(wrap){
+            public void func(byte[] arr){
+              dispatch(wrap, new String(arr, java.nio.charset.StandardCharsets.UTF_8));
+            }
+          });
+        }else if ((b==Protocol.CONTINUE || b==Protocol.CATALOG) && !admit(wrap, identity)){
+          return;
+        }else if (b==Protocol.CONTINUE){
+          sync(wrap);
+        }else if (b==Protocol.WATCH){
+          //Watch connections are not relayed, so a heartbeat interval of 0 tells the sibling to stop asking for a while
+          wrap.readBytes(16, null, new Handler<byte[]>(wrap){
+            public void func(byte[] arr){
+              final SerializationStream s = new SerializationStream(8);
+              s.write(0L);
+              wrap.writeBytes(s.data, null, new Handler<Void>(wrap){
+                public void func(Void v){
+                  wrap.close();
+                }
+              });
+            }
+          });
+        }else if (b==Protocol.CATALOG){
+          wrap.readBytes(16, null, new Handler<byte[]>(wrap){
+            public void func(byte[] arr){
+              final long version = getVersion();
+              if (!held && version!=0 && arr.length==8 && new SerializationStream(arr).readLong()==version){
+                wrap.write(Protocol.UP_TO_DATE, null, new Handler<Void>(wrap){
+                  public void func(Void v){
+                    sendSummary(wrap, version);
+                  }
+                });
+              }else{
+                sync(wrap);
+              }
+            }
+          });
+        }else{
+          wrap.close();
+        }
+      }
+    });
+  }
+  /**
+   * Sends the cache to a sibling, or asks the sibling to retry later if the cache is about to be updated.
+   */
+  private static void sync(final SocketWrapper wrap){
+    final Manifest m = current;
+    if (m==null || !enter(wrap)){
+      retryLater(wrap, RETRY_SECONDS);
+      return;
+    }
+    final long version = getVersion();
+    wrap.writeManifest(m, null, new Handler<Boolean>(wrap){
+      public void func(Boolean b){
+        exit(wrap);
+        Logger.logAsync(wrap.getIP()+(b?": Relayed add-ons.":": Relay sync failed."));
+        sendSummary(wrap, b?version:0);
+      }
+      @Override public void failed(Throwable e, Void v){
+        exit(wrap);
+        super.failed(e,v);
+      }
+    }, null, null);
+  }
+  /**
+   * Asks the sibling to retry after the given number of seconds, and then closes the connection.
+   */
+  private static void retryLater(final SocketWrapper wrap, final long seconds){
+    wrap.write(Protocol.RETRY_LATER, null, new Handler<Void>(wrap){
+      public void func(Void v){
+        final SerializationStream s = new SerializationStream(8);
+        s.write(seconds);
+        wrap.writeBytes(s.data, null, new Handler<Void>(wrap){
+          public void func(Void v){
+            wrap.close();
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Recommends that the sibling sync shortly after this add-on's next sync, and reports the catalog version.
+   */
+  private static void sendSummary(final SocketWrapper wrap, long version){
+    final long next = ClientConfig.getNextCron();
+    final SerializationStream s = new SerializationStream(16);
+    s.write(next==-1?-1L:next+60000L+(long)(Database.entropy.nextDouble()*240000L));
+    s.write(version);
+    wrap.writeBytes(s.data, null, new Handler<Void>(wrap){
+      public void func(Void v){
+        wrap.close();
+      }
+    });
+  }
+  /**
+   * Immutable snapshot of the database's group assignments.
+   */
+  private static class Assignments {
+    /** The relay's own group, or {@code null} if the relay receives every add-on. */
+    final String own;
+    /** Maps lowercase client identities and IP addresses to group names, where {@code null} stands for every add-on. */
+    final Map<String,String> clients;
+    Assignments(String own, Map<String,String> clients){
+      this.own = own;
+      this.clients = clients;
+    }
+    /**
+     * Resolves a sibling's group the same way as the database.
+     * @return the name of the sibling's group, or {@code null} if the sibling receives every add-on.
+     */
+    String resolve(String identity, String host){
+      if (identity!=null){
+        identity = identity.toLowerCase();
+        if (clients.containsKey(identity)){
+          return clients.get(identity);
+        }
+      }
+      if (host!=null){
+        host = host.toLowerCase();
+        if (clients.containsKey(host)){
+          return clients.get(host);
+        }
+      }
+      return clients.get("*");
+    }
+  }
+  /**
+   * Convenience {@code CompletionHandler} which closes the sibling's connection when an error occurs.
+   */
+  private abstract static class Handler<T> implements CompletionHandler<T,Void> {
+    private final SocketWrapper wrap;
+    Handler(SocketWrapper wrap){
+      this.wrap = wrap;
+    }
+    public abstract void func(T ret);
+    @Override public void completed(T ret, Void v){
+      try{
+        func(ret);
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred in relay.", t);
+        wrap.close();
+      }
+    }
+    @Override public void failed(Throwable e, Void v){
+      wrap.close();
+    }
+  }
+}
\ No newline at end of file
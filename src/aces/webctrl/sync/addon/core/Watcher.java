@@ -0,0 +1,255 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.addon.core;
+import java.util.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Keeps an idle connection open to the database, so catalog changes are applied without waiting for the next scheduled sync.
+ * <p>
+ * The database sends a one-byte heartbeat every few minutes, and {@link Protocol#CATALOG_CHANGED} whenever the catalog changes.
+ * Notices are passed to {@link Initializer#catalogChanged(long,long)}, which schedules a sync after a random delay so the fleet does not reconnect at once.
+ * The watch connection never transfers files, so regular syncs are unaffected, and scheduled syncs continue as a fallback.
+ * <p>
+ * The watcher only connects after a regular sync has pinned the database's public key.
+ */
+public class Watcher {
+  /** How long to wait before reconnecting when the database does not support watch connections. */
+  private final static long UNSUPPORTED_DELAY = 3600000L;
+  /** Single-threaded group used for processing the watch connection. */
+  private volatile static AsynchronousChannelGroup group = null;
+  /** Wraps the watch connection, or {@code null} if there is none. */
+  private volatile static SocketWrapper wrap = null;
+  /** Incremented whenever the watcher is stopped, so stale connection attempts are discarded. */
+  private final static AtomicInteger generation = new AtomicInteger();
+  /** Whether the watch connection is established. */
+  private volatile static boolean watching = false;
+  /**
+   * @return whether or not the watch connection is established.
+   */
+  public static boolean isWatching(){
+    return watching;
+  }
+  /**
+   * Closes any existing watch connection, and then opens a new one if watching is enabled.
+   * Invoked on startup and whenever the connection settings change.
+   */
+  public synchronized static void restart(){
+    stop();
+    if (ClientConfig.watch){
+      schedule(generation.get(), 0);
+    }
+  }
+  /**
+   * Closes the watch connection.
+   */
+  public synchronized static void stop(){
+    generation.incrementAndGet();
+    watching = false;
+    final SocketWrapper w = wrap;
+    wrap = null;
+    if (w!=null && !w.isClosed()){
+      w.close();
+    }
+    if (group!=null){
+      try{
+        group.shutdownNow();
+      }catch(Throwable t){}
+      group = null;
+    }
+  }
+  private static void schedule(final int gen, long delay){
+    Initializer.enqueue(new DelayedRunnable(System.currentTimeMillis()+delay){
+      public void run(){
+        connect(gen);
+      }
+    });
+  }
+  /**
+   * @return a randomized reconnection delay which scales with {@link ClientConfig#reconnectTimeout}.
+   */
+  private static long reconnectDelay(){
+    final long t = Math.max(ClientConfig.reconnectTimeout, 1000L);
+    return t/2+(long)(Database.entropy.nextDouble()*t);
+  }
+  /**
+   * Closes the watch connection, and then tries again later.
+   */
+  private static void retry(final int gen, final SocketWrapper w, final long delay){
+    if (w!=null && !w.isClosed()){
+      w.close();
+    }
+    if (gen==generation.get()){
+      if (watching){
+        watching = false;
+        Logger.logAsync("Watch connection lost.");
+      }
+      schedule(gen, delay);
+    }
+  }
+  private synchronized static void connect(final int gen){
+    if (gen!=generation.get() || !ClientConfig.watch){
+      return;
+    }
+    final List<Endpoints.Endpoint> list = Endpoints.order();
+    if (list.isEmpty() || ClientConfig.databaseKey==null){
+      schedule(gen, reconnectDelay());
+      return;
+    }
+    final Endpoints.Endpoint endpoint = list.get(0);
+    try{
+      if (group==null){
+        group = AsynchronousChannelGroup.withFixedThreadPool(1, Executors.defaultThreadFactory());
+      }
+      final AsynchronousSocketChannel ch = AsynchronousSocketChannel.open(group);
+      final long start = System.nanoTime();
+      ch.connect(endpoint.getAddress(), null, new CompletionHandler<Void,Void>(){
+        public void completed(Void v, Void vv){
+          Endpoints.connected(endpoint, (System.nanoTime()-start)/1000000L);
+          final SocketWrapper w = new SocketWrapper(ch);
+          wrap = w;
+          handshake(gen, w, endpoint);
+        }
+        public void failed(Throwable e, Void vv){
+          try{
+            ch.close();
+          }catch(Throwable t){}
+          failover(gen, null, endpoint);
+        }
+      });
+    }catch(Throwable t){
+      retry(gen, null, reconnectDelay());
+    }
+  }
+  /**
+   * Records a failed connection attempt, and then tries again immediately if another endpoint is healthy.
+   */
+  private static void failover(final int gen, final SocketWrapper w, final Endpoints.Endpoint endpoint){
+    Endpoints.failed(endpoint);
+    final List<Endpoints.Endpoint> list = Endpoints.order();
+    retry(gen, w, !list.isEmpty() && list.get(0)!=endpoint && list.get(0).isAvailable()?0:reconnectDelay());
+  }
+  private static void handshake(final int gen, final SocketWrapper w, final Endpoints.Endpoint endpoint){
+    new ClientHandshake(){
+      protected void incompatible(String version){
+        retry(gen, w, UNSUPPORTED_DELAY);
+      }
+      protected boolean trust(Key k){
+        final Key kk = ClientConfig.databaseKey;
+        if (kk==null || !kk.equals(k)){
+          failover(gen, w, endpoint);
+          return false;
+        }
+        return true;
+      }
+      protected void rejected(){
+        failover(gen, w, endpoint);
+      }
+      protected void failed(Throwable t){
+        failover(gen, w, endpoint);
+      }
+      protected void established(String version){
+        Endpoints.succeeded(endpoint);
+        if (Config.compareVersions(version, Config.WATCH_VERSION)<0){
+          Logger.logAsync("Database version "+version+" does not support watch connections.");
+          retry(gen, w, UNSUPPORTED_DELAY);
+          return;
+        }
+        final Handler<Void> request = new Handler<Void>(gen, w){
+          public void func(Void v){
+            w.write(Protocol.WATCH, null, new Handler<Void>(gen, w){
+              public void func(Void v){
+                final SerializationStream s = new SerializationStream(8);
+                s.write(ClientConfig.catalogVersion);
+                w.writeBytes(s.data, null, new Handler<Void>(gen, w){
+                  public void func(Void v){
+                    w.readBytes(16, null, new Handler<byte[]>(gen, w){
+                      public void func(byte[] arr){
+                        final long interval = new SerializationStream(arr).readLong();
+                        if (interval<=0){
+                          Logger.logAsync("Database refused watch connection.");
+                          retry(gen, w, UNSUPPORTED_DELAY);
+                          return;
+                        }
+                        //Heartbeats may be late by one interval before the connection is presumed dead
+                        w.setTimeout(interval*2+ClientConfig.timeout);
+                        if (gen==generation.get()){
+                          watching = true;
+                          Logger.logAsync("Watching for catalog changes.");
+                        }
+                        listen(gen, w);
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        };
+        if (Config.compareVersions(version, Config.GROUPS_VERSION)>=0){
+          //Identify this server, so the database announces the catalog version of its sync group
+          w.write(Protocol.IDENTIFY, null, new Handler<Void>(gen, w){
+            public void func(Void v){
+              w.writeBytes(ClientConfig.getIdentity().getBytes(java.nio.charset.StandardCharsets.UTF_8), null, request);
+            }
+          });
+        }else{
+          request.func(null);
+        }
+      }
+    }.start(w, ClientConfig.connectionKey);
+  }
+  /**
+   * Waits for the next notice from the database.
+   */
+  private static void listen(final int gen, final SocketWrapper w){
+    w.read(null, new Handler<Byte>(gen, w){
+      public void func(Byte b){
+        if (b==Protocol.HEARTBEAT){
+          listen(gen, w);
+        }else if (b==Protocol.CATALOG_CHANGED){
+          w.readBytes(16, null, new Handler<byte[]>(gen, w){
+            public void func(byte[] arr){
+              final SerializationStream s = new SerializationStream(arr);
+              final long version = s.readLong();
+              final long window = s.readLong();
+              Logger.logAsync("Database announced catalog version "+Long.toHexString(version)+'.');
+              Initializer.catalogChanged(version, window);
+              listen(gen, w);
+            }
+          });
+        }else{
+          retry(gen, w, reconnectDelay());
+        }
+      }
+    });
+  }
+  /**
+   * Convenience {@code CompletionHandler} which reconnects later when an error occurs.
+   */
+  private abstract static class Handler<T> implements CompletionHandler<T,Void> {
+    private final int gen;
+    private final SocketWrapper w;
+    Handler(int gen, SocketWrapper w){
+      this.gen = gen;
+      this.w = w;
+    }
+    public abstract void func(T ret);
+    @Override public void completed(T ret, Void v){
+      try{
+        func(ret);
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred on watch connection.", t);
+        retry(gen, w, reconnectDelay());
+      }
+    }
+    @Override public void failed(Throwable e, Void v){
+      retry(gen, w, reconnectDelay());
+    }
+  }
+}
\ No newline at end of file
@@ -5,6 +5,8 @@
 */
 package aces.webctrl.sync.addon.web;
 import java.io.*;
+import java.nio.channels.*;
+import java.util.zip.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
 import aces.webctrl.sync.addon.Utility;
@@ -13,6 +15,8 @@ import aces.webctrl.sync.common.*;
 import java.util.*;
 public class MainPage extends SecureServlet {
   private volatile static String html = null;
+  /** The number of log entries returned by each query. */
+  private final static int LOG_PAGE_SIZE = 200;
   public MainPage(){
     super(Collections.singleton("view_administrator_only"));
   }
@@ -39,7 +43,108 @@ public class MainPage extends SecureServlet {
       }
     }
   }
+  /**
+   * Reconnects the watch connection using the current settings.
+   */
+  private static void restartWatcher(){
+    Initializer.enqueue(new DelayedRunnable(System.currentTimeMillis()){
+      public void run(){
+        Watcher.restart();
+      }
+    });
+  }
+  /**
+   * Streams a snapshot of the log, so logging continues while the download is in progress.
+   * The log is compressed when the browser accepts {@code gzip}, except for range requests, which are served uncompressed so that interrupted downloads can resume.
+   */
+  private static void downloadLog(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+    try(
+      LogSnapshot snap = Logger.snapshot();
+    ){
+      final long len = snap.length();
+      final String tag = '"'+snap.getTag()+'"';
+      res.setContentType("application/octet-stream");
+      res.setHeader("Content-Disposition","attachment;filename=\"log.txt\"");
+      res.setHeader("Accept-Ranges","bytes");
+      res.setHeader("Vary","Accept-Encoding");
+      final String range = req.getHeader("Range");
+      final String ifRange = req.getHeader("If-Range");
+      if (range!=null && (ifRange==null || ifRange.equals(tag))){
+        final long[] r = parseRange(range, len);
+        if (r!=null){
+          res.setHeader("ETag", tag);
+          if (r[0]>=r[1]){
+            res.setHeader("Content-Range", "bytes */"+len);
+            res.setStatus(416);
+            return;
+          }
+          res.setStatus(206);
+          res.setHeader("Content-Range", "bytes "+r[0]+'-'+(r[1]-1)+'/'+len);
+          res.setContentLengthLong(r[1]-r[0]);
+          snap.transferTo(r[0], r[1], Channels.newChannel(res.getOutputStream()));
+          return;
+        }
+      }
+      final String encoding = req.getHeader("Accept-Encoding");
+      if (encoding!=null && encoding.toLowerCase().contains("gzip")){
+        res.setHeader("ETag", "\""+snap.getTag()+"-gzip\"");
+        res.setHeader("Content-Encoding","gzip");
+        try(
+          GZIPOutputStream gz = new GZIPOutputStream(res.getOutputStream(), 65536);
+        ){
+          snap.transferTo(0, len, Channels.newChannel(gz));
+        }
+      }else{
+        res.setHeader("ETag", tag);
+        res.setContentLengthLong(len);
+        snap.transferTo(0, len, Channels.newChannel(res.getOutputStream()));
+      }
+    }
+  }
+  /**
+   * Parses a {@code Range} header which specifies a single byte range.
+   * @return the inclusive start and exclusive end of the range, which are equal if the range cannot be satisfied; or {@code null} if the header should be ignored.
+   */
+  private static long[] parseRange(String range, long len){
+    range = range.trim();
+    if (!range.startsWith("bytes=") || range.indexOf(',')!=-1){
+      return null;
+    }
+    final int i = range.indexOf('-');
+    if (i==-1){
+      return null;
+    }
+    try{
+      final String a = range.substring(6,i).trim();
+      final String b = range.substring(i+1).trim();
+      long start, end;
+      if (a.isEmpty()){
+        if (b.isEmpty()){
+          return null;
+        }
+        start = Math.max(len-Long.parseLong(b), 0);
+        end = len;
+      }else{
+        start = Long.parseLong(a);
+        end = b.isEmpty()?Long.MAX_VALUE:Long.parseLong(b);
+        if (end<start){
+          return null;
+        }
+        end = b.isEmpty()?len:Math.min(end+1, len);
+      }
+      if (start<0 || start>=len){
+        return new long[]{0,0};
+      }
+      return new long[]{start,end};
+    }catch(NumberFormatException e){
+      return null;
+    }
+  }
   @Override public void process(final HttpServletRequest req, final HttpServletResponse res) throws Throwable {
+    if (req.getParameter("downloadLog")!=null){
+      downloadLog(req, res);
+      return;
+    }
     final PrintWriter out = res.getWriter();
     if (req.getParameter("status")!=null){
       res.setContentType("text/plain");
@@ -51,12 +156,34 @@ public class MainPage extends SecureServlet {
       out.print(Initializer.nextCronString);
       out.print(';');
       out.print(Initializer.getStatus());
-    }else if (req.getParameter("downloadLog")!=null){
-      res.setContentType("application/octet-stream");
-      res.setHeader("Content-Disposition","attachment;filename=\"log.txt\"");
-      Logger.transferTo(out);
+    }else if (req.getParameter("queryLog")!=null){
+      try{
+        final String from = req.getParameter("from");
+        final String to = req.getParameter("to");
+        final String filter = req.getParameter("filter");
+        final String before = req.getParameter("before");
+        final LogIndex.Page page = Logger.query(
+          from==null || from.isEmpty()?Long.MIN_VALUE:Long.parseLong(from),
+          to==null || to.isEmpty()?Long.MAX_VALUE:Long.parseLong(to),
+          filter,
+          before==null || before.isEmpty()?null:before,
+          LOG_PAGE_SIZE
+        );
+        res.setContentType("text/plain");
+        final String next = page.getNext();
+        out.print(next==null?"":next);
+        out.print('\n');
+        for (LogIndex.Record r:page.getRecords()){
+          out.print(r.getText());
+          out.print('\n');
+        }
+      }catch(IllegalArgumentException e){
+        res.setStatus(400);
+      }
     }else if (req.getParameter("resetKey")!=null){
       ClientConfig.databaseKey = null;
+      ClientConfig.catalogVersion = 0;
+      restartWatcher();
     }else if (req.getParameter("config")!=null){
       final String host = req.getParameter("host");
       final String port = req.getParameter("port");
@@ -80,7 +207,39 @@ public class MainPage extends SecureServlet {
           final int portNum = Integer.parseInt(port);
           final long timeoutNum = Long.parseLong(timeout);
           final long deleteLogNum = Long.parseLong(deleteLog);
+          final String syncSplay = req.getParameter("syncSplay");
+          final long splayNum = syncSplay==null?ClientConfig.splay:Math.max(Long.parseLong(syncSplay),0L);
+          final boolean splayChanged = splayNum!=ClientConfig.splay;
+          ClientConfig.splay = splayNum;
+          final String watch = req.getParameter("watch");
+          final boolean watchChanged = watch!=null && Boolean.parseBoolean(watch)!=ClientConfig.watch;
+          if (watchChanged){
+            ClientConfig.watch = !ClientConfig.watch;
+          }
+          final String identity = req.getParameter("identity");
+          final boolean identityChanged;
+          if (identity==null){
+            identityChanged = false;
+          }else{
+            final String id = identity.trim().isEmpty()?null:identity.trim();
+            identityChanged = id==null?ClientConfig.identity!=null:!id.equals(ClientConfig.identity);
+            ClientConfig.identity = id;
+          }
+          final String relayPort = req.getParameter("relayPort");
+          final int relayPortNum = relayPort==null?ClientConfig.relayPort:Math.max(Integer.parseInt(relayPort),0);
+          if (relayPortNum!=ClientConfig.relayPort){
+            ClientConfig.relayPort = relayPortNum;
+            Initializer.enqueue(new DelayedRunnable(System.currentTimeMillis()){
+              public void run(){
+                Relay.restart();
+              }
+            });
+          }
+          final String prevSchedule = ClientConfig.getCronExpression();
           ClientConfig.setCronExpression(syncSchedule);
+          if (splayChanged && syncSchedule.equals(prevSchedule)){
+            ClientConfig.resetCron();
+          }
           if (deleteLogNum<ClientConfig.deleteLogAfter){
             Logger.trim(deleteLogNum);
           }
@@ -95,6 +254,11 @@ public class MainPage extends SecureServlet {
             ClientConfig.port = portNum;
             ClientConfig.ipLock.writeLock().unlock();
           }
+          if (changeIP || watchChanged || identityChanged){
+            restartWatcher();
+          }
+          //The previous failures may have been caused by the old configuration
+          Backoff.reset();
           res.setContentType("text/plain");
           out.print(ClientConfig.getNextCronString());
         }catch(Throwable e){
@@ -120,6 +284,9 @@ public class MainPage extends SecureServlet {
       ).replace(
         "__PORT__",
         String.valueOf(port)
+      ).replace(
+        "__IDENTITY__",
+        Utility.escapeJS(ClientConfig.identity==null?"":ClientConfig.identity)
       ).replace(
         "__TIMEOUT__",
         String.valueOf(ClientConfig.timeout)
@@ -129,6 +296,15 @@ public class MainPage extends SecureServlet {
       ).replace(
         "__SYNC_SCHEDULE__",
         expr
+      ).replace(
+        "__SYNC_SPLAY__",
+        String.valueOf(ClientConfig.splay)
+      ).replace(
+        "__WATCH__",
+        String.valueOf(ClientConfig.watch)
+      ).replace(
+        "__RELAY_PORT__",
+        String.valueOf(ClientConfig.relayPort)
       ).replace(
         "__NEXT_SYNC_LATENT__",
         ClientConfig.getNextCronString()
@@ -0,0 +1,60 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+/**
+ * {@link Transport} backed by an {@code AsynchronousSocketChannel}.
+ * Handlers may be invoked on any thread of the channel group, which hands operations off through its own synchronized queues.
+ */
+public class AsyncTransport implements Transport {
+  private final AsynchronousSocketChannel ch;
+  /** Records handler activity, or {@code null} if handlers are not instrumented. */
+  private final HandlerStats stats;
+  public AsyncTransport(AsynchronousSocketChannel ch){
+    this(ch, null);
+  }
+  /**
+   * @param stats records handler activity, or {@code null} if handlers should not be instrumented.
+   */
+  public AsyncTransport(AsynchronousSocketChannel ch, HandlerStats stats){
+    this.ch = ch;
+    this.stats = stats;
+  }
+  @Override public <A> void read(ByteBuffer dst, long timeout, A attach, CompletionHandler<Integer,? super A> handler){
+    if (stats==null){
+      ch.read(dst, timeout, TimeUnit.MILLISECONDS, attach, handler);
+      return;
+    }
+    try{
+      ch.read(dst, timeout, TimeUnit.MILLISECONDS, attach, stats.<Integer,A>wrap(handler));
+    }catch(RuntimeException e){
+      stats.abandon();
+      throw e;
+    }
+  }
+  @Override public <A> void write(ByteBuffer src, long timeout, A attach, CompletionHandler<Integer,? super A> handler){
+    if (stats==null){
+      ch.write(src, timeout, TimeUnit.MILLISECONDS, attach, handler);
+      return;
+    }
+    try{
+      ch.write(src, timeout, TimeUnit.MILLISECONDS, attach, stats.<Integer,A>wrap(handler));
+    }catch(RuntimeException e){
+      stats.abandon();
+      throw e;
+    }
+  }
+  @Override public SocketAddress getRemoteAddress() throws IOException {
+    return ch.getRemoteAddress();
+  }
+  @Override public void close() throws IOException {
+    ch.close();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.channels.*;
+/**
+ * Client side of the handshake which establishes an encrypted session with a database.
+ * The database sends its version and public key, the client replies with a temporary public key,
+ * the database returns a symmetric session key, and then the client proves it possesses the secret connection key.
+ * Subclasses decide whether to trust the database and what to do once the session is established.
+ * Exactly one of the callback methods is invoked.
+ */
+public abstract class ClientHandshake {
+  /**
+   * Invoked when the database runs a version which is incompatible with this application.
+   */
+  protected abstract void incompatible(String version);
+  /**
+   * Invoked to verify the public key presented by the database.
+   * If {@code false} is returned, the handshake is abandoned and no other callback is invoked.
+   */
+  protected abstract boolean trust(Key k);
+  /**
+   * Invoked when the database rejects the connection key.
+   */
+  protected abstract void rejected();
+  /**
+   * Invoked once encryption has been setup and the database has accepted the connection key.
+   * @param version is the application version of the database.
+   */
+  protected abstract void established(String version);
+  /**
+   * Invoked when a socket error or any other unexpected error occurs.
+   */
+  protected abstract void failed(Throwable t);
+  /**
+   * Starts the handshake on a newly connected socket.
+   * @param connectionKey is the secret which the database expects every client to possess.
+   */
+  public void start(final SocketWrapper wrapper, final long connectionKey){
+    //Read the application version and public key
+    wrapper.readBytes(16384, null, new Step<byte[]>(){
+      public void func(byte[] arr) throws Throwable {
+        final SerializationStream s = new SerializationStream(arr);
+        final String version = s.readString();
+        //Ensure the database and client versions are compatible
+        if (!Config.isCompatibleVersion(version)){
+          incompatible(version);
+          return;
+        }
+        final Key k = Key.deserialize(s,false);
+        if (!trust(k)){
+          return;
+        }
+        //Generate a temporary KeyPair for the handshake
+        java.security.KeyPair pair;
+        synchronized (Keys.tempKeyPairGen){
+          pair = Keys.tempKeyPairGen.generateKeyPair();
+        }
+        final java.security.PrivateKey pk = pair.getPrivate();
+        //Encrypt and write the temporary public key
+        wrapper.writeBytes(k.encrypt(pair.getPublic().getEncoded()), null, new Step<Void>(){
+          public void func(Void v){
+            //Read the encrypted symmetric key to use for this session
+            wrapper.readBytes(16384, null, new Step<byte[]>(){
+              public void func(byte[] arr) throws Throwable {
+                javax.crypto.Cipher c = javax.crypto.Cipher.getInstance(Database.CIPHER);
+                c.init(javax.crypto.Cipher.DECRYPT_MODE, pk);
+                //Decrypt the symmetric key and use it to initialize a StreamCipher
+                wrapper.setCipher(new StreamCipher(c.doFinal(arr)));
+                //Write the secret connection key
+                final SerializationStream s = new SerializationStream(8);
+                s.write(connectionKey);
+                wrapper.writeBytes(s.data, null, new Step<Void>(){
+                  public void func(Void v){
+                    //Determine whether the database accepted the connection key
+                    wrapper.read(null, new Step<Byte>(){
+                      public void func(Byte b){
+                        if (b==Protocol.SUCCESS){
+                          established(version);
+                        }else{
+                          rejected();
+                        }
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Routes exceptions thrown by each step and socket errors to {@link #failed(Throwable)}.
+   */
+  private abstract class Step<T> implements CompletionHandler<T,Void> {
+    public abstract void func(T ret) throws Throwable;
+    @Override public void completed(T ret, Void v){
+      try{
+        func(ret);
+      }catch(Throwable t){
+        ClientHandshake.this.failed(t);
+      }
+    }
+    @Override public void failed(Throwable e, Void v){
+      ClientHandshake.this.failed(e);
+    }
+  }
+}
\ No newline at end of file
@@ -16,11 +16,31 @@ public class Config {
    * Hardcoded internal version string for the application.
    * Used to determine compatibility when connecting remote hosts.
    */
-  public final static String VERSION = "0.1.1";
+  public final static String VERSION = "0.1.6";
   /**
    * Used for evaluating compatible version strings.
    */
   private final static String VERSION_SUBSTRING = VERSION.substring(0,VERSION.lastIndexOf('.'));
+  /**
+   * The earliest version which supports the catalog fast path.
+   */
+  public final static String CATALOG_VERSION = "0.1.2";
+  /**
+   * The earliest version which can replicate its catalog to follower databases.
+   */
+  public final static String REPLICATION_VERSION = "0.1.3";
+  /**
+   * The earliest version which accepts watch connections.
+   */
+  public final static String WATCH_VERSION = "0.1.4";
+  /**
+   * The earliest version which accepts client identities for selecting sync groups.
+   */
+  public final static String GROUPS_VERSION = "0.1.5";
+  /**
+   * The earliest version which reports sync group assignments to relays.
+   */
+  public final static String RELAY_GROUPS_VERSION = "0.1.6";
   /**
    * Raw version bytes.
    */
@@ -53,6 +73,122 @@ public class Config {
    * The default value is 1 minute.
    */
   public volatile static long timeout = 60000L;
+  /**
+   * Connections which have not completed the authentication handshake within this many milliseconds will be terminated.
+   * The default value is 30 seconds. A non-positive value disables this deadline.
+   */
+  public volatile static long handshakeTimeout = 30000L;
+  /**
+   * Connections which do not transfer any data for this many milliseconds will be terminated.
+   * The default value is 2 minutes. A non-positive value disables this deadline.
+   */
+  public volatile static long idleTimeout = 120000L;
+  /**
+   * Connections which remain open for longer than this many milliseconds will be terminated.
+   * The default value is 0, which disables this deadline, since large transfers over slow links may legitimately take hours.
+   */
+  public volatile static long sessionTimeout = 0L;
+  /**
+   * Once a connection has been open for longer than {@link #handshakeTimeout},
+   * it will be terminated whenever its average transfer rate falls below this many bytes per second.
+   * The default value is 0, which disables this limit, since slow links may legitimately fall below any fixed rate.
+   */
+  public volatile static long minThroughput = 0L;
+  /**
+   * The maximum number of sync sessions which may be active at any given time.
+   * The default value is 32.
+   */
+  public volatile static int maxSessions = 32;
+  /**
+   * Sessions which would wait for longer than this many milliseconds to start are asked to retry later.
+   * This value should be less than the timeout configured on each client.
+   * The default value is 30 seconds.
+   */
+  public volatile static long maxQueueWait = 30000L;
+  /**
+   * Specifies the start of the daily sync window in milliseconds after local midnight.
+   * The default value is 0 (midnight).
+   */
+  public volatile static long syncWindowStart = 0L;
+  /**
+   * Specifies the length of the daily sync window in milliseconds.
+   * At the end of each session, clients are told when to sync next so that all known clients are spread evenly across this window.
+   * The default value is 6 hours. A non-positive value disables recommendations.
+   */
+  public volatile static long syncWindowLength = 21600000L;
+  /**
+   * Specifies how often (in milliseconds) to rescan the synchronization folder, in case any changes were missed by the {@code WatchService}.
+   * Clients whose last sync matches the current scan skip the file-by-file comparison.
+   * The default value is 60000 (1 minute). A non-positive value disables snapshots, so every session reads directly from the folder.
+   */
+  public volatile static long catalogInterval = 60000L;
+  /**
+   * The maximum number of bytes of file content to cache in memory, so that concurrent sessions transferring the same file share one copy.
+   * Files larger than a quarter of this size are always read from disk.
+   * The default value is 67108864 (64 MB). A non-positive value disables the cache.
+   */
+  public volatile static long contentCacheSize = 67108864L;
+  /**
+   * The number of threads used to process socket operations.
+   * The default value is 0, which uses one thread per available processor.
+   */
+  public volatile static int ioThreads = 0;
+  /**
+   * The number of threads used to read and write files.
+   * The default value is 0, which uses one thread per available processor, but at least 2 and at most 16.
+   */
+  public volatile static int fileThreads = 0;
+  /**
+   * Selects how the database drives socket operations.
+   * {@code AIO} (the default) uses an asynchronous channel group, where any thread may service any connection.
+   * {@code NIO} uses {@link #ioThreads} selector event loops, and pins each connection to a single loop thread.
+   * {@code VT} runs one virtual thread per connection with blocking I/O, which requires JDK 21 and {@code engine21.jar}.
+   */
+  public volatile static String engine = "AIO";
+  /**
+   * The number of independent accept loops, which are bound to the same port with {@code SO_REUSEPORT} where supported.
+   * Each shard serves its connections with its own share of the {@link #ioThreads}.
+   * The default value is 1.
+   */
+  public volatile static int acceptShards = 1;
+  /**
+   * Address of the primary database in the form {@code host:port}.
+   * When specified, this database runs as a read-only follower which replicates the primary's catalog.
+   * The default value is empty, which means this database is a primary (or standalone).
+   */
+  public volatile static String primary = "";
+  /**
+   * Specifies how often a follower replicates the primary's catalog.
+   * The default value is 1 minute.
+   */
+  public volatile static long replicationInterval = 60000L;
+  /**
+   * Secret key which a follower must present to replicate this database's catalog.
+   * Followers receive every add-on and bypass admission control, so this must match on the primary and its followers, and should be kept secret.
+   * A random key is generated if none is configured.
+   */
+  public volatile static long replicationKey = 0;
+  /**
+   * Specifies how often (in milliseconds) to send a heartbeat on each watch connection.
+   * Set to 0 to refuse watch connections.
+   * The default value is 1 minute.
+   */
+  public volatile static long heartbeatInterval = 60000L;
+  /**
+   * Clients which are notified of a catalog change sync after a random delay of up to this many milliseconds.
+   * The default value is 5 minutes.
+   */
+  public volatile static long pushWindow = 300000L;
+  /**
+   * The port on which metrics are served in the Prometheus text format at {@code /metrics}.
+   * The default value is 0, which disables the endpoint.
+   */
+  public volatile static int metricsPort = 0;
+  /**
+   * The address to which the metrics endpoint is bound, or empty to listen on every interface.
+   * The default value is {@code 127.0.0.1}, so metrics are only available locally.
+   */
+  public volatile static String metricsHost = "127.0.0.1";
   /**
    * Clients must possess this secret key to register as a new server in this database.
    */
@@ -75,6 +211,46 @@ public class Config {
     }
     return VERSION_SUBSTRING.equals(ver.substring(0,i));
   }
+  /**
+   * @return the number of threads to use for processing socket operations.
+   */
+  public static int getIOThreads(){
+    final int n = ioThreads;
+    return n>0?n:Math.max(Runtime.getRuntime().availableProcessors(), 1);
+  }
+  /**
+   * @return the number of threads to use for reading and writing files.
+   */
+  public static int getFileThreads(){
+    final int n = fileThreads;
+    return n>0?n:Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 2), 16);
+  }
+  /**
+   * Compares two version strings numerically component by component.
+   * Components which cannot be parsed are treated as {@code 0}.
+   * @return a negative integer, zero, or a positive integer as the first version is less than, equal to, or greater than the second.
+   */
+  public static int compareVersions(String a, String b){
+    final String[] x = a.split("\\.");
+    final String[] y = b.split("\\.");
+    final int len = Math.max(x.length, y.length);
+    int i,j;
+    for (int k=0;k<len;++k){
+      i = k<x.length?parseComponent(x[k]):0;
+      j = k<y.length?parseComponent(y[k]):0;
+      if (i!=j){
+        return i<j?-1:1;
+      }
+    }
+    return 0;
+  }
+  private static int parseComponent(String s){
+    try{
+      return Integer.parseInt(s.trim());
+    }catch(Throwable t){
+      return 0;
+    }
+  }
   /**
    * Initializes parameters.
    * @return {@code true} on success; {@code false} if an error occurs.
@@ -112,6 +288,10 @@ public class Config {
           deleteLogAfter = Long.parseLong(value);
           break;
         }
+        case "LOGOVERFLOW":{
+          Logger.overflow = Logger.Overflow.valueOf(value.toUpperCase());
+          break;
+        }
         case "BACKLOG":{
           backlog = Integer.parseInt(value);
           break;
@@ -120,6 +300,90 @@ public class Config {
           timeout = Long.parseLong(value);
           break;
         }
+        case "HANDSHAKETIMEOUT":{
+          handshakeTimeout = Long.parseLong(value);
+          break;
+        }
+        case "IDLETIMEOUT":{
+          idleTimeout = Long.parseLong(value);
+          break;
+        }
+        case "SESSIONTIMEOUT":{
+          sessionTimeout = Long.parseLong(value);
+          break;
+        }
+        case "MINTHROUGHPUT":{
+          minThroughput = Long.parseLong(value);
+          break;
+        }
+        case "MAXSESSIONS":{
+          maxSessions = Integer.parseInt(value);
+          break;
+        }
+        case "MAXQUEUEWAIT":{
+          maxQueueWait = Long.parseLong(value);
+          break;
+        }
+        case "SYNCWINDOWSTART":{
+          syncWindowStart = Long.parseLong(value);
+          break;
+        }
+        case "SYNCWINDOWLENGTH":{
+          syncWindowLength = Long.parseLong(value);
+          break;
+        }
+        case "CATALOGINTERVAL":{
+          catalogInterval = Long.parseLong(value);
+          break;
+        }
+        case "CONTENTCACHESIZE":{
+          contentCacheSize = Long.parseLong(value);
+          break;
+        }
+        case "IOTHREADS":{
+          ioThreads = Integer.parseInt(value);
+          break;
+        }
+        case "FILETHREADS":{
+          fileThreads = Integer.parseInt(value);
+          break;
+        }
+        case "ENGINE":{
+          engine = value.trim().toUpperCase();
+          break;
+        }
+        case "ACCEPTSHARDS":{
+          acceptShards = Integer.parseInt(value);
+          break;
+        }
+        case "PRIMARY":{
+          primary = value.trim();
+          break;
+        }
+        case "REPLICATIONINTERVAL":{
+          replicationInterval = Long.parseLong(value);
+          break;
+        }
+        case "REPLICATIONKEY":{
+          replicationKey = Long.parseUnsignedLong(value, 16);
+          break;
+        }
+        case "HEARTBEATINTERVAL":{
+          heartbeatInterval = Long.parseLong(value);
+          break;
+        }
+        case "PUSHWINDOW":{
+          pushWindow = Long.parseLong(value);
+          break;
+        }
+        case "METRICSPORT":{
+          metricsPort = Integer.parseInt(value);
+          break;
+        }
+        case "METRICSHOST":{
+          metricsHost = value;
+          break;
+        }
         default:{
           Logger.log("Unrecognized key-value pair in the primary configuration file ("+key+':'+value+')');
           return false;
@@ -143,6 +407,7 @@ public class Config {
       synchronized (Config.class){
         if (!Files.exists(configFile)){
           connectionKey = Database.entropy.nextLong();
+          replicationKey = Database.entropy.nextLong();
           return save();
         }
         arr = Files.readAllBytes(configFile);
@@ -179,6 +444,11 @@ public class Config {
       if (key.length()>0){
         ret&=setConfigParameter(key.toString(),value.toString());
       }
+      if (replicationKey==0){
+        //Configuration files written by earlier versions have no replication key
+        replicationKey = Database.entropy.nextLong();
+        ret&=save();
+      }
       return ret;
     }catch(Throwable e){
       Logger.log("Error occured while loading primary configuration file.", e);
@@ -208,6 +478,50 @@ public class Config {
       sb.append("BackLog=").append(backlog);
       sb.append(sep).append(sep).append(";Specifies how long to wait for a client response before assuming the connection has been lost").append(sep);
       sb.append("Timeout=").append(timeout);
+      sb.append(sep).append(sep).append(";Specifies how long a client may take to complete the authentication handshake").append(sep);
+      sb.append("HandshakeTimeout=").append(handshakeTimeout);
+      sb.append(sep).append(sep).append(";Specifies how long a connection may go without transferring any data").append(sep);
+      sb.append("IdleTimeout=").append(idleTimeout);
+      sb.append(sep).append(sep).append(";Specifies the maximum lifetime of a connection (0 disables this deadline)").append(sep);
+      sb.append("SessionTimeout=").append(sessionTimeout);
+      sb.append(sep).append(sep).append(";Connections with an average transfer rate below this many bytes per second are terminated (0 disables this limit)").append(sep);
+      sb.append("MinThroughput=").append(minThroughput);
+      sb.append(sep).append(sep).append(";The maximum number of concurrently active sync sessions").append(sep);
+      sb.append("MaxSessions=").append(maxSessions);
+      sb.append(sep).append(sep).append(";Sessions which would wait longer than this to start are asked to retry later").append(sep);
+      sb.append("MaxQueueWait=").append(maxQueueWait);
+      sb.append(sep).append(sep).append(";Start of the daily sync window, measured from local midnight").append(sep);
+      sb.append("SyncWindowStart=").append(syncWindowStart);
+      sb.append(sep).append(sep).append(";Clients are scheduled to sync evenly across a window of this length").append(sep);
+      sb.append("SyncWindowLength=").append(syncWindowLength);
+      sb.append(sep).append(sep).append(";Specifies how often to rescan the synchronization folder for missed changes").append(sep);
+      sb.append("CatalogInterval=").append(catalogInterval);
+      sb.append(sep).append(sep).append(";The maximum number of bytes of file content to cache in memory").append(sep);
+      sb.append("ContentCacheSize=").append(contentCacheSize);
+      sb.append(sep).append(sep).append(";Number of threads used to process socket operations (0 means one per processor)").append(sep);
+      sb.append("IOThreads=").append(ioThreads);
+      sb.append(sep).append(sep).append(";Number of threads used to read and write files (0 means one per processor, between 2 and 16)").append(sep);
+      sb.append("FileThreads=").append(fileThreads);
+      sb.append(sep).append(sep).append(";Socket engine: AIO (asynchronous channel group), NIO (selector event loops), or VT (virtual threads, requires JDK 21)").append(sep);
+      sb.append("Engine=").append(engine);
+      sb.append(sep).append(sep).append(";Number of independent accept loops (uses SO_REUSEPORT where supported)").append(sep);
+      sb.append("AcceptShards=").append(acceptShards);
+      sb.append(sep).append(sep).append(";Address (host:port) of the primary database to replicate, or empty if this database is the primary").append(sep);
+      sb.append("Primary=").append(primary);
+      sb.append(sep).append(sep).append(";Specifies how often a follower replicates the primary's catalog").append(sep);
+      sb.append("ReplicationInterval=").append(replicationInterval);
+      sb.append(sep).append(sep).append(";This secret key authenticates follower databases, and must be the same on the primary and every follower").append(sep);
+      sb.append("ReplicationKey=").append(Long.toHexString(replicationKey));
+      sb.append(sep).append(sep).append(";Specifies how often to send heartbeats on watch connections (0 refuses watch connections)").append(sep);
+      sb.append("HeartbeatInterval=").append(heartbeatInterval);
+      sb.append(sep).append(sep).append(";Watching clients spread their syncs over this many milliseconds after a catalog change").append(sep);
+      sb.append("PushWindow=").append(pushWindow);
+      sb.append(sep).append(sep).append(";Port on which to serve Prometheus metrics at /metrics (0 disables the endpoint)").append(sep);
+      sb.append("MetricsPort=").append(metricsPort);
+      sb.append(sep).append(sep).append(";Address to which the metrics endpoint is bound (empty listens on every interface)").append(sep);
+      sb.append("MetricsHost=").append(metricsHost);
+      sb.append(sep).append(sep).append(";What to do when log entries arrive faster than they can be written: BLOCK (wait) or DROP (discard and count them)").append(sep);
+      sb.append("LogOverflow=").append(Logger.overflow.name());
       sb.append(sep).append(sep).append(";Specifies how long to keep log entries before erasing them").append(sep);
       sb.append("DeleteLogAfter=").append(deleteLogAfter);
       ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
@@ -0,0 +1,232 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Thread-safe cache which holds the contents of recently transferred files in direct buffers.
+ * Concurrent requests for the same file share a single load, and the least recently used files are evicted once the total size exceeds the capacity.
+ * Entries are validated against the file's size and last modified time on every lookup, so stale content is never returned.
+ */
+public class ContentCache {
+  /** The maximum number of bytes to keep resident. */
+  private final long capacity;
+  /** Files larger than this are never cached. */
+  private final long maxFileSize;
+  /** Maps each file to its cached content in access order. Guarded by {@code this}. */
+  private final LinkedHashMap<Path,Entry> map = new LinkedHashMap<Path,Entry>(64, 0.75f, true);
+  /** Total size of all completely loaded entries. Guarded by {@code this}. */
+  private long resident = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  /**
+   * @param capacity is the maximum number of bytes to keep resident. Individual files larger than a quarter of the capacity are not cached.
+   */
+  public ContentCache(long capacity){
+    this.capacity = Math.max(capacity,0L);
+    maxFileSize = Math.min(this.capacity>>2, Integer.MAX_VALUE);
+  }
+  /**
+   * Retrieves the contents of a file, loading it if necessary.
+   * @param file is the file to retrieve.
+   * @return a future which completes with the file's contents, or {@code null} if the file cannot be cached. The future completes exceptionally if the file cannot be loaded.
+   */
+  public CompletableFuture<Content> get(final Path file){
+    if (capacity<=0){
+      return null;
+    }
+    final BasicFileAttributes attr;
+    try{
+      attr = Files.readAttributes(file, BasicFileAttributes.class);
+    }catch(Throwable t){
+      return null;
+    }
+    final long size = attr.size();
+    final long lastModified = attr.lastModifiedTime().toMillis();
+    if (!attr.isRegularFile() || size>maxFileSize){
+      return null;
+    }
+    final Entry e;
+    synchronized (this){
+      final Entry old = map.get(file);
+      if (old!=null && old.size==size && old.lastModified==lastModified){
+        hits.incrementAndGet();
+        return old.future;
+      }
+      if (old!=null){
+        remove(file, old);
+      }
+      e = new Entry(size, lastModified);
+      map.put(file, e);
+    }
+    misses.incrementAndGet();
+    final Runnable loader = new Runnable(){
+      public void run(){
+        load(file, e);
+      }
+    };
+    final ExecutorService exec = Database.exec;
+    try{
+      if (exec==null){
+        loader.run();
+      }else{
+        exec.execute(loader);
+      }
+    }catch(Throwable t){
+      fail(file, e, t);
+    }
+    return e.future;
+  }
+  private void load(Path file, Entry e){
+    try{
+      final ByteBuffer buf = ByteBuffer.allocateDirect((int)e.size);
+      try(
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+      ){
+        while (buf.hasRemaining()){
+          if (ch.read(buf)==-1){
+            break;
+          }
+        }
+      }
+      //Ensure the file was not modified while it was being read
+      if (buf.hasRemaining() || Files.size(file)!=e.size || Files.getLastModifiedTime(file).toMillis()!=e.lastModified){
+        throw new ConcurrentModificationException("File was modified while loading: "+file.toString());
+      }
+      buf.flip();
+      final Content c = new Content(buf.asReadOnlyBuffer(), e.lastModified);
+      synchronized (this){
+        if (map.get(file)==e){
+          e.loaded = true;
+          resident+=e.size;
+          evict();
+        }
+      }
+      e.future.complete(c);
+    }catch(Throwable t){
+      fail(file, e, t);
+    }
+  }
+  private void fail(Path file, Entry e, Throwable t){
+    synchronized (this){
+      if (map.get(file)==e){
+        remove(file, e);
+      }
+    }
+    e.future.completeExceptionally(t);
+  }
+  /**
+   * Must be invoked while holding the lock on {@code this}.
+   */
+  private void remove(Path file, Entry e){
+    map.remove(file);
+    if (e.loaded){
+      resident-=e.size;
+      e.loaded = false;
+    }
+  }
+  /**
+   * Evicts least recently used entries until the resident size is within capacity.
+   * Entries which are still loading are skipped.
+   * Must be invoked while holding the lock on {@code this}.
+   * Sessions which are still reading an evicted buffer retain their own reference, so the memory is reclaimed by the garbage collector afterwards.
+   */
+  private void evict(){
+    final Iterator<Map.Entry<Path,Entry>> iter = map.entrySet().iterator();
+    Entry e;
+    while (resident>capacity && iter.hasNext()){
+      e = iter.next().getValue();
+      if (e.loaded){
+        iter.remove();
+        resident-=e.size;
+        e.loaded = false;
+        evictions.incrementAndGet();
+      }
+    }
+  }
+  /**
+   * @return the maximum number of bytes to keep resident.
+   */
+  public long getCapacity(){
+    return capacity;
+  }
+  /**
+   * @return the number of lookups which were served by an existing or in-progress load.
+   */
+  public long getHits(){
+    return hits.get();
+  }
+  /**
+   * @return the number of lookups which required a new load.
+   */
+  public long getMisses(){
+    return misses.get();
+  }
+  /**
+   * @return the number of entries evicted to stay within capacity.
+   */
+  public long getEvictions(){
+    return evictions.get();
+  }
+  /**
+   * @return the total size of all completely loaded entries.
+   */
+  public synchronized long getResidentBytes(){
+    return resident;
+  }
+  /**
+   * @return the number of cached files, including those which are still loading.
+   */
+  public synchronized int getEntries(){
+    return map.size();
+  }
+  private static class Entry {
+    final long size;
+    final long lastModified;
+    final CompletableFuture<Content> future = new CompletableFuture<Content>();
+    /** Whether this entry is counted towards the resident size. Guarded by the enclosing {@code ContentCache}. */
+    boolean loaded = false;
+    Entry(long size, long lastModified){
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+  /**
+   * Immutable view of a file's contents.
+   */
+  public static class Content {
+    private final ByteBuffer data;
+    private final long lastModified;
+    private Content(ByteBuffer data, long lastModified){
+      this.data = data;
+      this.lastModified = lastModified;
+    }
+    /**
+     * @return a new read-only buffer positioned at the start of the content, which may be used independently of other readers.
+     */
+    public ByteBuffer getData(){
+      return data.duplicate();
+    }
+    /**
+     * @return the last modified time of the file when it was loaded.
+     */
+    public long getLastModified(){
+      return lastModified;
+    }
+    /**
+     * @return the size of the content in bytes.
+     */
+    public int size(){
+      return data.capacity();
+    }
+  }
+}
\ No newline at end of file
@@ -22,6 +22,8 @@ public class Database {
   private volatile static boolean server;
   /** Used for certain non-blocking IO operations. */
   public volatile static java.util.concurrent.ExecutorService exec = null;
+  /** Caches the content of files transferred by the server, or {@code null} on clients. */
+  public volatile static ContentCache cache = null;
   /**
    * Initializes all components of the database.
    * Invoked only once at the start of the application.
@@ -36,10 +38,15 @@ public class Database {
       saving = new AtomicBoolean();
       ret&=Keys.init(rootFolder.resolve("keys"));
       ret&=Config.init(rootFolder.resolve("config.txt"));
+      final ContentCache cache = new ContentCache(Config.contentCacheSize);
+      Database.cache = cache;
       SocketWrapper.config = new SocketWrapperConfig(){
         public long getTimeout(){
           return Config.timeout;
         }
+        @Override public java.util.concurrent.CompletableFuture<ContentCache.Content> getContent(Path file){
+          return cache.get(file);
+        }
       };
     }else{
       try{
@@ -51,6 +58,15 @@ public class Database {
     }
     return ret;
   }
+  /**
+   * Loads the key-pairs which authenticate this application to its own clients, and saves a newly generated key-pair if the file does not exist.
+   * The database loads its keys in {@link #init(Path,boolean)}, so this is only needed when an add-on relays the catalog to other add-ons.
+   * @return {@code true} on success; {@code false} if an error occurs.
+   */
+  public static boolean initKeys(Path keyFile){
+    final boolean exists = Files.exists(keyFile);
+    return Keys.init(keyFile) && (exists || Keys.save());
+  }
   /**
    * Saves all database components.
    * Optimized to return immediately if another invokation of this method is concurrently executing.
@@ -0,0 +1,198 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Single-threaded event loop which multiplexes non-blocking socket channels onto one {@code Selector}.
+ * Every channel registered with a loop is confined to the loop thread:
+ * all socket operations and all completion handlers of its {@link SelectorTransport} execute there.
+ * Other threads interact with the loop only through {@link #execute(Runnable)}.
+ */
+public class EventLoop {
+  /** Specifies how often (in milliseconds) pending operations are checked for timeouts. */
+  private final static long CHECK_INTERVAL = 500L;
+  /** Maximum number of tasks to run between consecutive selections, so that busy connections cannot starve the others. */
+  private final static int BATCH = 1024;
+  private final String name;
+  private final Selector selector;
+  private final Thread thread;
+  /** Tasks submitted to this loop. */
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  /** Becomes {@code true} when the loop thread may be blocked in {@code select} and must be woken to run new tasks. */
+  private final AtomicBoolean sleeping = new AtomicBoolean();
+  /** Number of channels registered with this loop. */
+  private final AtomicInteger channels = new AtomicInteger();
+  /** Number of selections performed since the last report. */
+  private final AtomicLong selects = new AtomicLong();
+  /** Number of tasks executed since the last report. */
+  private final AtomicLong tasksRun = new AtomicLong();
+  /** Becomes {@code false} when {@link #stop()} is invoked. */
+  private volatile boolean running = true;
+  /**
+   * Creates and starts a new event loop.
+   * @param name is the name given to the loop thread.
+   */
+  public EventLoop(String name) throws IOException {
+    this.name = name;
+    selector = Selector.open();
+    thread = new Thread(name){
+      public void run(){
+        loop();
+      }
+    };
+    thread.start();
+  }
+  /**
+   * @return whether or not the current thread is the loop thread.
+   */
+  public boolean inLoop(){
+    return Thread.currentThread()==thread;
+  }
+  /**
+   * Schedules a task to run on the loop thread.
+   */
+  public void execute(Runnable r){
+    tasks.offer(r);
+    if (sleeping.compareAndSet(true,false) && !inLoop()){
+      selector.wakeup();
+    }
+  }
+  /**
+   * Places the given channel into non-blocking mode and confines it to this loop.
+   * @return a transport which performs all operations on the loop thread.
+   */
+  public SelectorTransport register(final SocketChannel ch) throws IOException {
+    ch.configureBlocking(false);
+    final SelectorTransport t = new SelectorTransport(this, ch);
+    channels.incrementAndGet();
+    execute(new Runnable(){
+      public void run(){
+        try{
+          t.key = ch.register(selector, 0, t);
+        }catch(Throwable e){
+          t.closeNow();
+        }
+      }
+    });
+    return t;
+  }
+  /**
+   * Invoked once by each transport when it is closed.
+   */
+  void release(){
+    channels.decrementAndGet();
+  }
+  /**
+   * @return the number of channels registered with this loop.
+   */
+  public int getChannels(){
+    return channels.get();
+  }
+  /**
+   * @return whether the loop thread is running tasks or handling ready channels, rather than waiting in {@code select}. This is approximate, since the thread is only marked as waiting when it has no tasks.
+   */
+  public boolean isBusy(){
+    return !sleeping.get() && thread.isAlive();
+  }
+  /**
+   * @return the number of tasks waiting to run on the loop thread.
+   */
+  public int getQueued(){
+    return tasks.size();
+  }
+  /**
+   * Summarizes activity since the previous report, and then resets the interval statistics.
+   * @return a description of this loop's activity, or {@code null} if no tasks were executed.
+   */
+  public String report(){
+    final long t = tasksRun.getAndSet(0);
+    final long s = selects.getAndSet(0);
+    if (t==0){
+      return null;
+    }
+    return name+": "+channels.get()+" channels, "+s+" selections, "+t+" tasks.";
+  }
+  /**
+   * Stops the loop thread. Channels which are still registered are closed, and their pending operations fail.
+   */
+  public void stop(){
+    running = false;
+    selector.wakeup();
+  }
+  /**
+   * Blocks until the loop thread terminates or the timeout elapses.
+   * @return {@code true} if the loop has terminated.
+   */
+  public boolean awaitTermination(long timeout) throws InterruptedException {
+    thread.join(Math.max(timeout,1L));
+    return !thread.isAlive();
+  }
+  private void runTasks(){
+    Runnable r;
+    for (int i=0;i<BATCH && (r=tasks.poll())!=null;++i){
+      tasksRun.incrementAndGet();
+      try{
+        r.run();
+      }catch(Throwable e){
+        Logger.logAsync("Error occurred in EventLoop task.", e);
+      }
+    }
+  }
+  private void loop(){
+    long nextCheck = System.currentTimeMillis()+CHECK_INTERVAL;
+    long now, wait;
+    Iterator<SelectionKey> iter;
+    SelectionKey k;
+    while (running){
+      try{
+        runTasks();
+        wait = nextCheck-System.currentTimeMillis();
+        if (wait>0 && tasks.isEmpty()){
+          sleeping.set(true);
+          if (tasks.isEmpty()){
+            selector.select(wait);
+          }else{
+            selector.selectNow();
+          }
+          sleeping.set(false);
+        }else{
+          selector.selectNow();
+        }
+        selects.incrementAndGet();
+        iter = selector.selectedKeys().iterator();
+        while (iter.hasNext()){
+          k = iter.next();
+          iter.remove();
+          ((SelectorTransport)k.attachment()).ready(k);
+        }
+        now = System.currentTimeMillis();
+        if (now>=nextCheck){
+          for (SelectionKey key:selector.keys()){
+            ((SelectorTransport)key.attachment()).expire(now);
+          }
+          nextCheck = now+CHECK_INTERVAL;
+        }
+      }catch(ClosedSelectorException e){
+        break;
+      }catch(Throwable e){
+        Logger.logAsync("Error occurred in EventLoop.", e);
+      }
+    }
+    try{
+      for (SelectionKey key:selector.keys()){
+        ((SelectorTransport)key.attachment()).closeNow();
+      }
+      runTasks();
+      selector.close();
+    }catch(Throwable e){
+      Logger.logAsync("Error occurred while stopping EventLoop.", e);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+/**
+ * Immutable description of a file within a {@link Manifest}.
+ * The header sent over the socket is encoded once when the entry is created.
+ */
+public class FileEntry {
+  private final Path p;
+  private final long lastModified;
+  private final long size;
+  private final byte[] relPath;
+  private final byte[] header;
+  /**
+   * @param root is the folder which contains the file.
+   * @param sb is a reusable buffer for constructing the relative path.
+   * @param p is the path to the file.
+   * @param attr contains the file's attributes.
+   */
+  public FileEntry(Path root, StringBuilder sb, Path p, BasicFileAttributes attr){
+    this.p = p;
+    lastModified = attr.lastModifiedTime().toMillis();
+    size = attr.size();
+    for (Path x:root.relativize(p)){
+      sb.append(x.toString()).append('/');
+    }
+    relPath = sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    sb.setLength(0);
+    header = encodeHeader(lastModified, relPath);
+  }
+  /**
+   * Creates an entry whose content is stored somewhere other than its logical location (e.g, a content-addressed blob).
+   * @param p is the path from which the content should be read.
+   * @param relPath is the UTF-8 encoded relative path, where each component is followed by {@code '/'}.
+   * @param lastModified is the last modified time reported to the remote host.
+   * @param size is the size of the content in bytes.
+   */
+  public FileEntry(Path p, byte[] relPath, long lastModified, long size){
+    this.p = p;
+    this.lastModified = lastModified;
+    this.size = size;
+    this.relPath = relPath.clone();
+    header = encodeHeader(lastModified, relPath);
+  }
+  private static byte[] encodeHeader(long lastModified, byte[] relPath){
+    final SerializationStream s = new SerializationStream(relPath.length+12);
+    s.write(lastModified);
+    s.write(relPath);
+    return s.data;
+  }
+  /**
+   * @return the path to the file.
+   */
+  public Path getPath(){
+    return p;
+  }
+  /**
+   * @return the last modified time of the file when it was scanned.
+   */
+  public long getLastModified(){
+    return lastModified;
+  }
+  /**
+   * @return the size of the file in bytes when it was scanned.
+   */
+  public long getSize(){
+    return size;
+  }
+  /**
+   * @return the relative path, where each component is followed by {@code '/'}.
+   */
+  public String getRelativePathString(){
+    return new String(relPath, java.nio.charset.StandardCharsets.UTF_8);
+  }
+  /**
+   * @return the UTF-8 encoded relative path, where each component is followed by {@code '/'}.
+   */
+  public byte[] getRelativePath(){
+    return relPath.clone();
+  }
+  /**
+   * Socket writes encrypt data in place, so a fresh copy is returned every time.
+   * @return the serialized last modified time and relative path.
+   */
+  public byte[] getHeader(){
+    return header.clone();
+  }
+  /**
+   * Feeds the identifying attributes of this entry to the given digest.
+   */
+  void digest(java.security.MessageDigest md){
+    md.update(relPath);
+    for (int i=56;i>=0;i-=8){
+      md.update((byte)(size>>>i));
+    }
+    for (int i=56;i>=0;i-=8){
+      md.update((byte)(lastModified>>>i));
+    }
+  }
+}
\ No newline at end of file
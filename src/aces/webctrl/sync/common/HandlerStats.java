@@ -0,0 +1,131 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Records how long completion handlers run on the threads of a fixed-size {@code AsynchronousChannelGroup}.
+ * <p>
+ * The threads of such a group each run the group's event loop and invoke handlers directly, so there is no task queue to instrument.
+ * Instead, {@link AsyncTransport} wraps each handler with {@link #wrap(CompletionHandler)}, which counts the operations in flight and the handlers running.
+ * Interval statistics are reset each time {@link #report()} is invoked.
+ */
+public class HandlerStats {
+  private final String name;
+  private final int threads;
+  /** Operations which have been submitted, but whose handlers have not started. */
+  private final AtomicInteger pending = new AtomicInteger();
+  /** Handlers currently running. */
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong handlers = new AtomicLong();
+  private final AtomicLong runNanos = new AtomicLong();
+  private final AtomicLong maxRunNanos = new AtomicLong();
+  /**
+   * @param name is used to name threads and label reports.
+   * @param threads is the number of threads in the group.
+   */
+  public HandlerStats(String name, int threads){
+    this.name = name;
+    this.threads = threads;
+  }
+  /**
+   * @return a factory which names threads after this pool, for use with {@link AsynchronousChannelGroup#withFixedThreadPool(int,ThreadFactory)}.
+   */
+  public ThreadFactory getThreadFactory(){
+    return new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        return new Thread(r, name+'-'+count.incrementAndGet());
+      }
+    };
+  }
+  /**
+   * Records that an operation has been submitted.
+   * If the operation cannot be submitted, {@link #abandon()} must be invoked.
+   * @return a handler which records when the given handler runs, and for how long.
+   */
+  public <V,A> CompletionHandler<V,A> wrap(final CompletionHandler<V,? super A> handler){
+    pending.incrementAndGet();
+    return new CompletionHandler<V,A>(){
+      public void completed(V v, A a){
+        final long start = begin();
+        try{
+          handler.completed(v,a);
+        }finally{
+          end(start);
+        }
+      }
+      public void failed(Throwable e, A a){
+        final long start = begin();
+        try{
+          handler.failed(e,a);
+        }finally{
+          end(start);
+        }
+      }
+    };
+  }
+  /**
+   * Invoked when the channel throws instead of accepting an operation wrapped by {@link #wrap(CompletionHandler)}, since its handler will never run.
+   */
+  public void abandon(){
+    pending.decrementAndGet();
+  }
+  private long begin(){
+    pending.decrementAndGet();
+    active.incrementAndGet();
+    return System.nanoTime();
+  }
+  private void end(long start){
+    final long run = System.nanoTime()-start;
+    active.decrementAndGet();
+    runNanos.addAndGet(run);
+    handlers.incrementAndGet();
+    long max;
+    while (run>(max=maxRunNanos.get()) && !maxRunNanos.compareAndSet(max, run)){}
+  }
+  /**
+   * @return the name of this pool.
+   */
+  public String getName(){
+    return name;
+  }
+  /**
+   * @return the number of threads in the group.
+   */
+  public int getThreads(){
+    return threads;
+  }
+  /**
+   * @return the number of handlers currently running.
+   */
+  public int getActive(){
+    return active.get();
+  }
+  /**
+   * @return the number of socket operations which have been submitted, but whose handlers have not started.
+   */
+  public int getPending(){
+    return pending.get();
+  }
+  /**
+   * Summarizes activity since the previous invocation, and then resets the interval statistics.
+   * @return a summary, or {@code null} if no handlers have completed since the previous invocation.
+   */
+  public String report(){
+    final long n = handlers.getAndSet(0);
+    final long run = runNanos.getAndSet(0);
+    final long maxRun = maxRunNanos.getAndSet(0);
+    if (n==0){
+      return null;
+    }
+    return name+" pool: "+threads+" threads, "+getActive()+" active, "+getPending()+" pending operations, "+n+" handlers, mean run "+format(run/n)+", max run "+format(maxRun)+'.';
+  }
+  private static String format(long nanos){
+    return nanos<1000000L?(nanos/1000L)+"us":(nanos/1000000L)+"ms";
+  }
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Fixed-size thread pool which records how long tasks wait in the queue and how long they take to run.
+ * Interval statistics are reset each time {@link #report()} is invoked.
+ */
+public class InstrumentedExecutor extends ThreadPoolExecutor {
+  private final String name;
+  private final AtomicLong tasks = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final AtomicLong runNanos = new AtomicLong();
+  private final AtomicInteger maxQueue = new AtomicInteger();
+  /** Records when the task executing on each thread started. */
+  private final ThreadLocal<long[]> start = new ThreadLocal<long[]>(){
+    @Override protected long[] initialValue(){
+      return new long[1];
+    }
+  };
+  /**
+   * @param name is used to name threads and label reports.
+   * @param threads is the number of threads in the pool.
+   */
+  public InstrumentedExecutor(final String name, int threads){
+    super(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r){
+        final Thread t = new Thread(r, name+'-'+count.incrementAndGet());
+        return t;
+      }
+    });
+    this.name = name;
+  }
+  @Override public void execute(Runnable r){
+    super.execute(new Task(r));
+    final int depth = getQueue().size();
+    int max;
+    while (depth>(max=maxQueue.get()) && !maxQueue.compareAndSet(max, depth)){}
+  }
+  @Override protected void beforeExecute(Thread t, Runnable r){
+    final long now = System.nanoTime();
+    if (r instanceof Task){
+      final long wait = now-((Task)r).submitted;
+      waitNanos.addAndGet(wait);
+      long max;
+      while (wait>(max=maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)){}
+    }
+    start.get()[0] = now;
+  }
+  @Override protected void afterExecute(Runnable r, Throwable t){
+    runNanos.addAndGet(System.nanoTime()-start.get()[0]);
+    tasks.incrementAndGet();
+  }
+  /**
+   * @return the name of this pool.
+   */
+  public String getName(){
+    return name;
+  }
+  /**
+   * @return the number of tasks waiting in the queue.
+   */
+  public int getQueueDepth(){
+    return getQueue().size();
+  }
+  /**
+   * Summarizes activity since the previous invocation, and then resets the interval statistics.
+   * @return a summary, or {@code null} if no tasks have completed since the previous invocation.
+   */
+  public String report(){
+    final long n = tasks.getAndSet(0);
+    final long wait = waitNanos.getAndSet(0);
+    final long maxWait = maxWaitNanos.getAndSet(0);
+    final long run = runNanos.getAndSet(0);
+    final int peak = maxQueue.getAndSet(0);
+    if (n==0){
+      return null;
+    }
+    return name+" pool: "+getMaximumPoolSize()+" threads, "+getActiveCount()+" active, "+getQueueDepth()+" queued (peak "+peak+"), "+n+" tasks, mean wait "+format(wait/n)+", max wait "+format(maxWait)+", mean run "+format(run/n)+'.';
+  }
+  private static String format(long nanos){
+    return nanos<1000000L?(nanos/1000L)+"us":(nanos/1000000L)+"ms";
+  }
+  /**
+   * Records when a task was submitted.
+   */
+  private static class Task implements Runnable {
+    final Runnable r;
+    final long submitted = System.nanoTime();
+    Task(Runnable r){
+      this.r = r;
+    }
+    public void run(){
+      r.run();
+    }
+  }
+}
\ No newline at end of file
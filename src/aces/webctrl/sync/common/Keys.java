@@ -19,6 +19,8 @@ public class Keys {
   public static volatile KeyFactory keyFactory;
   /** Global instance of {@code KeyPairGenerator}. I am unsure if this object is thread-safe, so all access is synchronized (see {@code Key}'s constructor). */
   public static volatile KeyPairGenerator keyPairGen;
+  /** Generates the temporary key-pairs sent by clients during the handshake, which must be small enough for a database's key to encrypt. All access is synchronized. */
+  public static volatile KeyPairGenerator tempKeyPairGen;
   /** Where to store key data. */
   protected static volatile Path keyFile;
   /** The ID of the most recently generated key. */
@@ -103,6 +105,8 @@ public class Keys {
     keyFactory = KeyFactory.getInstance("RSA");
     keyPairGen = KeyPairGenerator.getInstance("RSA");
     keyPairGen.initialize(keySize, Database.entropy);
+    tempKeyPairGen = KeyPairGenerator.getInstance("RSA");
+    tempKeyPairGen.initialize(2048, Database.entropy);
   }
   /**
    * Loads all key data from the filesystem.
@@ -0,0 +1,322 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+/**
+ * Namespace which maintains and searches the sparse time index stored beside each log segment.
+ * <p>
+ * The index of {@code yyyy-MM-dd.txt} is {@code yyyy-MM-dd.idx}, which holds pairs of longs: the epoch millisecond of an entry, and the byte offset at which it begins.
+ * {@link Logger} appends a pair for the first entry of each segment, and then every {@link #ENTRIES} entries or {@link #INTERVAL} milliseconds, whichever comes first.
+ * Consecutive pairs divide a segment into blocks, so a query only reads the blocks which overlap its time range.
+ */
+public class LogIndex {
+  /** The maximum number of entries between index points. */
+  final static int ENTRIES = 256;
+  /** The maximum number of milliseconds between index points. */
+  final static long INTERVAL = 60000L;
+  /** The length of the timestamp and separator which begin each entry. */
+  private final static int STAMP = 22;
+  /**
+   * @return the index file of the given segment.
+   */
+  static Path indexOf(Path segment){
+    final String name = segment.getFileName().toString();
+    return segment.resolveSibling(name.substring(0,name.length()-4)+".idx");
+  }
+  /**
+   * Parses the timestamp which begins a line.
+   * @return the epoch millisecond of the timestamp, or {@code -1} if the line does not begin with a timestamp.
+   */
+  static long parseStamp(byte[] b, int off, int len){
+    if (len<STAMP || b[off+2]!='/' || b[off+5]!='/' || b[off+10]!=' ' || b[off+13]!=':' || b[off+16]!=':' || b[off+19]!=' ' || b[off+20]!='-' || b[off+21]!=' '){
+      return -1;
+    }
+    final int month = digits(b,off,2);
+    final int day = digits(b,off+3,2);
+    final int year = digits(b,off+6,4);
+    final int hour = digits(b,off+11,2);
+    final int minute = digits(b,off+14,2);
+    final int second = digits(b,off+17,2);
+    if ((month|day|year|hour|minute|second)<0){
+      return -1;
+    }
+    try{
+      return LocalDateTime.of(year, month, day, hour, minute, second).atZone(Logger.format.getZone()).toInstant().toEpochMilli();
+    }catch(DateTimeException e){
+      return -1;
+    }
+  }
+  /**
+   * @return the decimal value of the given digits, or {@code -1} if any character is not a digit.
+   */
+  private static int digits(byte[] b, int off, int len){
+    int x = 0;
+    int d;
+    for (int i=0;i<len;++i){
+      d = b[off+i]-'0';
+      if (d<0 || d>9){
+        return -1;
+      }
+      x = x*10+d;
+    }
+    return x;
+  }
+  /**
+   * Rebuilds the index of a segment by scanning it once, e.g. when a segment was written by a previous version.
+   */
+  static void build(Path segment) throws IOException {
+    final byte[] line = new byte[STAMP];
+    try(
+      InputStream in = new BufferedInputStream(Files.newInputStream(segment), 65536);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexOf(segment)), 8192));
+    ){
+      long pos = 0;
+      long start = 0;
+      int len = 0;
+      int count = ENTRIES;
+      long pointTime = Long.MIN_VALUE;
+      long t;
+      int c;
+      while ((c=in.read())!=-1){
+        if (len<STAMP){
+          line[len++] = (byte)c;
+          if (len==STAMP && (t=parseStamp(line,0,STAMP))!=-1 && (++count>ENTRIES || t>=pointTime+INTERVAL)){
+            out.writeLong(t);
+            out.writeLong(start);
+            count = 1;
+            pointTime = t;
+          }
+        }
+        ++pos;
+        if (c=='\n'){
+          start = pos;
+          len = 0;
+        }
+      }
+    }
+  }
+  /**
+   * @return the index points of a segment as alternating times and offsets, omitting offsets at or beyond {@code end}.
+   */
+  private static long[] readIndex(Path segment, long end){
+    final Path p = indexOf(segment);
+    final byte[] b;
+    try{
+      b = Files.readAllBytes(p);
+    }catch(IOException e){
+      return new long[0];
+    }
+    final LongBuffer buf = ByteBuffer.wrap(b, 0, b.length&~15).asLongBuffer();
+    final long[] points = new long[buf.remaining()];
+    int n = 0;
+    long t, off;
+    while (buf.remaining()>=2){
+      t = buf.get();
+      off = buf.get();
+      if (off>=0 && off<end && (n==0 || off>points[n-1])){
+        points[n++] = t;
+        points[n++] = off;
+      }
+    }
+    return n==points.length?points:Arrays.copyOf(points,n);
+  }
+  /**
+   * Searches the given segments from newest to oldest.
+   * @param keys are the start times of the segments in descending order.
+   * @param paths are the segments corresponding to {@code keys}.
+   * @param current is the segment being written, which is only read up to {@code size}.
+   * @param from is the inclusive lower bound of the time range.
+   * @param to is the exclusive upper bound of the time range.
+   * @param filter must be contained in each returned entry (ignoring case), or {@code null} to return every entry.
+   * @param before is the position at which the search starts, or {@code null} to start at the newest entry.
+   * @param limit is the maximum number of entries to return.
+   */
+  static Page search(long[] keys, Path[] paths, Path current, long size, long from, long to, String filter, String before, int limit) throws IOException {
+    long beforeKey = Long.MAX_VALUE;
+    long beforeOffset = Long.MAX_VALUE;
+    if (before!=null){
+      final int i = before.indexOf(':');
+      if (i==-1){
+        throw new IllegalArgumentException("Invalid position: "+before);
+      }
+      beforeKey = Long.parseLong(before.substring(0,i));
+      beforeOffset = Long.parseLong(before.substring(i+1));
+    }
+    if (filter!=null){
+      filter = filter.toLowerCase();
+      if (filter.isEmpty()){
+        filter = null;
+      }
+    }
+    final ArrayList<Record> list = new ArrayList<Record>(Math.min(limit+1,1024));
+    final ArrayList<Record> block = new ArrayList<Record>();
+    long next = Long.MAX_VALUE;
+    long key, end, s, e, t, nt;
+    long[] points;
+    search:
+    for (int i=0;i<keys.length;++i){
+      key = keys[i];
+      nt = next;
+      next = key;
+      if (key>beforeKey || key>=to){
+        continue;
+      }
+      if (nt<=from){
+        break;
+      }
+      try(
+        FileChannel ch = FileChannel.open(paths[i], StandardOpenOption.READ);
+      ){
+        end = paths[i].equals(current)?Math.min(size,ch.size()):ch.size();
+        if (key==beforeKey){
+          end = Math.min(end, beforeOffset);
+        }
+        points = readIndex(paths[i], end);
+        if (points.length==0 || points[1]>0){
+          final long[] arr = new long[points.length+2];
+          arr[0] = key;
+          arr[1] = 0;
+          System.arraycopy(points, 0, arr, 2, points.length);
+          points = arr;
+        }
+        for (int j=points.length-2;j>=0;j-=2){
+          t = points[j];
+          s = points[j+1];
+          e = j+2<points.length?points[j+3]:end;
+          if (j+2<points.length){
+            nt = points[j+2];
+          }
+          if (Math.floorDiv(t,1000L)*1000L>=to || s>=e){
+            continue;
+          }
+          if (nt<=from){
+            break search;
+          }
+          read(ch, key, s, e, from, to, filter, block);
+          for (int k=block.size()-1;k>=0;--k){
+            list.add(block.get(k));
+          }
+          block.clear();
+          if (list.size()>limit){
+            break search;
+          }
+        }
+      }catch(NoSuchFileException ex){}
+    }
+    if (list.size()>limit){
+      final List<Record> page = list.subList(0,limit);
+      final Record last = page.get(limit-1);
+      return new Page(new ArrayList<Record>(page), String.valueOf(last.key)+':'+last.offset);
+    }
+    return new Page(list, null);
+  }
+  /**
+   * Reads the entries of one block in chronological order, keeping those which match the query.
+   */
+  private static void read(FileChannel ch, long key, long start, long end, long from, long to, String filter, ArrayList<Record> block) throws IOException {
+    final int len = (int)Math.min(end-start, Integer.MAX_VALUE-8);
+    final ByteBuffer buf = ByteBuffer.allocate(len);
+    while (buf.hasRemaining()){
+      if (ch.read(buf, start+buf.position())<=0){
+        break;
+      }
+    }
+    final byte[] b = buf.array();
+    final int n = buf.position();
+    int entry = -1;
+    long time = -1;
+    long t;
+    int i = 0;
+    int j;
+    while (i<n){
+      j = i;
+      while (j<n && b[j]!='\n'){
+        ++j;
+      }
+      if ((t=parseStamp(b,i,j-i))!=-1){
+        if (entry!=-1){
+          match(b, entry, i, key, start, time, from, to, filter, block);
+        }
+        entry = i;
+        time = t;
+      }
+      i = j+1;
+    }
+    if (entry!=-1){
+      match(b, entry, n, key, start, time, from, to, filter, block);
+    }
+  }
+  private static void match(byte[] b, int off, int end, long key, long start, long time, long from, long to, String filter, ArrayList<Record> block){
+    if (time<from || time>=to){
+      return;
+    }
+    while (end>off && (b[end-1]=='\n' || b[end-1]=='\r')){
+      --end;
+    }
+    final String text = new String(b, off, end-off, StandardCharsets.UTF_8);
+    if (filter==null || text.toLowerCase().contains(filter)){
+      block.add(new Record(time, text, key, start+off));
+    }
+  }
+  /**
+   * A page of log entries returned by {@link Logger#query(long,long,String,String,int)}.
+   */
+  public static class Page {
+    private final List<Record> records;
+    private final String next;
+    Page(List<Record> records, String next){
+      this.records = records;
+      this.next = next;
+    }
+    /**
+     * @return the matching entries, newest first.
+     */
+    public List<Record> getRecords(){
+      return records;
+    }
+    /**
+     * @return the position at which the next page of older entries starts, or {@code null} if there are no more matching entries.
+     */
+    public String getNext(){
+      return next;
+    }
+  }
+  /**
+   * A log entry, including any stack trace which follows it.
+   */
+  public static class Record {
+    private final long time;
+    private final String text;
+    /** The start time of the segment which contains this entry. */
+    private final long key;
+    /** The byte offset of this entry within its segment. */
+    private final long offset;
+    Record(long time, String text, long key, long offset){
+      this.time = time;
+      this.text = text;
+      this.key = key;
+      this.offset = offset;
+    }
+    /**
+     * @return the epoch millisecond of the entry's timestamp, which has a resolution of one second.
+     */
+    public long getTime(){
+      return time;
+    }
+    /**
+     * @return the entry as written to the log.
+     */
+    public String getText(){
+      return text;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.nio.channels.*;
+/**
+ * The log as it was when {@link Logger#snapshot()} was invoked, which is the concatenation of every segment, oldest first.
+ * <p>
+ * Each segment is opened when the snapshot is captured, and the current segment is truncated to the entries flushed at that moment,
+ * so the content is stable while entries continue to be written, and no lock is held while it is read.
+ * Segments deleted by {@link Logger#trim(long)} remain readable until the snapshot is closed, where the platform allows.
+ */
+public class LogSnapshot implements Closeable {
+  private final FileChannel[] channels;
+  private final long[] lengths;
+  private final long length;
+  private final String tag;
+  LogSnapshot(FileChannel[] channels, long[] lengths, long oldest){
+    this.channels = channels;
+    this.lengths = lengths;
+    long len = 0;
+    for (int i=0;i<lengths.length;++i){
+      len+=lengths[i];
+    }
+    length = len;
+    tag = "log-"+oldest;
+  }
+  /**
+   * @return the number of bytes in the snapshot.
+   */
+  public long length(){
+    return length;
+  }
+  /**
+   * The log only grows at its end until its oldest segment is deleted, so every byte range of an earlier snapshot with the same tag is unchanged.
+   * @return a string which identifies the oldest segment, suitable for use as an entity tag when resuming a download.
+   */
+  public String getTag(){
+    return tag;
+  }
+  /**
+   * Writes the bytes of the given range to a channel, using {@link FileChannel#transferTo(long,long,WritableByteChannel)}.
+   * @param start is the inclusive start of the range.
+   * @param end is the exclusive end of the range.
+   */
+  public void transferTo(long start, long end, WritableByteChannel out) throws IOException {
+    long base = 0;
+    long len, s, e, n;
+    for (int i=0;i<channels.length && base<end;++i){
+      len = lengths[i];
+      if (start<base+len){
+        s = Math.max(start-base, 0);
+        e = Math.min(end-base, len);
+        while (s<e){
+          n = channels[i].transferTo(s, e-s, out);
+          if (n<=0){
+            throw new EOFException("Log segment ended unexpectedly.");
+          }
+          s+=n;
+        }
+      }
+      base+=len;
+    }
+  }
+  /**
+   * Closes every segment.
+   */
+  @Override public void close(){
+    for (int i=0;i<channels.length;++i){
+      try{
+        channels[i].close();
+      }catch(Throwable t){}
+    }
+  }
+}
\ No newline at end of file
@@ -7,54 +7,292 @@ package aces.webctrl.sync.common;
 import java.time.format.*;
 import java.time.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.function.*;
-//TODO (Performance Improvement) - Use java.nio.channels.FileChannel.transferTo() for the part of Logger.delete() which copies the remaining valid log entries to a temporary file
 /**
  * Thread-safe namespace which controls logging operations.
  * <p>Appends a timestamp to most log entries.
+ * <p>
+ * Entries are appended to a lock-free {@link RingBuffer} and written by a dedicated thread,
+ * which drains every pending entry, writes them through one buffered stream, and flushes once per batch.
+ * Synchronous methods wait until the batch containing their entry has been flushed, so they still return after the entry reaches the file.
+ * Asynchronous methods return immediately, and when the buffer is full, {@link #overflow} decides whether they wait or discard the entry.
+ * <p>
+ * Entries are stored in daily segments named {@code yyyy-MM-dd.txt}, in a {@code logs} folder beside the path given to {@link #init(Path)}.
+ * The writer opens a new segment when the first entry of each day arrives.
+ * Segments are indexed by the start of their day, so {@link #trim(long)} only deletes whole segments whose successor began before the cutoff, and never rewrites data.
+ * Each segment also has a sparse time index (see {@link LogIndex}), so {@link #query(long,long,String,String,int)} seeks to the requested time range instead of scanning.
+ * Segments are encoded with UTF-8.
  */
 public class Logger {
   public final static DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
   public final static String separator = " - ";
+  /**
+   * No longer used. Asynchronous entries are written by the logger's own thread.
+   */
+  @Deprecated
   public volatile static Consumer<DelayedRunnable> asyncLogConsumer = null;
-  private volatile static PrintWriter out = null;
+  /**
+   * Specifies what asynchronous methods do when the ring buffer is full.
+   */
+  public static enum Overflow {
+    /** Wait for the writer thread to make room. */
+    BLOCK,
+    /** Discard the entry, and later log how many entries were discarded. */
+    DROP
+  }
+  /**
+   * Specifies what asynchronous methods do when the ring buffer is full.
+   * The default value is {@link Overflow#BLOCK}.
+   */
+  public volatile static Overflow overflow = Overflow.BLOCK;
+  /** The number of entries the ring buffer can hold. */
+  private final static int CAPACITY = 8192;
+  /** The maximum number of entries written before each flush. */
+  private final static int BATCH = 1024;
+  /** How long the writer thread parks when there is nothing to write, as a safeguard against missed wakeups. */
+  private final static long IDLE_NANOS = 1000000000L;
+  private final static RingBuffer<Entry> ring = new RingBuffer<Entry>(CAPACITY);
+  /** The number of entries discarded since the writer last reported them. */
+  private final static AtomicLong dropped = new AtomicLong();
+  private volatile static OutputStream out = null;
+  /** The index of the current segment. Guarded by the class monitor. */
+  private static DataOutputStream index = null;
+  /** The length of the current segment, including buffered bytes. Guarded by the class monitor. */
+  private static long position = 0;
+  /** The time of the most recent index point. Guarded by the class monitor. */
+  private static long pointTime = Long.MIN_VALUE;
+  /** The number of entries written since the most recent index point. Guarded by the class monitor. */
+  private static int pointCount = 0;
+  /** Used to assemble each entry. Guarded by the class monitor. */
+  private final static StringBuilder line = new StringBuilder(256);
+  private final static String NEWLINE = System.lineSeparator();
+  /** The segment which is currently being written. */
   private volatile static File f = null;
-  private volatile static File tmp = null;
+  /** The folder which contains every segment. */
+  private volatile static Path folder = null;
+  /** Maps the epoch millisecond at which each segment's day begins to the segment. Guarded by itself. */
+  private final static TreeMap<Long,Path> segments = new TreeMap<Long,Path>();
+  /** The epoch millisecond at which the current segment's day ends. Guarded by the class monitor. */
+  private static long rollover = Long.MIN_VALUE;
+  /** Used to name segments. */
+  private final static DateTimeFormatter segmentFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+  /** The thread which drains the ring buffer, or {@code null} if entries are written directly. */
+  private volatile static Thread writer = null;
+  /** Whether the writer thread should continue waiting for entries. */
+  private volatile static boolean running = false;
+  /** Whether the writer thread is parked, so producers know to wake it. */
+  private volatile static boolean idle = false;
+  /** The epoch second of {@link #prefix}. Guarded by the class monitor. */
+  private static long second = Long.MIN_VALUE;
+  /** The formatted timestamp and separator for {@link #second}. Guarded by the class monitor. */
+  private static String prefix = null;
   /**
    * Initialization method.
    * @param file is the log file to write to.
-   * @param asyncLogConsumer is used for asynchronous logging of messages (can be {@code null} if all logs should be synchronous).
+   * @param asyncLogConsumer is ignored.
+   * @deprecated Use {@link #init(Path)} instead.
+   */
+  @Deprecated
+  public static void init(Path logFile, Consumer<DelayedRunnable> asyncLogConsumer) throws IOException {
+    init(logFile);
+  }
+  /**
+   * Initialization method, which indexes existing segments, opens the segment for today, and starts the writer thread.
+   * A log file left by a previous version is moved into the folder as the segment for the day of its first entry.
+   * @param file is the log file of previous versions, whose sibling {@code logs} folder stores the segments.
+   */
+  public static void init(Path logFile) throws IOException {
+    synchronized (Logger.class){
+      folder = logFile.resolveSibling("logs");
+      if (!Files.isDirectory(folder)){
+        Files.createDirectories(folder);
+      }
+      final ZoneId zone = format.getZone();
+      synchronized (segments){
+        segments.clear();
+        try(
+          DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.txt");
+        ){
+          String name;
+          for (Path p:stream){
+            name = p.getFileName().toString();
+            try{
+              segments.put(LocalDate.parse(name.substring(0,name.length()-4), segmentFormat).atStartOfDay(zone).toInstant().toEpochMilli(), p);
+            }catch(DateTimeException e){}
+          }
+        }
+        for (Path p:segments.values()){
+          if (!Files.exists(LogIndex.indexOf(p))){
+            LogIndex.build(p);
+          }
+        }
+      }
+      Files.deleteIfExists(logFile.resolveSibling("tmp_"+logFile.getFileName()));
+      if (Files.exists(logFile)){
+        migrate(logFile);
+      }
+      roll(System.currentTimeMillis());
+      if (writer!=null){
+        return;
+      }
+      running = true;
+      final Thread t = new Thread("Log Writer"){
+        public void run(){
+          drain();
+        }
+      };
+      t.setDaemon(true);
+      writer = t;
+      t.start();
+    }
+  }
+  /**
+   * Moves a log file written by a previous version into the segment folder.
+   * The file is left alone if it cannot be dated, or if a segment for its first day already exists.
    */
-  public synchronized static void init(Path logFile, Consumer<DelayedRunnable> asyncLogConsumer) throws IOException {
-    Logger.asyncLogConsumer = asyncLogConsumer;
-    if (!Files.exists(logFile)){
-      logFile = Files.createFile(logFile);
+  private static void migrate(Path logFile) throws IOException {
+    if (Files.size(logFile)==0){
+      Files.delete(logFile);
+      return;
+    }
+    long time;
+    try(
+      BufferedReader r = new BufferedReader(new FileReader(logFile.toFile()));
+    ){
+      final String line = r.readLine();
+      final int i = line==null?-1:line.indexOf(separator);
+      time = i==-1?-1:Instant.from(format.parse(line.substring(0,i).trim())).toEpochMilli();
+    }catch(DateTimeException e){
+      time = -1;
+    }
+    if (time==-1){
+      time = Files.getLastModifiedTime(logFile).toMillis();
+    }
+    final LocalDate day = Instant.ofEpochMilli(time).atZone(format.getZone()).toLocalDate();
+    final Path p = folder.resolve(segmentFormat.format(day)+".txt");
+    if (!Files.exists(p)){
+      Files.move(logFile, p);
+      LogIndex.build(p);
+      synchronized (segments){
+        segments.put(day.atStartOfDay(format.getZone()).toInstant().toEpochMilli(), p);
+      }
     }
-    f = logFile.toFile();
-    tmp = logFile.resolveSibling("tmp_"+f.getName()).toFile();
-    out = new PrintWriter(new FileWriter(f,true));
   }
-  public synchronized static void transferTo(PrintWriter o){
+  /**
+   * Switches to the segment for the day containing the given time. The caller must hold the class monitor.
+   */
+  private static void roll(long time) throws IOException {
+    final ZoneId zone = format.getZone();
+    final LocalDate day = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+    final Path p = folder.resolve(segmentFormat.format(day)+".txt");
+    final File file = p.toFile();
+    final OutputStream w = new BufferedOutputStream(new FileOutputStream(file,true), 65536);
+    final DataOutputStream idx;
     try{
-      try{
-        out.close();
+      idx = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(LogIndex.indexOf(p).toFile(),true), 8192));
+    }catch(IOException e){
+      w.close();
+      throw e;
+    }
+    if (out!=null){
+      out.close();
+      index.close();
+    }
+    out = w;
+    index = idx;
+    f = file;
+    position = file.length();
+    pointTime = Long.MIN_VALUE;
+    pointCount = LogIndex.ENTRIES;
+    rollover = day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    synchronized (segments){
+      segments.put(day.atStartOfDay(zone).toInstant().toEpochMilli(), p);
+    }
+  }
+  /**
+   * Copies every segment, oldest first, to the given writer.
+   * Pending entries are flushed first, but logging continues during the copy.
+   */
+  public static void transferTo(PrintWriter o){
+    final ArrayList<Path> list;
+    synchronized (segments){
+      list = new ArrayList<Path>(segments.values());
+    }
+    try{
+      synchronized (Logger.class){
+        flush();
+      }
+      final char[] buffer = new char[8192];
+      int nRead;
+      for (Path p:list){
         try(
-          FileReader r = new FileReader(f);
+          Reader r = new InputStreamReader(Files.newInputStream(p), java.nio.charset.StandardCharsets.UTF_8);
         ){
-          char[] buffer = new char[8192];
-          int nRead;
           while ((nRead = r.read(buffer, 0, 8192)) >= 0) {
               o.write(buffer, 0, nRead);
           }
-        }
-      }finally{
-        out = new PrintWriter(new FileWriter(f,true));
+        }catch(NoSuchFileException e){}
       }
     }catch(Throwable e){
       log("Failed to transfer data in log file.", e);
     }
   }
+  /**
+   * Captures the log as it is now, so it can be read without holding any lock while entries continue to be written.
+   * Pending entries are flushed first. The caller must close the snapshot.
+   */
+  public static LogSnapshot snapshot() throws IOException {
+    final long[] keys;
+    final Path[] paths;
+    final Path current;
+    final long size;
+    synchronized (Logger.class){
+      flush();
+      current = f==null?null:f.toPath();
+      size = position;
+      synchronized (segments){
+        keys = new long[segments.size()];
+        paths = new Path[keys.length];
+        int i = 0;
+        for (Map.Entry<Long,Path> e:segments.entrySet()){
+          keys[i] = e.getKey();
+          paths[i] = e.getValue();
+          ++i;
+        }
+      }
+    }
+    final ArrayList<FileChannel> channels = new ArrayList<FileChannel>(paths.length);
+    final long[] lengths = new long[paths.length];
+    long oldest = 0;
+    try{
+      FileChannel ch;
+      for (int i=0;i<paths.length;++i){
+        try{
+          ch = FileChannel.open(paths[i], StandardOpenOption.READ);
+        }catch(NoSuchFileException e){
+          continue;
+        }
+        if (channels.isEmpty()){
+          oldest = keys[i];
+        }
+        lengths[channels.size()] = paths[i].equals(current)?Math.min(size,ch.size()):ch.size();
+        channels.add(ch);
+      }
+    }catch(Throwable t){
+      for (FileChannel ch:channels){
+        try{
+          ch.close();
+        }catch(Throwable err){}
+      }
+      throw t;
+    }
+    return new LogSnapshot(channels.toArray(new FileChannel[channels.size()]), Arrays.copyOf(lengths, channels.size()), oldest);
+  }
   /**
    * Logs and timestamps a message.
    * @param str is the message to log
@@ -63,32 +301,19 @@ public class Logger {
     log(str, Instant.now());
   }
   /**
-   * Logs and timestamps a message asynchronously (if supported).
+   * Logs and timestamps a message asynchronously.
    * @param str is the message to log
    */
   public static void logAsync(final String str){
-    if (asyncLogConsumer==null){
-      log(str);
-    }else{
-      final Instant d = Instant.now();
-      asyncLogConsumer.accept(new DelayedRunnable(d.toEpochMilli()){
-        public void run(){
-          log(str, d);
-        }
-      });
-    }
+    submit(new Entry(System.currentTimeMillis(), str, null, true), false);
   }
   /**
    * Logs and timestamps a message.
    * @param str is the message to log
    * @param d is the timestamp for the message
    */
-  public synchronized static void log(String str, Instant d){
-    format.formatTo(d,out);
-    out.print(separator);
-    out.print(str);
-    out.println();
-    out.flush();
+  public static void log(String str, Instant d){
+    submit(new Entry(d.toEpochMilli(), str, null, true), true);
   }
   /**
    * Logs and timestamps an error with the given description.
@@ -99,21 +324,12 @@ public class Logger {
     log(desc,e,Instant.now());
   }
   /**
-   * Logs and timestamps an error with the given description asynchronously (if supported).
+   * Logs and timestamps an error with the given description asynchronously.
    * @param desc is the description of the error to log.
    * @param e is the error to log.
    */
   public static void logAsync(final String desc, final Throwable e){
-    if (asyncLogConsumer==null){
-      log(desc,e);
-    }else{
-      final Instant d = Instant.now();
-      asyncLogConsumer.accept(new DelayedRunnable(d.toEpochMilli()){
-        public void run(){
-          log(desc, e, d);
-        }
-      });
-    }
+    submit(new Entry(System.currentTimeMillis(), desc, e, true), false);
   }
   /**
    * Logs and timestamps an error with the given description.
@@ -121,125 +337,300 @@ public class Logger {
    * @param e is the error to log.
    * @param d is the timestamp for the message
    */
-  public synchronized static void log(String desc, Throwable e, Instant d){
-    format.formatTo(d,out);
-    out.print(separator);
-    out.print(desc);
-    out.println();
-    e.printStackTrace(out);
-    out.flush();
+  public static void log(String desc, Throwable e, Instant d){
+    submit(new Entry(d.toEpochMilli(), desc, e, true), true);
   }
   /**
    * Logs an error.
    * If you want a timestamp, you should use {@link #log(String,Throwable)} instead.
    * @param e is the error to log.
    */
-  public synchronized static void log(Throwable e){
-    e.printStackTrace(out);
-    out.flush();
+  public static void log(Throwable e){
+    submit(new Entry(0, null, e, false), true);
   }
    /**
-   * Logs an error asynchronously (if supported).
+   * Logs an error asynchronously.
    * If you want a timestamp, you should use {@link #logAsync(String,Throwable)} instead.
    * @param e is the error to log.
    */
   public static void logAsync(Throwable e){
-    if (asyncLogConsumer==null){
-      log(e);
-    }else{
-      asyncLogConsumer.accept(new DelayedRunnable(System.currentTimeMillis()){
-        public void run(){
-          log(e);
+    submit(new Entry(0, null, e, false), false);
+  }
+  /**
+   * Hands an entry to the writer thread.
+   * Entries are written directly when there is no writer thread,
+   * or when the caller holds the class monitor (e.g. while {@link #trim(long)} reports an error), since the writer would wait for that monitor.
+   * @param sync specifies whether to wait until the entry has been flushed.
+   */
+  private static void submit(Entry e, boolean sync){
+    Thread t = writer;
+    final Thread cur = Thread.currentThread();
+    if (t==null || t==cur || Thread.holdsLock(Logger.class)){
+      direct(e);
+      return;
+    }
+    if (sync){
+      e.waiter = cur;
+    }
+    while (!ring.offer(e)){
+      if (!sync && overflow==Overflow.DROP){
+        dropped.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(t);
+      LockSupport.parkNanos(Logger.class, 100000L);
+      if ((t=writer)==null){
+        direct(e);
+        return;
+      }
+    }
+    if (idle){
+      LockSupport.unpark(t);
+    }
+    if (sync){
+      while (!e.done && writer!=null){
+        LockSupport.parkNanos(Logger.class, 10000000L);
+      }
+    }
+  }
+  private synchronized static void direct(Entry e){
+    if (out!=null){
+      try{
+        write(e);
+        flush();
+      }catch(Throwable t){
+        t.printStackTrace();
+      }
+    }
+  }
+  /**
+   * Body of the writer thread.
+   */
+  private static void drain(){
+    final ArrayList<Entry> batch = new ArrayList<Entry>(BATCH);
+    Entry e;
+    while (true){
+      while (batch.size()<BATCH && (e=ring.poll())!=null){
+        batch.add(e);
+      }
+      if (batch.isEmpty()){
+        if (!running){
+          break;
         }
-      });
+        idle = true;
+        if ((e=ring.poll())==null){
+          LockSupport.parkNanos(Logger.class, IDLE_NANOS);
+        }else{
+          batch.add(e);
+        }
+        idle = false;
+        continue;
+      }
+      synchronized (Logger.class){
+        try{
+          for (Entry x:batch){
+            write(x);
+          }
+          final long n = dropped.getAndSet(0);
+          if (n>0){
+            write(new Entry(System.currentTimeMillis(), "Discarded "+n+" log entr"+(n==1?"y":"ies")+" because the log buffer was full.", null, true));
+          }
+          flush();
+        }catch(Throwable t){
+          t.printStackTrace();
+        }
+      }
+      for (Entry x:batch){
+        if (x.waiter!=null){
+          x.done = true;
+          LockSupport.unpark(x.waiter);
+        }
+      }
+      batch.clear();
+    }
+  }
+  /**
+   * Writes an entry without flushing, and records an index point when one is due. The caller must hold the class monitor.
+   */
+  private static void write(Entry e) throws IOException {
+    if (e.stamp && e.time>=rollover){
+      try{
+        roll(e.time);
+      }catch(Throwable t){
+        t.printStackTrace();
+        rollover = e.time+60000L;
+      }
+    }
+    final StringBuilder sb = line;
+    sb.setLength(0);
+    if (e.stamp){
+      final long s = Math.floorDiv(e.time, 1000L);
+      if (s!=second || prefix==null){
+        prefix = format.format(Instant.ofEpochSecond(s))+separator;
+        second = s;
+      }
+      sb.append(prefix).append(e.msg).append(NEWLINE);
+      if (++pointCount>LogIndex.ENTRIES || e.time>=pointTime+LogIndex.INTERVAL){
+        index.writeLong(e.time);
+        index.writeLong(position);
+        pointCount = 1;
+        pointTime = e.time;
+      }
+    }
+    if (e.err!=null){
+      final StringWriter w = new StringWriter(1024);
+      e.err.printStackTrace(new PrintWriter(w));
+      sb.append(w.getBuffer());
+    }
+    final byte[] b = sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    out.write(b);
+    position+=b.length;
+    if (sb.capacity()>65536){
+      sb.setLength(256);
+      sb.trimToSize();
+    }
+  }
+  /**
+   * Flushes the current segment, and then its index, so that index points never precede the data they refer to. The caller must hold the class monitor.
+   */
+  private static void flush() throws IOException {
+    if (out!=null){
+      out.flush();
+      index.flush();
     }
   }
   /**
-   * Indicates whether {@link #init(File)} has been called.
+   * @return the approximate number of entries waiting to be written.
+   */
+  public static int getQueueDepth(){
+    return ring.size();
+  }
+  /**
+   * @return the number of entries which may be waiting to be written before {@link #overflow} applies.
+   */
+  public static int getQueueCapacity(){
+    return ring.capacity();
+  }
+  /**
+   * Indicates whether {@link #init(Path)} has been called.
    */
   public static boolean isInitialized(){
     return out!=null;
   }
   /**
-   * Closed the logger output stream.
+   * Writes any pending entries, stops the writer thread, and closes the logger output stream.
    */
-  public synchronized static void close(){
-    out.close();
+  public static void close(){
+    final Thread t = writer;
+    running = false;
+    if (t!=null){
+      LockSupport.unpark(t);
+      try{
+        t.join(10000L);
+      }catch(InterruptedException e){}
+      writer = null;
+    }
+    synchronized (Logger.class){
+      if (t==null || !t.isAlive()){
+        Entry e;
+        try{
+          while ((e=ring.poll())!=null){
+            write(e);
+          }
+        }catch(Throwable err){
+          err.printStackTrace();
+        }
+      }
+      try{
+        out.close();
+        index.close();
+      }catch(Throwable err){
+        err.printStackTrace();
+      }
+    }
   }
   /**
-   * Deletes log entries which occurred more than {@code deleteLogAfter} milliseconds ago.
+   * Searches the log without holding any lock while reading, except to flush pending entries.
+   * @param from is the inclusive lower bound of the time range in epoch milliseconds.
+   * @param to is the exclusive upper bound of the time range in epoch milliseconds.
+   * @param filter must be contained in each returned entry (ignoring case), or {@code null} to return every entry in the time range.
+   * @param before is the value of {@link LogIndex.Page#getNext()} from the previous page, or {@code null} for the first page.
+   * @param limit is the maximum number of entries to return.
+   * @return a page of matching entries, newest first.
+   * @throws IllegalArgumentException if {@code before} is malformed.
    */
-  public synchronized static void trim(long deleteLogAfter){
-    try{
-      long time = System.currentTimeMillis()-deleteLogAfter;
-      if (!tmp.exists() && !tmp.createNewFile()){
-        throw new IOException("Unable to create temporary log file.");
+  public static LogIndex.Page query(long from, long to, String filter, String before, int limit) throws IOException {
+    final long[] keys;
+    final Path[] paths;
+    synchronized (segments){
+      keys = new long[segments.size()];
+      paths = new Path[keys.length];
+      int i = 0;
+      for (Map.Entry<Long,Path> e:segments.descendingMap().entrySet()){
+        keys[i] = e.getKey();
+        paths[i] = e.getValue();
+        ++i;
       }
-      out.close();
+    }
+    final Path current;
+    final long size;
+    synchronized (Logger.class){
+      flush();
+      current = f==null?null:f.toPath();
+      size = position;
+    }
+    return LogIndex.search(keys, paths, current, size, from, to, filter, before, Math.max(limit,1));
+  }
+  /**
+   * Deletes log segments whose entries all occurred more than {@code deleteLogAfter} milliseconds ago.
+   * A segment only holds entries older than the start of the next segment, so no segment is read, and the current segment is never deleted.
+   * Segments which cannot be deleted (e.g. on Windows, while a {@link LogSnapshot} holds them open) remain indexed, so they are retried by the next invocation.
+   */
+  public static void trim(long deleteLogAfter){
+    final long cutoff = System.currentTimeMillis()-deleteLogAfter;
+    final ArrayList<Map.Entry<Long,Path>> expired = new ArrayList<Map.Entry<Long,Path>>();
+    synchronized (segments){
+      while (segments.size()>1 && segments.higherKey(segments.firstKey())<=cutoff){
+        expired.add(segments.pollFirstEntry());
+      }
+    }
+    Path p;
+    for (Map.Entry<Long,Path> e:expired){
+      p = e.getValue();
       try{
-        try (
-          BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
-          BufferedOutputStream outTMP = new BufferedOutputStream(new FileOutputStream(tmp, false));
-        ){
-          StringBuilder line = new StringBuilder(20);
-          String str;
-          int i;
-          char c;
-          boolean b;
-          while (true){
-            i = in.read();
-            if (i==-1){
-              break;
-            }
-            c = (char)i;
-            if (c=='-'){
-              b = true;
-              str = line.toString().trim();
-              line.setLength(0);
-              try{
-                b = time<Instant.from(format.parse(str)).toEpochMilli();
-              }catch(DateTimeException e){
-                e.printStackTrace();
-              }
-              if (b){
-                outTMP.write(str.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-                outTMP.write(i);
-                byte[] buf = new byte[2048];
-                while (true){
-                  i = in.read(buf);
-                  if (i==-1){
-                    break;
-                  }
-                  outTMP.write(buf,0,i);
-                }
-                break;
-              }else{
-                do {
-                  i = in.read();
-                  c = (char)i;
-                } while(i!=-1 && c!='\n');
-                if (i==-1){
-                  break;
-                }
-              }
-            }else if (c=='\n'){
-              line.setLength(0);
-            }else{
-              line.append(c);
-            }
-          }
-        }
-        if (!f.delete()){
-          throw new IOException("Unable to delete log file.");
+        Files.deleteIfExists(p);
+      }catch(Throwable t){
+        synchronized (segments){
+          segments.put(e.getKey(), p);
         }
-        if (!tmp.renameTo(f)){
-          throw new IOException("Unable to rename temporary log file.");
-        }
-      } finally {
-        out = new PrintWriter(new FileWriter(f,true));
+        Logger.logAsync("Error occurred while deleting expired log segment "+p.getFileName()+". It will be retried.", t);
+        continue;
       }
-    }catch(Throwable e){
-      Logger.log("Error occurred while deleting expired log entries.", e);
+      try{
+        Files.deleteIfExists(LogIndex.indexOf(p));
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred while deleting the index of expired log segment "+p.getFileName()+'.', t);
+      }
+    }
+  }
+  /**
+   * A message waiting to be written.
+   */
+  private static class Entry {
+    /** Epoch milliseconds of the timestamp. */
+    final long time;
+    final String msg;
+    final Throwable err;
+    /** Whether to write the timestamp and message. */
+    final boolean stamp;
+    /** The thread waiting for this entry to be flushed, or {@code null}. */
+    volatile Thread waiter = null;
+    volatile boolean done = false;
+    Entry(long time, String msg, Throwable err, boolean stamp){
+      this.time = time;
+      this.msg = msg;
+      this.err = err;
+      this.stamp = stamp;
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.file.*;
+import java.util.*;
+/**
+ * Immutable snapshot of the files contained in a folder.
+ * A single snapshot may be shared by any number of concurrent sessions, each of which sees a consistent view of the folder.
+ */
+public class Manifest implements Iterable<FileEntry> {
+  private final Path root;
+  private final List<FileEntry> entries;
+  private final long version;
+  private final long created;
+  private final boolean complete;
+  private Manifest(Path root, List<FileEntry> entries, long version, long created, boolean complete){
+    this.root = root;
+    this.entries = entries;
+    this.version = version;
+    this.created = created;
+    this.complete = complete;
+  }
+  /**
+   * Scans a folder and records every readable file.
+   * This method never throws an exception; errors are reported by {@link #isComplete()}.
+   * @param folder is the folder to scan.
+   * @return a new snapshot.
+   */
+  public static Manifest scan(Path folder){
+    final long created = System.currentTimeMillis();
+    final Path root = folder.normalize();
+    final ArrayList<FileEntry> files = new ArrayList<FileEntry>(32);
+    final StringBuilder sb = new StringBuilder(64);
+    final Container<Boolean> complete = new Container<Boolean>(true);
+    try{
+      if (Files.exists(root) && Files.isDirectory(root)){
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+          @Override public FileVisitResult visitFile(Path f, java.nio.file.attribute.BasicFileAttributes attr){
+            if (Files.isReadable(f)){
+              files.add(new FileEntry(root,sb,f,attr));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+          @Override public FileVisitResult visitFileFailed(Path f, java.io.IOException e){
+            complete.x = false;
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      }else{
+        complete.x = false;
+      }
+    }catch(Throwable t){
+      complete.x = false;
+    }
+    return of(root, files, created, complete.x);
+  }
+  /**
+   * Creates a snapshot from a list of entries.
+   * @param root is the logical folder which contains the entries.
+   * @param files is the list of entries, which is sorted by this method and must not be modified afterwards.
+   * @param created is the value of {@code System.currentTimeMillis()} when the entries were collected.
+   * @param complete specifies whether the list contains every file in the folder.
+   * @return a new snapshot.
+   */
+  public static Manifest of(Path root, ArrayList<FileEntry> files, long created, boolean complete){
+    files.trimToSize();
+    //Sort so that the version does not depend on the order in which the file system lists entries
+    Collections.sort(files, new Comparator<FileEntry>(){
+      public int compare(FileEntry a, FileEntry b){
+        return a.getRelativePathString().compareTo(b.getRelativePathString());
+      }
+    });
+    long version = 0;
+    try{
+      final java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+      for (FileEntry e:files){
+        e.digest(md);
+      }
+      final byte[] hash = md.digest();
+      for (int i=0;i<8;++i){
+        version = (version<<8)|(hash[i]&0xFF);
+      }
+      //Zero is reserved to mean unknown
+      if (version==0){
+        version = 1;
+      }
+    }catch(Throwable t){
+      version = 0;
+    }
+    return new Manifest(root, Collections.unmodifiableList(files), complete?version:0, created, complete);
+  }
+  /**
+   * @return the folder which was scanned.
+   */
+  public Path getRoot(){
+    return root;
+  }
+  /**
+   * @return a version number derived from the relative path, size, and modification time of every entry, or {@code 0} if the scan was incomplete.
+   */
+  public long getVersion(){
+    return version;
+  }
+  /**
+   * @return the value of {@code System.currentTimeMillis()} when the scan started.
+   */
+  public long getCreationTime(){
+    return created;
+  }
+  /**
+   * @return whether the folder exists and every file was successfully visited.
+   */
+  public boolean isComplete(){
+    return complete;
+  }
+  /**
+   * @return the number of entries.
+   */
+  public int size(){
+    return entries.size();
+  }
+  @Override public Iterator<FileEntry> iterator(){
+    return entries.iterator();
+  }
+}
\ No newline at end of file
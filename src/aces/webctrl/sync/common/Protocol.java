@@ -72,4 +72,49 @@ public class Protocol {
    * Indicates a given {@code Path} object is a folder.
    */
   public final static byte FOLDER_TYPE = ++ID;
+  /**
+   * Indicates the database is too busy to start a sync session.
+   * The number of seconds to wait before retrying follows this byte.
+   */
+  public final static byte RETRY_LATER = ++ID;
+  /**
+   * Used in place of {@link #CONTINUE} to request synchronization.
+   * The catalog version which the client last applied follows this byte.
+   */
+  public final static byte CATALOG = ++ID;
+  /**
+   * Indicates the client's catalog version is current, so there is nothing to synchronize.
+   */
+  public final static byte UP_TO_DATE = ++ID;
+  /**
+   * Used in place of {@link #CATALOG} by a follower database to request replication.
+   * The catalog version which the follower currently serves and the replication key follow this byte.
+   * The database replies with {@link #FAILURE} if the replication key is wrong.
+   */
+  public final static byte REPLICATE = ++ID;
+  /**
+   * Used in place of {@link #CATALOG} to keep an idle connection open and be notified when the catalog changes.
+   * The catalog version which the client last applied follows this byte, and the database replies with its heartbeat interval.
+   */
+  public final static byte WATCH = ++ID;
+  /**
+   * Sent periodically on a watch connection to prove the connection is alive.
+   * The hash acknowledgement which follows every encrypted byte proves the client is alive, so no other reply is needed.
+   */
+  public final static byte HEARTBEAT = ++ID;
+  /**
+   * Sent on a watch connection when the catalog changes.
+   * The new catalog version and the window (in milliseconds) over which clients should spread their syncs follow this byte.
+   */
+  public final static byte CATALOG_CHANGED = ++ID;
+  /**
+   * Optionally sent before any request to tell the database which client is connecting, so the database can select the client's sync group.
+   * The client's identity (UTF-8 encoded) follows this byte, and then the actual request.
+   */
+  public final static byte IDENTIFY = ++ID;
+  /**
+   * Optionally sent by a relay after {@link #IDENTIFY} and before its request, so it only serves siblings which belong to its own sync group.
+   * The database replies with the relay's group and every client assignment, and then reads the actual request.
+   */
+  public final static byte GROUPS = ++ID;
 }
\ No newline at end of file
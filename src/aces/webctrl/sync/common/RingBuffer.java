@@ -0,0 +1,97 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.util.concurrent.atomic.*;
+/**
+ * Bounded, lock-free queue which supports any number of producers and a single consumer.
+ * Each slot carries a sequence number, so a producer claims a slot with one CAS and then publishes it independently of other producers.
+ * Neither {@link #offer(Object)} nor {@link #poll()} ever blocks.
+ */
+public class RingBuffer<T> {
+  /** Used to map a sequence number to a slot index. */
+  private final int mask;
+  private final AtomicReferenceArray<T> items;
+  /**
+   * A slot may be claimed by the producer of sequence {@code s} when it holds {@code s},
+   * and may be consumed when it holds {@code s+1}.
+   */
+  private final AtomicLongArray sequences;
+  /** The next sequence number to be claimed by a producer. */
+  private final AtomicLong tail = new AtomicLong();
+  /** The next sequence number to be consumed. Only written by the consumer. */
+  private volatile long head = 0;
+  /**
+   * @param capacity is rounded up to a power of two.
+   */
+  public RingBuffer(int capacity){
+    int size = 2;
+    while (size<capacity){
+      size<<=1;
+    }
+    mask = size-1;
+    items = new AtomicReferenceArray<T>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i=0;i<size;++i){
+      sequences.set(i,i);
+    }
+  }
+  /**
+   * @return the maximum number of elements this buffer can hold.
+   */
+  public int capacity(){
+    return mask+1;
+  }
+  /**
+   * May be invoked by any thread.
+   * @return the approximate number of elements in this buffer, including those whose slots are claimed but not yet published.
+   */
+  public int size(){
+    final long n = tail.get()-head;
+    return n<=0?0:(int)Math.min(n, mask+1);
+  }
+  /**
+   * Appends an element. May be invoked by any thread.
+   * The element is published with a volatile write, so a producer which subsequently reads a volatile flag set by the consumer cannot miss a wakeup.
+   * @return {@code true} on success; {@code false} if the buffer is full.
+   */
+  public boolean offer(T t){
+    long pos = tail.get();
+    int i;
+    long diff;
+    while (true){
+      i = (int)pos&mask;
+      diff = sequences.get(i)-pos;
+      if (diff==0){
+        if (tail.compareAndSet(pos, pos+1)){
+          break;
+        }
+        pos = tail.get();
+      }else if (diff<0){
+        return false;
+      }else{
+        pos = tail.get();
+      }
+    }
+    items.lazySet(i,t);
+    sequences.set(i,pos+1);
+    return true;
+  }
+  /**
+   * Removes the oldest element. Must only be invoked by the consumer.
+   * @return the element, or {@code null} if the buffer is empty or the oldest claimed slot has not yet been published.
+   */
+  public T poll(){
+    final int i = (int)head&mask;
+    if (sequences.get(i)!=head+1){
+      return null;
+    }
+    final T t = items.get(i);
+    items.lazySet(i,null);
+    sequences.set(i,head+mask+1);
+    ++head;
+    return t;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,257 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+/**
+ * {@link Transport} backed by a non-blocking {@code SocketChannel} which is confined to a single {@link EventLoop}.
+ * Operations initiated from other threads are handed to the loop through its task queue, which provides the required happens-before edges.
+ * Handlers are always invoked on the loop thread, so the fields of this class need no synchronization.
+ */
+public class SelectorTransport implements Transport {
+  private final EventLoop loop;
+  private final SocketChannel ch;
+  /** Assigned by the loop thread once the channel has been registered. */
+  SelectionKey key = null;
+  private ByteBuffer readBuf = null;
+  private Object readAttach = null;
+  private CompletionHandler<Integer,Object> readHandler = null;
+  private long readDeadline = 0;
+  private ByteBuffer writeBuf = null;
+  private Object writeAttach = null;
+  private CompletionHandler<Integer,Object> writeHandler = null;
+  private long writeDeadline = 0;
+  /** Whether {@link EventLoop#release()} has been invoked for this transport. */
+  private boolean released = false;
+  SelectorTransport(EventLoop loop, SocketChannel ch){
+    this.loop = loop;
+    this.ch = ch;
+  }
+  /**
+   * @return the event loop which owns this transport.
+   */
+  public EventLoop getLoop(){
+    return loop;
+  }
+  @Override public <A> void read(final ByteBuffer dst, final long timeout, final A attach, final CompletionHandler<Integer,? super A> handler){
+    final long deadline = System.currentTimeMillis()+timeout;
+    if (loop.inLoop()){
+      startRead(dst, deadline, attach, handler);
+    }else{
+      loop.execute(new Runnable(){
+        public void run(){
+          startRead(dst, deadline, attach, handler);
+        }
+      });
+    }
+  }
+  @Override public <A> void write(final ByteBuffer src, final long timeout, final A attach, final CompletionHandler<Integer,? super A> handler){
+    final long deadline = System.currentTimeMillis()+timeout;
+    if (loop.inLoop()){
+      startWrite(src, deadline, attach, handler);
+    }else{
+      loop.execute(new Runnable(){
+        public void run(){
+          startWrite(src, deadline, attach, handler);
+        }
+      });
+    }
+  }
+  @Override public SocketAddress getRemoteAddress() throws IOException {
+    return ch.getRemoteAddress();
+  }
+  @Override public void close() throws IOException {
+    try{
+      ch.close();
+    }finally{
+      loop.execute(new Runnable(){
+        public void run(){
+          closeNow();
+        }
+      });
+    }
+  }
+  /**
+   * Attempts the read immediately, and waits for the channel to become readable if no bytes are available.
+   * Results are posted to the task queue rather than invoking the handler directly, so chains of immediate completions cannot overflow the stack.
+   */
+  @SuppressWarnings("unchecked")
+  private <A> void startRead(ByteBuffer dst, long deadline, A attach, CompletionHandler<Integer,? super A> handler){
+    if (readHandler!=null){
+      post(handler, attach, null, new ReadPendingException());
+      return;
+    }
+    final int n;
+    try{
+      n = ch.read(dst);
+    }catch(Throwable e){
+      post(handler, attach, null, ch.isOpen()?e:new AsynchronousCloseException());
+      return;
+    }
+    if (n!=0 || !dst.hasRemaining()){
+      post(handler, attach, n, null);
+      return;
+    }
+    readBuf = dst;
+    readAttach = attach;
+    readHandler = (CompletionHandler<Integer,Object>)handler;
+    readDeadline = deadline;
+    if (!interest(SelectionKey.OP_READ, true)){
+      failRead(new AsynchronousCloseException());
+    }
+  }
+  /**
+   * Attempts the write immediately, and waits for the channel to become writable if no bytes could be written.
+   */
+  @SuppressWarnings("unchecked")
+  private <A> void startWrite(ByteBuffer src, long deadline, A attach, CompletionHandler<Integer,? super A> handler){
+    if (writeHandler!=null){
+      post(handler, attach, null, new WritePendingException());
+      return;
+    }
+    final int n;
+    try{
+      n = ch.write(src);
+    }catch(Throwable e){
+      post(handler, attach, null, ch.isOpen()?e:new AsynchronousCloseException());
+      return;
+    }
+    if (n!=0 || !src.hasRemaining()){
+      post(handler, attach, n, null);
+      return;
+    }
+    writeBuf = src;
+    writeAttach = attach;
+    writeHandler = (CompletionHandler<Integer,Object>)handler;
+    writeDeadline = deadline;
+    if (!interest(SelectionKey.OP_WRITE, true)){
+      failWrite(new AsynchronousCloseException());
+    }
+  }
+  private <A> void post(final CompletionHandler<Integer,? super A> handler, final A attach, final Integer result, final Throwable e){
+    loop.execute(new Runnable(){
+      public void run(){
+        if (e==null){
+          handler.completed(result, attach);
+        }else{
+          handler.failed(e, attach);
+        }
+      }
+    });
+  }
+  /**
+   * Adds or removes an operation from the interest set.
+   * @return {@code false} if the channel is no longer registered.
+   */
+  private boolean interest(int op, boolean on){
+    final SelectionKey k = key;
+    if (k==null || !k.isValid()){
+      return false;
+    }
+    try{
+      final int ops = k.interestOps();
+      k.interestOps(on?ops|op:ops&~op);
+      return true;
+    }catch(CancelledKeyException e){
+      return false;
+    }
+  }
+  /**
+   * Invoked by the loop thread when the channel is ready for a pending operation.
+   */
+  void ready(SelectionKey k){
+    if (!k.isValid()){
+      closeNow();
+      return;
+    }
+    final int ops = k.readyOps();
+    if ((ops&SelectionKey.OP_READ)!=0 && readHandler!=null){
+      try{
+        final int n = ch.read(readBuf);
+        if (n!=0 || !readBuf.hasRemaining()){
+          final CompletionHandler<Integer,Object> h = readHandler;
+          final Object attach = readAttach;
+          clearRead();
+          h.completed(n, attach);
+        }
+      }catch(Throwable e){
+        failRead(ch.isOpen()?e:new AsynchronousCloseException());
+      }
+    }
+    if ((ops&SelectionKey.OP_WRITE)!=0 && writeHandler!=null && k.isValid()){
+      try{
+        final int n = ch.write(writeBuf);
+        if (n!=0 || !writeBuf.hasRemaining()){
+          final CompletionHandler<Integer,Object> h = writeHandler;
+          final Object attach = writeAttach;
+          clearWrite();
+          h.completed(n, attach);
+        }
+      }catch(Throwable e){
+        failWrite(ch.isOpen()?e:new AsynchronousCloseException());
+      }
+    }
+  }
+  /**
+   * Invoked periodically by the loop thread to fail operations which have exceeded their timeouts.
+   */
+  void expire(long now){
+    if (readHandler!=null && now>=readDeadline){
+      failRead(new InterruptedByTimeoutException());
+    }
+    if (writeHandler!=null && now>=writeDeadline){
+      failWrite(new InterruptedByTimeoutException());
+    }
+  }
+  /**
+   * Closes the channel and fails any pending operations. Only invoked on the loop thread.
+   */
+  void closeNow(){
+    try{
+      ch.close();
+    }catch(Throwable e){}
+    if (readHandler!=null){
+      failRead(new AsynchronousCloseException());
+    }
+    if (writeHandler!=null){
+      failWrite(new AsynchronousCloseException());
+    }
+    if (!released){
+      released = true;
+      loop.release();
+    }
+  }
+  private void clearRead(){
+    readBuf = null;
+    readAttach = null;
+    readHandler = null;
+    interest(SelectionKey.OP_READ, false);
+  }
+  private void clearWrite(){
+    writeBuf = null;
+    writeAttach = null;
+    writeHandler = null;
+    interest(SelectionKey.OP_WRITE, false);
+  }
+  private void failRead(Throwable e){
+    final CompletionHandler<Integer,Object> h = readHandler;
+    final Object attach = readAttach;
+    clearRead();
+    if (h!=null){
+      h.failed(e, attach);
+    }
+  }
+  private void failWrite(Throwable e){
+    final CompletionHandler<Integer,Object> h = writeHandler;
+    final Object attach = writeAttach;
+    clearWrite();
+    if (h!=null){
+      h.failed(e, attach);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.nio.channels.*;
+import java.security.spec.*;
+import javax.crypto.*;
+/**
+ * Server side of the handshake which establishes an encrypted session with a client.
+ * This is the counterpart of {@link ClientHandshake}.
+ * Exactly one of {@link #accepted()}, {@link #rejected()}, or {@link #failed(Throwable)} is invoked.
+ */
+public abstract class ServerHandshake {
+  /**
+   * Invoked after the client proves it possesses the secret connection key and {@link Protocol#SUCCESS} has been sent.
+   * The next byte sent by the client specifies what it wants.
+   */
+  protected abstract void accepted();
+  /**
+   * Invoked after the client presents the wrong connection key and {@link Protocol#FAILURE} has been sent.
+   */
+  protected abstract void rejected();
+  /**
+   * Invoked when a socket error or any other unexpected error occurs.
+   */
+  protected abstract void failed(Throwable t);
+  /**
+   * Starts the handshake on a newly accepted socket.
+   * @param k is the key-pair which authenticates this server.
+   * @param connectionKey is the secret which every client must possess.
+   */
+  public void start(final SocketWrapper wrap, final Key k, final long connectionKey){
+    final SerializationStream s = new SerializationStream(k.length(false)+Config.VERSION_RAW.length+4);
+    s.write(Config.VERSION_RAW);
+    k.serialize(s,false);
+    //Write the application version and public key to the client
+    wrap.writeBytes(s.data, null, new Step<Void>(){
+      public void func(Void v){
+        //Read and decrypt the client's temporary public key
+        wrap.readBytes(16384, null, new Step<byte[]>(){
+          public void func(byte[] tmpPublicKey) throws Throwable {
+            tmpPublicKey = k.decrypt(tmpPublicKey);
+            //Generate and encrypt a new symmetric key for this session
+            final byte[] symmetricKey = new byte[16];
+            Database.entropy.nextBytes(symmetricKey);
+            Cipher cipher = Cipher.getInstance(Database.CIPHER);
+            synchronized (Keys.keyFactory){
+              cipher.init(Cipher.ENCRYPT_MODE, Keys.keyFactory.generatePublic(new X509EncodedKeySpec(tmpPublicKey)));
+            }
+            //Send the encrypted symmetric key to the client
+            wrap.writeBytes(cipher.doFinal(symmetricKey), null, new Step<Void>(){
+              public void func(Void v){
+                //Now encryption has been successfully setup
+                wrap.setCipher(new StreamCipher(symmetricKey));
+                //Verify the client possesses the secret connection key
+                wrap.readBytes(16, null, new Step<byte[]>(){
+                  public void func(byte[] arr){
+                    final boolean hasKey = arr.length==8 && new SerializationStream(arr).readLong()==connectionKey;
+                    wrap.write(hasKey?Protocol.SUCCESS:Protocol.FAILURE, null, new Step<Void>(){
+                      public void func(Void v){
+                        if (hasKey){
+                          accepted();
+                        }else{
+                          rejected();
+                        }
+                      }
+                    });
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Routes exceptions thrown by each step and socket errors to {@link #failed(Throwable)}.
+   */
+  private abstract class Step<T> implements CompletionHandler<T,Void> {
+    public abstract void func(T ret) throws Throwable;
+    @Override public void completed(T ret, Void v){
+      try{
+        func(ret);
+      }catch(Throwable t){
+        ServerHandshake.this.failed(t);
+      }
+    }
+    @Override public void failed(Throwable e, Void v){
+      ServerHandshake.this.failed(e);
+    }
+  }
+}
\ No newline at end of file
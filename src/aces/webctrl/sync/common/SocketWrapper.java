@@ -8,11 +8,13 @@ import java.io.*;
 import java.nio.*;
 import java.nio.file.*;
 import java.nio.channels.*;
-import java.util.concurrent.TimeUnit;
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.atomic.LongAdder;
 /**
- * Wraps an {@code AsynchronousSocketChannel} to provide automatic encrytion and decryption.
+ * Wraps a {@link Transport} to provide automatic encrytion and decryption.
+ * At most one operation is pending at any time, and each {@code Transport} guarantees a happens-before edge between initiating an operation and its handler.
+ * Consequently, per-connection state is kept in plain fields even though handlers may run on different threads.
  */
 public class SocketWrapper {
   /**
@@ -34,13 +36,31 @@ public class SocketWrapper {
    */
   private final static int attempts = 3;
   /** The {@code StreamCipher} object used for symmetric encryption/decryption tasks */
-  private volatile StreamCipher c = null;
+  private StreamCipher c = null;
   /** The wrapped socket. */
-  private volatile AsynchronousSocketChannel socket;
+  private final Transport socket;
   /** Keeps track of whether or not the underlying socket it closed. */
   private volatile boolean closed = false;
   /** Stores the IP address of the underlying socket. */
-  private volatile String IP;
+  private final String IP;
+  /** Stores the IP address of the remote host without the port. */
+  private final String host;
+  /** Total number of raw bytes read from the underlying socket. Only one operation is ever pending, so updates never race. */
+  private volatile long bytesRead = 0;
+  /** Total number of raw bytes written to the underlying socket. Only one operation is ever pending, so updates never race. */
+  private volatile long bytesWritten = 0;
+  /** Total number of blocks retransmitted because of a hash comparison failure. */
+  private volatile long hashRetries = 0;
+  /** Total number of raw bytes read by every instance. */
+  private final static LongAdder totalBytesRead = new LongAdder();
+  /** Total number of raw bytes written by every instance. */
+  private final static LongAdder totalBytesWritten = new LongAdder();
+  /** Total number of blocks retransmitted by every instance because of a hash comparison failure. */
+  private final static LongAdder totalHashRetries = new LongAdder();
+  /** Total number of operations which failed after exhausting their hash comparison attempts. */
+  private final static LongAdder totalHashFailures = new LongAdder();
+  /** Overrides the timeout given by {@link #config}, or {@code 0} to use the default. */
+  private volatile long timeout = 0;
 
   /** Used for file IO operations. */
   private final static java.nio.file.attribute.FileAttribute<?>[] emptyAttributes = new java.nio.file.attribute.FileAttribute<?>[0];
@@ -60,12 +80,24 @@ public class SocketWrapper {
    * Initializes a {@code SocketWrapper} instance to wrap the given socket.
    */
   public SocketWrapper(AsynchronousSocketChannel socket){
+    this(new AsyncTransport(socket));
+  }
+  /**
+   * Initializes a {@code SocketWrapper} instance to wrap the given transport.
+   */
+  public SocketWrapper(Transport socket){
     this.socket = socket;
+    String IP, host;
     try{
-      IP = socket.getRemoteAddress().toString();
+      final java.net.SocketAddress addr = socket.getRemoteAddress();
+      IP = addr.toString();
+      host = addr instanceof java.net.InetSocketAddress ? ((java.net.InetSocketAddress)addr).getAddress().getHostAddress() : IP;
     }catch(Throwable e){
       IP = "Unknown";
+      host = IP;
     }
+    this.IP = IP;
+    this.host = host;
   }
   /**
    * @return the IP address of the underlying socket.
@@ -73,12 +105,75 @@ public class SocketWrapper {
   public String getIP(){
     return IP;
   }
+  /**
+   * @return the IP address of the remote host without the port.
+   */
+  public String getHost(){
+    return host;
+  }
+  /**
+   * @return the total number of raw bytes read from the underlying socket.
+   */
+  public long getBytesRead(){
+    return bytesRead;
+  }
+  /**
+   * @return the total number of raw bytes written to the underlying socket.
+   */
+  public long getBytesWritten(){
+    return bytesWritten;
+  }
+  /**
+   * @return the total number of blocks retransmitted because of a hash comparison failure.
+   */
+  public long getHashRetries(){
+    return hashRetries;
+  }
+  /**
+   * @return the total number of raw bytes read by every instance.
+   */
+  public static long getTotalBytesRead(){
+    return totalBytesRead.sum();
+  }
+  /**
+   * @return the total number of raw bytes written by every instance.
+   */
+  public static long getTotalBytesWritten(){
+    return totalBytesWritten.sum();
+  }
+  /**
+   * @return the total number of blocks retransmitted by every instance because of a hash comparison failure.
+   */
+  public static long getTotalHashRetries(){
+    return totalHashRetries.sum();
+  }
+  /**
+   * @return the total number of operations which failed after exhausting their hash comparison attempts.
+   */
+  public static long getTotalHashFailures(){
+    return totalHashFailures.sum();
+  }
   /**
    * Sets the {@code StreamCipher} object for this instance.
    */
   public void setCipher(StreamCipher c){
     this.c = c;
   }
+  /**
+   * Overrides the timeout for all subsequent operations on this socket.
+   * Useful for long-lived connections which are expected to sit idle.
+   * @param timeout is measured in milliseconds, or {@code 0} to restore the default given by {@link #config}.
+   */
+  public void setTimeout(long timeout){
+    this.timeout = timeout;
+  }
+  /**
+   * @return the timeout (in milliseconds) applied to each operation on this socket.
+   */
+  public long getTimeout(){
+    final long t = timeout;
+    return t>0?t:config.getTimeout();
+  }
   /**
    * @return whether or not the underlying socket is closed.
    */
@@ -91,7 +186,6 @@ public class SocketWrapper {
    */
   public boolean close(){
     closed = true;
-    c = null;
     try{
       socket.close();
       return true;
@@ -117,6 +211,23 @@ public class SocketWrapper {
    * @param <T> is the type of attached object
    */
   public <T> void readPath(final Path p, final T attach, final CompletionHandler<Boolean,T> func, final Consumer<Path> preRead, final BiConsumer<Path,Boolean> postRead, final boolean purge){
+    read(attach, new CompletionHandler<Byte,T>(){
+      public void completed(Byte b, T attach){
+        readPath(b, p, attach, func, preRead, postRead, purge);
+      }
+      public void failed(Throwable t, T attach){
+        func.failed(t,attach);
+        close();
+      }
+    });
+  }
+  /**
+   * Reads a file or folder from the underlying socket when the leading type byte has already been read.
+   * This is useful when the remote host may send some other instruction in place of a file or folder.
+   * @param type is the byte which was read from the socket. Any value other than {@link Protocol#FILE_TYPE} or {@link Protocol#FOLDER_TYPE} results in failure.
+   * @see #readPath(Path,Object,CompletionHandler,Consumer,BiConsumer,boolean)
+   */
+  public <T> void readPath(final byte type, final Path p, final T attach, final CompletionHandler<Boolean,T> func, final Consumer<Path> preRead, final BiConsumer<Path,Boolean> postRead, final boolean purge){
     try{
       Path folder = p.getParent();
       Path pp = folder;
@@ -131,120 +242,112 @@ public class SocketWrapper {
     }catch(Throwable t){
       Logger.logAsync("Error occurred in SocketWrapper.readPath", t);
     }
-    read(attach, new CompletionHandler<Byte,T>(){
-      public void completed(Byte b, T attach){
-        if (b==Protocol.FILE_TYPE){
+    if (type==Protocol.FILE_TYPE){
+      try{
+        if (Files.exists(p) && Files.isDirectory(p)){
+          Files.walkFileTree(p, new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs) throws IOException {
+              Files.delete(file);
+              return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+              if (e==null){
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+              }else{
+                throw e;
+              }
+            }
+          });
+        }
+        Path pp = p.getParent();
+        if (!Files.exists(pp)){
+          Files.createDirectories(pp);
+        }
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred in SocketWrapper.readPath", t);
+      }
+      readBytes(32, attach, new CompletionHandler<byte[],T>(){
+        public void completed(byte[] data, T attach){
+          byte ret;
           try{
-            if (Files.exists(p) && Files.isDirectory(p)){
-              Files.walkFileTree(p, new SimpleFileVisitor<Path>(){
-                @Override
-                public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs) throws IOException {
-                  Files.delete(file);
-                  return FileVisitResult.CONTINUE;
-                }
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
-                  if (e==null){
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
+            long lastMod = -1;
+            try{
+              SerializationStream s = new SerializationStream(data);
+              lastMod = s.readLong();
+              if (!s.end()){
+                Logger.logAsync("Lost data detected.");
+              }
+            }catch(Throwable t){
+              Logger.logAsync("Deserialization error occurred in SocketWrapper.readPath", t);
+            }
+            if (lastMod==-1){
+              ret = Protocol.FAILURE;
+            }else if (!Files.exists(p) || Files.isRegularFile(p) && Files.getLastModifiedTime(p).toMillis()!=lastMod){
+              ret = Protocol.SUCCESS;
+              write(ret, attach, new CompletionHandler<Void,T>(){
+                public void completed(Void v, T attach){
+                  if (preRead!=null){
+                    preRead.accept(p);
+                  }
+                  if (postRead==null){
+                    readFile(p,attach,func);
                   }else{
-                    throw e;
+                    readFile(p, attach, new CompletionHandler<Boolean,T>(){
+                      public void completed(Boolean b, T attach){
+                        postRead.accept(p,b);
+                        func.completed(b,attach);
+                      }
+                      public void failed(Throwable t, T attach){
+                        func.failed(t,attach);
+                        close();
+                      }
+                    });
                   }
                 }
+                public void failed(Throwable t, T attach){
+                  func.failed(t,attach);
+                  close();
+                }
               });
-            }
-            Path pp = p.getParent();
-            if (!Files.exists(pp)){
-              Files.createDirectories(pp);
+            }else{
+              ret = Protocol.CONTINUE;
             }
           }catch(Throwable t){
-            Logger.logAsync("Error occurred in SocketWrapper.readPath", t);
+            ret = Protocol.FAILURE;
           }
-          readBytes(32, attach, new CompletionHandler<byte[],T>(){
-            public void completed(byte[] data, T attach){
-              byte ret;
-              try{
-                long lastMod = -1;
-                try{
-                  SerializationStream s = new SerializationStream(data);
-                  lastMod = s.readLong();
-                  if (!s.end()){
-                    Logger.logAsync("Lost data detected.");
-                  }
-                }catch(Throwable t){
-                  Logger.logAsync("Deserialization error occurred in SocketWrapper.readPath", t);
-                }
-                if (lastMod==-1){
-                  ret = Protocol.FAILURE;
-                }else if (!Files.exists(p) || Files.isRegularFile(p) && Files.getLastModifiedTime(p).toMillis()!=lastMod){
-                  ret = Protocol.SUCCESS;
-                  write(ret, attach, new CompletionHandler<Void,T>(){
-                    public void completed(Void v, T attach){
-                      if (preRead!=null){
-                        preRead.accept(p);
-                      }
-                      if (postRead==null){
-                        readFile(p,attach,func);
-                      }else{
-                        readFile(p, attach, new CompletionHandler<Boolean,T>(){
-                          public void completed(Boolean b, T attach){
-                            postRead.accept(p,b);
-                            func.completed(b,attach);
-                          }
-                          public void failed(Throwable t, T attach){
-                            func.failed(t,attach);
-                            close();
-                          }
-                        });
-                      }
-                    }
-                    public void failed(Throwable t, T attach){
-                      func.failed(t,attach);
-                      close();
-                    }
-                  });
-                }else{
-                  ret = Protocol.CONTINUE;
-                }
-              }catch(Throwable t){
-                ret = Protocol.FAILURE;
+          if (ret!=Protocol.SUCCESS){
+            final boolean rret = ret==Protocol.CONTINUE;
+            write(ret, attach, new CompletionHandler<Void,T>(){
+              public void completed(Void v, T attach){
+                func.completed(rret,attach);
               }
-              if (ret!=Protocol.SUCCESS){
-                final boolean rret = ret==Protocol.CONTINUE;
-                write(ret, attach, new CompletionHandler<Void,T>(){
-                  public void completed(Void v, T attach){
-                    func.completed(rret,attach);
-                  }
-                  public void failed(Throwable t, T attach){
-                    func.failed(t,attach);
-                    close();
-                  }
-                });
+              public void failed(Throwable t, T attach){
+                func.failed(t,attach);
+                close();
               }
-            }
-            public void failed(Throwable t, T attach){
-              func.failed(t,attach);
-              close();
-            }
-          });
-        }else if (b==Protocol.FOLDER_TYPE){
-          try{
-            if (Files.exists(p) && !Files.isDirectory(p)){
-              Files.delete(p);
-            }
-          }catch(Throwable t){
-            Logger.logAsync("Error occurred in SocketWrapper.readPath", t);
+            });
           }
-          readFolder(p,attach,func,preRead,postRead,purge);
-        }else{
-          func.completed(false, attach);
         }
+        public void failed(Throwable t, T attach){
+          func.failed(t,attach);
+          close();
+        }
+      });
+    }else if (type==Protocol.FOLDER_TYPE){
+      try{
+        if (Files.exists(p) && !Files.isDirectory(p)){
+          Files.delete(p);
+        }
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred in SocketWrapper.readPath", t);
       }
-      public void failed(Throwable t, T attach){
-        func.failed(t,attach);
-        close();
-      }
-    });
+      readFolder(p,attach,func,preRead,postRead,purge);
+    }else{
+      func.completed(false, attach);
+    }
   }
   /**
    * Writes a file or folder to the underlying socket.
@@ -268,7 +371,7 @@ public class SocketWrapper {
         if (Files.isDirectory(p)){
           write(Protocol.FOLDER_TYPE, attach, new CompletionHandler<Void,T>(){
             public void completed(Void v, T attach){
-              writeFolder(p, attach, func, preWrite, postWrite);
+              writeFolder(Manifest.scan(p), attach, func, null, preWrite, postWrite);
             }
             public void failed(Throwable t, T attach){
               func.failed(t,attach);
@@ -290,9 +393,9 @@ public class SocketWrapper {
                           preWrite.accept(p);
                         }
                         if (postWrite==null){
-                          writeFile(p, attach, func);
+                          writeFile(p, -1, attach, func);
                         }else{
-                          writeFile(p, attach, new CompletionHandler<Boolean,T>(){
+                          writeFile(p, -1, attach, new CompletionHandler<Boolean,T>(){
                             public void completed(Boolean b, T attach){
                               postWrite.accept(p,b);
                               func.completed(b,attach);
@@ -348,6 +451,32 @@ public class SocketWrapper {
       });
     }
   }
+  /**
+   * Writes a folder to the underlying socket using a previously captured snapshot instead of scanning the folder.
+   * The remote host should read the data using {@link #readPath(Path,Object,CompletionHandler,Consumer,BiConsumer,boolean)}.
+   * Files which are modified or deleted after the snapshot was taken are still transferred from their current state on disk, or reported as file errors.
+   * @param m is the snapshot to send.
+   * @see #writePath(Path,Object,CompletionHandler,Consumer,BiConsumer)
+   */
+  public <T> void writeManifest(final Manifest m, final T attach, final CompletionHandler<Boolean,T> func, final Consumer<Path> preWrite, final BiConsumer<Path,Boolean> postWrite){
+    writeManifest(m, attach, func, null, preWrite, postWrite);
+  }
+  /**
+   * Writes a folder to the underlying socket using a previously captured snapshot, and tells the caller when the remote host is done with each file.
+   * @param settled is invoked once the remote host no longer needs each file, either because its copy is current or because the transfer has ended. The passed {@code Boolean} indicates whether the file was transferred successfully.
+   * @see #writeManifest(Manifest,Object,CompletionHandler,Consumer,BiConsumer)
+   */
+  public <T> void writeManifest(final Manifest m, final T attach, final CompletionHandler<Boolean,T> func, final BiConsumer<FileEntry,Boolean> settled, final Consumer<Path> preWrite, final BiConsumer<Path,Boolean> postWrite){
+    write(Protocol.FOLDER_TYPE, attach, new CompletionHandler<Void,T>(){
+      public void completed(Void v, T attach){
+        writeFolder(m, attach, func, settled, preWrite, postWrite);
+      }
+      public void failed(Throwable t, T attach){
+        func.failed(t,attach);
+        close();
+      }
+    });
+  }
   /**
    * Reads a folder from the underlying socket.
    * Note that socket errors and file errors are handled differently.
@@ -529,12 +658,12 @@ public class SocketWrapper {
     read(attach, a.readStatus);
   }
   private static class ReadFolder<T> {
-    volatile Path p;
-    volatile CompletionHandler<Byte,T> readStatus;
-    volatile CompletionHandler<byte[],T> readData;
-    volatile CompletionHandler<Void,T> writeStatus;
-    volatile CompletionHandler<Void,T> transfer;
-    volatile CompletionHandler<Boolean,T> finalStep;
+    Path p;
+    CompletionHandler<Byte,T> readStatus;
+    CompletionHandler<byte[],T> readData;
+    CompletionHandler<Void,T> writeStatus;
+    CompletionHandler<Void,T> transfer;
+    CompletionHandler<Boolean,T> finalStep;
   }
   /**
    * Writes a folder to the underlying socket.
@@ -544,35 +673,17 @@ public class SocketWrapper {
    * In particular, the result will be {@code false} if any file error occurs.
    * Data will be read from the file in blocks of at most {@code fileBlockSize}, so the program won't run out of memory.
    * Data will be written to the socket in blocks of at most {@code blockSize} bytes, so that {@code TimeoutException} does not occur.
-   * @param folder is a path to the data source which will copied to the socket.
+   * @param m is a snapshot of the data source which will copied to the socket.
    * @param attach is any object which the {@code CompletionHandler} should have access to.
    * @param func is the {@code CompletionHandler} invoked upon success or failure of this method.
+   * @param settled is invoked once the remote host no longer needs each file, or {@code null}. This is not invoked for the file in progress if a socket error occurs.
    * @param preWrite is invoked before writing each file to the socket.
    * @param postWrite is invoked after writing each file to the socket. The passed {@code Boolean} indicates whether the file-write was successful.
    * @param <T> is the type of attached object.
    */
-  private <T> void writeFolder(final Path folder, final T attach, final CompletionHandler<Boolean,T> func, final Consumer<Path> preWrite, final BiConsumer<Path,Boolean> postWrite){
-    final Container<Boolean> ret = new Container<Boolean>(true);
-    final Path root = folder.normalize();
-    final ArrayList<FileEntry> files = new ArrayList<FileEntry>(32);
-    final StringBuilder sb = new StringBuilder(64);
-    try{
-      if (Files.exists(root) && Files.isDirectory(folder)){
-        Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
-          @Override public FileVisitResult visitFile(Path f, java.nio.file.attribute.BasicFileAttributes attr){
-            if (Files.isReadable(f)){
-              files.add(new FileEntry(root,sb,f,attr));
-            }
-            return FileVisitResult.CONTINUE;
-          }
-        });
-      }else{
-        ret.x = false;
-      }
-    }catch(Throwable t){
-      ret.x = false;
-    }
-    final Iterator<FileEntry> iter = files.iterator();
+  private <T> void writeFolder(final Manifest m, final T attach, final CompletionHandler<Boolean,T> func, final BiConsumer<FileEntry,Boolean> settled, final Consumer<Path> preWrite, final BiConsumer<Path,Boolean> postWrite){
+    final Container<Boolean> ret = new Container<Boolean>(m.isComplete());
+    final Iterator<FileEntry> iter = m.iterator();
     final WriteFolder<T> a = new WriteFolder<T>();
     a.loop = new CompletionHandler<Boolean,T>(){
       public void completed(Boolean b, T attach){
@@ -599,10 +710,7 @@ public class SocketWrapper {
     };
     a.send = new CompletionHandler<Void,T>(){
       public void completed(Void v, T attach){
-        SerializationStream s = new SerializationStream(a.e.relPath.length+12);
-        s.write(a.e.lastModified);
-        s.write(a.e.relPath);
-        writeBytes(s.data, attach, a.readStatus);
+        writeBytes(a.e.getHeader(), attach, a.readStatus);
       }
       public void failed(Throwable e, T attach){
         func.failed(e,attach);
@@ -623,14 +731,19 @@ public class SocketWrapper {
         if (b==Protocol.SUCCESS){
           // Indicates the lastModified timestamps do not match / the file does not exists. So we send the file over the socket
           if (preWrite!=null){
-            preWrite.accept(a.e.p);
+            preWrite.accept(a.e.getPath());
           }
-          if (postWrite==null){
-            writeFile(a.e.p, attach, a.loop);
+          if (postWrite==null && settled==null){
+            writeFile(a.e.getPath(), a.e.getLastModified(), attach, a.loop);
           }else{
-            writeFile(a.e.p, attach, new CompletionHandler<Boolean,T>(){
+            writeFile(a.e.getPath(), a.e.getLastModified(), attach, new CompletionHandler<Boolean,T>(){
               public void completed(Boolean b, T attach){
-                postWrite.accept(a.e.p,b);
+                if (postWrite!=null){
+                  postWrite.accept(a.e.getPath(),b);
+                }
+                if (settled!=null){
+                  settled.accept(a.e,b);
+                }
                 a.loop.completed(b,attach);
               }
               public void failed(Throwable t, T attach){
@@ -641,9 +754,15 @@ public class SocketWrapper {
           }
         }else if (b==Protocol.FAILURE){
           // Indicates a file error occurred
+          if (settled!=null){
+            settled.accept(a.e,false);
+          }
           a.loop.completed(false,attach);
         }else{
           // Indicates the remote file exists and the lastModified timestamp matches, so no changes are required
+          if (settled!=null){
+            settled.accept(a.e,false);
+          }
           a.loop.completed(true,attach);
         }
       }
@@ -655,25 +774,11 @@ public class SocketWrapper {
     a.loop.completed(true,attach);
   }
   private static class WriteFolder<T> {
-    volatile FileEntry e;
-    volatile CompletionHandler<Boolean,T> loop;
-    volatile CompletionHandler<Void,T> send;
-    volatile CompletionHandler<Void,T> readStatus;
-    volatile CompletionHandler<Byte,T> sendData;
-  }
-  private static class FileEntry {
-    volatile Path p;
-    volatile long lastModified;
-    volatile byte[] relPath;
-    public FileEntry(Path root, StringBuilder sb, Path p, java.nio.file.attribute.BasicFileAttributes attr){
-      this.p = p;
-      lastModified = attr.lastModifiedTime().toMillis();
-      for (Path x:root.relativize(p)){
-        sb.append(x.toString()).append('/');
-      }
-      relPath = sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
-      sb.setLength(0);
-    }
+    FileEntry e;
+    CompletionHandler<Boolean,T> loop;
+    CompletionHandler<Void,T> send;
+    CompletionHandler<Void,T> readStatus;
+    CompletionHandler<Byte,T> sendData;
   }
   /**
    * Reads a file from the underlying socket.
@@ -846,20 +951,20 @@ public class SocketWrapper {
     });
   }
   private class ReadFile<T>{
-    volatile CompletionHandler<Void,Void> HEADER;
-    volatile CompletionHandler<Byte,Void> HEADER2;
-    volatile CompletionHandler<byte[],Void> READER;
-    volatile CompletionHandler<Integer,Void> READER2;
-    volatile CompletionHandler<Integer,Void> TRANSFER;
-    volatile CompletionHandler<Void,Void> ERROR;
-    volatile CompletionHandler<Boolean,T> func;
-    volatile ByteBuffer transfer;
-    volatile T attach;
-    volatile AsynchronousFileChannel ch;
-    volatile long pos = 0;
-    volatile byte[] buf = null;
-    volatile Path file;
-    volatile FileLock lock;
+    CompletionHandler<Void,Void> HEADER;
+    CompletionHandler<Byte,Void> HEADER2;
+    CompletionHandler<byte[],Void> READER;
+    CompletionHandler<Integer,Void> READER2;
+    CompletionHandler<Integer,Void> TRANSFER;
+    CompletionHandler<Void,Void> ERROR;
+    CompletionHandler<Boolean,T> func;
+    ByteBuffer transfer;
+    T attach;
+    AsynchronousFileChannel ch;
+    long pos = 0;
+    byte[] buf = null;
+    Path file;
+    FileLock lock;
     ReadFile(T attach, CompletionHandler<Boolean,T> func, AsynchronousFileChannel ch, Path file, FileLock lock){
       this.attach = attach;
       this.func = func;
@@ -919,11 +1024,30 @@ public class SocketWrapper {
    * Data will be read from the file in blocks of at most {@code fileBlockSize}, so the program won't run out of memory.
    * Data will be written to the socket in blocks of at most {@code blockSize} bytes, so that {@code TimeoutException} does not occur.
    * @param file is a path to the data source which will copied to the socket.
+   * @param lastModified is the last modified time reported to the remote host, or {@code -1} to use the file's current last modified time.
    * @param attach is any object which the {@code CompletionHandler} should have access to.
    * @param func is the {@code CompletionHandler} invoked upon success or failure of this method.
    * @param <T> is the type of attached object.
    */
-  private <T> void writeFile(final Path file, final T attach, final CompletionHandler<Boolean,T> func){
+  private <T> void writeFile(final Path file, final long lastModified, final T attach, final CompletionHandler<Boolean,T> func){
+    final SocketWrapperConfig config = SocketWrapper.config;
+    final java.util.concurrent.CompletableFuture<ContentCache.Content> cached = config==null?null:config.getContent(file);
+    if (cached==null){
+      writeFile(file, lastModified, null, attach, func);
+    }else{
+      cached.whenComplete(new BiConsumer<ContentCache.Content,Throwable>(){
+        public void accept(ContentCache.Content content, Throwable t){
+          writeFile(file, lastModified, content, attach, func);
+        }
+      });
+    }
+  }
+  /**
+   * Writes a file to the underlying socket.
+   * @param content is the cached content of the file, or {@code null} to read the file directly.
+   * @see #writeFile(Path,long,Object,CompletionHandler)
+   */
+  private <T> void writeFile(final Path file, final long lastModified, final ContentCache.Content content, final T attach, final CompletionHandler<Boolean,T> func){
     /* Protocol:
       Open a FileChannel for reading the given file.
       Write a message to the socket indicating whether the file-open was successful.
@@ -940,8 +1064,18 @@ public class SocketWrapper {
     c.useExtraSteps(false);
     AsynchronousFileChannel ch = null;
     try{
-      ch = AsynchronousFileChannel.open(file, readOpenOptions, Database.exec, emptyAttributes);
-      final WriteFile<T> req = new WriteFile<T>(attach, func, ch, file);
+      final WriteFile<T> req;
+      if (content==null){
+        ch = AsynchronousFileChannel.open(file, readOpenOptions, Database.exec, emptyAttributes);
+        req = new WriteFile<T>(attach, func, ch, file);
+      }else{
+        req = new WriteFile<T>(attach, func, null, file);
+        req.content = content.getData();
+        req.lastModified = content.getLastModified();
+      }
+      if (lastModified!=-1){
+        req.lastModified = lastModified;
+      }
       req.RESPONSE = new CompletionHandler<Void,Void>(){
         public void completed(Void v, Void attach){
           read(null,req.HEADER);
@@ -955,7 +1089,7 @@ public class SocketWrapper {
           if (b.byteValue()==Protocol.CONTINUE){
             try{
               if (req.fileBuf==null){
-                long size = req.ch.size();
+                long size = req.content==null?req.ch.size():req.content.capacity();
                 if (size==0){
                   write(Protocol.EOF, null, req.EOF);
                   return;
@@ -964,7 +1098,19 @@ public class SocketWrapper {
               }else{
                 req.fileBuf.clear();
               }
-              req.ch.read(req.fileBuf, req.pos, null, req.TRANSFER);
+              if (req.content==null){
+                req.ch.read(req.fileBuf, req.pos, null, req.TRANSFER);
+              }else{
+                //Copy the next block out of the shared buffer, since socket writes encrypt data in place
+                final int len = (int)Math.min(req.fileBuf.remaining(), req.content.capacity()-req.pos);
+                if (len<=0){
+                  req.TRANSFER.completed(-1,null);
+                }else{
+                  req.content.limit((int)req.pos+len).position((int)req.pos);
+                  req.fileBuf.put(req.content);
+                  req.TRANSFER.completed(len,null);
+                }
+              }
             }catch(Throwable e){
               Logger.logAsync("Error occurred while reading data from file \""+file.toString()+"\".", e);
               write(Protocol.FILE_ERROR, null, req.ERROR);
@@ -1049,19 +1195,23 @@ public class SocketWrapper {
     }
   }
   private class WriteFile<T>{
-    volatile CompletionHandler<Void,Void> RESPONSE;
-    volatile CompletionHandler<Byte,Void> HEADER;
-    volatile CompletionHandler<Integer,Void> TRANSFER;
-    volatile CompletionHandler<Void,Void> WRITER;
-    volatile CompletionHandler<Void,Void> EOF;
-    volatile CompletionHandler<Void,Void> ERROR;
-    volatile CompletionHandler<Boolean,T> func;
-    volatile T attach;
-    volatile AsynchronousFileChannel ch;
-    volatile long pos = 0;
-    volatile ByteBuffer fileBuf = null;
-    volatile int x;
-    volatile Path file;
+    CompletionHandler<Void,Void> RESPONSE;
+    CompletionHandler<Byte,Void> HEADER;
+    CompletionHandler<Integer,Void> TRANSFER;
+    CompletionHandler<Void,Void> WRITER;
+    CompletionHandler<Void,Void> EOF;
+    CompletionHandler<Void,Void> ERROR;
+    CompletionHandler<Boolean,T> func;
+    T attach;
+    AsynchronousFileChannel ch;
+    /** Cached file content, or {@code null} if the file is read through {@link #ch}. */
+    ByteBuffer content = null;
+    /** The last modified time reported to the remote host, or {@code -1} to use the file's current last modified time. */
+    long lastModified = -1;
+    long pos = 0;
+    ByteBuffer fileBuf = null;
+    int x;
+    Path file;
     WriteFile(T attach, CompletionHandler<Boolean,T> func, AsynchronousFileChannel ch, Path file){
       this.attach = attach;
       this.func = func;
@@ -1070,15 +1220,20 @@ public class SocketWrapper {
     }
     void success(final boolean transfer){
       fileBuf = null;
-      try{
-        ch.close();
-      }catch(Throwable err){
-        Logger.logAsync("Error occurred while closing AsynchronousFileChannel to \""+file.toString()+"\".", err);
+      content = null;
+      if (ch!=null){
+        try{
+          ch.close();
+        }catch(Throwable err){
+          Logger.logAsync("Error occurred while closing AsynchronousFileChannel to \""+file.toString()+"\".", err);
+        }
       }
       if (transfer){
-        long time;
+        long time = lastModified;
         try{
-          time = Files.getLastModifiedTime(file).toMillis();
+          if (time==-1){
+            time = Files.getLastModifiedTime(file).toMillis();
+          }
         }catch (Throwable t){
           Logger.logAsync("Error occurred while retrieving last modified time of \""+file.toString()+"\".", t);
           time = System.currentTimeMillis();
@@ -1103,10 +1258,13 @@ public class SocketWrapper {
     }
     void fail(Throwable e){
       fileBuf = null;
-      try{
-        ch.close();
-      }catch(Throwable err){
-        Logger.logAsync("Error occurred while closing AsynchronousFileChannel to \""+file.toString()+"\".", err);
+      content = null;
+      if (ch!=null){
+        try{
+          ch.close();
+        }catch(Throwable err){
+          Logger.logAsync("Error occurred while closing AsynchronousFileChannel to \""+file.toString()+"\".", err);
+        }
       }
       c.useExtraSteps(true);
       func.failed(e,attach);
@@ -1175,7 +1333,7 @@ public class SocketWrapper {
       final int offset = b?0:req.pos;
       final int length = b?arr.length:Math.min(blockSize, req.end-req.pos);
       req.pos = b?req.offset:req.pos+blockSize;
-      read(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           if (b){
             SerializationStream s = new SerializationStream(arr);
@@ -1196,6 +1354,7 @@ public class SocketWrapper {
   }
   private <T> void readInternal(ReadBytesPreAlloc<T> req, boolean hashFailed){
     if (hashFailed && --req.attempts==0){
+      totalHashFailures.increment();
       req.fail("Hash comparision failure.");
     }else if (req.pos>=req.end){
       req.success();
@@ -1211,19 +1370,19 @@ public class SocketWrapper {
         req.attempts = attempts;
       }
       c.mark();
-      read(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           c.decrypt(arr,offset,offset+length);
           final byte[] hash = c.hash(4);
           final ByteBuffer buf = ByteBuffer.allocate(4);
-          read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+          read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
             public void completed(Void x, Void v){
               byte[] hashRead = buf.array();
               c.decrypt(hashRead);
               final boolean hashSuccess = java.util.Arrays.equals(hash,hashRead);
               final byte[] ret = (hashSuccess?Protocol.HASH_COMPARISON_SUCCESS_ARRAY:Protocol.HASH_COMPARISON_FAILURE_ARRAY).clone();
               c.encrypt(ret);
-              write(ByteBuffer.wrap(ret), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+              write(ByteBuffer.wrap(ret), getTimeout(), null, new CompletionHandler<Void,Void>(){
                 public void completed(Void x, Void v){
                   if (hashSuccess){
                     req.pos = newPos;
@@ -1238,6 +1397,8 @@ public class SocketWrapper {
                     }
                     readInternal(req,false);
                   }else{
+                    ++hashRetries;
+                    totalHashRetries.increment();
                     readInternal(req,true);
                   }
                 }
@@ -1258,14 +1419,14 @@ public class SocketWrapper {
     }
   }
   private class ReadBytesPreAlloc<T> {
-    volatile CompletionHandler<Integer,T> func;
-    volatile T attach;
-    volatile int attempts = SocketWrapper.attempts;
-    volatile byte[] data;
-    volatile int pos = -1;
-    volatile int offset;
-    volatile int length;
-    volatile int end = 0;
+    CompletionHandler<Integer,T> func;
+    T attach;
+    int attempts = SocketWrapper.attempts;
+    byte[] data;
+    int pos = -1;
+    int offset;
+    int length;
+    int end = 0;
     ReadBytesPreAlloc(byte[] data, int offset, T attach, CompletionHandler<Integer,T> func){
       this.attach = attach;
       this.func = func;
@@ -1330,7 +1491,7 @@ public class SocketWrapper {
       final int offset = b?0:req.pos;
       final int length = b?arr.length:Math.min(blockSize, req.data.length-req.pos);
       req.pos = b?0:req.pos+blockSize;
-      read(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           if (b){
             SerializationStream s = new SerializationStream(arr);
@@ -1352,6 +1513,7 @@ public class SocketWrapper {
   }
   private <T> void readInternal(ReadBytes<T> req, boolean hashFailed){
     if (hashFailed && --req.attempts==0){
+      totalHashFailures.increment();
       req.fail("Hash comparision failure.");
     }else if (req.data!=null && req.pos>=req.data.length){
       req.success();
@@ -1367,19 +1529,19 @@ public class SocketWrapper {
         req.attempts = attempts;
       }
       c.mark();
-      read(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           c.decrypt(arr,offset,offset+length);
           final byte[] hash = c.hash(4);
           final ByteBuffer buf = ByteBuffer.allocate(4);
-          read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+          read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
             public void completed(Void x, Void v){
               byte[] hashRead = buf.array();
               c.decrypt(hashRead);
               final boolean hashSuccess = java.util.Arrays.equals(hash,hashRead);
               final byte[] ret = (hashSuccess?Protocol.HASH_COMPARISON_SUCCESS_ARRAY:Protocol.HASH_COMPARISON_FAILURE_ARRAY).clone();
               c.encrypt(ret);
-              write(ByteBuffer.wrap(ret), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+              write(ByteBuffer.wrap(ret), getTimeout(), null, new CompletionHandler<Void,Void>(){
                 public void completed(Void x, Void v){
                   if (hashSuccess){
                     req.pos = newPos;
@@ -1395,6 +1557,8 @@ public class SocketWrapper {
                     }
                     readInternal(req,false);
                   }else{
+                    ++hashRetries;
+                    totalHashRetries.increment();
                     readInternal(req,true);
                   }
                 }
@@ -1415,12 +1579,12 @@ public class SocketWrapper {
     }
   }
   private class ReadBytes<T> {
-    volatile CompletionHandler<byte[],T> func;
-    volatile T attach;
-    volatile int attempts = SocketWrapper.attempts;
-    volatile byte[] data = null;
-    volatile int pos = -1;
-    volatile int limit;
+    CompletionHandler<byte[],T> func;
+    T attach;
+    int attempts = SocketWrapper.attempts;
+    byte[] data = null;
+    int pos = -1;
+    int limit;
     ReadBytes(int limit, T attach, CompletionHandler<byte[],T> func){
       this.limit = limit;
       this.attach = attach;
@@ -1495,7 +1659,7 @@ public class SocketWrapper {
       final int offset = b?0:req.pos;
       final int length = b?req.header.length:Math.min(blockSize, req.end-req.pos);
       req.pos = b?req.offset:req.pos+blockSize;
-      write(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      write(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           writeInternal(req);
         }
@@ -1507,6 +1671,7 @@ public class SocketWrapper {
   }
   private <T> void writeInternal(final WriteBytes<T> req, boolean hashFailed){
     if (hashFailed && --req.attempts==0){
+      totalHashFailures.increment();
       req.fail("Hash comparision failure.");
     }else if (req.pos>=req.end){
       req.success();
@@ -1522,12 +1687,12 @@ public class SocketWrapper {
         req.hash = c.hash(4);
         c.encrypt(req.hash);
       }
-      write(ByteBuffer.wrap(arr, offset, length), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      write(ByteBuffer.wrap(arr, offset, length), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
-          write(ByteBuffer.wrap(req.hash), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+          write(ByteBuffer.wrap(req.hash), getTimeout(), null, new CompletionHandler<Void,Void>(){
             public void completed(Void x, Void v){
               final ByteBuffer buf = ByteBuffer.allocate(4);
-              read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+              read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
                 public void completed(Void x, Void v){
                   byte[] arr = buf.array();
                   c.mark();
@@ -1537,6 +1702,8 @@ public class SocketWrapper {
                     writeInternal(req,false);
                   }else{
                     c.reset();
+                    ++hashRetries;
+                    totalHashRetries.increment();
                     writeInternal(req,true);
                   }
                 }
@@ -1557,15 +1724,15 @@ public class SocketWrapper {
     }
   }
   private class WriteBytes<T> {
-    volatile CompletionHandler<Void,T> func;
-    volatile T attach;
-    volatile int attempts = SocketWrapper.attempts;
-    volatile byte[] data;
-    volatile byte[] header;
-    volatile byte[] hash;
-    volatile int pos = -1;
-    volatile int offset;
-    volatile int end;
+    CompletionHandler<Void,T> func;
+    T attach;
+    int attempts = SocketWrapper.attempts;
+    byte[] data;
+    byte[] header;
+    byte[] hash;
+    int pos = -1;
+    int offset;
+    int end;
     WriteBytes(T attach, CompletionHandler<Void,T> func, byte[] data, int offset, int length){
       this.attach = attach;
       this.func = func;
@@ -1598,7 +1765,7 @@ public class SocketWrapper {
     if (c==null){
       //No encryption or hashing
       final ByteBuffer buf = ByteBuffer.allocate(1);
-      read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           buf.flip();
           func.completed(buf.get(), attach);
@@ -1626,11 +1793,12 @@ public class SocketWrapper {
   }
   private <T> void readInternal(final ReadByte<T> req){
     if (--req.attempts==0){
+      totalHashFailures.increment();
       req.fail("Hash comparision failure.");
     }else{
       c.mark();
       final ByteBuffer buf = ByteBuffer.allocate(2);
-      read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           buf.flip();
           final byte b = c.decrypt(buf.get());
@@ -1638,12 +1806,14 @@ public class SocketWrapper {
           ByteBuffer buf2 = ByteBuffer.allocate(1);
           buf2.put(c.encrypt(success?Protocol.HASH_COMPARISON_SUCCESS:Protocol.HASH_COMPARISON_FAILURE));
           buf2.flip();
-          write(buf2, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+          write(buf2, getTimeout(), null, new CompletionHandler<Void,Void>(){
             public void completed(Void x, Void v){
               if (success){
                 req.success(b);
               }else{
                 c.reset();
+                ++hashRetries;
+                totalHashRetries.increment();
                 readInternal(req);
               }
             }
@@ -1659,9 +1829,9 @@ public class SocketWrapper {
     }
   }
   private class ReadByte<T> {
-    volatile CompletionHandler<Byte,T> func;
-    volatile T attach;
-    volatile int attempts = SocketWrapper.attempts;
+    CompletionHandler<Byte,T> func;
+    T attach;
+    int attempts = SocketWrapper.attempts;
     ReadByte(T attach, CompletionHandler<Byte,T> func){
       this.attach = attach;
       this.func = func;
@@ -1689,7 +1859,7 @@ public class SocketWrapper {
   public <T> void write(byte b, final T attach, final CompletionHandler<Void,T> func){
     if (c==null){
       //No encryption or hashing
-      write(ByteBuffer.wrap(new byte[]{b}), config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      write(ByteBuffer.wrap(new byte[]{b}), getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           func.completed(null, attach);
         }
@@ -1716,16 +1886,17 @@ public class SocketWrapper {
   }
   private <T> void writeInternal(final WriteByte<T> req){
     if (--req.attempts==0){
+      totalHashFailures.increment();
       req.fail("Hash comparision failure.");
     }else{
       ByteBuffer buf = ByteBuffer.allocate(2);
       buf.put(req.b);
       buf.put(req.hash);
       buf.flip();
-      write(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+      write(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
         public void completed(Void x, Void v){
           final ByteBuffer buf = ByteBuffer.allocate(1);
-          read(buf, config.getTimeout(), null, new CompletionHandler<Void,Void>(){
+          read(buf, getTimeout(), null, new CompletionHandler<Void,Void>(){
             public void completed(Void x, Void v){
               buf.flip();
               c.mark();
@@ -1733,6 +1904,8 @@ public class SocketWrapper {
                 req.success();
               }else{
                 c.reset();
+                ++hashRetries;
+                totalHashRetries.increment();
                 writeInternal(req);
               }
             }
@@ -1748,11 +1921,11 @@ public class SocketWrapper {
     }
   }
   private class WriteByte<T> {
-    volatile CompletionHandler<Void,T> func;
-    volatile T attach;
-    volatile int attempts = SocketWrapper.attempts;
-    volatile byte b;
-    volatile byte hash;
+    CompletionHandler<Void,T> func;
+    T attach;
+    int attempts = SocketWrapper.attempts;
+    byte b;
+    byte hash;
     WriteByte(T attach, CompletionHandler<Void,T> func, byte b, byte hash){
       this.attach = attach;
       this.func = func;
@@ -1777,16 +1950,20 @@ public class SocketWrapper {
   private <T> void write(final ByteBuffer buf, final long timeout, final T attach, final CompletionHandler<Void,T> h){
     buf.mark();
     final long expiry = System.currentTimeMillis()+timeout;
-    socket.write(buf, timeout, TimeUnit.MILLISECONDS, attach, new CompletionHandler<Integer,T>(){
+    socket.write(buf, timeout, attach, new CompletionHandler<Integer,T>(){
       public void completed(Integer x, T attach){
         if (x==-1){
           h.failed(new Exception("Connection closed unexpectedly."),attach);
-        }else if (buf.hasRemaining()){
+          return;
+        }
+        bytesWritten+=x;
+        totalBytesWritten.add(x);
+        if (buf.hasRemaining()){
           long ms = expiry-System.currentTimeMillis();
           if (ms<=0){
             h.failed(new InterruptedByTimeoutException(), attach);
           }else{
-            socket.write(buf, ms, TimeUnit.MILLISECONDS, attach, this);
+            socket.write(buf, ms, attach, this);
           }
         }else{
           final int pos = buf.position();
@@ -1808,16 +1985,20 @@ public class SocketWrapper {
   private <T> void read(final ByteBuffer buf, final long timeout, final T attach, final CompletionHandler<Void,T> h){
     buf.mark();
     final long expiry = System.currentTimeMillis()+timeout;
-    socket.read(buf, timeout, TimeUnit.MILLISECONDS, attach, new CompletionHandler<Integer,T>(){
+    socket.read(buf, timeout, attach, new CompletionHandler<Integer,T>(){
       public void completed(Integer x, T attach){
         if (x==-1){
           h.failed(new Exception("Connection closed unexpectedly."),attach);
-        }else if (buf.hasRemaining()){
+          return;
+        }
+        bytesRead+=x;
+        totalBytesRead.add(x);
+        if (buf.hasRemaining()){
           long ms = expiry-System.currentTimeMillis();
           if (ms<=0){
             h.failed(new InterruptedByTimeoutException(), attach);
           }else{
-            socket.read(buf, ms, TimeUnit.MILLISECONDS, attach, this);
+            socket.read(buf, ms, attach, this);
           }
         }else{
           final int pos = buf.position();
@@ -25,4 +25,13 @@ public abstract class SocketWrapperConfig {
    * @param buf - contains raw bytes read from the socket.
    */
   public void onRead(String IP, ByteBuffer buf){}
+  /**
+   * Invoked before a file is written to a socket.
+   * May be used to serve the contents of frequently transferred files from memory.
+   * @param file - is the file to be written.
+   * @return a future which completes with the file's contents, or {@code null} to read the file directly. If the future completes exceptionally, the file is read directly.
+   */
+  public java.util.concurrent.CompletableFuture<ContentCache.Content> getContent(java.nio.file.Path file){
+    return null;
+  }
 }
\ No newline at end of file
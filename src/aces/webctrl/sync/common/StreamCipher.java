@@ -10,6 +10,8 @@ package aces.webctrl.sync.common;
  * Since a single corrupted bit can make two {@code StreamCipher} instances incompatible,
  * the {@link #hash(int)} or {@link #hashCode()} values should be compared after each transmission. This behavior provides a way to verify data integrity.
  * The {@link #mark()} and {@link #reset()} methods may be used to revert to an earlier internal state should data corruption occur.
+ * Instances are not thread-safe. Callers which share an instance between threads must provide their own happens-before edges,
+ * which {@link SocketWrapper} does by never having more than one operation pending at a time.
  * <p>Usage Example:
  * <pre>{@code
  * byte[] key = ...;
@@ -22,15 +24,15 @@ package aces.webctrl.sync.common;
  */
 public class StreamCipher {
   /** The symmetric key used for encryption and decryption. */
-  private volatile byte[] key = null;
+  private byte[] key = null;
   /** Stores the result of XORing all the bytes of {@link #key} together. */
-  private volatile byte keyXOR;
+  private byte keyXOR;
   /** Copy of {@link #key} stored and retrieved using {@link #mark()} and {@link #reset()}. */
-  private volatile byte[] lastKey = null;
+  private byte[] lastKey = null;
   /** Copy of {@link #keyXOR} stored and retrieved using {@link #mark()} and {@link #reset()}. */
-  private volatile byte lastKeyXOR;
+  private byte lastKeyXOR;
   /** Whether to take extra steps for improved security. There is a possible speed trade-off. */
-  private volatile boolean extra = true;
+  private boolean extra = true;
   /**
    * @return whether to take extra steps for improved security. There is a possible speed trade-off.
    */
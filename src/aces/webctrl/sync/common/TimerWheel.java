@@ -0,0 +1,170 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Hashed wheel timer which multiplexes any number of coarse-grained timeouts onto a single thread.
+ * Scheduling and cancellation are constant-time operations which never block.
+ * Expiration times are rounded up to the next tick, so this class is intended for deadlines measured in seconds.
+ * Tasks are executed on the timer thread, so they should return quickly.
+ */
+public class TimerWheel {
+  /** Length of a single tick in milliseconds. */
+  private final long tick;
+  /** Used to map a tick count to a bucket index. */
+  private final int mask;
+  /** Each bucket holds the timeouts which expire on some tick congruent to its index. Only accessed by {@link #worker}. */
+  private final ArrayList<Timeout>[] wheel;
+  /** Timeouts which have been scheduled, but not yet placed into a bucket. */
+  private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+  /** The thread which advances the wheel and executes expired tasks. */
+  private final Thread worker;
+  /** Reference point for converting between tick counts and {@code System.currentTimeMillis()}. */
+  private final long startTime = System.currentTimeMillis();
+  /** Number of ticks which have elapsed. Only accessed by {@link #worker}. */
+  private long ticks = 0;
+  /** Becomes {@code false} when {@link #stop()} is invoked. */
+  private volatile boolean running = true;
+  /**
+   * Creates and starts a new timer.
+   * @param name is the name given to the timer thread.
+   * @param tick is the length of a single tick in milliseconds.
+   * @param ticksPerWheel is rounded up to a power of two.
+   */
+  @SuppressWarnings({"unchecked","rawtypes"})
+  public TimerWheel(String name, long tick, int ticksPerWheel){
+    this.tick = Math.max(tick,1L);
+    int size = 1;
+    while (size<ticksPerWheel){
+      size<<=1;
+    }
+    mask = size-1;
+    wheel = new ArrayList[size];
+    for (int i=0;i<size;++i){
+      wheel[i] = new ArrayList<Timeout>();
+    }
+    worker = new Thread(name){
+      public void run(){
+        loop();
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+  /**
+   * Schedules a task for one-time execution.
+   * @param delay is the number of milliseconds to wait before executing the task.
+   * @param task is the task to execute.
+   * @return a handle which may be used to cancel the task.
+   */
+  public Timeout schedule(long delay, Runnable task){
+    final Timeout t = new Timeout(System.currentTimeMillis()+Math.max(delay,0L), task);
+    if (running){
+      pending.offer(t);
+    }
+    return t;
+  }
+  /**
+   * Stops the timer thread. Tasks which have not yet expired are discarded.
+   */
+  public void stop(){
+    running = false;
+    worker.interrupt();
+  }
+  private void loop(){
+    ArrayList<Timeout> bucket;
+    Timeout t;
+    long sleep;
+    int i,j,len;
+    while (running){
+      sleep = startTime+(ticks+1)*tick-System.currentTimeMillis();
+      if (sleep>0){
+        try{
+          Thread.sleep(sleep);
+        }catch(InterruptedException e){
+          continue;
+        }
+      }
+      while ((t=pending.poll())!=null){
+        if (!t.isCancelled()){
+          final long calculated = Math.max((t.deadline-startTime+tick-1)/tick-1, ticks);
+          t.rounds = (calculated-ticks)/wheel.length;
+          wheel[(int)(calculated&mask)].add(t);
+        }
+      }
+      bucket = wheel[(int)(ticks&mask)];
+      len = bucket.size();
+      j = 0;
+      for (i=0;i<len;++i){
+        t = bucket.get(i);
+        if (t.isCancelled()){
+          continue;
+        }
+        if (t.rounds<=0){
+          t.expire();
+        }else{
+          --t.rounds;
+          bucket.set(j++,t);
+        }
+      }
+      for (i=len-1;i>=j;--i){
+        bucket.remove(i);
+      }
+      ++ticks;
+    }
+    for (ArrayList<Timeout> b:wheel){
+      b.clear();
+    }
+    pending.clear();
+  }
+  /**
+   * Handle for a scheduled task.
+   */
+  public static class Timeout {
+    private final static int WAITING = 0;
+    private final static int CANCELLED = 1;
+    private final static int EXPIRED = 2;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    private final long deadline;
+    private final Runnable task;
+    /** Remaining revolutions of the wheel before expiration. Only accessed by the timer thread. */
+    private long rounds;
+    private Timeout(long deadline, Runnable task){
+      this.deadline = deadline;
+      this.task = task;
+    }
+    /**
+     * @return the value of {@code System.currentTimeMillis()} when this task is scheduled to execute.
+     */
+    public long getDeadline(){
+      return deadline;
+    }
+    /**
+     * Prevents the task from executing.
+     * @return {@code true} if the task was cancelled; {@code false} if it has already executed or been cancelled.
+     */
+    public boolean cancel(){
+      return state.compareAndSet(WAITING,CANCELLED);
+    }
+    /**
+     * @return whether or not this task has been cancelled.
+     */
+    public boolean isCancelled(){
+      return state.get()==CANCELLED;
+    }
+    private void expire(){
+      if (state.compareAndSet(WAITING,EXPIRED)){
+        try{
+          task.run();
+        }catch(Throwable e){
+          Logger.logAsync("Error occurred in TimerWheel task.", e);
+        }
+      }
+    }
+  }
+}
\ No newline at end of file
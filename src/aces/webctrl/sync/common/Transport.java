@@ -0,0 +1,39 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.common;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+/**
+ * Byte stream used by {@link SocketWrapper} to communicate with a remote host.
+ * Operations follow the same contract as {@code AsynchronousSocketChannel}:
+ * at most one read and one write may be pending, each handler receives the number of bytes transferred or {@code -1} at end-of-stream,
+ * and an operation which does not complete within its timeout fails with {@code InterruptedByTimeoutException}.
+ * <p>
+ * Implementations must guarantee that actions taken before initiating an operation happen-before its handler is invoked.
+ * {@code SocketWrapper} relies on this to keep per-connection state in plain fields.
+ */
+public interface Transport {
+  /**
+   * Reads a sequence of bytes into the given buffer.
+   * @param timeout is the maximum number of milliseconds to wait.
+   */
+  public <A> void read(ByteBuffer dst, long timeout, A attach, CompletionHandler<Integer,? super A> handler);
+  /**
+   * Writes a sequence of bytes from the given buffer.
+   * @param timeout is the maximum number of milliseconds to wait.
+   */
+  public <A> void write(ByteBuffer src, long timeout, A attach, CompletionHandler<Integer,? super A> handler);
+  /**
+   * @return the address of the remote host.
+   */
+  public SocketAddress getRemoteAddress() throws IOException;
+  /**
+   * Closes the underlying socket. Pending operations fail with {@code AsynchronousCloseException}.
+   */
+  public void close() throws IOException;
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.util.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which limits the number of concurrently active sync sessions.
+ * Sessions which cannot start immediately wait in a FIFO queue.
+ * When the expected wait is longer than {@link Config#maxQueueWait}, the client is asked to retry later instead.
+ */
+public class Admission {
+  /** Number of sessions which currently hold a permit. Guarded by {@code Admission.class}. */
+  private static int active = 0;
+  /** Sessions waiting for a permit. Guarded by {@code Admission.class}. */
+  private final static ArrayDeque<Ticket> queue = new ArrayDeque<Ticket>();
+  /** Exponentially weighted moving average of session durations in milliseconds. Guarded by {@code Admission.class}. */
+  private static double averageDuration = 30000.0;
+  /**
+   * Callbacks used to notify a session of the admission decision.
+   */
+  public static interface Listener {
+    /**
+     * Invoked once a permit has been granted.
+     * This may be invoked before {@link Admission#acquire(Listener)} returns.
+     * @param t is the ticket which holds the permit.
+     */
+    public void admit(Ticket t);
+    /**
+     * Invoked when the session should not wait any longer.
+     * @param seconds is the suggested number of seconds to wait before retrying.
+     */
+    public void reject(long seconds);
+  }
+  /**
+   * Represents a session's place in line.
+   */
+  public static class Ticket {
+    private final Listener listener;
+    private volatile boolean admitted = false;
+    private volatile boolean done = false;
+    private volatile TimerWheel.Timeout timeout = null;
+    private Ticket(Listener listener){
+      this.listener = listener;
+    }
+    /**
+     * @return whether or not this ticket holds a permit.
+     */
+    public boolean isAdmitted(){
+      return admitted;
+    }
+  }
+  /**
+   * Requests a permit to start a sync session.
+   * Exactly one method of the given listener will eventually be invoked, unless the ticket is released first.
+   * @return a ticket which must be passed to {@link #release(Ticket,long)} when the session terminates.
+   */
+  public static Ticket acquire(final Listener listener){
+    final Ticket t = new Ticket(listener);
+    final int maxSessions = Math.max(Config.maxSessions, 1);
+    final long maxQueueWait = Config.maxQueueWait;
+    boolean admit = false;
+    long reject = -1;
+    synchronized (Admission.class){
+      if (active<maxSessions){
+        ++active;
+        t.admitted = true;
+        admit = true;
+      }else{
+        final long wait = estimateWait(queue.size()+1, maxSessions);
+        if (wait>maxQueueWait){
+          t.done = true;
+          reject = wait;
+        }else{
+          queue.offer(t);
+        }
+      }
+    }
+    if (admit){
+      listener.admit(t);
+    }else if (reject!=-1){
+      listener.reject(toSeconds(reject));
+    }else{
+      final TimerWheel timer = Main.getTimer();
+      if (timer!=null){
+        t.timeout = timer.schedule(maxQueueWait, new Runnable(){
+          public void run(){
+            expire(t);
+          }
+        });
+      }
+    }
+    return t;
+  }
+  /**
+   * Releases the permit held by a ticket, or removes the ticket from the queue if it is still waiting.
+   * @param duration is the number of milliseconds the session held its permit, which is used to estimate queue wait times, or {@code -1} if the session ended without syncing.
+   */
+  public static void release(Ticket t, long duration){
+    if (t==null){
+      return;
+    }
+    final TimerWheel.Timeout timeout = t.timeout;
+    if (timeout!=null){
+      timeout.cancel();
+    }
+    Ticket next = null;
+    synchronized (Admission.class){
+      if (t.done){
+        return;
+      }
+      t.done = true;
+      if (t.admitted){
+        if (duration>=0){
+          averageDuration+=(duration-averageDuration)*0.1;
+        }
+        while ((next=queue.poll())!=null){
+          if (!next.done){
+            next.admitted = true;
+            break;
+          }
+        }
+        if (next==null){
+          --active;
+        }
+      }else{
+        queue.remove(t);
+      }
+    }
+    if (next!=null){
+      final TimerWheel.Timeout nextTimeout = next.timeout;
+      if (nextTimeout!=null){
+        nextTimeout.cancel();
+      }
+      next.listener.admit(next);
+    }
+  }
+  /**
+   * Invoked when a ticket has waited for longer than {@link Config#maxQueueWait}.
+   */
+  private static void expire(Ticket t){
+    long wait;
+    synchronized (Admission.class){
+      if (t.done || t.admitted){
+        return;
+      }
+      t.done = true;
+      queue.remove(t);
+      wait = estimateWait(queue.size()+1, Math.max(Config.maxSessions, 1));
+    }
+    t.listener.reject(toSeconds(wait));
+  }
+  /**
+   * Must be invoked while holding the lock on {@code Admission.class}.
+   * @return the expected number of milliseconds until the session at the given queue position is admitted.
+   */
+  private static long estimateWait(int position, int maxSessions){
+    return (long)(averageDuration*position/maxSessions);
+  }
+  /**
+   * @return the number of seconds in which a typical session completes, which is suggested to clients waiting for a session to end.
+   */
+  public static long estimateRetry(){
+    final double d;
+    synchronized (Admission.class){
+      d = averageDuration;
+    }
+    return toSeconds((long)d);
+  }
+  private static long toSeconds(long millis){
+    return Math.max((millis+999L)/1000L, 1L);
+  }
+  /**
+   * @return the number of sessions which currently hold a permit.
+   */
+  public synchronized static int getActive(){
+    return active;
+  }
+  /**
+   * @return the number of sessions waiting for a permit.
+   */
+  public synchronized static int getQueued(){
+    return queue.size();
+  }
+}
\ No newline at end of file
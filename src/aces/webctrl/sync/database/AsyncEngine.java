@@ -0,0 +1,155 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Default engine built on {@code AsynchronousChannelGroup}.
+ * Each group has a fixed number of threads, all of which run the group's event loop and invoke completion handlers directly.
+ * Completion handlers for any connection may run on any thread of the connection's group.
+ * <p>
+ * When more than one shard is requested, each shard has its own channel group and its own listener, all bound to the same port with {@code SO_REUSEPORT}.
+ * The operating system then spreads incoming connections across the shards, so no single accept loop or group becomes a bottleneck.
+ * Every thread of a shard polls for that shard's events, so a shard never waits on a single poller.
+ * Platforms without {@code SO_REUSEPORT} fall back to a single shard, because an asynchronous channel cannot be moved to another group after it is accepted.
+ */
+public class AsyncEngine extends Engine {
+  private volatile Shard[] shards = new Shard[0];
+  @Override public String getName(){
+    return "AIO";
+  }
+  @Override public void start(int port, int backlog, int threads, int shards) throws Exception {
+    shards = Math.max(Math.min(shards, threads), 1);
+    if (shards>1 && !isReusePortSupported()){
+      Logger.log("SO_REUSEPORT is not supported on this platform. Using a single accept shard.");
+      shards = 1;
+    }
+    final Shard[] arr = new Shard[shards];
+    try{
+      for (int i=0;i<shards;++i){
+        //Distribute threads as evenly as possible
+        arr[i] = new Shard(i, threads/shards+(i<threads%shards?1:0), shards==1?"IO":"IO-"+(i+1));
+        if (shards>1 && !reusePort(arr[i].server)){
+          throw new java.io.IOException("Failed to enable SO_REUSEPORT.");
+        }
+        arr[i].server.bind(new InetSocketAddress(port), backlog);
+      }
+    }catch(Throwable t){
+      for (Shard s:arr){
+        if (s!=null){
+          s.close();
+        }
+      }
+      throw t;
+    }
+    initShards(shards);
+    this.shards = arr;
+    if (shards>1){
+      Logger.log("Started "+shards+" accept shards, each polling with "+(threads/shards)+(threads%shards==0?"":" or "+(threads/shards+1))+" IO threads.");
+    }
+    for (Shard s:arr){
+      s.accept();
+    }
+  }
+  @Override public void stop(){
+    for (Shard s:shards){
+      s.close();
+    }
+  }
+  @Override public boolean awaitTermination(long timeout) throws InterruptedException {
+    final long deadline = System.currentTimeMillis()+timeout;
+    for (Shard s:shards){
+      if (!s.group.awaitTermination(Math.max(deadline-System.currentTimeMillis(),1L), TimeUnit.MILLISECONDS)){
+        return false;
+      }
+    }
+    return true;
+  }
+  @Override public String report(){
+    final StringBuilder sb = new StringBuilder();
+    String str;
+    for (Shard s:shards){
+      str = s.stats.report();
+      if (str!=null){
+        if (sb.length()>0){
+          sb.append(' ');
+        }
+        sb.append(str);
+      }
+    }
+    str = reportShards();
+    if (str!=null){
+      if (sb.length()>0){
+        sb.append(' ');
+      }
+      sb.append(str);
+    }
+    return sb.length()==0?null:sb.toString();
+  }
+  /**
+   * Handlers run directly on the group's threads, so there is no run queue to observe.
+   * Operations which have been submitted but whose handlers have not started are reported as queued instead, which includes reads waiting for data from idle clients.
+   */
+  @Override public Pool[] getPools(){
+    final Shard[] arr = shards;
+    final Pool[] pools = new Pool[arr.length];
+    HandlerStats s;
+    for (int i=0;i<arr.length;++i){
+      s = arr[i].stats;
+      pools[i] = new Pool(i+1, s.getThreads(), s.getActive(), s.getPending());
+    }
+    return pools;
+  }
+  /**
+   * Listener and channel group which accept and serve connections independently of other shards.
+   */
+  private class Shard implements CompletionHandler<AsynchronousSocketChannel,Void> {
+    final int index;
+    /** Records the activity of completion handlers for socket operations. */
+    final HandlerStats stats;
+    /** Essentially a group of worker threads which complete tasks on a shared queue */
+    final AsynchronousChannelGroup group;
+    /** Server socket which is bound to {@link Config#port} */
+    final AsynchronousServerSocketChannel server;
+    Shard(int index, int threads, String name) throws java.io.IOException {
+      this.index = index;
+      stats = new HandlerStats(name, threads);
+      group = AsynchronousChannelGroup.withFixedThreadPool(threads, stats.getThreadFactory());
+      server = AsynchronousServerSocketChannel.open(group);
+    }
+    void accept(){
+      server.accept(null, this);
+    }
+    void close(){
+      try{
+        group.shutdownNow();
+      }catch(Throwable e){
+        Logger.logAsync("Error occurred while stopping AIO engine.", e);
+      }
+    }
+    @Override
+    public void completed(AsynchronousSocketChannel client, Void v){
+      try{
+        server.accept(null, this);
+        accepted(index);
+        Connections.add(new AsyncTransport(client, stats));
+      }catch(ShutdownChannelGroupException e){
+        //Occurs when group.shutdown() is called from another thread
+        //Do nothing
+      }catch(final Throwable e){
+        Main.acceptFailed("Connection acceptor encountered error.", e);
+      }
+    }
+    @Override
+    public void failed(final Throwable e, Void v){
+      if (!(e instanceof AsynchronousCloseException) && !(e instanceof ShutdownChannelGroupException)){
+        Main.acceptFailed("Failed to accept connection.", e);
+      }
+    }
+  }
+}
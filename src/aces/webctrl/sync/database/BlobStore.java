@@ -0,0 +1,247 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Namespace which stores the content of synchronized files as immutable, content-addressed blobs.
+ * Each blob is named after the SHA-256 hash of its content.
+ * A generation is a {@link Manifest} which maps relative paths to blobs.
+ * Not thread-safe; callers must serialize access.
+ */
+public class BlobStore {
+  /** Contains one file per blob. */
+  private volatile static Path blobFolder = null;
+  /** Stores the most recently published generation, so that unchanged files need not be rehashed after a restart. */
+  private volatile static Path generationFile = null;
+  /**
+   * Creates the blob folder if necessary, and removes temporary files left behind by an interrupted ingestion.
+   * @param dataFolder is the folder in which to store blobs.
+   */
+  public static void init(Path dataFolder) throws IOException {
+    blobFolder = dataFolder.resolve("blobs");
+    generationFile = dataFolder.resolve("generation");
+    Files.createDirectories(blobFolder);
+    try(
+      DirectoryStream<Path> stream = Files.newDirectoryStream(blobFolder, "*.tmp");
+    ){
+      for (Path p:stream){
+        Files.deleteIfExists(p);
+      }
+    }
+  }
+  /**
+   * @return the path to the blob with the given name.
+   */
+  public static Path getBlob(String name){
+    return blobFolder.resolve(name);
+  }
+  /**
+   * Loads the most recently published generation.
+   * @param root is the logical folder which contains the generation's entries.
+   * @return the generation, or {@code null} if it does not exist or any of its blobs are missing.
+   */
+  public static Manifest load(Path root){
+    try{
+      if (!Files.exists(generationFile)){
+        return null;
+      }
+      final SerializationStream s = new SerializationStream(Files.readAllBytes(generationFile));
+      final long created = s.readLong();
+      final int len = s.readInt();
+      final ArrayList<FileEntry> files = new ArrayList<FileEntry>(len);
+      byte[] relPath;
+      long lastModified, size;
+      Path blob;
+      for (int i=0;i<len;++i){
+        relPath = s.readBytes();
+        lastModified = s.readLong();
+        size = s.readLong();
+        blob = blobFolder.resolve(s.readString());
+        if (!Files.isRegularFile(blob) || Files.size(blob)!=size){
+          Logger.log("Generation references missing blob: "+blob.toString());
+          return null;
+        }
+        files.add(new FileEntry(blob, relPath, lastModified, size));
+      }
+      if (!s.end()){
+        Logger.log("The generation file \""+generationFile.toString()+"\" may have been corrupted.");
+        return null;
+      }
+      return Manifest.of(root, files, created, true);
+    }catch(Throwable t){
+      Logger.log("Error occurred while loading the generation file.", t);
+      return null;
+    }
+  }
+  /**
+   * Persists a generation, so that it may be restored by {@link #load(Path)} after a restart.
+   */
+  public static boolean save(Manifest gen){
+    try{
+      int cap = 12;
+      final ArrayList<byte[]> names = new ArrayList<byte[]>(gen.size());
+      byte[] name;
+      for (FileEntry e:gen){
+        name = e.getPath().getFileName().toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        names.add(name);
+        cap+=e.getRelativePath().length+name.length+24;
+      }
+      final SerializationStream s = new SerializationStream(cap);
+      s.write(gen.getCreationTime());
+      s.write(gen.size());
+      int i = 0;
+      for (FileEntry e:gen){
+        s.write(e.getRelativePath());
+        s.write(e.getLastModified());
+        s.write(e.getSize());
+        s.write(names.get(i++));
+      }
+      final Path tmp = Files.createTempFile(generationFile.getParent(), "generation", ".tmp");
+      Files.write(tmp, s.data);
+      Files.move(tmp, generationFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while saving the generation file.", t);
+      return false;
+    }
+  }
+  /**
+   * Ingests every file described by the source snapshot, and builds a new generation from the resulting blobs.
+   * Files whose relative path, size, and last modified time match an entry in the previous generation are not reread.
+   * Files which change while being ingested retain their previous content (if any), and the new generation is marked incomplete so that clients do not record its version.
+   * @param source is a fresh scan of the ingestion folder.
+   * @param previous is the previous generation, or {@code null}.
+   * @return the new generation.
+   */
+  public static Manifest ingest(Manifest source, Manifest previous){
+    final HashMap<String,FileEntry> old = new HashMap<String,FileEntry>();
+    if (previous!=null){
+      for (FileEntry e:previous){
+        old.put(e.getRelativePathString(), e);
+      }
+    }
+    final ArrayList<FileEntry> files = new ArrayList<FileEntry>(source.size());
+    boolean complete = source.isComplete();
+    FileEntry prev;
+    Path blob;
+    for (FileEntry e:source){
+      prev = old.get(e.getRelativePathString());
+      if (prev!=null && prev.getSize()==e.getSize() && prev.getLastModified()==e.getLastModified() && Files.isRegularFile(prev.getPath())){
+        files.add(prev);
+        continue;
+      }
+      blob = store(e);
+      if (blob==null){
+        //Keep serving the previous content until the file can be ingested successfully
+        if (prev!=null){
+          files.add(prev);
+        }
+        complete = false;
+      }else{
+        files.add(new FileEntry(blob, e.getRelativePath(), e.getLastModified(), e.getSize()));
+      }
+    }
+    return Manifest.of(source.getRoot(), files, source.getCreationTime(), complete);
+  }
+  /**
+   * Copies a file into the blob folder.
+   * @return the path to the blob, or {@code null} if the file could not be copied or was modified while being copied.
+   */
+  private static Path store(FileEntry e){
+    final Path src = e.getPath();
+    Path tmp = null;
+    try{
+      final MessageDigest md = MessageDigest.getInstance("SHA-256");
+      tmp = Files.createTempFile(blobFolder, "blob", ".tmp");
+      long size = 0;
+      try(
+        FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+      ){
+        final ByteBuffer buf = ByteBuffer.allocate(65536);
+        int n;
+        while ((n=in.read(buf))!=-1){
+          buf.flip();
+          md.update(buf.array(), 0, n);
+          while (buf.hasRemaining()){
+            out.write(buf);
+          }
+          buf.clear();
+          size+=n;
+        }
+        out.force(false);
+      }
+      if (size!=e.getSize() || Files.size(src)!=e.getSize() || Files.getLastModifiedTime(src).toMillis()!=e.getLastModified()){
+        Logger.logAsync("File was modified during ingestion: "+src.toString());
+        Files.deleteIfExists(tmp);
+        return null;
+      }
+      final Path blob = blobFolder.resolve(toHex(md.digest()));
+      if (Files.exists(blob)){
+        Files.delete(tmp);
+      }else{
+        Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return blob;
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while ingesting file: "+src.toString(), t);
+      if (tmp!=null){
+        try{
+          Files.deleteIfExists(tmp);
+        }catch(Throwable err){}
+      }
+      return null;
+    }
+  }
+  /**
+   * Deletes every blob which is not referenced by any of the given generations.
+   * @return the number of blobs deleted.
+   */
+  public static int collect(Collection<Manifest> live){
+    final HashSet<Path> keep = new HashSet<Path>();
+    for (Manifest m:live){
+      for (FileEntry e:m){
+        keep.add(e.getPath());
+      }
+    }
+    int count = 0;
+    try(
+      DirectoryStream<Path> stream = Files.newDirectoryStream(blobFolder);
+    ){
+      String name;
+      for (Path p:stream){
+        name = p.getFileName().toString();
+        if (name.length()==64 && !name.endsWith(".tmp") && !keep.contains(p)){
+          try{
+            Files.delete(p);
+            ++count;
+          }catch(Throwable t){
+            Logger.logAsync("Error occurred while deleting blob: "+p.toString(), t);
+          }
+        }
+      }
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while collecting blobs.", t);
+    }
+    return count;
+  }
+  private final static char[] HEX = "0123456789abcdef".toCharArray();
+  private static String toHex(byte[] arr){
+    final char[] c = new char[arr.length<<1];
+    int i = 0;
+    for (byte b:arr){
+      c[i++] = HEX[(b>>4)&0xF];
+      c[i++] = HEX[b&0xF];
+    }
+    return new String(c);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,357 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import aces.webctrl.sync.common.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+/**
+ * Thread-safe namespace which publishes immutable generations of {@link Main#getSyncs()}.
+ * The synchronization folder is only used for ingestion; each generation maps relative paths to content-addressed blobs in the {@link BlobStore}.
+ * A new generation is published whenever a {@code WatchService} reports changes, and periodically as a fallback.
+ * Every sync session pins the generation which was current when the session started, so files changed mid-session cannot cause partial transfers.
+ * Blobs are garbage-collected once no pinned or current generation references them.
+ * A generation's version is derived from its contents, so it survives restarts.
+ * Clients which have fully applied the current version may skip the file-by-file comparison.
+ * Each generation also holds a precomputed manifest for every sync group defined by {@link Groups}, and each group has its own version.
+ * {@link Rollout} may further adjust a group's manifest for each client, so a client's version also depends on which rollout waves include it.
+ */
+public class Catalog {
+  /** Changes reported by the {@code WatchService} are batched until this many milliseconds pass without further changes. */
+  private final static long DEBOUNCE = 2000L;
+  /** Serializes ingestion and garbage collection. */
+  private final static Object storeLock = new Object();
+  /** Whether the {@link BlobStore} was initialized successfully. If not, generations refer directly to files in the synchronization folder. */
+  private volatile static boolean storeReady = false;
+  /** The current generation. */
+  private volatile static Generation current = null;
+  /** Generations which have been replaced, but are still pinned by some session. Guarded by {@code Catalog.class}. */
+  private final static ArrayList<Generation> retired = new ArrayList<Generation>();
+  /** Watches the synchronization folder for changes. */
+  private volatile static WatchService watcher = null;
+  /** The thread which processes events from {@link #watcher}. */
+  private volatile static Thread watchThread = null;
+  /**
+   * Tracks the number of sessions using a generation.
+   */
+  private static class Generation {
+    final Manifest m;
+    /** Maps group names to manifests which contain a subset of {@link #m}. */
+    final Map<String,Manifest> groups;
+    /** Guarded by {@code Catalog.class}. */
+    int pins = 0;
+    Generation(Manifest m){
+      this.m = m;
+      groups = Groups.filter(m);
+    }
+    /**
+     * @param group is the name of a group, or {@code null} for every add-on.
+     */
+    Manifest get(String group){
+      final Manifest g = group==null?null:groups.get(group);
+      return g==null?m:g;
+    }
+  }
+  /**
+   * A generation pinned by a session.
+   */
+  public static class Pin {
+    private final Generation g;
+    private final Manifest m;
+    private Pin(Generation g, Manifest m){
+      this.g = g;
+      this.m = m;
+    }
+    /**
+     * @return the manifest to send to the session's client.
+     */
+    public Manifest getManifest(){
+      return m;
+    }
+  }
+  /**
+   * @return the current catalog version, or {@code 0} if unknown.
+   */
+  public static long getVersion(){
+    return getVersion(null);
+  }
+  /**
+   * @param group is the name of a group, or {@code null} for every add-on.
+   * @return the current catalog version of the given group, or {@code 0} if unknown.
+   */
+  public static long getVersion(String group){
+    return getVersion(group, null);
+  }
+  /**
+   * @param group is the name of a group, or {@code null} for every add-on.
+   * @param client is the identity or IP address of the client, or {@code null} to ignore rollouts.
+   * @return the current catalog version sent to the given client, or {@code 0} if unknown.
+   */
+  public static long getVersion(String group, String client){
+    final Generation g = current;
+    return Config.catalogInterval>0 && g!=null?Rollout.apply(g.get(group), client).getVersion():0;
+  }
+  /**
+   * Pins the current generation, so that its blobs are not deleted until {@link #release(Pin)} is invoked.
+   * If caching is disabled, the synchronization folder is scanned instead.
+   * @param group is the name of a group, or {@code null} for every add-on.
+   * @param client is the identity or IP address of the client, or {@code null} to ignore rollouts.
+   */
+  public static Pin acquire(String group, String client){
+    if (Config.catalogInterval>0){
+      synchronized (Catalog.class){
+        final Generation g = current;
+        if (g!=null){
+          ++g.pins;
+          return new Pin(g, Rollout.apply(g.get(group), client));
+        }
+      }
+    }
+    final Manifest m = Manifest.scan(Main.getSyncs());
+    return new Pin(null, group==null?m:new Generation(m).get(group));
+  }
+  /**
+   * Unpins a generation returned by {@link #acquire(String,String)}.
+   */
+  public static void release(Pin p){
+    if (p==null || p.g==null){
+      return;
+    }
+    boolean collect = false;
+    synchronized (Catalog.class){
+      //Retired generations are collected once unpinned
+      if (--p.g.pins<=0 && p.g!=current){
+        collect = retired.remove(p.g);
+      }
+    }
+    if (collect){
+      Main.enqueue(new DelayedRunnable(0){
+        public void run(){
+          collect();
+        }
+      });
+    }
+  }
+  /**
+   * Replaces the current generation, and then notifies watching clients.
+   */
+  private static void publish(Manifest m){
+    boolean collect = false;
+    synchronized (Catalog.class){
+      final Generation old = current;
+      current = new Generation(m);
+      if (old!=null){
+        if (old.pins>0){
+          retired.add(old);
+        }else{
+          collect = true;
+        }
+      }
+    }
+    if (collect){
+      collect();
+    }
+    Connections.broadcast();
+  }
+  /**
+   * Deletes blobs which are no longer referenced.
+   */
+  private static void collect(){
+    if (!storeReady){
+      return;
+    }
+    synchronized (storeLock){
+      final ArrayList<Manifest> live = new ArrayList<Manifest>();
+      synchronized (Catalog.class){
+        if (current!=null){
+          live.add(current.m);
+        }
+        for (Generation g:retired){
+          live.add(g.m);
+        }
+      }
+      //Previous versions are kept for clients which are not yet included in a rollout
+      live.add(Rollout.getRetained());
+      final int n = BlobStore.collect(live);
+      if (n>0){
+        Logger.logAsync("Deleted "+n+" unreferenced blob"+(n==1?"":"s")+'.');
+      }
+    }
+  }
+  /**
+   * Scans the synchronization folder, ingests any changes, and publishes a new generation if anything changed.
+   */
+  public static void refresh(){
+    synchronized (storeLock){
+      final boolean regrouped = Groups.reload();
+      final Manifest source = Manifest.scan(Main.getSyncs());
+      final Generation cur = current;
+      final Manifest next = storeReady?BlobStore.ingest(source, cur==null?null:cur.m):source;
+      if (!next.isComplete()){
+        Logger.logAsync("Catalog scan was incomplete.");
+      }
+      if (cur!=null && next.isComplete() && cur.m.isComplete() && next.getVersion()==cur.m.getVersion()){
+        if (regrouped){
+          republish(cur);
+        }
+        return;
+      }
+      if (storeReady && next.isComplete()){
+        BlobStore.save(next);
+      }
+      Rollout.update(cur==null?null:cur.m, next);
+      publish(next);
+      if (cur!=null){
+        Logger.logAsync("Published catalog generation "+Long.toHexString(next.getVersion())+" with "+next.size()+" file"+(next.size()==1?"":"s")+'.');
+      }
+    }
+  }
+  /**
+   * Publishes the files of the given generation again, so that its group manifests are recomputed.
+   * Must be invoked while holding {@link #storeLock}.
+   */
+  private static void republish(Generation cur){
+    if (cur!=null){
+      publish(cur.m);
+      Logger.logAsync("Applied sync groups to catalog generation "+Long.toHexString(cur.m.getVersion())+'.');
+    }
+  }
+  /**
+   * Reloads the groups file without rescanning the synchronization folder.
+   */
+  private static void regroup(){
+    synchronized (storeLock){
+      if (Groups.reload()){
+        republish(current);
+      }
+    }
+  }
+  /**
+   * Restores the last published generation, refreshes the catalog, and then watches for changes.
+   * Followers do not watch for changes, since {@link Replicator} refreshes the catalog after replicating.
+   */
+  public static void start(){
+    Groups.reload();
+    try{
+      BlobStore.init(Main.getDataFolder());
+      storeReady = true;
+      final Manifest m = BlobStore.load(Main.getSyncs());
+      if (m!=null){
+        publish(m);
+      }
+    }catch(Throwable t){
+      Logger.log("Unable to initialize the blob store. Serving files directly from the synchronization folder.", t);
+    }
+    Rollout.init(storeReady);
+    refresh();
+    schedule();
+    if (Replicator.isFollower()){
+      //The synchronization folder only changes when a replication completes, and each replication refreshes the catalog
+      Logger.log("Catalog is read-only on followers. It refreshes after each replication.");
+      return;
+    }
+    try{
+      final Path root = Main.getSyncs();
+      watcher = root.getFileSystem().newWatchService();
+      registerAll(root);
+      watchThread = new Thread("Catalog Watcher"){
+        public void run(){
+          watch();
+        }
+      };
+      watchThread.setDaemon(true);
+      watchThread.start();
+    }catch(Throwable t){
+      Logger.log("Unable to watch the synchronization folder for changes. Relying on periodic rescans.", t);
+    }
+  }
+  /**
+   * Stops watching for changes.
+   */
+  public static void stop(){
+    final WatchService w = watcher;
+    if (w!=null){
+      try{
+        w.close();
+      }catch(Throwable t){}
+    }
+  }
+  /**
+   * Schedules the periodic fallback rescan, which catches any changes missed by the {@code WatchService} and reloads the groups file.
+   * Followers only reload the groups file, since a rescan could publish a partially replicated catalog.
+   */
+  private static void schedule(){
+    final long interval = Config.catalogInterval>0?Math.max(Config.catalogInterval, 1000L):60000L;
+    Main.enqueue(new DelayedRunnable(System.currentTimeMillis()+interval){
+      public void run(){
+        if (Replicator.isFollower()){
+          regroup();
+        }else if (Config.catalogInterval>0){
+          refresh();
+        }else{
+          Groups.reload();
+        }
+        schedule();
+      }
+    });
+  }
+  /**
+   * Registers a folder and all subfolders with {@link #watcher}.
+   */
+  private static void registerAll(Path root) throws java.io.IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>(){
+      @Override public FileVisitResult preVisitDirectory(Path dir, java.nio.file.attribute.BasicFileAttributes attr) throws java.io.IOException {
+        dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        return FileVisitResult.CONTINUE;
+      }
+      @Override public FileVisitResult visitFileFailed(Path f, java.io.IOException e){
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+  /**
+   * Processes events until {@link #watcher} is closed.
+   */
+  private static void watch(){
+    final WatchService w = watcher;
+    WatchKey key;
+    try{
+      while (true){
+        key = w.take();
+        do {
+          process(key);
+        } while ((key=w.poll(DEBOUNCE, TimeUnit.MILLISECONDS))!=null);
+        if (Config.catalogInterval>0){
+          refresh();
+        }
+      }
+    }catch(ClosedWatchServiceException e){
+    }catch(InterruptedException e){
+    }catch(Throwable t){
+      Logger.logAsync("Catalog watcher terminated unexpectedly. Relying on periodic rescans.", t);
+    }
+  }
+  /**
+   * Registers newly created subfolders, and then resets the given key.
+   */
+  private static void process(WatchKey key){
+    final Object dir = key.watchable();
+    for (WatchEvent<?> e:key.pollEvents()){
+      if (e.kind()==ENTRY_CREATE && dir instanceof Path){
+        final Path p = ((Path)dir).resolve((Path)e.context());
+        if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)){
+          try{
+            registerAll(p);
+          }catch(Throwable t){
+            Logger.logAsync("Unable to watch folder: "+p.toString(), t);
+          }
+        }
+      }
+    }
+    key.reset();
+  }
+}
\ No newline at end of file
@@ -6,19 +6,95 @@
 package aces.webctrl.sync.database;
 import java.util.concurrent.atomic.*;
 import java.nio.channels.*;
-import java.security.spec.*;
-import javax.crypto.*;
 import aces.webctrl.sync.common.*;
 public class Connection implements Comparable<Connection> {
+  /**
+   * Describes what a connection is currently doing.
+   */
+  public static enum Phase {
+    /** Negotiating encryption and authenticating the client. */
+    HANDSHAKE,
+    /** Waiting in the admission queue. */
+    QUEUED,
+    /** Transferring files. */
+    SYNCING,
+    /** Idle, waiting to notify the client of catalog changes. */
+    WATCHING,
+    /** Sending the final response. */
+    FINISHING,
+    /** The connection has been closed. */
+    CLOSED
+  }
   private final static AtomicLong nextID = new AtomicLong();
+  /** Specifies how often (in milliseconds) to check whether this connection has exceeded any deadlines. */
+  private final static long WATCHDOG_INTERVAL = 5000L;
   private final long ID = nextID.getAndIncrement();
   protected volatile SocketWrapper wrap;
   private volatile boolean initialized = false;
   private final AtomicBoolean closed = new AtomicBoolean();
-  public Connection(AsynchronousSocketChannel ch){
-    wrap = new SocketWrapper(ch);
+  /** What this connection is currently doing. */
+  private volatile Phase phase = Phase.HANDSHAKE;
+  /** Number of files transferred to the client. Only updated by the single pending socket operation, so updates never race. */
+  private volatile int filesSent = 0;
+  /** The value of {@code System.currentTimeMillis()} when this connection was accepted. */
+  private final long created = System.currentTimeMillis();
+  /** The value of {@code System.currentTimeMillis()} when this connection was admitted to start syncing, or {@code 0} if it has not been admitted. */
+  private volatile long admitted = 0;
+  /** Holds this connection's place in the admission queue. */
+  private volatile Admission.Ticket ticket = null;
+  /** Total bytes transferred as of admission. */
+  private volatile long admittedBytes = 0;
+  /** Whether the peer is a follower database which is replicating this database's catalog. */
+  private volatile boolean follower = false;
+  /** The identity sent by the client, or {@code null} if none was sent. */
+  private volatile String identity = null;
+  /** Whether group assignments have been sent to a relay. */
+  private volatile boolean describedGroups = false;
+  /** The client's sync group, or {@code null} if the client receives every add-on. */
+  private volatile String group = null;
+  /** How the client's request ended, or {@code null} if no request was made (e.g. watch connections). Recorded in the {@link Journal} when the connection closes. */
+  private volatile Journal.Result result = null;
+  /** The catalog version captured when the sync started, which is reported to the client upon completion. */
+  private volatile long catalog = 0;
+  /** The generation pinned by this session, which must be released when the connection closes. */
+  private final AtomicReference<Catalog.Pin> pinned = new AtomicReference<Catalog.Pin>();
+  /** Files whose transfer slots were reserved by {@link Rollout#reserve(Manifest)}, which must be released once the client no longer needs them. */
+  private final java.util.Set<FileEntry> reserved = java.util.Collections.newSetFromMap(new java.util.concurrent.ConcurrentHashMap<FileEntry,Boolean>());
+  /** The catalog version most recently announced to a watching client. */
+  private volatile long announced = 0;
+  /** Whether a notice is being sent to a watching client. Ensures at most one socket operation is pending. */
+  private final AtomicBoolean notifying = new AtomicBoolean();
+  /** Handle for the next heartbeat sent to a watching client. */
+  private volatile TimerWheel.Timeout heartbeat = null;
+  /** Handle for the next scheduled deadline check. */
+  private volatile TimerWheel.Timeout watchdog = null;
+  /** Total bytes transferred as of the last deadline check. Only accessed by the timer thread. */
+  private long lastBytes = 0;
+  /** The last time any bytes were observed to be transferred. Only accessed by the timer thread. */
+  private long lastProgress = created;
+  public Connection(Transport t){
+    wrap = new SocketWrapper(t);
     Logger.logAsync(wrap.getIP()+": Establishing connection...");
   }
+  /**
+   * @return the unique ID of this connection.
+   */
+  public long getID(){
+    return ID;
+  }
+  /**
+   * @return what this connection is currently doing.
+   */
+  public Phase getPhase(){
+    return phase;
+  }
+  /**
+   * Captures the current statistics of this connection.
+   * Each counter is read individually without locking, so the snapshot never interrupts traffic.
+   */
+  public Stats getStats(){
+    return new Stats(this);
+  }
   /**
    * @return whether or not initialization has been completed successfully.
    */
@@ -44,10 +120,29 @@ public class Connection implements Comparable<Connection> {
    */
   public boolean close(boolean remove){
     if (closed.compareAndSet(false,true)){
+      phase = Phase.CLOSED;
+      TimerWheel.Timeout t = watchdog;
+      if (t!=null){
+        t.cancel();
+      }
+      t = heartbeat;
+      if (t!=null){
+        t.cancel();
+      }
+      Connections.unwatch(this);
+      final long admitted = this.admitted;
+      Admission.release(ticket, admitted==0?0:System.currentTimeMillis()-admitted);
+      Catalog.release(pinned.getAndSet(null));
+      releaseSlots();
       if (remove){
         Connections.remove(this);
       }
-      Logger.logAsync(wrap.getIP()+": Connection closed.");
+      final Journal.Result r = result;
+      if (r!=null){
+        Metrics.result(r);
+        Journal.record(new Journal.Session(identity, wrap.getHost(), follower, created, System.currentTimeMillis()-created, wrap.getBytesRead(), wrap.getBytesWritten(), filesSent, r));
+      }
+      Logger.logAsync(wrap.getIP()+": Connection closed ("+wrap.getBytesRead()+" bytes in, "+wrap.getBytesWritten()+" bytes out, "+filesSent+" files sent, "+wrap.getHashRetries()+" hash retries).");
       if (wrap.isClosed()){
         return true;
       }else{
@@ -72,75 +167,486 @@ public class Connection implements Comparable<Connection> {
       close(true);
     }
   }
+  /**
+   * Schedules the next deadline check.
+   */
+  private void scheduleWatchdog(){
+    final TimerWheel timer = Main.getTimer();
+    if (timer!=null && !closed.get()){
+      watchdog = timer.schedule(WATCHDOG_INTERVAL, new Runnable(){
+        public void run(){
+          checkDeadlines();
+        }
+      });
+    }
+  }
+  /**
+   * Terminates this connection if any deadline specified in {@link Config} has been exceeded.
+   * Deadlines are evaluated using coarse-grained transfer counters, so no timestamps need to be recorded by individual socket operations.
+   * The session deadline and transfer rate are measured from admission, so time spent waiting in the admission queue is not counted.
+   */
+  private void checkDeadlines(){
+    if (closed.get() || phase==Phase.WATCHING){
+      //Watch connections are policed by their heartbeats instead
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final long admitted = this.admitted;
+    final long age = admitted==0?0:now-admitted;
+    final long bytes = wrap.getBytesRead()+wrap.getBytesWritten();
+    if (bytes!=lastBytes){
+      lastBytes = bytes;
+      lastProgress = now;
+    }
+    final long handshakeTimeout = Config.handshakeTimeout;
+    final long idleTimeout = Config.idleTimeout;
+    final long sessionTimeout = Config.sessionTimeout;
+    final long minThroughput = Config.minThroughput;
+    String reason = null;
+    if (!initialized && handshakeTimeout>0 && now-created>handshakeTimeout){
+      reason = "Handshake deadline exceeded.";
+    }else if (idleTimeout>0 && now-lastProgress>idleTimeout){
+      reason = "Idle deadline exceeded.";
+    }else if (sessionTimeout>0 && age>sessionTimeout){
+      reason = "Session deadline exceeded.";
+    }else if (minThroughput>0 && age>Math.max(handshakeTimeout,WATCHDOG_INTERVAL) && (bytes-admittedBytes)*1000L/age<minThroughput){
+      reason = "Transfer rate fell below "+minThroughput+" bytes per second.";
+    }
+    if (reason==null){
+      scheduleWatchdog();
+    }else{
+      Logger.logAsync(wrap.getIP()+": "+reason);
+      close(true);
+    }
+  }
   public void init(){
-    final Key k = Keys.getPreferredKey();
-    SerializationStream s = new SerializationStream(k.length(false)+Config.VERSION_RAW.length+4);
-    s.write(Config.VERSION_RAW);
-    k.serialize(s,false);
-    //Write the application version and public key to the client
+    scheduleWatchdog();
+    new ServerHandshake(){
+      protected void accepted(){
+        Metrics.handshakes.observe(System.currentTimeMillis()-created);
+        initialized = true;
+        dispatch();
+      }
+      protected void rejected(){
+        Metrics.rejectedHandshakes.increment();
+        close(true);
+      }
+      protected void failed(Throwable t){
+        if (!(t instanceof java.io.IOException) && !(t instanceof InterruptedByTimeoutException)){
+          Logger.logAsync(wrap.getIP()+": Cipher negotiation error occurred.",t);
+        }
+        close(true);
+      }
+    }.start(wrap, Keys.getPreferredKey(), Config.connectionKey);
+  }
+  /**
+   * Reads the client's request.
+   */
+  private void dispatch(){
+    //Ask the client whether it is ready to synchronize addons
+    wrap.read(null, new Handler<Byte>(){
+      public void func(Byte b){
+        if (b==Protocol.IDENTIFY && identity==null){
+          //Read the client's identity, which selects its sync group, and then the actual request
+          wrap.readBytes(1024, null, new Handler<byte[]>(){
+            public void func(byte[] arr){
+              identity = new String(arr, java.nio.charset.StandardCharsets.UTF_8);
+              dispatch();
+            }
+          });
+          return;
+        }
+        if (b==Protocol.GROUPS && !describedGroups){
+          //A relay checks that each sibling belongs to the relay's own group before serving it
+          describedGroups = true;
+          wrap.writeBytes(Groups.describe(identity, wrap.getHost()), null, new Handler<Void>(){
+            public void func(Void v){
+              dispatch();
+            }
+          });
+          return;
+        }
+        if (b!=Protocol.REPLICATE){
+          group = Groups.resolve(identity, wrap.getHost());
+        }
+        if (b!=Protocol.WATCH){
+          //Overwritten once the outcome is known
+          result = Journal.Result.FAILED;
+        }
+        if (b==Protocol.CONTINUE){
+          requestSync();
+        }else if (b==Protocol.CATALOG){
+          //Read the catalog version which the client last applied
+          wrap.readBytes(16, null, new Handler<byte[]>(){
+            public void func(byte[] arr){
+              final long current = Catalog.getVersion(group, getClient());
+              if (current!=0 && arr.length==8 && new SerializationStream(arr).readLong()==current){
+                upToDate(current);
+              }else{
+                requestSync();
+              }
+            }
+          });
+        }else if (b==Protocol.REPLICATE){
+          //Read the catalog version which the follower currently serves, and the replication key
+          wrap.readBytes(16, null, new Handler<byte[]>(){
+            public void func(byte[] arr){
+              final SerializationStream s = new SerializationStream(arr);
+              final long version = arr.length==16?s.readLong():0;
+              if (arr.length!=16 || s.readLong()!=Config.replicationKey){
+                //Only followers hold the replication key, so anyone else is refused the full catalog
+                Logger.logAsync(wrap.getIP()+": Rejected replication request with an invalid replication key.");
+                Metrics.rejectedHandshakes.increment();
+                wrap.write(Protocol.FAILURE, null, new Handler<Void>(){
+                  public void func(Void v){
+                    close(true);
+                  }
+                });
+                return;
+              }
+              follower = true;
+              final long current = Catalog.getVersion();
+              if (current!=0 && version==current){
+                upToDate(current);
+              }else{
+                //Followers bypass admission control, since clients depend on them
+                admittedBytes = wrap.getBytesRead()+wrap.getBytesWritten();
+                admitted = System.currentTimeMillis();
+                phase = Phase.SYNCING;
+                sync();
+              }
+            }
+          });
+        }else if (b==Protocol.WATCH){
+          //Read the catalog version which the client last applied
+          wrap.readBytes(16, null, new Handler<byte[]>(){
+            public void func(byte[] arr){
+              watch(arr.length==8?new SerializationStream(arr).readLong():0);
+            }
+          });
+        }else{
+          close(true);
+        }
+      }
+    });
+  }
+  /**
+   * Waits for permission to start syncing.
+   */
+  private void requestSync(){
+    phase = Phase.QUEUED;
+    ticket = Admission.acquire(new Admission.Listener(){
+      public void admit(Admission.Ticket t){
+        //The permit may be granted before acquire returns, so sync() must see the ticket
+        ticket = t;
+        admittedBytes = wrap.getBytesRead()+wrap.getBytesWritten();
+        admitted = System.currentTimeMillis();
+        phase = Phase.SYNCING;
+        sync();
+      }
+      public void reject(long seconds){
+        deferSync(seconds);
+      }
+    });
+    if (closed.get()){
+      Admission.release(ticket, 0);
+    }
+  }
+  /**
+   * Tells the client there is nothing to synchronize.
+   * This does not require an admission permit, since no files are compared or transferred.
+   */
+  private void upToDate(final long version){
+    Logger.logAsync(wrap.getIP()+(follower?": Replica already up to date.":": Already up to date."));
+    result = Journal.Result.UP_TO_DATE;
+    phase = Phase.FINISHING;
+    wrap.write(Protocol.UP_TO_DATE, null, new Handler<Void>(){
+      public void func(Void v){
+        sendSummary(version);
+      }
+    });
+  }
+  /**
+   * Synchronizes addons.
+   */
+  private void sync(){
+    final String group = this.group;
+    Logger.logAsync(wrap.getIP()+(follower?": Replication initiated.":group==null?": Sync initiated.":": Sync initiated for group "+group+'.'));
+    //Pin the current generation, so the client sees a consistent view even if files change mid-session
+    final Catalog.Pin pin = Catalog.acquire(group, follower?null:getClient());
+    pinned.set(pin);
+    if (closed.get()){
+      Catalog.release(pinned.getAndSet(null));
+      return;
+    }
+    final Manifest m = pin.getManifest();
+    //Reserve slots before any file is offered, since the client prepares to replace a file as soon as it requests it
+    //Followers are exempt from concurrency limits, since clients depend on them
+    if (!follower){
+      final java.util.ArrayList<FileEntry> slots = Rollout.reserve(m);
+      if (slots==null){
+        Catalog.release(pinned.getAndSet(null));
+        //Released without a duration, so the deferral does not skew the estimated session length
+        Admission.release(ticket, -1);
+        Logger.logAsync(wrap.getIP()+": Every slot to download an add-on with a concurrency limit is taken.");
+        deferSync(Admission.estimateRetry());
+        return;
+      }
+      reserved.addAll(slots);
+      if (closed.get()){
+        releaseSlots();
+        return;
+      }
+    }
+    catalog = Config.catalogInterval>0?m.getVersion():0;
+    wrap.writeManifest(m, null, new Handler<Boolean>(){
+      public void func(Boolean b){
+        Logger.logAsync(wrap.getIP()+(follower?(b?": Replication successful.":": Replication failed."):(b?": Sync successful.":": Sync failed.")));
+        result = b?Journal.Result.SYNCED:Journal.Result.FAILED;
+        phase = Phase.FINISHING;
+        Metrics.syncs.observe(System.currentTimeMillis()-admitted);
+        sendSummary(b?catalog:0);
+      }
+      @Override public void failed(Throwable e, Void v){
+        Logger.logAsync(wrap.getIP()+(follower?": Replication failed.":": Sync failed."), e);
+        super.failed(e,v);
+      }
+    }, new java.util.function.BiConsumer<FileEntry,Boolean>(){
+      public void accept(FileEntry e, Boolean b){
+        if (reserved.remove(e)){
+          Rollout.release(e);
+        }
+        if (b){
+          ++filesSent;
+          Metrics.filesSent.increment();
+          Rollout.delivered(e);
+        }
+      }
+    }, null, null);
+  }
+  /**
+   * Releases every transfer slot still reserved by this session.
+   */
+  private void releaseSlots(){
+    for (FileEntry e:reserved){
+      if (reserved.remove(e)){
+        Rollout.release(e);
+      }
+    }
+  }
+  /**
+   * Sends the recommended time for the client's next sync and the catalog version, and then closes the connection.
+   * Older clients disconnect without reading this message, which is harmless.
+   * Followers are not scheduled, and neither are clients whose sync failed, so they receive {@code -1} in place of a recommendation and fall back to their own schedule.
+   * @param version is the catalog version which the client has fully applied, or {@code 0} if unknown.
+   */
+  private void sendSummary(long version){
+    final SerializationStream s = new SerializationStream(16);
+    s.write(follower || !result.isSuccess()?-1L:Scheduler.recommend(getClient()));
+    s.write(version);
     wrap.writeBytes(s.data, null, new Handler<Void>(){
       public void func(Void v){
-        //Read and decrypt the client's temporary public key
-        wrap.readBytes(16384, null, new Handler<byte[]>(){
-          public void func(byte[] tmpPublicKey){
-            try{
-              tmpPublicKey = k.decrypt(tmpPublicKey);
-              //Generate and encrypt a new symmetric key for this session
-              final byte[] symmetricKey = new byte[16];
-              Database.entropy.nextBytes(symmetricKey);
-              Cipher cipher = Cipher.getInstance(Database.CIPHER);
-              synchronized (Keys.keyFactory){
-                cipher.init(Cipher.ENCRYPT_MODE, Keys.keyFactory.generatePublic(new X509EncodedKeySpec(tmpPublicKey)));
-              }
-              //Send the encrypted symmetric key to the client
-              wrap.writeBytes(cipher.doFinal(symmetricKey), null, new Handler<Void>(){
-                public void func(Void v){
-                  //Now encryption has been successfully setup
-                  wrap.setCipher(new StreamCipher(symmetricKey));
-                  //Verify the client possesses the secret connection key
-                  wrap.readBytes(16, null, new Handler<byte[]>(){
-                    public void func(byte[] arr){
-                      final boolean hasKey = arr.length==8 && new SerializationStream(arr).readLong()==Config.connectionKey;
-                      wrap.write(hasKey?Protocol.SUCCESS:Protocol.FAILURE, null, new Handler<Void>(){
-                        public void func(Void v){
-                          if (hasKey){
-                            //Ask the client whether it is ready to synchronize addons
-                            wrap.read(null, new Handler<Byte>(){
-                              public void func(Byte b){
-                                if (b==Protocol.CONTINUE){
-                                  Logger.logAsync(wrap.getIP()+": Sync initiated.");
-                                  //Synchronize addons
-                                  wrap.writePath(Main.getSyncs(), null, new Handler<Boolean>(){
-                                    public void func(Boolean b){
-                                      Logger.logAsync(wrap.getIP()+(b?": Sync successful.":": Sync failed."));
-                                      close(true);
-                                    }
-                                    @Override public void failed(Throwable e, Void v){
-                                      Logger.logAsync(wrap.getIP()+": Sync failed.", e);
-                                      super.failed(e,v);
-                                    }
-                                  }, null, null);
-                                }else{
-                                  close(true);
-                                }
-                              }
-                            });
-                          }else{
-                            close(true);
-                          }
-                        }
-                      });
-                    }
-                  });
-                }
-              });
-            }catch(Throwable e){
-              Logger.logAsync(wrap.getIP()+": Cipher negotiation error occurred.",e);
-              close(true);
+        close(true);
+      }
+    });
+  }
+  /**
+   * Sends the heartbeat interval, and then keeps the connection open to notify the client of catalog changes.
+   * No socket operation is pending between notices, so an idle watcher costs no more than its memory and one timer entry.
+   * An interval of {@code 0} tells the client that watch connections are refused.
+   * @param version is the catalog version which the client last applied.
+   */
+  private void watch(final long version){
+    final long interval = Config.heartbeatInterval;
+    final SerializationStream s = new SerializationStream(8);
+    s.write(interval);
+    wrap.writeBytes(s.data, null, new Handler<Void>(){
+      public void func(Void v){
+        if (interval<=0){
+          close(true);
+          return;
+        }
+        Logger.logAsync(wrap.getIP()+": Watching for catalog changes.");
+        announced = version;
+        phase = Phase.WATCHING;
+        Connections.watch(Connection.this);
+        if (closed.get()){
+          Connections.unwatch(Connection.this);
+          return;
+        }
+        if (!notice(true)){
+          scheduleHeartbeat();
+        }
+      }
+    });
+  }
+  /**
+   * @return the identity of the client if it sent one, or else its IP address.
+   */
+  private String getClient(){
+    final String id = identity;
+    return id==null?wrap.getHost():id;
+  }
+  /**
+   * @return the catalog version of this client's group announced to watching clients, which is {@code 0} when catalog snapshots are disabled.
+   */
+  private long getWatchVersion(){
+    return Catalog.getVersion(group, getClient());
+  }
+  /**
+   * Invoked by {@link Connections#broadcast()} when the catalog changes.
+   */
+  void catalogChanged(){
+    if (phase==Phase.WATCHING){
+      notice(false);
+    }
+  }
+  /**
+   * Sends {@link Protocol#CATALOG_CHANGED} if the client has not been told about the current catalog, or else a heartbeat if requested.
+   * If another notice is being sent, this does nothing, since the version is checked again when that notice completes.
+   * @return {@code true} if a notice was sent; {@code false} otherwise.
+   */
+  private boolean notice(final boolean heartbeat){
+    if (closed.get() || !notifying.compareAndSet(false,true)){
+      return false;
+    }
+    final long version = getWatchVersion();
+    if (version!=0 && version!=announced){
+      announced = version;
+      wrap.write(Protocol.CATALOG_CHANGED, null, new Handler<Void>(){
+        public void func(Void v){
+          final SerializationStream s = new SerializationStream(16);
+          s.write(version);
+          s.write(Config.pushWindow);
+          wrap.writeBytes(s.data, null, new Handler<Void>(){
+            public void func(Void v){
+              noticed();
             }
+          });
+        }
+      });
+      return true;
+    }else if (heartbeat){
+      wrap.write(Protocol.HEARTBEAT, null, new Handler<Void>(){
+        public void func(Void v){
+          noticed();
+        }
+      });
+      return true;
+    }
+    notifying.set(false);
+    //A change published while the flag was held would have been skipped
+    final long v = getWatchVersion();
+    if (v!=0 && v!=announced){
+      return notice(false);
+    }
+    return false;
+  }
+  /**
+   * Invoked when a notice has been acknowledged by the client.
+   */
+  private void noticed(){
+    notifying.set(false);
+    if (!notice(false)){
+      scheduleHeartbeat();
+    }
+  }
+  /**
+   * Schedules the next heartbeat, replacing any which is already scheduled.
+   */
+  private void scheduleHeartbeat(){
+    final TimerWheel timer = Main.getTimer();
+    final TimerWheel.Timeout t = heartbeat;
+    if (t!=null){
+      t.cancel();
+    }
+    if (timer!=null && !closed.get()){
+      heartbeat = timer.schedule(Math.max(Config.heartbeatInterval,1000L), new Runnable(){
+        public void run(){
+          notice(true);
+        }
+      });
+    }
+  }
+  /**
+   * Tells the client to retry after the given number of seconds.
+   */
+  private void deferSync(final long seconds){
+    Logger.logAsync(wrap.getIP()+": Sync deferred for "+seconds+" seconds.");
+    result = Journal.Result.DEFERRED;
+    phase = Phase.FINISHING;
+    Metrics.rejectedAdmissions.increment();
+    wrap.write(Protocol.RETRY_LATER, null, new Handler<Void>(){
+      public void func(Void v){
+        final SerializationStream s = new SerializationStream(8);
+        s.write(seconds);
+        wrap.writeBytes(s.data, null, new Handler<Void>(){
+          public void func(Void v){
+            close(true);
           }
         });
       }
     });
   }
+  /**
+   * Immutable snapshot of a connection's statistics.
+   */
+  public static class Stats {
+    private final long ID;
+    private final String IP;
+    private final Phase phase;
+    private final long created;
+    private final long admitted;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final int filesSent;
+    private final long hashRetries;
+    private Stats(Connection con){
+      ID = con.ID;
+      IP = con.wrap.getIP();
+      phase = con.phase;
+      created = con.created;
+      admitted = con.admitted;
+      bytesRead = con.wrap.getBytesRead();
+      bytesWritten = con.wrap.getBytesWritten();
+      filesSent = con.filesSent;
+      hashRetries = con.wrap.getHashRetries();
+    }
+    /** @return the unique ID of the connection. */
+    public long getID(){
+      return ID;
+    }
+    /** @return the IP address and port of the remote host. */
+    public String getIP(){
+      return IP;
+    }
+    /** @return what the connection was doing. */
+    public Phase getPhase(){
+      return phase;
+    }
+    /** @return the value of {@code System.currentTimeMillis()} when the connection was accepted. */
+    public long getCreationTime(){
+      return created;
+    }
+    /** @return the value of {@code System.currentTimeMillis()} when the connection was admitted to start syncing, or {@code 0} if it has not been admitted. */
+    public long getAdmissionTime(){
+      return admitted;
+    }
+    /** @return the total number of raw bytes read from the client. */
+    public long getBytesRead(){
+      return bytesRead;
+    }
+    /** @return the total number of raw bytes written to the client. */
+    public long getBytesWritten(){
+      return bytesWritten;
+    }
+    /** @return the number of files transferred to the client. */
+    public int getFilesSent(){
+      return filesSent;
+    }
+    /** @return the number of blocks retransmitted because of a hash comparison failure. */
+    public long getHashRetries(){
+      return hashRetries;
+    }
+  }
 }
\ No newline at end of file
@@ -6,68 +6,87 @@
 package aces.webctrl.sync.database;
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.*;
 import aces.webctrl.sync.common.*;
-import java.util.concurrent.locks.*;
-import java.nio.channels.*;
+/**
+ * Thread-safe registry of active connections, keyed by connection ID.
+ * Adding and removing connections are constant-time operations which never block iteration.
+ */
 public class Connections {
-  private final static TreeSet<Connection> connections = new TreeSet<Connection>();
-  private final static ReentrantReadWriteLock conLock = new ReentrantReadWriteLock();
+  private final static ConcurrentHashMap<Long,Connection> connections = new ConcurrentHashMap<Long,Connection>(64);
+  /** Connections which are idle and waiting to be notified of catalog changes. */
+  private final static Set<Connection> watchers = ConcurrentHashMap.newKeySet(64);
   /**
    * Appends and initializes a connection.
    */
-  public static void add(AsynchronousSocketChannel ch){
-    Connection con = new Connection(ch);
-    conLock.writeLock().lock();
-    try{
-      connections.add(con);
-    }finally{
-      conLock.writeLock().unlock();
-    }
+  public static void add(Transport t){
+    Metrics.accepted.increment();
+    Connection con = new Connection(t);
+    connections.put(con.getID(), con);
     con.init();
   }
   /**
    * Removes a connection from the connection list.
    */
   public static boolean remove(Connection con){
-    conLock.writeLock().lock();
-    try{
-      return connections.remove(con);
-    }finally{
-      conLock.writeLock().unlock();
+    return connections.remove(con.getID(), con);
+  }
+  /**
+   * Registers a connection to be notified of catalog changes.
+   */
+  static void watch(Connection con){
+    watchers.add(con);
+  }
+  /**
+   * Stops notifying a connection of catalog changes.
+   */
+  static void unwatch(Connection con){
+    watchers.remove(con);
+  }
+  /**
+   * @return the number of connections waiting to be notified of catalog changes.
+   */
+  public static int watchers(){
+    return watchers.size();
+  }
+  /**
+   * Notifies every watching connection that the catalog has changed.
+   * Each notification is a single asynchronous write, so this returns quickly even with thousands of watchers.
+   */
+  public static void broadcast(){
+    for (Connection con:watchers){
+      con.catalogChanged();
     }
   }
+  /**
+   * @return the number of active connections.
+   */
+  public static int size(){
+    return connections.size();
+  }
   /**
    * Closes all connections.
    * @return {@code true} if everything closes successfully; {@code false} if any error is encountered.
    */
   public static boolean close(){
     Logger.log("Closing all connections...");
-    conLock.writeLock().lock();
-    try{
-      boolean ret = true;
-      for (Connection con:connections){
-        ret&=con.close(false);
-      }
-      connections.clear();
-      return ret;
-    }finally{
-      conLock.writeLock().unlock();
+    boolean ret = true;
+    for (Connection con:connections.values()){
+      ret&=con.close(true);
     }
+    return ret;
   }
   /**
    * Applies the given predicate to each connection.
    * The predicate's return value indicates whether to continue iterating over the connection list.
-   * <p>
-   * WARNING - The predicate should not invoke methods of the {@code Connections} class which structurally modify the connection list (otherwise this method will block indefinitely).
-   * More precisely, the predicate must not make any attempt to acquire a write lock on the connection list.
-   * This method acquires a read lock to perform iteration, and read locks cannot be promoted to write locks.
+   * Iteration is weakly consistent: connections added or removed concurrently may or may not be visited.
+   * The predicate may safely close connections or otherwise modify the connection list.
    * @return {@code true} on success; {@code false} if some predicate returned {@code false} or if any other error occurred.
    */
   public static boolean forEach(Predicate<Connection> func){
-    conLock.readLock().lock();
     try{
-      for (Connection con:connections){
-        if (con!=null && !func.test(con)){
+      for (Connection con:connections.values()){
+        if (!func.test(con)){
           return false;
         }
       }
@@ -75,8 +94,22 @@ public class Connections {
     }catch(Throwable e){
       Logger.logAsync("Error occured while iterating over the connection list.", e);
       return false;
-    }finally{
-      conLock.readLock().unlock();
     }
   }
+  /**
+   * Captures the statistics of every active connection without interrupting any transfers.
+   * @return a list of statistics sorted by connection ID.
+   */
+  public static List<Connection.Stats> snapshot(){
+    final ArrayList<Connection.Stats> list = new ArrayList<Connection.Stats>(connections.size());
+    for (Connection con:connections.values()){
+      list.add(con.getStats());
+    }
+    Collections.sort(list, new Comparator<Connection.Stats>(){
+      public int compare(Connection.Stats a, Connection.Stats b){
+        return Long.compare(a.getID(), b.getID());
+      }
+    });
+    return list;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Accepts client connections and drives their socket operations.
+ * All engines speak the same {@link Protocol}, so the choice of engine is invisible to clients.
+ */
+public abstract class Engine {
+  /** Fully qualified name of the virtual thread engine, which is compiled separately for JDK 21. */
+  private final static String VIRTUAL_ENGINE = "aces.webctrl.sync.database.virtual.VirtualThreadEngine";
+  /** Name of the archive containing {@link #VIRTUAL_ENGINE}, which is expected in the installation folder. */
+  private final static String VIRTUAL_JAR = "engine21.jar";
+  /** {@code SO_REUSEPORT} is only a standard socket option on JDK 9 and later, so it is looked up reflectively. Will be {@code null} if unavailable. */
+  private final static SocketOption<Boolean> REUSE_PORT = lookupReusePort();
+  /** Number of connections accepted by each shard since the last report. */
+  private volatile AtomicLong[] accepted = new AtomicLong[0];
+  /** The value of {@code System.currentTimeMillis()} at the last report. */
+  private volatile long lastReport = System.currentTimeMillis();
+  /**
+   * Creates the engine with the given name.
+   * @param name is the value of {@link Config#engine}. Unrecognized names select the default engine.
+   */
+  public static Engine create(String name){
+    if (name!=null){
+      name = name.trim();
+      if (name.equalsIgnoreCase("NIO")){
+        return new SelectorEngine();
+      }else if (name.equalsIgnoreCase("VT")){
+        try{
+          return loadVirtualEngine();
+        }catch(Throwable t){
+          Logger.log("The virtual thread engine requires JDK 21 and "+VIRTUAL_JAR+". Falling back to the AIO engine.", t);
+        }
+      }
+    }
+    return new AsyncEngine();
+  }
+  /**
+   * Loads the virtual thread engine from {@link #VIRTUAL_JAR}, or from the classpath if the archive does not exist.
+   */
+  private static Engine loadVirtualEngine() throws Throwable {
+    ClassLoader loader = Engine.class.getClassLoader();
+    final Path installation = Main.getInstallation();
+    if (installation!=null){
+      final Path jar = installation.resolve(VIRTUAL_JAR);
+      if (Files.exists(jar)){
+        loader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, loader);
+      }
+    }
+    return (Engine)Class.forName(VIRTUAL_ENGINE, true, loader).getConstructor().newInstance();
+  }
+  /**
+   * @return a short name describing this engine.
+   */
+  public abstract String getName();
+  /**
+   * Binds to the given port and starts accepting connections.
+   * @param threads is the number of threads to use for socket operations.
+   * @param shards is the requested number of independent accept loops.
+   */
+  public abstract void start(int port, int backlog, int threads, int shards) throws Exception;
+  /**
+   * Stops accepting connections and closes all sockets.
+   */
+  public abstract void stop();
+  /**
+   * Blocks until the engine has terminated or the timeout elapses.
+   * @return {@code true} if the engine has terminated.
+   */
+  public abstract boolean awaitTermination(long timeout) throws InterruptedException;
+  /**
+   * Summarizes activity since the previous report, and then resets the interval statistics.
+   * @return a description of this engine's activity, or {@code null} if there is nothing to report.
+   */
+  public abstract String report();
+  /**
+   * Engines without a fixed pool of IO threads return an empty array.
+   * @return the current load on the IO threads of each shard.
+   */
+  public Pool[] getPools(){
+    return new Pool[0];
+  }
+  /**
+   * Resets the per-shard accept counters.
+   */
+  protected void initShards(int shards){
+    final AtomicLong[] arr = new AtomicLong[shards];
+    for (int i=0;i<shards;++i){
+      arr[i] = new AtomicLong();
+    }
+    accepted = arr;
+    lastReport = System.currentTimeMillis();
+  }
+  /**
+   * Records that the given shard has accepted a connection.
+   */
+  protected void accepted(int shard){
+    accepted[shard].incrementAndGet();
+  }
+  /**
+   * Summarizes the accept rate of each shard since the previous report, and then resets the counters.
+   * @return a description of the accept rates, or {@code null} if no connections were accepted.
+   */
+  protected String reportShards(){
+    final AtomicLong[] arr = accepted;
+    final long now = System.currentTimeMillis();
+    final double seconds = Math.max(now-lastReport, 1L)/1000.0;
+    lastReport = now;
+    final StringBuilder sb = new StringBuilder("Accepted connections:");
+    long total = 0;
+    long n;
+    for (int i=0;i<arr.length;++i){
+      n = arr[i].getAndSet(0);
+      total+=n;
+      sb.append(" shard ").append(i+1).append(' ').append(n).append(" (").append(String.format("%.3f", n/seconds)).append("/s)");
+      sb.append(i+1==arr.length?'.':',');
+    }
+    return total==0?null:sb.toString();
+  }
+  /**
+   * Enables {@code SO_REUSEPORT} so that several listeners may bind to the same port, letting the operating system distribute connections among them.
+   * Must be invoked before binding.
+   * @return {@code true} on success; {@code false} if the option is not supported by this platform.
+   */
+  protected static boolean reusePort(NetworkChannel ch){
+    if (REUSE_PORT==null || !ch.supportedOptions().contains(REUSE_PORT)){
+      return false;
+    }
+    try{
+      ch.setOption(REUSE_PORT, true);
+      return true;
+    }catch(Throwable t){
+      return false;
+    }
+  }
+  /**
+   * @return whether or not {@code SO_REUSEPORT} is supported by this platform.
+   */
+  protected static boolean isReusePortSupported(){
+    if (REUSE_PORT==null){
+      return false;
+    }
+    try(
+      ServerSocketChannel ch = ServerSocketChannel.open();
+    ){
+      return ch.supportedOptions().contains(REUSE_PORT);
+    }catch(Throwable t){
+      return false;
+    }
+  }
+  /**
+   * Point-in-time load on the IO threads of one shard.
+   */
+  public static class Pool {
+    /** One-based index of the shard. */
+    public final int shard;
+    /** Number of IO threads. */
+    public final int threads;
+    /** Number of IO threads currently doing work. */
+    public final int active;
+    /** Number of tasks waiting for an IO thread, or for engines which cannot observe their run queue, operations whose handlers have not started. */
+    public final int queued;
+    public Pool(int shard, int threads, int active, int queued){
+      this.shard = shard;
+      this.threads = threads;
+      this.active = active;
+      this.queued = queued;
+    }
+  }
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> lookupReusePort(){
+    try{
+      return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+    }catch(Throwable t){
+      return null;
+    }
+  }
+}
\ No newline at end of file
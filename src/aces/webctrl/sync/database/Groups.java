@@ -0,0 +1,181 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.nio.file.*;
+import java.util.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which restricts the add-ons sent to each client.
+ * <p>
+ * Groups are defined in {@code ./data/groups.txt}.
+ * Lines of the form {@code group:<name>=<path>,<path>,...} define a group, where each path is relative to the synchronization folder.
+ * A path which ends with {@code /} includes every file in that folder.
+ * Lines of the form {@code <client>=<group>} assign a client to a group, where the client is either the identity sent by the add-on or an IP address.
+ * The assignment {@code *=<group>} applies to every client which is not otherwise assigned.
+ * Unassigned clients and followers receive every add-on.
+ * <p>
+ * The file is reloaded whenever its modification time changes, and {@link Catalog} precomputes a manifest for each group when it publishes a generation,
+ * so selecting a client's group costs one map lookup per session.
+ */
+public class Groups {
+  /** Name of the file which defines groups, relative to the data folder. */
+  private final static String FILE = "groups.txt";
+  /** Prefix which distinguishes group definitions from client assignments. */
+  private final static String PREFIX = "group:";
+  /** The modification time of the file when it was last loaded, or {@code -1} if it did not exist. */
+  private volatile static long lastModified = -1;
+  /** Maps each group name to lowercase path prefixes, where each component is followed by {@code '/'}. */
+  private volatile static Map<String,String[]> groups = Collections.emptyMap();
+  /** Maps lowercase client identities and IP addresses to group names. */
+  private volatile static Map<String,String> clients = Collections.emptyMap();
+  /**
+   * Reloads the groups file if it has changed since it was last loaded.
+   * @return {@code true} if the groups changed; {@code false} otherwise.
+   */
+  public synchronized static boolean reload(){
+    final Path file = Main.getDataFolder().resolve(FILE);
+    long mod = -1;
+    try{
+      if (Files.exists(file)){
+        mod = Files.getLastModifiedTime(file).toMillis();
+      }
+    }catch(Throwable t){}
+    if (mod==lastModified){
+      return false;
+    }
+    lastModified = mod;
+    final HashMap<String,String[]> groups = new HashMap<String,String[]>();
+    final HashMap<String,String> clients = new HashMap<String,String>();
+    if (mod!=-1){
+      try{
+        int i;
+        String key, value;
+        for (String line:Files.readAllLines(file, java.nio.charset.StandardCharsets.UTF_8)){
+          line = line.trim();
+          if (line.isEmpty() || line.charAt(0)==';' || (i=line.indexOf('='))==-1){
+            continue;
+          }
+          key = line.substring(0,i).trim();
+          value = line.substring(i+1).trim();
+          if (key.regionMatches(true, 0, PREFIX, 0, PREFIX.length())){
+            final ArrayList<String> paths = new ArrayList<String>();
+            for (String p:value.split(",")){
+              p = p.trim().replace('\\','/');
+              while (p.startsWith("/")){
+                p = p.substring(1);
+              }
+              if (!p.isEmpty()){
+                paths.add(p.endsWith("/")?p.toLowerCase():p.toLowerCase()+'/');
+              }
+            }
+            groups.put(key.substring(PREFIX.length()).trim(), paths.toArray(new String[paths.size()]));
+          }else{
+            clients.put(key.toLowerCase(), value);
+          }
+        }
+        for (Map.Entry<String,String> e:clients.entrySet()){
+          if (!groups.containsKey(e.getValue())){
+            Logger.logAsync("Client "+e.getKey()+" is assigned to undefined group "+e.getValue()+", so it receives every add-on.");
+          }
+        }
+        Logger.logAsync("Loaded "+groups.size()+" sync group"+(groups.size()==1?"":"s")+" and "+clients.size()+" client assignment"+(clients.size()==1?"":"s")+'.');
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred while loading "+FILE+". Every client receives every add-on.", t);
+        groups.clear();
+        clients.clear();
+      }
+    }
+    Groups.groups = groups;
+    Groups.clients = clients;
+    return true;
+  }
+  /**
+   * @param identity is the identity sent by the client, or {@code null} if none was sent.
+   * @param host is the IP address of the client.
+   * @return the name of the client's group, or {@code null} if the client receives every add-on.
+   */
+  public static String resolve(String identity, String host){
+    final Map<String,String> clients = Groups.clients;
+    if (clients.isEmpty()){
+      return null;
+    }
+    String g = null;
+    if (identity!=null){
+      g = clients.get(identity.toLowerCase());
+    }
+    if (g==null && host!=null){
+      g = clients.get(host.toLowerCase());
+    }
+    if (g==null){
+      g = clients.get("*");
+    }
+    return g!=null && Groups.groups.containsKey(g)?g:null;
+  }
+  /**
+   * Describes group assignments to a relay, so it can resolve the groups of its siblings the same way as {@link #resolve(String,String)}.
+   * The result holds the relay's own group, the number of assignments, and then each client key with its group.
+   * Empty strings stand for clients which receive every add-on, including clients assigned to undefined groups.
+   * @param identity is the identity sent by the relay, or {@code null} if none was sent.
+   * @param host is the IP address of the relay.
+   */
+  public static byte[] describe(String identity, String host){
+    final Map<String,String> clients = Groups.clients;
+    final Map<String,String[]> groups = Groups.groups;
+    final String own = resolve(identity, host);
+    final byte[] ownBytes = (own==null?"":own).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    final ArrayList<byte[]> list = new ArrayList<byte[]>(clients.size()<<1);
+    int len = ownBytes.length+8;
+    byte[] b;
+    for (Map.Entry<String,String> e:clients.entrySet()){
+      b = e.getKey().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      list.add(b);
+      len+=b.length+4;
+      b = (groups.containsKey(e.getValue())?e.getValue():"").getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      list.add(b);
+      len+=b.length+4;
+    }
+    final SerializationStream s = new SerializationStream(len);
+    s.write(ownBytes);
+    s.write(list.size()>>1);
+    for (byte[] arr:list){
+      s.write(arr);
+    }
+    return s.data;
+  }
+  /**
+   * Computes a manifest for every group.
+   * Entries are shared with the given manifest, so each group costs only its list of references.
+   * @return a map from group names to manifests.
+   */
+  public static Map<String,Manifest> filter(Manifest m){
+    final Map<String,String[]> groups = Groups.groups;
+    if (groups.isEmpty()){
+      return Collections.emptyMap();
+    }
+    final HashMap<String,Manifest> views = new HashMap<String,Manifest>();
+    for (Map.Entry<String,String[]> e:groups.entrySet()){
+      views.put(e.getKey(), filter(m, e.getValue()));
+    }
+    return views;
+  }
+  /**
+   * @return a manifest containing only the entries of {@code m} which match one of the given path prefixes.
+   */
+  private static Manifest filter(Manifest m, String[] prefixes){
+    final ArrayList<FileEntry> list = new ArrayList<FileEntry>();
+    String path;
+    for (FileEntry e:m){
+      path = e.getRelativePathString().toLowerCase();
+      for (String p:prefixes){
+        if (path.startsWith(p)){
+          list.add(e);
+          break;
+        }
+      }
+    }
+    return Manifest.of(m.getRoot(), list, m.getCreationTime(), m.isComplete());
+  }
+}
\ No newline at end of file
@@ -0,0 +1,459 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which records every sync session in an append-only binary journal, and indexes the latest state of each client.
+ * <p>
+ * The journal is a sequence of fixed-size segments in {@code ./data/journal}, each of which is memory-mapped while it is being appended to.
+ * Each record is prefixed by its length and a CRC-32 checksum, so a record torn by a crash is detected and discarded on startup.
+ * When there are too many segments, the index is written to new segments and the old segments are deleted,
+ * so disk usage is bounded by the number of clients rather than the number of sessions.
+ * The first compacted segment is marked as a base once compaction completes, and replay starts from the newest base.
+ * <p>
+ * Clients are keyed by their identity, or by their IP address if no identity was sent.
+ */
+public class Journal {
+  /** Size of each segment in bytes. */
+  private final static int SEGMENT_SIZE = 1<<20;
+  /** The journal is compacted when it holds more than this many segments. */
+  private final static int MAX_SEGMENTS = 8;
+  /** Identifies segment files. */
+  private final static int MAGIC = 0x4A524E4C;
+  /** Header flag which marks a segment as the start of a compacted snapshot. */
+  private final static byte BASE = 1;
+  /** Size of the segment header: magic number and flags. */
+  private final static int HEADER = 5;
+  /** Clients which have not synced successfully for this many milliseconds are reported as stale. */
+  private final static long STALE = 172800000L;
+  /** Folder which contains the segments. */
+  private volatile static Path folder = null;
+  /** Sequence numbers of the segments which make up the journal, in order. Guarded by {@code Journal.class}. */
+  private final static ArrayList<Long> segments = new ArrayList<Long>();
+  /** Number of segments written by the last compaction. Guarded by {@code Journal.class}. */
+  private static int baseSegments = 0;
+  /** Segment files which could not be deleted (e.g. because they are still mapped), which are retried later. Guarded by {@code Journal.class}. */
+  private final static ArrayList<Path> obsolete = new ArrayList<Path>();
+  /** The segment being appended to, or {@code null} if the journal is closed. Guarded by {@code Journal.class}. */
+  private static MappedByteBuffer map = null;
+  /** Latest state of each client, keyed by lowercase identity or IP address. */
+  private final static ConcurrentHashMap<String,Client> clients = new ConcurrentHashMap<String,Client>(64);
+  /**
+   * Describes how a session ended.
+   */
+  public static enum Result {
+    /** Files were compared and every file was synchronized. */
+    SYNCED,
+    /** The client had already applied the current catalog. */
+    UP_TO_DATE,
+    /** The client was asked to retry later. */
+    DEFERRED,
+    /** The session failed or was interrupted. */
+    FAILED;
+    /**
+     * @return whether the client holds the current catalog after the session.
+     */
+    public boolean isSuccess(){
+      return this==SYNCED || this==UP_TO_DATE;
+    }
+  }
+  /**
+   * Immutable record of one session.
+   */
+  public static class Session {
+    private final String identity;
+    private final String IP;
+    private final boolean follower;
+    private final long start;
+    private final long duration;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final int filesSent;
+    private final Result result;
+    public Session(String identity, String IP, boolean follower, long start, long duration, long bytesRead, long bytesWritten, int filesSent, Result result){
+      this.identity = identity==null?"":identity;
+      this.IP = IP==null?"":IP;
+      this.follower = follower;
+      this.start = start;
+      this.duration = duration;
+      this.bytesRead = bytesRead;
+      this.bytesWritten = bytesWritten;
+      this.filesSent = filesSent;
+      this.result = result;
+    }
+    /** @return the identity sent by the client, or an empty string if none was sent. */
+    public String getIdentity(){
+      return identity;
+    }
+    /** @return the IP address of the client. */
+    public String getIP(){
+      return IP;
+    }
+    /** @return the key which identifies the client in the index. */
+    public String getClient(){
+      return (identity.isEmpty()?IP:identity).toLowerCase();
+    }
+    /** @return whether the client was a follower database. */
+    public boolean isFollower(){
+      return follower;
+    }
+    /** @return the value of {@code System.currentTimeMillis()} when the connection was accepted. */
+    public long getStartTime(){
+      return start;
+    }
+    /** @return the lifetime of the connection in milliseconds. */
+    public long getDuration(){
+      return duration;
+    }
+    /** @return the total number of raw bytes read from the client. */
+    public long getBytesRead(){
+      return bytesRead;
+    }
+    /** @return the total number of raw bytes written to the client. */
+    public long getBytesWritten(){
+      return bytesWritten;
+    }
+    /** @return the number of files transferred to the client. */
+    public int getFilesSent(){
+      return filesSent;
+    }
+    /** @return how the session ended. */
+    public Result getResult(){
+      return result;
+    }
+    private byte[] serialize(){
+      final byte[] id = identity.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      final byte[] ip = IP.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      final SerializationStream s = new SerializationStream(id.length+ip.length+46);
+      s.write(follower);
+      s.write(start);
+      s.write(duration);
+      s.write(bytesRead);
+      s.write(bytesWritten);
+      s.write(filesSent);
+      s.write((byte)result.ordinal());
+      s.write(id);
+      s.write(ip);
+      return s.data;
+    }
+    private static Session deserialize(byte[] arr){
+      final SerializationStream s = new SerializationStream(arr);
+      final boolean follower = s.readBoolean();
+      final long start = s.readLong();
+      final long duration = s.readLong();
+      final long bytesRead = s.readLong();
+      final long bytesWritten = s.readLong();
+      final int filesSent = s.readInt();
+      final Result result = Result.values()[s.readByte()];
+      final String identity = s.readString();
+      final String IP = s.readString();
+      return new Session(identity, IP, follower, start, duration, bytesRead, bytesWritten, filesSent, result);
+    }
+  }
+  /**
+   * Immutable index entry for one client.
+   */
+  public static class Client {
+    private final Session latest;
+    private final Session lastSuccess;
+    private Client(Session latest, Session lastSuccess){
+      this.latest = latest;
+      this.lastSuccess = lastSuccess;
+    }
+    /** @return the most recent session. */
+    public Session getLatest(){
+      return latest;
+    }
+    /** @return the most recent successful session, or {@code null} if the client has never synced successfully. */
+    public Session getLastSuccess(){
+      return lastSuccess;
+    }
+  }
+  /**
+   * Replays the journal to rebuild the index, and then opens the last segment for appending.
+   * @param dataFolder is the folder which contains the journal folder.
+   */
+  public synchronized static void init(Path dataFolder){
+    folder = dataFolder.resolve("journal");
+    try{
+      Files.createDirectories(folder);
+      final ArrayList<Long> list = new ArrayList<Long>();
+      try(
+        DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.seg");
+      ){
+        String name;
+        for (Path p:stream){
+          name = p.getFileName().toString();
+          try{
+            list.add(Long.parseLong(name.substring(0,name.length()-4), 16));
+          }catch(NumberFormatException e){}
+        }
+      }
+      Collections.sort(list);
+      //Replay starts from the newest base, and anything older is obsolete
+      int first = 0;
+      for (int i=list.size()-1;i>=0;--i){
+        if (readFlags(list.get(i))==BASE){
+          first = i;
+          break;
+        }
+      }
+      for (int i=0;i<first;++i){
+        Files.deleteIfExists(getPath(list.get(i)));
+      }
+      int end = HEADER;
+      for (int i=first;i<list.size();++i){
+        end = replay(list.get(i));
+        segments.add(list.get(i));
+      }
+      if (segments.isEmpty()){
+        open(1L, (byte)0);
+      }else if (end<0){
+        open(segments.get(segments.size()-1)+1, (byte)0);
+      }else{
+        final long seq = segments.get(segments.size()-1);
+        try(
+          FileChannel ch = FileChannel.open(getPath(seq), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ){
+          map = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+        //Clear anything left behind by a torn record
+        map.position(end);
+        while (map.hasRemaining()){
+          map.put((byte)0);
+        }
+        map.position(end);
+      }
+      Logger.log("Journal loaded with "+clients.size()+" client"+(clients.size()==1?"":"s")+" in "+segments.size()+" segment"+(segments.size()==1?"":"s")+'.');
+    }catch(Throwable t){
+      Logger.log("Unable to open the session journal. Sessions will not be recorded.", t);
+      map = null;
+    }
+  }
+  /**
+   * Flushes the journal to disk, and stops recording sessions.
+   */
+  public synchronized static void close(){
+    if (map!=null){
+      try{
+        map.force();
+      }catch(Throwable t){}
+      map = null;
+    }
+  }
+  private static Path getPath(long seq){
+    final String s = Long.toHexString(seq);
+    return folder.resolve("0000000000000000".substring(s.length())+s+".seg");
+  }
+  /**
+   * @return the header flags of the given segment, or {@code -1} if the segment is invalid.
+   */
+  private static byte readFlags(long seq){
+    try(
+      FileChannel ch = FileChannel.open(getPath(seq), StandardOpenOption.READ);
+    ){
+      final ByteBuffer buf = ByteBuffer.allocate(HEADER);
+      while (buf.hasRemaining() && ch.read(buf)!=-1){}
+      buf.flip();
+      return buf.remaining()==HEADER && buf.getInt()==MAGIC?buf.get():-1;
+    }catch(Throwable t){
+      return -1;
+    }
+  }
+  /**
+   * Applies every valid record in the given segment to the index.
+   * @return the offset after the last valid record, or {@code -1} if the segment is invalid.
+   */
+  private static int replay(long seq) throws java.io.IOException {
+    final ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(getPath(seq)));
+    if (buf.remaining()<HEADER || buf.getInt()!=MAGIC){
+      return -1;
+    }
+    buf.get();
+    final CRC32 crc = new CRC32();
+    int len;
+    while (buf.remaining()>=8){
+      final int pos = buf.position();
+      len = buf.getInt();
+      if (len<=0 || len>buf.remaining()-4){
+        return pos;
+      }
+      final int sum = buf.getInt();
+      final byte[] arr = new byte[len];
+      buf.get(arr);
+      crc.reset();
+      crc.update(arr, 0, len);
+      if ((int)crc.getValue()!=sum){
+        return pos;
+      }
+      try{
+        index(Session.deserialize(arr));
+      }catch(Throwable t){
+        return pos;
+      }
+    }
+    return buf.position();
+  }
+  /**
+   * Creates a new segment and maps it for appending.
+   */
+  private static void open(long seq, byte flags) throws java.io.IOException {
+    try(
+      FileChannel ch = FileChannel.open(getPath(seq), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+    ){
+      map = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+    map.putInt(MAGIC);
+    map.put(flags);
+    segments.add(seq);
+  }
+  /**
+   * Updates the index with the given session.
+   */
+  private static void index(Session s){
+    final String key = s.getClient();
+    final Client prev = clients.get(key);
+    clients.put(key, new Client(s, s.getResult().isSuccess()?s:prev==null?null:prev.lastSuccess));
+  }
+  /**
+   * Appends a session to the journal and updates the index.
+   */
+  public synchronized static void record(Session s){
+    index(s);
+    if (map==null){
+      return;
+    }
+    try{
+      append(s.serialize());
+      if (segments.size()>Math.max(MAX_SEGMENTS, baseSegments<<1)){
+        compact();
+      }
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while appending to the session journal. Sessions will not be recorded.", t);
+      map = null;
+    }
+  }
+  /**
+   * Appends a record to the current segment, rolling over to a new segment if necessary.
+   */
+  private static void append(byte[] arr) throws java.io.IOException {
+    if (map.remaining()<arr.length+8){
+      map.force();
+      open(segments.get(segments.size()-1)+1, (byte)0);
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(arr, 0, arr.length);
+    //The length is written last, so a torn record is never mistaken for a complete one
+    final int pos = map.position();
+    map.position(pos+4);
+    map.putInt((int)crc.getValue());
+    map.put(arr);
+    map.putInt(pos, arr.length);
+  }
+  /**
+   * Writes the index to new segments, marks the first of them as a base, and then deletes the old segments.
+   */
+  private static void compact() throws java.io.IOException {
+    final ArrayList<Long> old = new ArrayList<Long>(segments);
+    final long first = old.get(old.size()-1)+1;
+    map.force();
+    segments.clear();
+    open(first, (byte)0);
+    for (Client c:clients.values()){
+      if (c.lastSuccess!=null && c.lastSuccess!=c.latest){
+        append(c.lastSuccess.serialize());
+      }
+      append(c.latest.serialize());
+    }
+    map.force();
+    baseSegments = segments.size();
+    //Old segments only become obsolete once the base flag is durable
+    try(
+      FileChannel ch = FileChannel.open(getPath(first), StandardOpenOption.WRITE);
+    ){
+      ch.write(ByteBuffer.wrap(new byte[]{BASE}), 4);
+      ch.force(false);
+    }
+    for (Long seq:old){
+      obsolete.add(getPath(seq));
+    }
+    final Iterator<Path> iter = obsolete.iterator();
+    while (iter.hasNext()){
+      try{
+        Files.deleteIfExists(iter.next());
+        iter.remove();
+      }catch(Throwable t){}
+    }
+    Logger.logAsync("Compacted session journal to "+baseSegments+" segment"+(baseSegments==1?"":"s")+" for "+clients.size()+" client"+(clients.size()==1?"":"s")+'.');
+  }
+  /**
+   * @param client is the identity or IP address of a client.
+   * @return the latest state of the given client, or {@code null} if the client has never connected.
+   */
+  public static Client get(String client){
+    return client==null?null:clients.get(client.toLowerCase());
+  }
+  /**
+   * @param since is a value of {@code System.currentTimeMillis()}.
+   * @return every client which has not synced successfully since the given time, sorted by identity or IP address.
+   */
+  public static List<Client> getStale(long since){
+    final ArrayList<Client> list = new ArrayList<Client>();
+    for (Client c:clients.values()){
+      if (!c.latest.follower && (c.lastSuccess==null || c.lastSuccess.start<since)){
+        list.add(c);
+      }
+    }
+    Collections.sort(list, new Comparator<Client>(){
+      public int compare(Client a, Client b){
+        return a.latest.getClient().compareTo(b.latest.getClient());
+      }
+    });
+    return list;
+  }
+  /**
+   * @return a weakly consistent view of the latest state of every client in the index.
+   */
+  public static Collection<Client> getClients(){
+    return Collections.unmodifiableCollection(clients.values());
+  }
+  /**
+   * @return the number of clients in the index.
+   */
+  public static int size(){
+    return clients.size();
+  }
+  /**
+   * Summarizes the index, naming a few clients which have not synced successfully in the last two days.
+   * @return the summary, or {@code null} if no clients are known.
+   */
+  public static String report(){
+    final int n = clients.size();
+    if (n==0){
+      return null;
+    }
+    final List<Client> stale = getStale(System.currentTimeMillis()-STALE);
+    final StringBuilder sb = new StringBuilder();
+    sb.append("Session journal tracks ").append(n).append(" client").append(n==1?"":"s").append('.');
+    if (!stale.isEmpty()){
+      sb.append(' ').append(stale.size()).append(stale.size()==1?" has":" have").append(" not synced successfully in the last two days:");
+      for (int i=0;i<stale.size() && i<10;++i){
+        sb.append(i==0?" ":", ").append(stale.get(i).latest.getClient());
+      }
+      if (stale.size()>10){
+        sb.append(", and ").append(stale.size()-10).append(" more");
+      }
+      sb.append('.');
+    }
+    return sb.toString();
+  }
+}
\ No newline at end of file
@@ -4,7 +4,6 @@
   Contributors: Cameron Vogt (@cvogt729)
 */
 package aces.webctrl.sync.database;
-import java.net.*;
 import java.nio.file.*;
 import java.nio.channels.*;
 import aces.webctrl.sync.common.*;
@@ -32,22 +31,21 @@ public class Main {
   /** Used to ensure only one instance of this application may run at a given time */
   private volatile static FileLock lockFileLock = null;
 
-  /** Essentially a group of worker threads which complete tasks on a shared queue */
-  private volatile static AsynchronousChannelGroup asyncGroup = null;
-  /** Server socket which is bound to {@link #port} */
-  private volatile static AsynchronousServerSocketChannel server = null;
-  /** Handles new client connections */
-  private volatile static CompletionHandler<AsynchronousSocketChannel,Void> clientAcceptor = null;
+  /** Accepts client connections and drives their socket operations. */
+  private volatile static Engine engine = null;
   /** Status variable specifying whether {@link #server} is currently accepting connections */
   private final static AtomicBoolean running = new AtomicBoolean();
   /** Used to determine when a graceful exit has completed. */
   private final static AtomicBoolean exited = new AtomicBoolean();
   /** Task processing queue which permits the main thread to take some work (e.g. message logging) away from the server thread pool. */
   private final static DelayQueue<DelayedRunnable> queue = new DelayQueue<DelayedRunnable>();
-  /** Specifies the number of threads to use for asynchronous processing. */
-  private final static int threads = Runtime.getRuntime().availableProcessors();
+  /** Shared timer used to enforce connection deadlines. */
+  private volatile static TimerWheel timer = null;
 
-  /** Application entry point */
+  /**
+   * Application entry point.
+   * The optional argument {@code -data <folder>} overrides the folder where all files are stored for this database.
+   */
   public static void main(String[] args){
 
     try{
@@ -55,8 +53,14 @@ public class Main {
       
       installation = Paths.get(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getParent().normalize();
       rootFolder = installation.resolve("data");
+      //An alternate data folder permits several databases (e.g. a primary and its followers) to run from one installation
+      for (int i=0;i+1<args.length;++i){
+        if (args[i].equalsIgnoreCase("-data")){
+          rootFolder = Paths.get(args[i+1]).toAbsolutePath().normalize();
+        }
+      }
       if (!Files.exists(rootFolder)){
-        Files.createDirectory(rootFolder);
+        Files.createDirectories(rootFolder);
       }
       lockFile = rootFolder.resolve("lock");
       lockFileChannel = FileChannel.open(lockFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
@@ -66,11 +70,7 @@ public class Main {
         lockFileChannel.close();
         System.exit(1);
       }
-      Logger.init(rootFolder.resolve("log.txt"), new java.util.function.Consumer<DelayedRunnable>(){
-        public void accept(DelayedRunnable r){
-          enqueue(r);
-        }
-      });
+      Logger.init(rootFolder.resolve("log.txt"));
       Logger.log(Config.NAME+" initializing...");
     }catch(Throwable e){
       try{
@@ -104,51 +104,31 @@ public class Main {
         Logger.log("Error occurred while creating folder: "+syncFolder.toString(), t);
       }
 
-      clientAcceptor = new CompletionHandler<AsynchronousSocketChannel,Void>(){
-        @Override
-        public void completed(AsynchronousSocketChannel client, Void v){
-          try{
-            server.accept(null, this);
-            Connections.add(client);
-          }catch(ShutdownChannelGroupException e){
-            //Occurs when asyncGroup.shutdown() is called from another thread
-            //Do nothing
-          }catch(final Throwable e){
-            enqueue(new DelayedRunnable(System.currentTimeMillis()){
-              public void run(){
-                Logger.log("Connection acceptor encountered error.", e);
-                gracefulExit(true);
-              }
-            });
-          }
-        }
-        @Override
-        public void failed(final Throwable e, Void v){
-          if (!(e instanceof AsynchronousCloseException)){
-            enqueue(new DelayedRunnable(System.currentTimeMillis()){
-              public void run(){
-                Logger.log("Failed to accept connection.", e);
-                gracefulExit(true);
-              }
-            });
-          }
-        }
-      };
       Runtime.getRuntime().addShutdownHook(new Thread(){
         public void run(){
           gracefulExit(false);
         }
       });
-      Database.exec = Executors.newFixedThreadPool(Math.min(2, threads>>1));
+      timer = new TimerWheel("Deadline Timer", 1000L, 64);
       if (Database.init(rootFolder, true)){
         Logger.log("Initialization successful.");
       }else{
         Logger.log("Initialization failure.");
       }
+      //Thread pools are sized after the configuration file has been loaded
+      final int fileThreads = Config.getFileThreads();
+      Database.exec = new InstrumentedExecutor("File", fileThreads);
+      Logger.log("Using a file thread pool of size "+fileThreads+'.');
+      Journal.init(rootFolder);
+      Scheduler.init();
+      Catalog.start();
+      Replicator.start();
+      scheduleReport(0, 0);
+      Metrics.start();
       if (connect()){
         Logger.trim(Config.deleteLogAfter);
         DelayedRunnable r;
-        while (!asyncGroup.awaitTermination(1000L, TimeUnit.MILLISECONDS)){
+        while (!engine.awaitTermination(1000L)){
           while ((r=queue.poll())!=null){
             r.run();
           }
@@ -162,6 +142,17 @@ public class Main {
   public static void enqueue(DelayedRunnable d){
     queue.offer(d);
   }
+  /**
+   * Invoked by the {@link Engine} when it can no longer accept connections.
+   */
+  public static void acceptFailed(final String msg, final Throwable e){
+    enqueue(new DelayedRunnable(System.currentTimeMillis()){
+      public void run(){
+        Logger.log(msg, e);
+        gracefulExit(true);
+      }
+    });
+  }
   private static void save(){
     if (Database.save()){
       Logger.log("Database saved successfully.");
@@ -173,6 +164,13 @@ public class Main {
     if (exited.compareAndSet(false,true)){
       try{
         disconnect();
+        Metrics.stop();
+        Replicator.stop();
+        if (timer!=null){
+          timer.stop();
+        }
+        Catalog.stop();
+        Journal.close();
         save();
         DelayedRunnable r;
         while ((r=queue.poll())!=null){
@@ -190,6 +188,48 @@ public class Main {
       }
     }
   }
+  /**
+   * Logs thread pool, rollout, client, and content cache statistics every hour, whenever there has been any activity.
+   * Long queue waits in the file pool indicate that file I/O is a bottleneck.
+   * @param hits is the number of cache hits as of the previous report.
+   * @param misses is the number of cache misses as of the previous report.
+   */
+  private static void scheduleReport(final long hits, final long misses){
+    enqueue(new DelayedRunnable(System.currentTimeMillis()+3600000L){
+      public void run(){
+        String str;
+        final Engine e = engine;
+        if (e!=null && (str=e.report())!=null){
+          Logger.log(str);
+        }
+        if ((str=Rollout.report())!=null){
+          Logger.log(str);
+        }
+        if ((str=Journal.report())!=null){
+          Logger.log(str);
+        }
+        final int watchers = Connections.watchers();
+        if (watchers>0){
+          Logger.log(watchers+" watch connection"+(watchers==1?" is":"s are")+" open.");
+        }
+        final java.util.concurrent.ExecutorService exec = Database.exec;
+        if (exec instanceof InstrumentedExecutor && (str=((InstrumentedExecutor)exec).report())!=null){
+          Logger.log(str);
+        }
+        final ContentCache cache = Database.cache;
+        long h = hits;
+        long m = misses;
+        if (cache!=null && cache.getCapacity()>0){
+          h = cache.getHits();
+          m = cache.getMisses();
+          if (h!=hits || m!=misses){
+            Logger.log("Content cache: "+(h-hits)+" hits, "+(m-misses)+" misses, "+cache.getEvictions()+" total evictions, "+cache.getResidentBytes()+" bytes resident in "+cache.getEntries()+" files.");
+          }
+        }
+        scheduleReport(h, m);
+      }
+    });
+  }
   /**
    * Attempts to bind the server to {@link #port} on the local machine.
    * @return {@code true} on success; {@code false} if an error has occurred.
@@ -198,11 +238,10 @@ public class Main {
     if (running.compareAndSet(false,true)){
       try{
         int port = Config.port;
-        asyncGroup = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
-        server = AsynchronousServerSocketChannel.open(asyncGroup);
-        server.bind(new InetSocketAddress(port), Config.backlog);
-        server.accept(null, clientAcceptor);
-        Logger.log("Database successfully bound to port "+port+" using a fixed thread pool of size "+threads+'.');
+        final int threads = Config.getIOThreads();
+        engine = Engine.create(Config.engine);
+        engine.start(port, Config.backlog, threads, Config.acceptShards);
+        Logger.log("Database successfully bound to port "+port+" using the "+engine.getName()+" engine with "+threads+" IO threads.");
         return true;
       }catch(Throwable e){
         running.set(false);
@@ -214,14 +253,14 @@ public class Main {
     }
   }
   /**
-   * Attempts to terminate the {@link #asyncGroup} and close the {@link #server}.
+   * Attempts to stop the {@link #engine}.
    * Blocks execution until operation has completed.
    * @return {@code true} on success; {@code false} if an error has occurred.
    */
   private static boolean disconnect(){
     if (running.compareAndSet(true,false)){
       try{
-        asyncGroup.shutdownNow();
+        engine.stop();
         Logger.log("Database successfully unbound.");
         return true;
       }catch(Throwable err){
@@ -251,6 +290,24 @@ public class Main {
   public static Path getInstallation(){
     return installation;
   }
+  /**
+   * @return the folder where all files are stored for this database.
+   */
+  public static Path getDataFolder(){
+    return rootFolder;
+  }
+  /**
+   * @return the engine which serves connections, or {@code null} if the database is not bound.
+   */
+  public static Engine getEngine(){
+    return engine;
+  }
+  /**
+   * @return the timer used to enforce connection deadlines.
+   */
+  public static TimerWheel getTimer(){
+    return timer;
+  }
   /**
    * @return the default folder for containing synchronized files.
    */
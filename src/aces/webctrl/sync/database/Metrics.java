@@ -0,0 +1,247 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.sun.net.httpserver.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which records counters and histograms, and exports them in the Prometheus text format.
+ * <p>
+ * Recording is allocation-free: counters are {@link LongAdder}s, and each histogram has a fixed set of bucket bounds, each with its own {@code LongAdder}.
+ * Gauges are read from their owners when the endpoint is scraped.
+ * The endpoint is served by the JDK's {@code com.sun.net.httpserver} on {@link Config#metricsHost} and {@link Config#metricsPort}.
+ */
+public class Metrics {
+  /** Bucket bounds in milliseconds for handshake latency. */
+  private final static long[] HANDSHAKE_BOUNDS = new long[]{5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L};
+  /** Bucket bounds in milliseconds for sync duration. */
+  private final static long[] SYNC_BOUNDS = new long[]{100L, 500L, 1000L, 5000L, 10000L, 30000L, 60000L, 300000L, 900000L, 3600000L};
+  /** Connections accepted by the engine. */
+  final static LongAdder accepted = new LongAdder();
+  /** Connections which failed to authenticate. */
+  final static LongAdder rejectedHandshakes = new LongAdder();
+  /** Sync requests asked to retry later by {@link Admission} or by a {@link Rollout} concurrency limit. */
+  final static LongAdder rejectedAdmissions = new LongAdder();
+  /** Files sent successfully. */
+  final static LongAdder filesSent = new LongAdder();
+  /** Completed requests, indexed by the ordinal of their {@link Journal.Result}. */
+  private final static LongAdder[] results;
+  /** Time from accepting a connection to completing its handshake. */
+  final static Histogram handshakes = new Histogram(HANDSHAKE_BOUNDS);
+  /** Time from admitting a sync session to its completion. */
+  final static Histogram syncs = new Histogram(SYNC_BOUNDS);
+  private volatile static HttpServer server = null;
+  private volatile static ExecutorService exec = null;
+  static {
+    final Journal.Result[] arr = Journal.Result.values();
+    results = new LongAdder[arr.length];
+    for (int i=0;i<arr.length;++i){
+      results[i] = new LongAdder();
+    }
+  }
+  /**
+   * Records how a request ended.
+   */
+  static void result(Journal.Result r){
+    results[r.ordinal()].increment();
+  }
+  /**
+   * Starts the endpoint if {@link Config#metricsPort} is positive.
+   */
+  public synchronized static void start(){
+    final int port = Config.metricsPort;
+    if (port<=0 || server!=null){
+      return;
+    }
+    final String host = Config.metricsHost;
+    try{
+      final HttpServer s = HttpServer.create(host==null || host.isEmpty()?new InetSocketAddress(port):new InetSocketAddress(host, port), 0);
+      s.createContext("/metrics", new HttpHandler(){
+        public void handle(HttpExchange x) throws IOException {
+          try{
+            if (!"GET".equalsIgnoreCase(x.getRequestMethod()) && !"HEAD".equalsIgnoreCase(x.getRequestMethod())){
+              x.sendResponseHeaders(405, -1);
+              return;
+            }
+            final byte[] b = render().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            x.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if ("HEAD".equalsIgnoreCase(x.getRequestMethod())){
+              x.sendResponseHeaders(200, -1);
+              return;
+            }
+            x.sendResponseHeaders(200, b.length);
+            try(
+              OutputStream out = x.getResponseBody();
+            ){
+              out.write(b);
+            }
+          }finally{
+            x.close();
+          }
+        }
+      });
+      final ExecutorService e = Executors.newSingleThreadExecutor(new ThreadFactory(){
+        public Thread newThread(Runnable r){
+          final Thread t = new Thread(r, "Metrics");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      s.setExecutor(e);
+      s.start();
+      server = s;
+      exec = e;
+      Logger.log("Metrics are served at http://"+(host==null || host.isEmpty()?"*":host)+':'+port+"/metrics.");
+    }catch(Throwable t){
+      Logger.log("Failed to start the metrics endpoint on port "+port+'.', t);
+    }
+  }
+  /**
+   * Stops the endpoint.
+   */
+  public synchronized static void stop(){
+    final HttpServer s = server;
+    if (s!=null){
+      s.stop(0);
+      exec.shutdownNow();
+      server = null;
+      exec = null;
+    }
+  }
+  /**
+   * @return every metric in the Prometheus text exposition format.
+   */
+  static String render(){
+    final StringBuilder sb = new StringBuilder(4096);
+    counter(sb, "addon_sync_connections_accepted_total", "Connections accepted.", accepted.sum());
+    sb.append("# HELP addon_sync_connections_rejected_total Connections or requests which were turned away.\n");
+    sb.append("# TYPE addon_sync_connections_rejected_total counter\n");
+    sb.append("addon_sync_connections_rejected_total{reason=\"handshake\"} ").append(rejectedHandshakes.sum()).append('\n');
+    sb.append("addon_sync_connections_rejected_total{reason=\"admission\"} ").append(rejectedAdmissions.sum()).append('\n');
+    gauge(sb, "addon_sync_connections_open", "Connections currently open, including watch connections.", Connections.size());
+    gauge(sb, "addon_sync_watch_connections", "Idle connections waiting to be notified of catalog changes.", Connections.watchers());
+    gauge(sb, "addon_sync_sessions_active", "Sync sessions currently holding an admission permit.", Admission.getActive());
+    gauge(sb, "addon_sync_sessions_queued", "Sync sessions waiting for an admission permit.", Admission.getQueued());
+    sb.append("# HELP addon_sync_requests_total Requests completed, by result.\n");
+    sb.append("# TYPE addon_sync_requests_total counter\n");
+    final Journal.Result[] arr = Journal.Result.values();
+    for (int i=0;i<arr.length;++i){
+      sb.append("addon_sync_requests_total{result=\"").append(arr[i].name().toLowerCase()).append("\"} ").append(results[i].sum()).append('\n');
+    }
+    handshakes.render(sb, "addon_sync_handshake_seconds", "Time from accepting a connection to completing its handshake.");
+    syncs.render(sb, "addon_sync_duration_seconds", "Time from admitting a sync session to its completion.");
+    counter(sb, "addon_sync_bytes_sent_total", "Raw bytes written to sockets.", SocketWrapper.getTotalBytesWritten());
+    counter(sb, "addon_sync_bytes_received_total", "Raw bytes read from sockets.", SocketWrapper.getTotalBytesRead());
+    counter(sb, "addon_sync_files_sent_total", "Files sent successfully.", filesSent.sum());
+    counter(sb, "addon_sync_hash_retries_total", "Blocks retransmitted because of a hash comparison failure.", SocketWrapper.getTotalHashRetries());
+    counter(sb, "addon_sync_hash_failures_total", "Transfers which failed after exhausting their hash comparison attempts.", SocketWrapper.getTotalHashFailures());
+    gauge(sb, "addon_sync_log_queue_depth", "Log entries waiting to be written.", Logger.getQueueDepth());
+    gauge(sb, "addon_sync_log_queue_capacity", "Log entries which may wait to be written before the overflow policy applies.", Logger.getQueueCapacity());
+    final ExecutorService e = Database.exec;
+    if (e instanceof ThreadPoolExecutor){
+      final ThreadPoolExecutor pool = (ThreadPoolExecutor)e;
+      gauge(sb, "addon_sync_file_pool_threads", "Threads in the file pool.", pool.getMaximumPoolSize());
+      gauge(sb, "addon_sync_file_pool_active", "File pool threads currently running a task.", pool.getActiveCount());
+      gauge(sb, "addon_sync_file_pool_queued", "Tasks waiting for a file pool thread.", pool.getQueue().size());
+      counter(sb, "addon_sync_file_pool_tasks_total", "Tasks completed by the file pool.", pool.getCompletedTaskCount());
+    }
+    final Engine engine = Main.getEngine();
+    final Engine.Pool[] pools = engine==null?new Engine.Pool[0]:engine.getPools();
+    if (pools.length>0){
+      final long[] values = new long[pools.length];
+      for (int i=0;i<pools.length;++i){
+        values[i] = pools[i].threads;
+      }
+      gauges(sb, "addon_sync_io_pool_threads", "IO threads in each accept shard.", pools, values);
+      for (int i=0;i<pools.length;++i){
+        values[i] = pools[i].active;
+      }
+      gauges(sb, "addon_sync_io_pool_active", "IO threads in each accept shard which are currently doing work.", pools, values);
+      for (int i=0;i<pools.length;++i){
+        values[i] = pools[i].queued;
+      }
+      gauges(sb, "addon_sync_io_pool_queued", "Tasks in each accept shard waiting for an event loop (NIO), or socket operations whose handlers have not started, including reads from idle clients (AIO).", pools, values);
+    }
+    return sb.toString();
+  }
+  private static void counter(StringBuilder sb, String name, String help, long value){
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" counter\n");
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+  private static void gauge(StringBuilder sb, String name, String help, long value){
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    sb.append(name).append(' ').append(value).append('\n');
+  }
+  /**
+   * Writes one gauge per shard, labelled with the shard's index.
+   */
+  private static void gauges(StringBuilder sb, String name, String help, Engine.Pool[] pools, long[] values){
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    for (int i=0;i<pools.length;++i){
+      sb.append(name).append("{shard=\"").append(pools[i].shard).append("\"} ").append(values[i]).append('\n');
+    }
+  }
+  /**
+   * Histogram of millisecond durations with fixed bucket bounds, which is exported in seconds.
+   */
+  static class Histogram {
+    /** Inclusive upper bounds in ascending order. */
+    private final long[] bounds;
+    /** Non-cumulative counts, where the last element counts values above every bound. */
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+    Histogram(long[] bounds){
+      this.bounds = bounds;
+      counts = new LongAdder[bounds.length+1];
+      for (int i=0;i<counts.length;++i){
+        counts[i] = new LongAdder();
+      }
+    }
+    /**
+     * Records a value in milliseconds.
+     */
+    void observe(long millis){
+      if (millis<0){
+        millis = 0;
+      }
+      int lo = 0;
+      int hi = bounds.length;
+      int mid;
+      while (lo<hi){
+        mid = (lo+hi)>>>1;
+        if (millis<=bounds[mid]){
+          hi = mid;
+        }else{
+          lo = mid+1;
+        }
+      }
+      counts[lo].increment();
+      sum.add(millis);
+    }
+    void render(StringBuilder sb, String name, String help){
+      sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+      sb.append("# TYPE ").append(name).append(" histogram\n");
+      long total = 0;
+      for (int i=0;i<bounds.length;++i){
+        total+=counts[i].sum();
+        sb.append(name).append("_bucket{le=\"").append(seconds(bounds[i])).append("\"} ").append(total).append('\n');
+      }
+      total+=counts[bounds.length].sum();
+      sb.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+      sb.append(name).append("_sum ").append(seconds(sum.sum())).append('\n');
+      sb.append(name).append("_count ").append(total).append('\n');
+    }
+    private static String seconds(long millis){
+      return millis%1000L==0?String.valueOf(millis/1000L):String.valueOf(millis/1000.0);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,265 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which keeps a follower's catalog identical to the primary's.
+ * <p>
+ * A database becomes a follower when {@link Config#primary} is set.
+ * Followers periodically connect to the primary like any other client, complete the usual encrypted handshake, and request replication.
+ * The primary sends its pinned catalog generation, and the follower mirrors it into its own synchronization folder, deleting anything the primary does not have.
+ * Timestamps are preserved, so the follower publishes a generation with the same catalog version as the primary,
+ * and clients may move between nodes without resynchronizing.
+ * <p>
+ * Followers serve clients read-only: their synchronization folder is only modified by replication,
+ * and the catalog is refreshed only after a replication succeeds, so clients never see a partially replicated catalog.
+ * Every node must share the same {@code ./keys} file and {@link Config#connectionKey}, since clients pin the database's public key.
+ * Followers also present {@link Config#replicationKey}, which the primary requires before it treats a connection as a follower.
+ */
+public class Replicator {
+  /** Runs socket operations for replication. */
+  private volatile static AsynchronousChannelGroup group = null;
+  /** Becomes {@code true} when {@link #stop()} is invoked. */
+  private volatile static boolean stopped = false;
+  /** The catalog version most recently received from the primary, or {@code 0} if none. */
+  private volatile static long primaryVersion = 0;
+  /** The value of {@code System.currentTimeMillis()} when replication last succeeded, or {@code 0} if it never has. */
+  private volatile static long lastSuccess = 0;
+  /** Number of files received during the current replication. */
+  private final static AtomicInteger received = new AtomicInteger();
+  /**
+   * @return whether or not this database is a follower.
+   */
+  public static boolean isFollower(){
+    final String p = Config.primary;
+    return p!=null && !p.isEmpty();
+  }
+  /**
+   * @return the catalog version most recently received from the primary, or {@code 0} if none.
+   */
+  public static long getPrimaryVersion(){
+    return primaryVersion;
+  }
+  /**
+   * @return the value of {@code System.currentTimeMillis()} when replication last succeeded, or {@code 0} if it never has.
+   */
+  public static long getLastSuccess(){
+    return lastSuccess;
+  }
+  /**
+   * Starts replicating if this database is a follower.
+   */
+  public static void start(){
+    if (!isFollower()){
+      return;
+    }
+    try{
+      group = AsynchronousChannelGroup.withFixedThreadPool(1, Executors.defaultThreadFactory());
+      Logger.log("Running as a follower of "+Config.primary+'.');
+      schedule(0);
+    }catch(Throwable t){
+      Logger.log("Unable to start replication.", t);
+    }
+  }
+  /**
+   * Stops replicating and closes any open connection to the primary.
+   */
+  public static void stop(){
+    stopped = true;
+    final AsynchronousChannelGroup g = group;
+    if (g!=null){
+      try{
+        g.shutdownNow();
+      }catch(Throwable t){}
+    }
+  }
+  private static void schedule(long delay){
+    if (!stopped){
+      Main.enqueue(new DelayedRunnable(System.currentTimeMillis()+delay){
+        public void run(){
+          replicate();
+        }
+      });
+    }
+  }
+  /**
+   * Parses a string of the form {@code host:port}. The port defaults to {@link Config#port} if omitted.
+   */
+  private static InetSocketAddress parse(String s){
+    s = s.trim();
+    final int i = s.lastIndexOf(':');
+    if (i==-1 || s.indexOf(']',i)!=-1){
+      return new InetSocketAddress(s, Config.port);
+    }
+    return new InetSocketAddress(s.substring(0,i), Integer.parseInt(s.substring(i+1).trim()));
+  }
+  /**
+   * Connects to the primary and requests replication.
+   */
+  private static void replicate(){
+    if (stopped){
+      return;
+    }
+    final AsynchronousSocketChannel ch;
+    try{
+      ch = AsynchronousSocketChannel.open(group);
+      ch.connect(parse(Config.primary), null, new CompletionHandler<Void,Void>(){
+        public void completed(Void v, Void vv){
+          handshake(new SocketWrapper(ch));
+        }
+        public void failed(Throwable e, Void vv){
+          try{
+            ch.close();
+          }catch(Throwable t){}
+          finish(null, "Unable to connect to primary "+Config.primary+'.', e);
+        }
+      });
+    }catch(Throwable t){
+      finish(null, "Unable to connect to primary "+Config.primary+'.', t);
+    }
+  }
+  private static void handshake(final SocketWrapper wrap){
+    new ClientHandshake(){
+      protected void incompatible(String version){
+        finish(wrap, "Primary runs incompatible version "+version+'.', null);
+      }
+      protected boolean trust(Key k){
+        final Key own = Keys.getPreferredKey();
+        if (own==null || own.getID()!=k.getID() || !own.getHashString().equals(k.getHashString())){
+          finish(wrap, "Primary presented public key "+k.getHashString()+", but this node uses "+(own==null?"no key":own.getHashString())+". Copy the primary's keys file to each follower.", null);
+          return false;
+        }
+        return true;
+      }
+      protected void rejected(){
+        finish(wrap, "Primary rejected the connection key. Followers must use the same ConnectionKey as the primary.", null);
+      }
+      protected void failed(Throwable t){
+        finish(wrap, "Replication failed.", t);
+      }
+      protected void established(String version){
+        if (Config.compareVersions(version, Config.REPLICATION_VERSION)<0){
+          finish(wrap, "Primary runs version "+version+", which does not support replication.", null);
+          return;
+        }
+        request(wrap);
+      }
+    }.start(wrap, Config.connectionKey);
+  }
+  /**
+   * Sends the catalog version which this follower currently serves, and then mirrors whatever the primary sends.
+   */
+  private static void request(final SocketWrapper wrap){
+    wrap.write(Protocol.REPLICATE, null, new Handler<Void>(wrap){
+      public void func(Void v){
+        final SerializationStream s = new SerializationStream(16);
+        s.write(Catalog.getVersion());
+        s.write(Config.replicationKey);
+        wrap.writeBytes(s.data, null, new Handler<Void>(wrap){
+          public void func(Void v){
+            wrap.read(null, new Handler<Byte>(wrap){
+              public void func(Byte b){
+                if (b==Protocol.UP_TO_DATE){
+                  readSummary(wrap, false);
+                  return;
+                }
+                if (b==Protocol.FAILURE){
+                  finish(wrap, "Primary rejected the replication key. Followers must use the same ReplicationKey as the primary.", null);
+                  return;
+                }
+                received.set(0);
+                wrap.readPath(b, Main.getSyncs(), null, new Handler<Boolean>(wrap){
+                  public void func(Boolean b){
+                    if (b){
+                      readSummary(wrap, true);
+                    }else{
+                      finish(wrap, "Replication was incomplete. Continuing to serve the previous catalog.", null);
+                    }
+                  }
+                }, null, new java.util.function.BiConsumer<Path,Boolean>(){
+                  public void accept(Path p, Boolean b){
+                    if (b){
+                      received.incrementAndGet();
+                    }
+                  }
+                }, true);
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Reads the primary's catalog version, and then publishes the replicated files.
+   * @param changed specifies whether any files may have been modified.
+   */
+  private static void readSummary(final SocketWrapper wrap, final boolean changed){
+    wrap.readBytes(64, null, new Handler<byte[]>(wrap){
+      public void func(byte[] arr){
+        final SerializationStream s = new SerializationStream(arr);
+        s.readLong();
+        final long version = s.readLong();
+        wrap.close();
+        primaryVersion = version;
+        lastSuccess = System.currentTimeMillis();
+        if (!changed){
+          finish(null, null, null);
+          return;
+        }
+        Main.enqueue(new DelayedRunnable(System.currentTimeMillis()){
+          public void run(){
+            Catalog.refresh();
+            final long local = Catalog.getVersion();
+            Logger.log("Replicated "+received.get()+" file"+(received.get()==1?"":"s")+" from the primary."+(version!=0 && local!=version?" Catalog version "+Long.toHexString(local)+" differs from the primary's "+Long.toHexString(version)+'.':""));
+            schedule(Math.max(Config.replicationInterval, 1000L));
+          }
+        });
+      }
+    });
+  }
+  /**
+   * Closes the connection, logs the outcome, and schedules the next replication.
+   */
+  private static void finish(SocketWrapper wrap, String msg, Throwable t){
+    if (wrap!=null && !wrap.isClosed()){
+      wrap.close();
+    }
+    if (msg!=null){
+      if (t==null){
+        Logger.logAsync(msg);
+      }else{
+        Logger.logAsync(msg, t);
+      }
+    }
+    schedule(Math.max(Config.replicationInterval, 1000L));
+  }
+  /**
+   * Convenience {@code CompletionHandler} which abandons replication when a socket error occurs.
+   */
+  private abstract static class Handler<T> implements CompletionHandler<T,Void> {
+    private final SocketWrapper wrap;
+    Handler(SocketWrapper wrap){
+      this.wrap = wrap;
+    }
+    public abstract void func(T ret);
+    @Override public void completed(T ret, Void v){
+      try{
+        func(ret);
+      }catch(Throwable t){
+        finish(wrap, "Replication failed.", t);
+      }
+    }
+    @Override public void failed(Throwable e, Void v){
+      finish(wrap, "Replication failed.", e);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,661 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which stages the release of new add-on versions.
+ * <p>
+ * Policies are defined in {@code ./data/rollout.txt}.
+ * Each line has the form {@code <path>=<option>:<value>,...}, where the path is relative to the synchronization folder, and a path which ends with {@code /} applies to every file in that folder.
+ * The option {@code concurrent} limits how many clients may download a new version of a file at once.
+ * The limit applies while the version is being rolled out, or for {@link #RELEASE_PERIOD} milliseconds after it was published if the file is not staged, since clients may not have it yet.
+ * Slots are reserved before a session offers any file, and a session which cannot reserve every slot it may need is asked to retry later, so a client never prepares to replace a file which is then refused.
+ * The options {@code waves} and {@code interval} release each new version of a file in waves,
+ * where {@code waves} lists cumulative percentages of clients separated by {@code /} (e.g. {@code 5/25/100}), and each wave lasts {@code interval} milliseconds.
+ * <p>
+ * A rollout starts when {@link Catalog} publishes a generation in which a staged file was added or changed.
+ * Clients are assigned to waves by a hash of their identity (or IP address), so the same clients always lead.
+ * Clients outside the current wave are sent the previous version, whose blob is retained until the rollout ends, or nothing at all if the file is new.
+ * Progress is saved in {@code ./data/rollouts}, so rollouts and releases survive restarts.
+ */
+public class Rollout {
+  /** Name of the file which defines policies, relative to the data folder. */
+  private final static String FILE = "rollout.txt";
+  /** Name of the file which stores the progress of each rollout, relative to the data folder. */
+  private final static String STATE_FILE = "rollouts";
+  /** How long (in milliseconds) the concurrency limit of an unstaged file applies to a new version. Clients sync about once per day, so by then every live client has it. */
+  private final static long RELEASE_PERIOD = 86400000L;
+  /** How often (in milliseconds) to reload the policy file and advance waves. */
+  private final static long TICK = 60000L;
+  /** The modification time of the policy file when it was last loaded, or {@code -1} if it did not exist. */
+  private volatile static long lastModified = -1;
+  /** Maps lowercase path prefixes, where each component is followed by {@code '/'}, to policies. */
+  private volatile static Map<String,Policy> policies = Collections.emptyMap();
+  /** Whether previous versions are retained in the {@link BlobStore}. If not, clients outside the current wave are sent nothing. */
+  private volatile static boolean retain = false;
+  /** Active rollouts keyed by relative path. Sorted, so {@link #apply(Manifest,String)} may key its cache by position. Guarded by {@code Rollout.class}. */
+  private final static TreeMap<String,State> rollouts = new TreeMap<String,State>();
+  /** Recently published versions of unstaged files which have a concurrency limit, keyed by relative path. Guarded by {@code Rollout.class}. */
+  private final static HashMap<String,State> releases = new HashMap<String,State>();
+  /** Manifests adjusted for rollouts, keyed by the source manifest and then by which rollouts are withheld. Cleared whenever a rollout changes. Guarded by {@code Rollout.class}. */
+  private final static WeakHashMap<Manifest,HashMap<String,Manifest>> views = new WeakHashMap<Manifest,HashMap<String,Manifest>>();
+  /** Transfer counters keyed by relative path. */
+  private final static ConcurrentHashMap<String,Transfers> transfers = new ConcurrentHashMap<String,Transfers>();
+  /**
+   * Limits which apply to every file matching a path prefix.
+   */
+  private static class Policy {
+    /** Maximum number of concurrent transfers of each file, or {@code 0} if unlimited. */
+    int concurrent = 0;
+    /** Cumulative percentage of clients included in each wave. */
+    int[] waves = new int[0];
+    /** How long (in milliseconds) each wave lasts. */
+    long interval = 0;
+    boolean isStaged(){
+      return waves.length>0 && interval>0;
+    }
+  }
+  /**
+   * Progress of one file's rollout.
+   * Mutable fields are guarded by {@code Rollout.class}.
+   */
+  private static class State {
+    final String path;
+    /** The version sent to clients outside the current wave, or {@code null} to send nothing. */
+    final FileEntry previous;
+    /** Identifies the version being rolled out. */
+    final long lastModified;
+    final long size;
+    /** The value of {@code System.currentTimeMillis()} when the rollout started. */
+    final long started;
+    /** Index of the current wave, or {@code -1} if not yet evaluated. */
+    int wave = -1;
+    /** Percentage of clients included in the current wave. */
+    int percent = 0;
+    /** Number of times the new version has been delivered. */
+    long delivered = 0;
+    State(String path, FileEntry previous, long lastModified, long size, long started){
+      this.path = path;
+      this.previous = previous;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.started = started;
+    }
+    boolean matches(FileEntry e){
+      return e.getLastModified()==lastModified && e.getSize()==size;
+    }
+  }
+  /**
+   * Counters for transfers of one file.
+   */
+  private static class Transfers {
+    final AtomicInteger active = new AtomicInteger();
+    /** Number of sessions deferred since the last report. */
+    final AtomicLong deferred = new AtomicLong();
+  }
+  /**
+   * Loads the policy file and any saved progress, and then periodically advances waves.
+   * Must be invoked before the catalog is first refreshed.
+   * @param retain specifies whether previous versions are retained in the {@link BlobStore}.
+   */
+  public static void init(boolean retain){
+    Rollout.retain = retain;
+    reload();
+    load();
+    advance(false);
+    schedule();
+  }
+  private static void schedule(){
+    Main.enqueue(new DelayedRunnable(System.currentTimeMillis()+TICK){
+      public void run(){
+        reload();
+        advance(false);
+        schedule();
+      }
+    });
+  }
+  /**
+   * Reloads the policy file if it has changed since it was last loaded.
+   */
+  private synchronized static void reload(){
+    final Path file = Main.getDataFolder().resolve(FILE);
+    long mod = -1;
+    try{
+      if (Files.exists(file)){
+        mod = Files.getLastModifiedTime(file).toMillis();
+      }
+    }catch(Throwable t){}
+    if (mod==lastModified){
+      return;
+    }
+    lastModified = mod;
+    final HashMap<String,Policy> policies = new HashMap<String,Policy>();
+    if (mod!=-1){
+      try{
+        int i;
+        String key, value;
+        for (String line:Files.readAllLines(file, java.nio.charset.StandardCharsets.UTF_8)){
+          line = line.trim();
+          if (line.isEmpty() || line.charAt(0)==';' || (i=line.indexOf('='))==-1){
+            continue;
+          }
+          key = line.substring(0,i).trim().replace('\\','/');
+          value = line.substring(i+1).trim();
+          while (key.startsWith("/")){
+            key = key.substring(1);
+          }
+          if (key.isEmpty()){
+            continue;
+          }
+          final Policy p = new Policy();
+          for (String opt:value.split(",")){
+            if ((i=opt.indexOf(':'))==-1){
+              continue;
+            }
+            final String name = opt.substring(0,i).trim();
+            final String v = opt.substring(i+1).trim();
+            if (name.equalsIgnoreCase("concurrent")){
+              p.concurrent = Integer.parseInt(v);
+            }else if (name.equalsIgnoreCase("interval")){
+              p.interval = Long.parseLong(v);
+            }else if (name.equalsIgnoreCase("waves")){
+              final String[] arr = v.split("/");
+              p.waves = new int[arr.length];
+              for (int j=0;j<arr.length;++j){
+                p.waves[j] = Math.max(0, Math.min(100, Integer.parseInt(arr[j].trim())));
+              }
+            }
+          }
+          policies.put(key.endsWith("/")?key.toLowerCase():key.toLowerCase()+'/', p);
+        }
+        Logger.logAsync("Loaded "+policies.size()+" rollout polic"+(policies.size()==1?"y":"ies")+'.');
+      }catch(Throwable t){
+        Logger.logAsync("Error occurred while loading "+FILE+". Add-ons are released without limits.", t);
+        policies.clear();
+      }
+    }
+    Rollout.policies = policies;
+  }
+  /**
+   * @return the policy with the longest prefix matching the given relative path, or {@code null} if none match.
+   */
+  private static Policy getPolicy(String path){
+    final Map<String,Policy> policies = Rollout.policies;
+    if (policies.isEmpty()){
+      return null;
+    }
+    path = path.toLowerCase();
+    Policy p = null;
+    int len = -1;
+    for (Map.Entry<String,Policy> e:policies.entrySet()){
+      final String k = e.getKey();
+      if (k.length()>len && path.startsWith(k)){
+        p = e.getValue();
+        len = k.length();
+      }
+    }
+    return p;
+  }
+  /**
+   * @return the relative path without its trailing {@code '/'}, for logging.
+   */
+  private static String display(String path){
+    return path.endsWith("/")?path.substring(0,path.length()-1):path;
+  }
+  /**
+   * @return a number in {@code [0,100)} which decides the first wave to include the given client.
+   */
+  private static int bucket(String client){
+    final long h = (client.toLowerCase().hashCode()&0xFFFFFFFFL)*0x9E3779B97F4A7C15L;
+    return (int)((h>>>32)%100);
+  }
+  /**
+   * Starts a rollout for each staged file which differs from the previous generation, and ends rollouts of files which were removed or reverted.
+   * Invoked by {@link Catalog} before it publishes a new generation.
+   * @param prev is the generation being replaced, or {@code null} if there is none.
+   * @param next is the generation about to be published.
+   */
+  static void update(Manifest prev, Manifest next){
+    if (prev==null){
+      return;
+    }
+    final HashMap<String,FileEntry> old = new HashMap<String,FileEntry>();
+    for (FileEntry e:prev){
+      old.put(e.getRelativePathString(), e);
+    }
+    final HashSet<String> present = new HashSet<String>();
+    final long now = System.currentTimeMillis();
+    boolean changed = false;
+    boolean saveReleases = false;
+    synchronized (Rollout.class){
+      String path;
+      State s;
+      FileEntry o;
+      for (FileEntry e:next){
+        path = e.getRelativePathString();
+        present.add(path);
+        s = rollouts.get(path);
+        if (s!=null){
+          if (s.matches(e)){
+            continue;
+          }
+          changed = true;
+          if (s.previous!=null && s.previous.getLastModified()==e.getLastModified() && s.previous.getSize()==e.getSize()){
+            rollouts.remove(path);
+            Logger.logAsync("Rollout of "+display(path)+" cancelled because the previous version was restored.");
+          }else{
+            //Clients outside the wave still have the version which preceded the rollout
+            rollouts.put(path, new State(path, s.previous, e.getLastModified(), e.getSize(), now));
+            Logger.logAsync("Restarted rollout of "+display(path)+" for a newer version.");
+          }
+          continue;
+        }
+        final Policy p = getPolicy(path);
+        if (p==null){
+          continue;
+        }
+        o = old.get(path);
+        if (o!=null && o.getLastModified()==e.getLastModified() && o.getSize()==e.getSize()){
+          continue;
+        }
+        if (!p.isStaged()){
+          if (p.concurrent>0){
+            releases.put(path, new State(path, null, e.getLastModified(), e.getSize(), now));
+            saveReleases = true;
+          }
+          continue;
+        }
+        rollouts.put(path, new State(path, retain?o:null, e.getLastModified(), e.getSize(), now));
+        Logger.logAsync("Started rollout of "+display(path)+'.');
+        changed = true;
+      }
+      if (next.isComplete()){
+        final Iterator<State> iter = rollouts.values().iterator();
+        while (iter.hasNext()){
+          s = iter.next();
+          if (!present.contains(s.path)){
+            iter.remove();
+            Logger.logAsync("Rollout of "+display(s.path)+" ended because the file was removed.");
+            changed = true;
+          }
+        }
+      }
+    }
+    if (changed){
+      advance(true);
+    }else if (saveReleases){
+      save();
+    }
+  }
+  /**
+   * Moves each rollout to the wave given by its policy and the time elapsed, and ends rollouts which have reached every client.
+   * Watching clients are notified when anything changes, since their catalog versions depend on the current waves.
+   * @param changed specifies whether rollouts have already been started or ended by the caller.
+   */
+  private static void advance(boolean changed){
+    final long now = System.currentTimeMillis();
+    boolean pruned = false;
+    synchronized (Rollout.class){
+      final Iterator<State> iter = rollouts.values().iterator();
+      State s;
+      Policy p;
+      while (iter.hasNext()){
+        s = iter.next();
+        p = getPolicy(s.path);
+        if (p==null || !p.isStaged()){
+          iter.remove();
+          Logger.logAsync("Rollout of "+display(s.path)+" cancelled because its policy was removed.");
+          changed = true;
+          continue;
+        }
+        final int k = (int)Math.min(Math.max(now-s.started,0L)/p.interval, p.waves.length-1);
+        final int percent = p.waves[k];
+        if (k==p.waves.length-1 && percent>=100){
+          iter.remove();
+          Logger.logAsync("Rollout of "+display(s.path)+" completed after "+s.delivered+" deliver"+(s.delivered==1?"y":"ies")+'.');
+          if (p.concurrent>0){
+            //Clients in the last wave have yet to download the new version
+            releases.put(s.path, new State(s.path, null, s.lastModified, s.size, now));
+          }
+          changed = true;
+        }else if (k!=s.wave || percent!=s.percent){
+          s.wave = k;
+          s.percent = percent;
+          Logger.logAsync("Rollout of "+display(s.path)+" is at wave "+(k+1)+" of "+p.waves.length+" ("+percent+"% of clients).");
+          changed = true;
+        }
+      }
+      if (changed){
+        views.clear();
+      }
+      final Iterator<State> rel = releases.values().iterator();
+      while (rel.hasNext()){
+        if (now-rel.next().started>=RELEASE_PERIOD){
+          rel.remove();
+          pruned = true;
+        }
+      }
+    }
+    if (changed){
+      save();
+      Connections.broadcast();
+    }else if (pruned){
+      save();
+    }
+  }
+  /**
+   * Replaces the entries of files which are being rolled out with their previous versions, unless the client is in the current wave.
+   * Results are cached, so clients in the same waves share one manifest.
+   * @param m is the manifest of the client's sync group.
+   * @param client is the client's identity or IP address, or {@code null} to send every new version (e.g. to followers).
+   * @return the manifest to send to the client.
+   */
+  public static Manifest apply(Manifest m, String client){
+    if (client==null || m==null){
+      return m;
+    }
+    synchronized (Rollout.class){
+      if (rollouts.isEmpty()){
+        return m;
+      }
+      final int bucket = bucket(client);
+      final StringBuilder sb = new StringBuilder(rollouts.size());
+      boolean withheld = false;
+      for (State s:rollouts.values()){
+        if (bucket>=s.percent){
+          sb.append('1');
+          withheld = true;
+        }else{
+          sb.append('0');
+        }
+      }
+      if (!withheld){
+        return m;
+      }
+      final String key = sb.toString();
+      HashMap<String,Manifest> map = views.get(m);
+      if (map==null){
+        map = new HashMap<String,Manifest>();
+        views.put(m, map);
+      }
+      Manifest view = map.get(key);
+      if (view==null){
+        final ArrayList<FileEntry> list = new ArrayList<FileEntry>(m.size());
+        State s;
+        for (FileEntry e:m){
+          s = rollouts.get(e.getRelativePathString());
+          if (s!=null && bucket>=s.percent && s.matches(e)){
+            if (s.previous!=null){
+              list.add(s.previous);
+            }
+          }else{
+            list.add(e);
+          }
+        }
+        view = Manifest.of(m.getRoot(), list, m.getCreationTime(), m.isComplete());
+        map.put(key, view);
+      }
+      return view;
+    }
+  }
+  private static Transfers getTransfers(String path){
+    Transfers t = transfers.get(path);
+    if (t==null){
+      t = new Transfers();
+      final Transfers tt = transfers.putIfAbsent(path, t);
+      if (tt!=null){
+        t = tt;
+      }
+    }
+    return t;
+  }
+  /**
+   * Invoked before a session offers any file to a client.
+   * Takes a slot for each file in the manifest which has a concurrency limit and may be new to the client,
+   * i.e. the version being rolled out to the client's wave, or a version published within {@link #RELEASE_PERIOD} milliseconds.
+   * @return the files for which slots were taken, each of which must be passed to {@link #release(FileEntry)} once the client no longer needs it,
+   * or {@code null} if a file's limit has been reached, in which case no slots are held.
+   */
+  public static ArrayList<FileEntry> reserve(Manifest m){
+    final ArrayList<FileEntry> list = new ArrayList<FileEntry>();
+    if (policies.isEmpty()){
+      return list;
+    }
+    final ArrayList<FileEntry> candidates = new ArrayList<FileEntry>();
+    String path;
+    State s;
+    synchronized (Rollout.class){
+      if (rollouts.isEmpty() && releases.isEmpty()){
+        return list;
+      }
+      for (FileEntry e:m){
+        path = e.getRelativePathString();
+        s = rollouts.get(path);
+        if (s==null){
+          s = releases.get(path);
+        }
+        if (s!=null && s.matches(e)){
+          candidates.add(e);
+        }
+      }
+    }
+    Policy p;
+    Transfers t;
+    int n;
+    for (FileEntry e:candidates){
+      path = e.getRelativePathString();
+      p = getPolicy(path);
+      if (p==null || p.concurrent<=0){
+        continue;
+      }
+      t = getTransfers(path);
+      do {
+        n = t.active.get();
+        if (n>=p.concurrent){
+          t.deferred.incrementAndGet();
+          for (FileEntry f:list){
+            release(f);
+          }
+          return null;
+        }
+      } while (!t.active.compareAndSet(n,n+1));
+      list.add(e);
+    }
+    return list;
+  }
+  /**
+   * Releases a slot taken by {@link #reserve(Manifest)}.
+   */
+  public static void release(FileEntry e){
+    getTransfers(e.getRelativePathString()).active.decrementAndGet();
+  }
+  /**
+   * Invoked when a file has been delivered to a client, so the progress of its rollout can be reported.
+   */
+  public static void delivered(FileEntry e){
+    synchronized (Rollout.class){
+      final State s = rollouts.get(e.getRelativePathString());
+      if (s!=null && s.matches(e)){
+        ++s.delivered;
+      }
+    }
+  }
+  /**
+   * @return a manifest of the previous versions retained by active rollouts, which must not be garbage-collected.
+   */
+  static Manifest getRetained(){
+    final ArrayList<FileEntry> list = new ArrayList<FileEntry>();
+    synchronized (Rollout.class){
+      for (State s:rollouts.values()){
+        if (s.previous!=null){
+          list.add(s.previous);
+        }
+      }
+    }
+    return Manifest.of(Main.getSyncs(), list, 0, true);
+  }
+  /**
+   * Summarizes the progress of every rollout, and the sessions deferred by concurrency limits since the last report.
+   * @return the summary, or {@code null} if there is nothing to report.
+   */
+  public static String report(){
+    final StringBuilder sb = new StringBuilder();
+    synchronized (Rollout.class){
+      for (State s:rollouts.values()){
+        if (sb.length()>0){
+          sb.append(' ');
+        }
+        sb.append("Rollout of ").append(display(s.path)).append(" is at wave ").append(s.wave+1).append(" (").append(s.percent).append("% of clients) with ");
+        sb.append(s.delivered).append(" deliver").append(s.delivered==1?"y":"ies").append('.');
+      }
+    }
+    for (Map.Entry<String,Transfers> e:transfers.entrySet()){
+      final long n = e.getValue().deferred.getAndSet(0);
+      if (n>0){
+        if (sb.length()>0){
+          sb.append(' ');
+        }
+        sb.append("Deferred ").append(n).append(" sync").append(n==1?"":"s").append(" because every slot to download ").append(display(e.getKey())).append(" was taken.");
+      }
+    }
+    return sb.length()==0?null:sb.toString();
+  }
+  /**
+   * Saves the progress of every rollout, followed by recent releases.
+   */
+  private static void save(){
+    try{
+      final ArrayList<byte[]> paths = new ArrayList<byte[]>();
+      final ArrayList<byte[]> blobs = new ArrayList<byte[]>();
+      final ArrayList<State> list;
+      final ArrayList<State> rel;
+      int cap = 8;
+      synchronized (Rollout.class){
+        list = new ArrayList<State>(rollouts.values());
+        rel = new ArrayList<State>(releases.values());
+      }
+      byte[] b;
+      for (State s:list){
+        b = s.path.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        paths.add(b);
+        cap+=b.length+37;
+        if (s.previous==null){
+          blobs.add(null);
+        }else{
+          b = s.previous.getPath().getFileName().toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+          blobs.add(b);
+          cap+=b.length+20;
+        }
+      }
+      for (State r:rel){
+        b = r.path.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        paths.add(b);
+        cap+=b.length+28;
+      }
+      final SerializationStream s = new SerializationStream(cap);
+      s.write(list.size());
+      int i = 0;
+      for (State st:list){
+        s.write(paths.get(i));
+        s.write(st.lastModified);
+        s.write(st.size);
+        s.write(st.started);
+        synchronized (Rollout.class){
+          s.write(st.delivered);
+        }
+        b = blobs.get(i++);
+        s.write(b!=null);
+        if (b!=null){
+          s.write(st.previous.getLastModified());
+          s.write(st.previous.getSize());
+          s.write(b);
+        }
+      }
+      s.write(rel.size());
+      for (State r:rel){
+        s.write(paths.get(i++));
+        s.write(r.lastModified);
+        s.write(r.size);
+        s.write(r.started);
+      }
+      final Path file = Main.getDataFolder().resolve(STATE_FILE);
+      final Path tmp = Files.createTempFile(file.getParent(), STATE_FILE, ".tmp");
+      Files.write(tmp, s.data);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }catch(Throwable t){
+      Logger.logAsync("Error occurred while saving rollout progress.", t);
+    }
+  }
+  /**
+   * Restores progress saved by {@link #save()}.
+   * Previous versions whose blobs are missing are withheld instead.
+   */
+  private static void load(){
+    final Path file = Main.getDataFolder().resolve(STATE_FILE);
+    try{
+      if (!Files.exists(file)){
+        return;
+      }
+      final SerializationStream s = new SerializationStream(Files.readAllBytes(file));
+      final int len = s.readInt();
+      final ArrayList<State> list = new ArrayList<State>(len);
+      for (int i=0;i<len;++i){
+        final byte[] path = s.readBytes();
+        final long lastModified = s.readLong();
+        final long size = s.readLong();
+        final long started = s.readLong();
+        final long delivered = s.readLong();
+        FileEntry prev = null;
+        if (s.readBoolean()){
+          final long prevModified = s.readLong();
+          final long prevSize = s.readLong();
+          final String name = s.readString();
+          if (retain){
+            final Path blob = BlobStore.getBlob(name);
+            if (Files.isRegularFile(blob) && Files.size(blob)==prevSize){
+              prev = new FileEntry(blob, path, prevModified, prevSize);
+            }
+          }
+        }
+        final State st = new State(new String(path, java.nio.charset.StandardCharsets.UTF_8), prev, lastModified, size, started);
+        st.delivered = delivered;
+        list.add(st);
+      }
+      //Files saved by earlier versions end after the rollouts
+      final ArrayList<State> rel = new ArrayList<State>();
+      if (!s.end()){
+        final int n = s.readInt();
+        for (int i=0;i<n;++i){
+          final String path = new String(s.readBytes(), java.nio.charset.StandardCharsets.UTF_8);
+          final long lastModified = s.readLong();
+          final long size = s.readLong();
+          rel.add(new State(path, null, lastModified, size, s.readLong()));
+        }
+      }
+      if (!s.end()){
+        Logger.log("The rollout file \""+file.toString()+"\" may have been corrupted.");
+        return;
+      }
+      synchronized (Rollout.class){
+        for (State st:list){
+          rollouts.put(st.path, st);
+        }
+        for (State st:rel){
+          releases.put(st.path, st);
+        }
+      }
+      if (len>0){
+        Logger.log("Resumed "+len+" rollout"+(len==1?"":"s")+'.');
+      }
+    }catch(Throwable t){
+      Logger.log("Error occurred while loading rollout progress.", t);
+    }
+  }
+}
\ No newline at end of file
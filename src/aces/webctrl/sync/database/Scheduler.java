@@ -0,0 +1,84 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Thread-safe namespace which recommends when each client should next synchronize.
+ * Each live client is assigned a slot, and the slots are spread evenly across the daily sync window.
+ * <p>
+ * Clients are keyed by their identity, or by their IP address if no identity was sent, in the same way as {@link Journal}.
+ * A client's slot is its rank among the keys of live clients in sorted order, so slots depend only on which clients are live,
+ * and clients keep their relative order across database restarts.
+ * Clients which have not connected for {@link #EXPIRY} milliseconds are forgotten, so departed clients do not leave gaps in the window.
+ */
+public class Scheduler {
+  /** Recommendations are always at least this many milliseconds in the future, so each client syncs about once per day. */
+  private final static long MIN_GAP = 43200000L;
+  /** Clients which have not connected for this many milliseconds no longer hold a slot. */
+  private final static long EXPIRY = 604800000L;
+  /** Maps the lowercase key of each live client to the last time it was given a recommendation. Guarded by {@code Scheduler.class}. */
+  private final static TreeMap<String,Long> clients = new TreeMap<String,Long>();
+  /** The next time at which expired clients are removed. Guarded by {@code Scheduler.class}. */
+  private static long nextExpiry = 0;
+  /**
+   * Seeds the set of live clients from the session journal, so slots are stable across restarts.
+   * Should be invoked after {@link Journal#init(java.nio.file.Path)}.
+   */
+  public synchronized static void init(){
+    final long since = System.currentTimeMillis()-EXPIRY;
+    Journal.Session s;
+    for (Journal.Client c:Journal.getClients()){
+      s = c.getLatest();
+      if (!s.isFollower() && s.getStartTime()>=since){
+        clients.put(s.getClient(), s.getStartTime());
+      }
+    }
+  }
+  /**
+   * @param client identifies the client.
+   * @return the recommended value of {@code System.currentTimeMillis()} for the client's next sync, or {@code -1} if the sync window is disabled.
+   */
+  public static long recommend(String client){
+    final long start = Config.syncWindowStart;
+    final long length = Config.syncWindowLength;
+    if (length<=0){
+      return -1;
+    }
+    final long now = System.currentTimeMillis();
+    final String key = client.toLowerCase();
+    final int slot, count;
+    synchronized (Scheduler.class){
+      clients.put(key, now);
+      if (now>=nextExpiry){
+        nextExpiry = now+3600000L;
+        final Iterator<Long> iter = clients.values().iterator();
+        while (iter.hasNext()){
+          if (iter.next()<now-EXPIRY){
+            iter.remove();
+          }
+        }
+      }
+      slot = clients.headMap(key).size();
+      count = clients.size();
+    }
+    final long offset = start+(long)((slot+0.5)*length/count);
+    ZonedDateTime day = ZonedDateTime.now().truncatedTo(ChronoUnit.DAYS);
+    long t;
+    while ((t=day.toInstant().toEpochMilli()+offset)<now+MIN_GAP){
+      day = day.plusDays(1);
+    }
+    return t;
+  }
+  /**
+   * @return the number of live clients which hold a slot.
+   */
+  public synchronized static int getClientCount(){
+    return clients.size();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,206 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database;
+import java.net.*;
+import java.nio.channels.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Engine built on a small number of {@link EventLoop} threads.
+ * Each accepted connection is pinned to one loop, and all of its handlers run on that loop's thread.
+ * This avoids handing a connection's state between threads on every operation.
+ * <p>
+ * Connections are accepted by one or more shards, each of which owns a disjoint subset of the loops and distributes its connections among them in round-robin order.
+ * Shards bind their own listeners with {@code SO_REUSEPORT} when the platform allows it, so the operating system balances connections across shards.
+ * Otherwise, all shards block on the same listener, which still keeps several accepts outstanding at once.
+ */
+public class SelectorEngine extends Engine {
+  private volatile EventLoop[] loops = null;
+  /** Listeners bound to the port. Contains a single element unless {@code SO_REUSEPORT} is in use. */
+  private volatile ServerSocketChannel[] servers = new ServerSocketChannel[0];
+  /** Each thread blocks on {@code accept} and distributes new connections among the loops of its shard. */
+  private volatile Thread[] acceptors = new Thread[0];
+  private volatile boolean running = false;
+  /** Number of accept shards, each of which owns the loops whose indices are congruent to its own index. */
+  private volatile int shards = 1;
+  @Override public String getName(){
+    return "NIO";
+  }
+  @Override public void start(int port, int backlog, int threads, int shards) throws Exception {
+    shards = Math.max(Math.min(shards, threads), 1);
+    final EventLoop[] loops = new EventLoop[threads];
+    for (int i=0;i<threads;++i){
+      loops[i] = new EventLoop("Event Loop-"+(i+1));
+    }
+    this.loops = loops;
+    final boolean reuse = shards>1 && isReusePortSupported();
+    if (shards>1 && !reuse){
+      Logger.log("SO_REUSEPORT is not supported on this platform. Accept shards will share a single listener.");
+    }
+    final ServerSocketChannel[] servers = new ServerSocketChannel[reuse?shards:1];
+    try{
+      for (int i=0;i<servers.length;++i){
+        servers[i] = ServerSocketChannel.open();
+        if (reuse && !reusePort(servers[i])){
+          throw new java.io.IOException("Failed to enable SO_REUSEPORT.");
+        }
+        servers[i].bind(new InetSocketAddress(port), backlog);
+      }
+    }catch(Throwable t){
+      for (ServerSocketChannel ch:servers){
+        if (ch!=null){
+          try{
+            ch.close();
+          }catch(Throwable e){}
+        }
+      }
+      for (EventLoop loop:loops){
+        loop.stop();
+      }
+      throw t;
+    }
+    this.servers = servers;
+    initShards(shards);
+    this.shards = shards;
+    running = true;
+    final Thread[] acceptors = new Thread[shards];
+    for (int i=0;i<shards;++i){
+      acceptors[i] = new Acceptor(i, shards, servers[reuse?i:0]);
+    }
+    this.acceptors = acceptors;
+    for (Thread t:acceptors){
+      t.start();
+    }
+  }
+  @Override public void stop(){
+    running = false;
+    for (ServerSocketChannel s:servers){
+      try{
+        s.close();
+      }catch(Throwable e){
+        Logger.logAsync("Error occurred while closing server socket.", e);
+      }
+    }
+    final EventLoop[] loops = this.loops;
+    if (loops!=null){
+      for (EventLoop loop:loops){
+        loop.stop();
+      }
+    }
+  }
+  @Override public boolean awaitTermination(long timeout) throws InterruptedException {
+    final long deadline = System.currentTimeMillis()+timeout;
+    for (Thread t:acceptors){
+      t.join(Math.max(deadline-System.currentTimeMillis(),1L));
+      if (t.isAlive()){
+        return false;
+      }
+    }
+    final EventLoop[] loops = this.loops;
+    if (loops!=null){
+      for (EventLoop loop:loops){
+        if (!loop.awaitTermination(deadline-System.currentTimeMillis())){
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+  @Override public String report(){
+    final EventLoop[] loops = this.loops;
+    if (loops==null){
+      return null;
+    }
+    StringBuilder sb = null;
+    String s;
+    for (EventLoop loop:loops){
+      s = loop.report();
+      if (s!=null){
+        if (sb==null){
+          sb = new StringBuilder(s);
+        }else{
+          sb.append(' ').append(s);
+        }
+      }
+    }
+    s = reportShards();
+    if (s!=null){
+      if (sb==null){
+        sb = new StringBuilder(s);
+      }else{
+        sb.append(' ').append(s);
+      }
+    }
+    return sb==null?null:sb.toString();
+  }
+  @Override public Pool[] getPools(){
+    final EventLoop[] loops = this.loops;
+    if (loops==null){
+      return new Pool[0];
+    }
+    final int shards = this.shards;
+    final Pool[] pools = new Pool[shards];
+    int threads, active, queued;
+    for (int i=0;i<shards;++i){
+      threads = 0;
+      active = 0;
+      queued = 0;
+      for (int j=i;j<loops.length;j+=shards){
+        ++threads;
+        if (loops[j].isBusy()){
+          ++active;
+        }
+        queued+=loops[j].getQueued();
+      }
+      pools[i] = new Pool(i+1, threads, active, queued);
+    }
+    return pools;
+  }
+  /**
+   * Accepts connections for one shard.
+   * The shard with index {@code i} owns the loops whose indices are congruent to {@code i} modulo the number of shards.
+   */
+  private class Acceptor extends Thread {
+    private final int index;
+    private final int shards;
+    private final ServerSocketChannel server;
+    Acceptor(int index, int shards, ServerSocketChannel server){
+      super(shards==1?"Connection Acceptor":"Connection Acceptor-"+(index+1));
+      this.index = index;
+      this.shards = shards;
+      this.server = server;
+    }
+    @Override public void run(){
+      final EventLoop[] loops = SelectorEngine.this.loops;
+      int next = index;
+      SocketChannel ch;
+      while (running){
+        try{
+          ch = server.accept();
+        }catch(AsynchronousCloseException e){
+          break;
+        }catch(Throwable e){
+          if (running){
+            Main.acceptFailed("Failed to accept connection.", e);
+          }
+          break;
+        }
+        accepted(index);
+        try{
+          Connections.add(loops[next].register(ch));
+          next+=shards;
+          if (next>=loops.length){
+            next = index;
+          }
+        }catch(Throwable e){
+          Logger.logAsync("Error occurred while registering connection.", e);
+          try{
+            ch.close();
+          }catch(Throwable t){}
+        }
+      }
+    }
+  }
+}
\ No newline at end of file
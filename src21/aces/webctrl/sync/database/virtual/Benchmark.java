@@ -0,0 +1,238 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database.virtual;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
+import aces.webctrl.sync.common.*;
+/**
+ * Compares the socket engines by running many concurrent sync sessions over loopback.
+ * Each session sends a manifest of real files with {@link SocketWrapper#writeManifest(Manifest,Object,CompletionHandler,java.util.function.Consumer,java.util.function.BiConsumer)},
+ * and the client applies it to its own empty folder with {@link SocketWrapper#readPath(Path,Object,CompletionHandler,java.util.function.Consumer,java.util.function.BiConsumer,boolean)},
+ * so the measurement includes the folder comparison, block hashing, and file I/O of a real sync.
+ * Every engine serves the same client workload, which runs on a separate asynchronous channel group.
+ * <p>Usage: {@code java -cp database.jar;engine21.jar aces.webctrl.sync.database.virtual.Benchmark [sessions=1000] [files=4] [fileSize=8192] [threads]}
+ */
+public class Benchmark {
+  private static int sessions = 1000;
+  private static int files = 4;
+  private static int fileSize = 8192;
+  private static int threads = Runtime.getRuntime().availableProcessors();
+  private static final byte[] key = new byte[16];
+  /** The files which every session synchronizes. */
+  private static Manifest manifest;
+  public static void main(String[] args) throws Exception {
+    if (args.length>0){ sessions = Integer.parseInt(args[0]); }
+    if (args.length>1){ files = Integer.parseInt(args[1]); }
+    if (args.length>2){ fileSize = Integer.parseInt(args[2]); }
+    if (args.length>3){ threads = Integer.parseInt(args[3]); }
+    final Random r = new Random(1978);
+    r.nextBytes(key);
+    SocketWrapper.config = new SocketWrapperConfig(){
+      public long getTimeout(){
+        return 120000L;
+      }
+    };
+    Database.exec = new InstrumentedExecutor("File", threads);
+    final Path root = Files.createTempDirectory("benchmark");
+    final Path src = root.resolve("src");
+    Files.createDirectories(src);
+    final byte[] data = new byte[fileSize];
+    for (int i=0;i<files;++i){
+      r.nextBytes(data);
+      Files.write(src.resolve("file"+i+".addon"), data);
+    }
+    manifest = Manifest.scan(src);
+    System.out.println(sessions+" sessions, "+files+" files of "+fileSize+" bytes each, "+threads+" IO threads.");
+    final AsynchronousChannelGroup clients = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+    try{
+      for (String engine:new String[]{"AIO","NIO","VT","AIO","NIO","VT"}){
+        run(engine, clients, root.resolve("dst"));
+      }
+    }finally{
+      clients.shutdownNow();
+      Database.exec.shutdownNow();
+      delete(root);
+    }
+  }
+  private static void run(String engine, AsynchronousChannelGroup clients, Path dst) throws Exception {
+    delete(dst);
+    Files.createDirectories(dst);
+    System.gc();
+    final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    mx.resetPeakThreadCount();
+    final CountDownLatch served = new CountDownLatch(sessions);
+    final CountDownLatch done = new CountDownLatch(sessions);
+    final AtomicInteger errors = new AtomicInteger();
+    final ArrayList<AutoCloseable> resources = new ArrayList<AutoCloseable>();
+    final InetSocketAddress addr;
+    final long start;
+    switch (engine){
+      case "AIO":{
+        final AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+        final AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(group);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sessions);
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel,Void>(){
+          public void completed(AsynchronousSocketChannel ch, Void v){
+            server.accept(null, this);
+            serve(new AsyncTransport(ch), served, errors);
+          }
+          public void failed(Throwable e, Void v){}
+        });
+        addr = (InetSocketAddress)server.getLocalAddress();
+        resources.add(group::shutdownNow);
+        break;
+      }
+      case "NIO":{
+        final EventLoop[] loops = new EventLoop[threads];
+        for (int i=0;i<threads;++i){
+          loops[i] = new EventLoop("Benchmark Loop-"+(i+1));
+          resources.add(loops[i]::stop);
+        }
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sessions);
+        resources.add(server);
+        Thread.ofPlatform().start(() -> {
+          int next = 0;
+          try{
+            while (true){
+              serve(loops[next].register(server.accept()), served, errors);
+              next = (next+1)%loops.length;
+            }
+          }catch(Throwable e){}
+        });
+        addr = (InetSocketAddress)server.getLocalAddress();
+        break;
+      }
+      default:{
+        final ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sessions);
+        resources.add(server);
+        final AtomicLong id = new AtomicLong();
+        Thread.ofPlatform().start(() -> {
+          try{
+            while (true){
+              serve(new VirtualTransport(server.accept(), "Benchmark-"+id.incrementAndGet()), served, errors);
+            }
+          }catch(Throwable e){}
+        });
+        addr = (InetSocketAddress)server.getLocalSocketAddress();
+      }
+    }
+    start = System.nanoTime();
+    for (int i=0;i<sessions;++i){
+      final AsynchronousSocketChannel ch = AsynchronousSocketChannel.open(clients);
+      final Path folder = dst.resolve(String.valueOf(i));
+      ch.connect(addr, null, new CompletionHandler<Void,Void>(){
+        public void completed(Void v, Void vv){
+          consume(new SocketWrapper(ch), folder, done, errors);
+        }
+        public void failed(Throwable e, Void vv){
+          errors.incrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    final boolean finished = done.await(10, TimeUnit.MINUTES) && served.await(1, TimeUnit.MINUTES);
+    final double seconds = (System.nanoTime()-start)/1e9;
+    final double mb = (double)sessions*files*fileSize/1048576.0;
+    //Verify every client folder after timing, so hashing does not count against the engine
+    int mismatched = 0;
+    for (int i=0;i<sessions;++i){
+      if (Manifest.scan(dst.resolve(String.valueOf(i))).getVersion()!=manifest.getVersion()){
+        ++mismatched;
+      }
+    }
+    System.out.printf("%-4s %s in %.2f s, %.1f MB/s, %.0f sessions/s, %d errors, %d mismatched folders, peak platform threads %d%n",
+      engine, finished?"completed":"timed out", seconds, mb/seconds, sessions/seconds, errors.get(), mismatched, mx.getPeakThreadCount());
+    for (AutoCloseable c:resources){
+      try{
+        c.close();
+      }catch(Throwable e){}
+    }
+  }
+  /**
+   * Server side of a session: sends the manifest, waits for the client to acknowledge it, and then closes the connection.
+   */
+  private static void serve(Transport t, final CountDownLatch served, final AtomicInteger errors){
+    final SocketWrapper w = new SocketWrapper(t);
+    w.setCipher(new StreamCipher(key.clone()));
+    w.writeManifest(manifest, null, new CompletionHandler<Boolean,Void>(){
+      public void completed(Boolean b, Void vv){
+        if (!b){
+          errors.incrementAndGet();
+        }
+        w.read(null, new CompletionHandler<Byte,Void>(){
+          public void completed(Byte b, Void vv){
+            w.close();
+            served.countDown();
+          }
+          public void failed(Throwable e, Void vv){
+            errors.incrementAndGet();
+            w.close();
+            served.countDown();
+          }
+        });
+      }
+      public void failed(Throwable e, Void vv){
+        errors.incrementAndGet();
+        w.close();
+        served.countDown();
+      }
+    }, null, null);
+  }
+  /**
+   * Client side of a session: applies the manifest to the given folder, and then acknowledges it.
+   */
+  private static void consume(final SocketWrapper w, final Path folder, final CountDownLatch done, final AtomicInteger errors){
+    w.setCipher(new StreamCipher(key.clone()));
+    w.readPath(folder, null, new CompletionHandler<Boolean,Void>(){
+      public void completed(Boolean b, Void vv){
+        if (!b){
+          errors.incrementAndGet();
+        }
+        w.write(Protocol.SUCCESS, null, new CompletionHandler<Void,Void>(){
+          public void completed(Void v, Void vv){
+            w.close();
+            done.countDown();
+          }
+          public void failed(Throwable e, Void vv){
+            errors.incrementAndGet();
+            w.close();
+            done.countDown();
+          }
+        });
+      }
+      public void failed(Throwable e, Void vv){
+        errors.incrementAndGet();
+        w.close();
+        done.countDown();
+      }
+    }, null, null, true);
+  }
+  /**
+   * Deletes a folder and everything in it.
+   */
+  private static void delete(Path p) throws java.io.IOException {
+    if (!Files.exists(p)){
+      return;
+    }
+    Files.walkFileTree(p, new SimpleFileVisitor<Path>(){
+      @Override public FileVisitResult visitFile(Path file, java.nio.file.attribute.BasicFileAttributes attrs) throws java.io.IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+      @Override public FileVisitResult postVisitDirectory(Path dir, java.io.IOException e) throws java.io.IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
\ No newline at end of file
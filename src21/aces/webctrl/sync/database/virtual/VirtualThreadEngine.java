@@ -0,0 +1,104 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database.virtual;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import aces.webctrl.sync.common.*;
+import aces.webctrl.sync.database.*;
+/**
+ * Engine which serves each connection with blocking socket I/O on two virtual threads, one for reads and one for writes.
+ * Requires JDK 21 or later, so it is compiled separately into {@code engine21.jar} and loaded reflectively by {@link Engine#create(String)}.
+ */
+public class VirtualThreadEngine extends Engine {
+  private final AtomicLong nextID = new AtomicLong();
+  /** Transports which have not yet terminated. */
+  private final ConcurrentHashMap<Long,VirtualTransport> transports = new ConcurrentHashMap<Long,VirtualTransport>();
+  private final AtomicLong accepted = new AtomicLong();
+  private volatile ServerSocket server = null;
+  private volatile Thread acceptor = null;
+  private volatile boolean running = false;
+  /** Terminated transports are swept from {@link #transports} whenever its size reaches this threshold. Only accessed by {@link #acceptor}. */
+  private int sweepAt = 64;
+  @Override public String getName(){
+    return "VT";
+  }
+  /**
+   * @param threads is ignored, since every connection has its own virtual threads.
+   * @param shards is ignored, since accepting is cheap compared to serving a connection.
+   */
+  @Override public void start(int port, int backlog, int threads, int shards) throws Exception {
+    server = new ServerSocket();
+    server.bind(new InetSocketAddress(port), backlog);
+    running = true;
+    acceptor = Thread.ofPlatform().name("Connection Acceptor").start(this::accept);
+  }
+  private void accept(){
+    Socket s;
+    while (running){
+      try{
+        s = server.accept();
+      }catch(Throwable e){
+        if (running){
+          Main.acceptFailed("Failed to accept connection.", e);
+        }
+        break;
+      }
+      try{
+        final long id = nextID.incrementAndGet();
+        final VirtualTransport t = new VirtualTransport(s, "Connection-"+id);
+        transports.put(id, t);
+        accepted.incrementAndGet();
+        Connections.add(t);
+        if (transports.size()>=sweepAt){
+          transports.values().removeIf(VirtualTransport::isTerminated);
+          sweepAt = Math.max(transports.size()<<1, 64);
+        }
+      }catch(Throwable e){
+        Logger.logAsync("Error occurred while registering connection.", e);
+        try{
+          s.close();
+        }catch(Throwable t){}
+      }
+    }
+  }
+  @Override public void stop(){
+    running = false;
+    try{
+      final ServerSocket s = server;
+      if (s!=null){
+        s.close();
+      }
+    }catch(Throwable e){
+      Logger.logAsync("Error occurred while closing server socket.", e);
+    }
+    for (VirtualTransport t:transports.values()){
+      try{
+        t.close();
+      }catch(Throwable e){}
+    }
+  }
+  @Override public boolean awaitTermination(long timeout) throws InterruptedException {
+    final Thread t = acceptor;
+    if (t==null){
+      return true;
+    }
+    t.join(Math.max(timeout,1L));
+    if (t.isAlive()){
+      return false;
+    }
+    transports.values().removeIf(VirtualTransport::isTerminated);
+    return transports.isEmpty();
+  }
+  @Override public String report(){
+    final long n = accepted.getAndSet(0);
+    if (n==0){
+      return null;
+    }
+    transports.values().removeIf(VirtualTransport::isTerminated);
+    return "Virtual thread engine: "+n+" connections accepted, "+transports.size()+" open.";
+  }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+/*
+  BSD 3-Clause License
+  Copyright (c) 2022, Automatic Controls Equipment Systems, Inc.
+  Contributors: Cameron Vogt (@cvogt729)
+*/
+package aces.webctrl.sync.database.virtual;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import aces.webctrl.sync.common.*;
+/**
+ * {@link Transport} which owns two virtual threads and performs plain blocking socket I/O on them.
+ * Reads execute in order on the read lane, and writes execute in order on the write lane,
+ * so a write is never held up behind a read which is blocked waiting for the peer, as required by the {@link Transport} contract.
+ * Each handler runs on the lane of the operation which completed, and the queue of each lane orders every handler after the operation which initiated it.
+ * Blocking writes have no timeout of their own; a stalled peer is cut off by the connection watchdog, which closes the socket.
+ */
+public class VirtualTransport implements Transport {
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+  private final Lane reader;
+  private final Lane writer;
+  private volatile boolean closed = false;
+  public VirtualTransport(Socket socket, String name) throws IOException {
+    this.socket = socket;
+    in = socket.getInputStream();
+    out = socket.getOutputStream();
+    reader = new Lane(name+"-Read");
+    writer = new Lane(name+"-Write");
+  }
+  @Override public <A> void read(final ByteBuffer dst, final long timeout, final A attach, final CompletionHandler<Integer,? super A> handler){
+    reader.submit(handler, attach, () -> {
+      int n;
+      try{
+        socket.setSoTimeout((int)Math.min(Math.max(timeout,1L), Integer.MAX_VALUE));
+        if (dst.hasArray()){
+          n = in.read(dst.array(), dst.arrayOffset()+dst.position(), dst.remaining());
+          if (n>0){
+            dst.position(dst.position()+n);
+          }
+        }else{
+          final byte[] b = reader.scratch(dst.remaining());
+          n = in.read(b, 0, dst.remaining());
+          if (n>0){
+            dst.put(b, 0, n);
+          }
+        }
+      }catch(SocketTimeoutException e){
+        handler.failed(new InterruptedByTimeoutException(), attach);
+        return;
+      }catch(Throwable e){
+        handler.failed(closed?new AsynchronousCloseException():e, attach);
+        return;
+      }
+      handler.completed(n, attach);
+    });
+  }
+  @Override public <A> void write(final ByteBuffer src, final long timeout, final A attach, final CompletionHandler<Integer,? super A> handler){
+    writer.submit(handler, attach, () -> {
+      final int n = src.remaining();
+      try{
+        if (src.hasArray()){
+          out.write(src.array(), src.arrayOffset()+src.position(), n);
+          src.position(src.position()+n);
+        }else{
+          final byte[] b = writer.scratch(n);
+          src.get(b, 0, n);
+          out.write(b, 0, n);
+        }
+      }catch(Throwable e){
+        handler.failed(closed?new AsynchronousCloseException():e, attach);
+        return;
+      }
+      handler.completed(n, attach);
+    });
+  }
+  @Override public SocketAddress getRemoteAddress() throws IOException {
+    return socket.getRemoteSocketAddress();
+  }
+  @Override public void close() throws IOException {
+    closed = true;
+    try{
+      socket.close();
+    }finally{
+      reader.thread.interrupt();
+      writer.thread.interrupt();
+    }
+  }
+  /**
+   * @return whether or not both virtual threads have terminated.
+   */
+  public boolean isTerminated(){
+    return !reader.thread.isAlive() && !writer.thread.isAlive();
+  }
+  /**
+   * Virtual thread which executes one direction of operations in order.
+   */
+  private class Lane {
+    /** Operations waiting to execute on {@link #thread}. */
+    private final LinkedBlockingQueue<Runnable> ops = new LinkedBlockingQueue<Runnable>();
+    private final Thread thread;
+    /** Scratch space used when the caller supplies a direct buffer. Only accessed by {@link #thread}. */
+    private byte[] scratch = null;
+    Lane(String name){
+      thread = Thread.ofVirtual().name(name).start(this::loop);
+    }
+    byte[] scratch(int len){
+      if (scratch==null || scratch.length<len){
+        scratch = new byte[Math.max(len, 8192)];
+      }
+      return scratch;
+    }
+    <A> void submit(final CompletionHandler<Integer,? super A> handler, final A attach, Runnable op){
+      if (closed){
+        handler.failed(new AsynchronousCloseException(), attach);
+        return;
+      }
+      ops.offer(op);
+      if (closed && ops.remove(op)){
+        handler.failed(new AsynchronousCloseException(), attach);
+      }
+    }
+    private void loop(){
+      Runnable r;
+      while (!closed){
+        try{
+          r = ops.take();
+        }catch(InterruptedException e){
+          continue;
+        }
+        try{
+          r.run();
+        }catch(Throwable e){
+          Logger.logAsync("Error occurred in VirtualTransport operation.", e);
+        }
+      }
+      //Operations queued after closing fail immediately because the socket is closed
+      while ((r=ops.poll())!=null){
+        try{
+          r.run();
+        }catch(Throwable e){}
+      }
+    }
+  }
+}
\ No newline at end of file